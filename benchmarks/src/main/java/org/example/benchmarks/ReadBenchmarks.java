@@ -0,0 +1,136 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.util.io.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 只读操作的基准测试: status、log、RevWalk、diff、标签列表
+ * 仓库在整轮测试开始前生成一次,所有迭代共用
+ * 吞吐量和延迟分位数都会输出,加上-prof gc可以看到每次操作的分配量
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmarks {
+    @Param({"100", "10000"})
+    public int files;
+
+    @Param({"10", "1000"})
+    public int commits;
+
+    @Param({"10"})
+    public int branches;
+
+    @Param({"10", "1000"})
+    public int tags;
+
+    private Path root;
+    private Git remote;
+    private Git local;
+    private ObjectId head;
+    private ObjectId headParent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GitAPIException {
+        root = Files.createTempDirectory("jgit-bench");
+        remote = SyntheticRepos.initRemote(root.resolve("remote").toFile());
+        local = SyntheticRepos.cloneFrom(remote, root.resolve("local").toFile());
+        RevCommit commit = SyntheticRepos.populate(local, files, commits, branches, tags);
+        head = commit.getId();
+        headParent = commit.getParentCount() > 0 ? commit.getParent(0).getId() : commit.getId();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        local.close();
+        remote.close();
+        SyntheticRepos.delete(root);
+    }
+
+    @Benchmark
+    public Status status() throws GitAPIException {
+        return local.status().call();
+    }
+
+    @Benchmark
+    public void log(Blackhole bh) throws GitAPIException {
+        for (RevCommit commit : local.log().call()) {
+            bh.consume(commit);
+        }
+    }
+
+    @Benchmark
+    public void logFirstFive(Blackhole bh) throws GitAPIException {
+        for (RevCommit commit : local.log().setMaxCount(5).call()) {
+            bh.consume(commit.getShortMessage());
+        }
+    }
+
+    @Benchmark
+    public void revWalk(Blackhole bh) throws IOException {
+        try (RevWalk walk = new RevWalk(local.getRepository())) {
+            walk.markStart(walk.parseCommit(head));
+            for (RevCommit commit : walk) {
+                bh.consume(commit);
+            }
+        }
+    }
+
+    @Benchmark
+    public void diffHeadParent(Blackhole bh) throws IOException {
+        try (ObjectReader reader = local.getRepository().newObjectReader();
+             RevWalk walk = new RevWalk(reader);
+             DiffFormatter formatter = new DiffFormatter(NullOutputStream.INSTANCE)) {
+            formatter.setRepository(local.getRepository());
+            CanonicalTreeParser oldTree = new CanonicalTreeParser();
+            oldTree.reset(reader, walk.parseCommit(headParent).getTree());
+            CanonicalTreeParser newTree = new CanonicalTreeParser();
+            newTree.reset(reader, walk.parseCommit(head).getTree());
+            for (DiffEntry entry : formatter.scan(oldTree, newTree)) {
+                formatter.format(entry);
+                bh.consume(entry);
+            }
+        }
+    }
+
+    @Benchmark
+    public void tagList(Blackhole bh) throws GitAPIException, IOException {
+        try (RevWalk walk = new RevWalk(local.getRepository())) {
+            for (Ref ref : local.tagList().call()) {
+                bh.consume(walk.parseCommit(ref.getObjectId()));
+            }
+        }
+    }
+}
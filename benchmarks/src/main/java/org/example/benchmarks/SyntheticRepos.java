@@ -0,0 +1,138 @@
+package org.example.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * 生成基准测试用的仓库
+ * 和JGitCommandsLearningTest一样,远端是本地目录,不需要网络
+ */
+final class SyntheticRepos {
+    // 每个目录放多少个文件
+    private static final int FILES_PER_DIR = 100;
+
+    private SyntheticRepos() {
+    }
+
+    /**
+     * 初始化一个裸仓库作为远端
+     *
+     * @param dir
+     * @return
+     * @throws GitAPIException
+     */
+    static Git initRemote(File dir) throws GitAPIException {
+        return Git.init().setBare(true).setDirectory(dir).call();
+    }
+
+    /**
+     * 从远端克隆一个本地仓库
+     *
+     * @param remote
+     * @param dir
+     * @return
+     * @throws GitAPIException
+     * @throws IOException
+     */
+    static Git cloneFrom(Git remote, File dir) throws GitAPIException, IOException {
+        String remoteUri = remote.getRepository().getDirectory().getCanonicalPath();
+        return Git.cloneRepository().setURI(remoteUri).setDirectory(dir).call();
+    }
+
+    /**
+     * 往仓库里写入指定规模的文件、提交、分支和标签
+     * 第一个提交包含所有文件,之后每个提交只改一个文件
+     *
+     * @param git
+     * @param files
+     * @param commits  包括第一个提交在内的提交数
+     * @param branches 分支均匀分布在历史上,比提交数多时一个提交上有多个
+     * @param tags     标签均匀分布在历史上,比提交数多时一个提交上有多个
+     * @return 最后一个提交
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    static RevCommit populate(Git git, int files, int commits, int branches, int tags)
+            throws IOException, GitAPIException {
+        File workTree = git.getRepository().getWorkTree();
+        for (int i = 0; i < files; i++) {
+            write(workTree, path(i), "line 0 of file " + i + "\n");
+        }
+        git.add().addFilepattern(".").call();
+        RevCommit head = git.commit().setMessage("initial commit").call();
+
+        int branchCount = 0;
+        int tagCount = 0;
+        for (int c = 1; c <= commits; c++) {
+            // 第k个引用放在第k*commits/n+1个提交上,引用比提交多时一个提交上放多个
+            while (branchCount < branches && (long) branchCount * commits / branches < c) {
+                git.branchCreate().setName("branch-" + branchCount++).call();
+            }
+            while (tagCount < tags && (long) tagCount * commits / tags < c) {
+                git.tag().setName("v" + tagCount++).setObjectId(head).setAnnotated(false).call();
+            }
+            if (c == commits) {
+                break;
+            }
+            String path = path(c % Math.max(files, 1));
+            append(workTree, path, "line " + c + "\n");
+            git.add().addFilepattern(path).call();
+            head = git.commit().setMessage("commit " + c).call();
+        }
+        return head;
+    }
+
+    static String path(int i) {
+        return "dir" + (i / FILES_PER_DIR) + "/file" + i + ".txt";
+    }
+
+    static void write(File workTree, String path, String content) throws IOException {
+        Path file = workTree.toPath().resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void append(File workTree, String path, String content) throws IOException {
+        Path file = workTree.toPath().resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * 删除基准测试的临时目录
+     *
+     * @param root
+     * @throws IOException
+     */
+    static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                file.toFile().setWritable(true);
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,109 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.PushResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * push和fetch的基准测试
+ * 远端是本地的裸仓库,走的是本地传输,不需要网络和ssh
+ * 每次调用前准备好一个新提交,测的是传一个提交的开销
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmarks {
+    @Param({"100", "10000"})
+    public int files;
+
+    @Param({"10", "1000"})
+    public int commits;
+
+    private Path root;
+    private Git remote;
+    // 往远端推提交的仓库
+    private Git upstream;
+    // 从远端拉提交的仓库
+    private Git downstream;
+    private int counter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GitAPIException {
+        root = Files.createTempDirectory("jgit-bench");
+        remote = SyntheticRepos.initRemote(root.resolve("remote").toFile());
+        upstream = SyntheticRepos.cloneFrom(remote, root.resolve("upstream").toFile());
+        SyntheticRepos.populate(upstream, files, commits, 0, 0);
+        upstream.push().call();
+        downstream = SyntheticRepos.cloneFrom(remote, root.resolve("downstream").toFile());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        downstream.close();
+        upstream.close();
+        remote.close();
+        SyntheticRepos.delete(root);
+    }
+
+    /**
+     * push前在upstream上做一个提交
+     */
+    @State(Scope.Thread)
+    public static class PushState {
+        @Setup(Level.Invocation)
+        public void setUp(TransportBenchmarks bench) throws IOException, GitAPIException {
+            bench.commitOnUpstream();
+        }
+    }
+
+    /**
+     * fetch前先把一个新提交推到远端
+     */
+    @State(Scope.Thread)
+    public static class FetchState {
+        @Setup(Level.Invocation)
+        public void setUp(TransportBenchmarks bench) throws IOException, GitAPIException {
+            bench.commitOnUpstream();
+            bench.upstream.push().call();
+        }
+    }
+
+    @Benchmark
+    public Iterable<PushResult> push(PushState state) throws GitAPIException {
+        return upstream.push().call();
+    }
+
+    @Benchmark
+    public FetchResult fetch(FetchState state) throws GitAPIException {
+        return downstream.fetch().call();
+    }
+
+    private void commitOnUpstream() throws IOException, GitAPIException {
+        String path = SyntheticRepos.path(counter % files);
+        SyntheticRepos.append(upstream.getRepository().getWorkTree(), path, "bench " + counter++ + "\n");
+        upstream.add().addFilepattern(path).call();
+        upstream.commit().setMessage("bench commit").call();
+    }
+}
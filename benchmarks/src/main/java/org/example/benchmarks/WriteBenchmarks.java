@@ -0,0 +1,225 @@
+package org.example.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.MergeCommand;
+import org.eclipse.jgit.api.MergeResult;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 写操作的基准测试: add、rm、commit、tag、merge、reset、revert
+ * 每次调用前用Level.Invocation把仓库恢复到固定状态,只测命令本身
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmarks {
+
+    /**
+     * 共用的仓库,每个线程一份
+     */
+    @State(Scope.Thread)
+    public static class Repo {
+        @Param({"100", "10000"})
+        public int files;
+
+        @Param({"10", "1000"})
+        public int commits;
+
+        @Param({"10"})
+        public int branches;
+
+        @Param({"10"})
+        public int tags;
+
+        Path root;
+        Git remote;
+        Git local;
+        File workTree;
+        RevCommit head;
+        // 每次调用写入不同的内容
+        int counter;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, GitAPIException {
+            root = Files.createTempDirectory("jgit-bench");
+            remote = SyntheticRepos.initRemote(root.resolve("remote").toFile());
+            local = SyntheticRepos.cloneFrom(remote, root.resolve("local").toFile());
+            workTree = local.getRepository().getWorkTree();
+            head = SyntheticRepos.populate(local, files, commits, branches, tags);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            local.close();
+            remote.close();
+            SyntheticRepos.delete(root);
+        }
+
+        void resetToHead() throws GitAPIException {
+            local.reset().setMode(ResetCommand.ResetType.HARD).setRef(head.getName()).call();
+        }
+
+        String modifyFile() throws IOException {
+            String path = SyntheticRepos.path(counter % files);
+            SyntheticRepos.append(workTree, path, "bench " + counter++ + "\n");
+            return path;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AddState {
+        String path;
+
+        @Setup(Level.Invocation)
+        public void setUp(Repo repo) throws IOException {
+            path = repo.modifyFile();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RmState {
+        String path;
+
+        @Setup(Level.Invocation)
+        public void setUp(Repo repo) throws GitAPIException {
+            // 上一次rm删掉的文件恢复回来
+            repo.resetToHead();
+            path = SyntheticRepos.path(repo.counter++ % repo.files);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CommitState {
+        @Setup(Level.Invocation)
+        public void setUp(Repo repo) throws IOException, GitAPIException {
+            repo.local.add().addFilepattern(repo.modifyFile()).call();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown(Repo repo) throws GitAPIException {
+            repo.resetToHead();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TagState {
+        String name;
+
+        @Setup(Level.Invocation)
+        public void setUp(Repo repo) {
+            name = "bench-" + repo.counter++;
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown(Repo repo) throws IOException {
+            RefUpdate update = repo.local.getRepository().updateRef(Constants.R_TAGS + name);
+            update.setForceUpdate(true);
+            update.delete();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MergeState {
+        Ref side;
+
+        @Setup(Level.Trial)
+        public void setUpTrial(Repo repo) throws IOException, GitAPIException {
+            // side分支比master多一个提交,改的是另一个文件,合并不会冲突
+            repo.local.checkout().setCreateBranch(true).setName("bench-side")
+                    .setStartPoint(repo.head.getParent(0).getName()).call();
+            SyntheticRepos.write(repo.workTree, "side/only-on-side.txt", "side\n");
+            repo.local.add().addFilepattern("side/only-on-side.txt").call();
+            repo.local.commit().setMessage("side commit").call();
+            side = repo.local.getRepository().exactRef("refs/heads/bench-side");
+            repo.local.checkout().setName("master").call();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown(Repo repo) throws GitAPIException {
+            repo.resetToHead();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ResetState {
+        @Setup(Level.Invocation)
+        public void setUp(Repo repo) throws IOException, GitAPIException {
+            repo.local.add().addFilepattern(repo.modifyFile()).call();
+            repo.local.commit().setMessage("to be reset").call();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RevertState {
+        @TearDown(Level.Invocation)
+        public void tearDown(Repo repo) throws GitAPIException {
+            repo.resetToHead();
+        }
+    }
+
+    @Benchmark
+    public DirCache add(Repo repo, AddState state) throws GitAPIException {
+        return repo.local.add().addFilepattern(state.path).call();
+    }
+
+    @Benchmark
+    public DirCache rm(Repo repo, RmState state) throws GitAPIException {
+        return repo.local.rm().addFilepattern(state.path).call();
+    }
+
+    @Benchmark
+    public RevCommit commit(Repo repo, CommitState state) throws GitAPIException {
+        return repo.local.commit().setMessage("bench commit").call();
+    }
+
+    @Benchmark
+    public Ref tag(Repo repo, TagState state) throws GitAPIException {
+        return repo.local.tag().setName(state.name).setObjectId(repo.head).setMessage("bench tag").call();
+    }
+
+    @Benchmark
+    public MergeResult merge(Repo repo, MergeState state) throws GitAPIException {
+        return repo.local.merge().include(state.side)
+                .setCommit(true)
+                .setFastForward(MergeCommand.FastForwardMode.NO_FF)
+                .setMessage("bench merge")
+                .call();
+    }
+
+    @Benchmark
+    public Ref resetHard(Repo repo, ResetState state) throws GitAPIException {
+        return repo.local.reset().setMode(ResetCommand.ResetType.HARD).setRef(repo.head.getName()).call();
+    }
+
+    @Benchmark
+    public RevCommit revert(Repo repo, RevertState state) throws GitAPIException {
+        return repo.local.revert().include(repo.head).call();
+    }
+}
@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+
+/**
+ * 批量暂存
+ * 代替逐个文件调用git.add()/git.rm(),每次调用都要锁、读、重写整个索引
+ * 这里先收集所有操作,索引只锁一次;文件内容分片交给线程池并行哈希并写入对象库,
+ * 最后一次性提交索引
+ * 对象可以写成松散对象,也可以每个分片直接写一个pack,避免产生大量小文件
+ * 内容和git.add()一样经过换行符转换和clean过滤器,core.filemode为false时保留索引里的权限
+ */
+public class GitBatchStager {
+    private static final int MIN_SLICE = 512;
+
+    private final Repository repository;
+    // 同一路径多次操作时以最后一次为准
+    private final Map<String, Operation> operations = new TreeMap<>();
+    private Executor executor = ForkJoinPool.commonPool();
+    private int parallelism = ForkJoinPool.getCommonPoolParallelism();
+    private boolean writePack;
+
+    public GitBatchStager(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * 暂存操作
+     */
+    public static final class Operation {
+        public enum Type {
+            /** 新增或修改,文件不存在时如果已跟踪就暂存删除 */
+            ADD,
+            /** 只更新已跟踪的文件,未跟踪的忽略 */
+            UPDATE,
+            /** 从索引里删除,不删工作区文件 */
+            REMOVE
+        }
+
+        private final Type type;
+        private final String path;
+
+        private Operation(Type type, String path) {
+            this.type = type;
+            this.path = path;
+        }
+
+        public static Operation add(String path) {
+            return new Operation(Type.ADD, path);
+        }
+
+        public static Operation update(String path) {
+            return new Operation(Type.UPDATE, path);
+        }
+
+        public static Operation remove(String path) {
+            return new Operation(Type.REMOVE, path);
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getPath() {
+            return path;
+        }
+    }
+
+    public GitBatchStager add(String path) {
+        return addAll(Stream.of(Operation.add(path)));
+    }
+
+    public GitBatchStager update(String path) {
+        return addAll(Stream.of(Operation.update(path)));
+    }
+
+    public GitBatchStager remove(String path) {
+        return addAll(Stream.of(Operation.remove(path)));
+    }
+
+    /**
+     * 添加一批操作,路径是相对工作区的,用/分隔
+     *
+     * @param stream
+     * @return
+     */
+    public GitBatchStager addAll(Stream<Operation> stream) {
+        stream.forEach(op -> operations.put(op.getPath(), op));
+        return this;
+    }
+
+    /**
+     * 哈希和写对象用的线程池,以及最多分成几片
+     *
+     * @param executor
+     * @param parallelism
+     * @return
+     */
+    public GitBatchStager setExecutor(Executor executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * 每个分片直接写一个pack,不产生松散对象
+     *
+     * @param writePack
+     * @return
+     */
+    public GitBatchStager setWritePack(boolean writePack) {
+        this.writePack = writePack;
+        return this;
+    }
+
+    /**
+     * 执行所有操作,索引只提交一次
+     *
+     * @return
+     * @throws IOException
+     */
+    public Result call() throws IOException {
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("add")) {
+            Result result = stage(sample);
+            sample.done();
+            return result;
+        }
+    }
+
+    private Result stage(GitMetrics.Sample sample) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        // 先拿维护的写锁再锁索引,锁索引失败时也会放掉写锁
+        GitMaintenance.WriteGuard guard = GitMaintenance.beginWrite(repository);
+        try {
+            DirCache dirCache = repository.lockDirCache();
+            try {
+                edit(dirCache, sample, result);
+            } finally {
+                dirCache.unlock();
+            }
+        } finally {
+            guard.close();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void edit(DirCache dirCache, GitMetrics.Sample sample, Result result) throws IOException {
+        List<String> toHash = new ArrayList<>();
+        DirCacheEditor editor = dirCache.editor();
+        for (Operation op : operations.values()) {
+            boolean tracked = dirCache.findEntry(op.getPath()) >= 0;
+            if (op.getType() == Operation.Type.REMOVE) {
+                if (tracked) {
+                    editor.add(new DirCacheEditor.DeletePath(op.getPath()));
+                    result.removed++;
+                }
+            } else if (tracked || op.getType() == Operation.Type.ADD) {
+                toHash.add(op.getPath());
+            }
+        }
+
+        for (Staged staged : hashAll(dirCache, toHash)) {
+            if (staged.id == null) {
+                // 文件已经不存在,已跟踪的暂存删除
+                if (dirCache.findEntry(staged.path) >= 0) {
+                    editor.add(new DirCacheEditor.DeletePath(staged.path));
+                    result.removed++;
+                }
+                continue;
+            }
+            sample.written(1, staged.length);
+            DirCacheEntry old = dirCache.getEntry(staged.path);
+            if (old == null) {
+                result.added++;
+            } else if (!old.getObjectId().equals(staged.id) || !old.getFileMode().equals(staged.mode)) {
+                result.updated++;
+            }
+            editor.add(new DirCacheEditor.PathEdit(staged.path) {
+                @Override
+                public void apply(DirCacheEntry entry) {
+                    entry.setObjectId(staged.id);
+                    entry.setFileMode(staged.mode);
+                    entry.setLength(staged.length);
+                    entry.setLastModified(staged.lastModified);
+                }
+            });
+        }
+        if (!editor.commit()) {
+            throw new IOException("Could not write index " + repository.getIndexFile());
+        }
+    }
+
+    private List<Staged> hashAll(DirCache dirCache, List<String> paths) throws IOException {
+        int slices = Math.max(1, Math.min(parallelism, (paths.size() + MIN_SLICE - 1) / MIN_SLICE));
+        int sliceSize = (paths.size() + slices - 1) / slices;
+        List<CompletableFuture<List<Staged>>> futures = new ArrayList<>();
+        for (int from = 0; from < paths.size(); from += sliceSize) {
+            List<String> slice = paths.subList(from, Math.min(paths.size(), from + sliceSize));
+            futures.add(CompletableFuture.supplyAsync(() -> hashSlice(dirCache, slice), executor));
+        }
+        List<Staged> all = new ArrayList<>(paths.size());
+        for (CompletableFuture<List<Staged>> future : futures) {
+            try {
+                all.addAll(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        return all;
+    }
+
+    /**
+     * 一个分片用一个inserter,最后flush一次
+     * 和AddCommand一样经过WorkingTreeIterator读文件,执行换行符转换和clean过滤器
+     */
+    private List<Staged> hashSlice(DirCache dirCache, List<String> paths) {
+        Map<String, Staged> staged = new LinkedHashMap<>();
+        for (String path : paths) {
+            staged.put(path, new Staged(path));
+        }
+        try (ObjectInserter inserter = newInserter();
+             TreeWalk walk = new TreeWalk(repository)) {
+            walk.setOperationType(TreeWalk.OperationType.CHECKIN_OP);
+            walk.setRecursive(true);
+            walk.setFilter(PathFilterGroup.createFromStrings(paths));
+            int index = walk.addTree(new DirCacheIterator(dirCache));
+            int workTree = walk.addTree(new FileTreeIterator(repository));
+            while (walk.next()) {
+                Staged entry = staged.get(walk.getPathString());
+                WorkingTreeIterator file = walk.getTree(workTree, WorkingTreeIterator.class);
+                // 操作的路径是目录时,下面的文件不在表里;冲突的路径每个阶段都会走到一次
+                if (entry != null && entry.id == null && file != null) {
+                    hash(inserter, entry, file, walk.getTree(index, DirCacheIterator.class));
+                }
+            }
+            inserter.flush();
+            return new ArrayList<>(staged.values());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ObjectInserter newInserter() {
+        ObjectDatabase db = repository.getObjectDatabase();
+        if (writePack && db instanceof ObjectDirectory) {
+            return ((ObjectDirectory) db).newPackInserter();
+        }
+        return db.newInserter();
+    }
+
+    private void hash(ObjectInserter inserter, Staged staged, WorkingTreeIterator file, DirCacheIterator index)
+            throws IOException {
+        // core.filemode为false或者文件系统不支持执行权限时,沿用索引里的权限
+        FileMode mode = file.getIndexFileMode(index);
+        if (!FileMode.REGULAR_FILE.equals(mode) && !FileMode.EXECUTABLE_FILE.equals(mode)
+                && !FileMode.SYMLINK.equals(mode)) {
+            // 子模块,当作文件不存在
+            return;
+        }
+        // 先取文件属性再读内容,读的过程中文件被修改时下次status能发现
+        staged.mode = mode;
+        staged.length = file.getEntryLength();
+        staged.lastModified = file.getEntryLastModified();
+        long contentLength = file.getEntryContentLength();
+        try (InputStream in = file.openEntryStream()) {
+            staged.id = inserter.insert(Constants.OBJ_BLOB, contentLength, in);
+        }
+    }
+
+    /**
+     * 一个文件的哈希结果,id为null表示文件不存在
+     */
+    private static final class Staged {
+        final String path;
+        ObjectId id;
+        FileMode mode;
+        long length;
+        long lastModified;
+
+        Staged(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * 暂存结果
+     */
+    public static final class Result {
+        private int added;
+        private int updated;
+        private int removed;
+        private long elapsedNanos;
+
+        public int getAdded() {
+            return added;
+        }
+
+        /**
+         * @return 内容或权限有变化的已跟踪文件数
+         */
+        public int getUpdated() {
+            return updated;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        /**
+         * @return 每秒处理的文件数
+         */
+        public double getFilesPerSecond() {
+            int files = added + updated + removed;
+            return elapsedNanos == 0 ? 0 : files * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "added=" + added + " updated=" + updated + " removed=" + removed
+                    + " " + String.format("%.0f", getFilesPerSecond()) + " files/s";
+        }
+    }
+}
@@ -0,0 +1,659 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.EditList;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+/**
+ * 逐行追溯文件内容来自哪个提交
+ * 从指定提交往祖先走,每个提交只和父提交比较还没归属的行,没变的行交给父提交,
+ * 剩下的行就是这个提交引入的,马上交给RegionSink,不用等整个文件算完
+ * 只追溯一段行时,这段行全部有了归属就停,不会走完整个历史
+ * 有提交图时按代数从新到旧处理,同一个父提交只处理一次
+ * 打开持久化后,完整追溯的结果按文件存在.git/blame-index下面,
+ * 以后在更新的提交上追溯同一个文件,走到上次的提交时直接用存下的结果,只处理新提交
+ * 不跟踪重命名,合并提交的行优先交给第一个内容相同的父提交
+ */
+public class GitBlame {
+    public static final String INDEX_DIR = "blame-index";
+
+    private static final int INDEX_MAGIC = 0x4a424c4d;
+    private static final int INDEX_VERSION = 2;
+
+    private final Repository repository;
+    private GitCommitGraph commitGraph;
+    private GitBlobCache blobCache;
+    private int beginLine;
+    private int endLine = -1;
+    private boolean persistIndex;
+
+    public GitBlame(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * 追溯结果的输出,按归属的先后调用,不是按行号顺序
+     */
+    public interface RegionSink {
+        /**
+         * @param region
+         * @return 返回false时停止追溯
+         * @throws IOException
+         */
+        boolean region(Region region) throws IOException;
+    }
+
+    /**
+     * 设置后按提交图上的代数排序,不在图里的提交当作比图里的都新
+     *
+     * @param commitGraph
+     * @return
+     */
+    public GitBlame setCommitGraph(GitCommitGraph commitGraph) {
+        this.commitGraph = commitGraph;
+        return this;
+    }
+
+    /**
+     * 设置后各个版本的文件内容走blob缓存
+     *
+     * @param blobCache
+     * @return
+     */
+    public GitBlame setBlobCache(GitBlobCache blobCache) {
+        this.blobCache = blobCache;
+        return this;
+    }
+
+    /**
+     * 只追溯这些行,行号从0开始,不含end,默认整个文件
+     *
+     * @param begin
+     * @param end
+     * @return
+     */
+    public GitBlame setLineRange(int begin, int end) {
+        this.beginLine = begin;
+        this.endLine = end;
+        return this;
+    }
+
+    /**
+     * 是否读写.git/blame-index,只有完整追溯了整个文件才写
+     *
+     * @param persistIndex
+     * @return
+     */
+    public GitBlame setPersistIndex(boolean persistIndex) {
+        this.persistIndex = persistIndex;
+        return this;
+    }
+
+    /**
+     * 追溯并把结果按行号排好
+     *
+     * @param commitId
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public Result blame(AnyObjectId commitId, String path) throws IOException {
+        List<Region> regions = new ArrayList<>();
+        Result result = blame(commitId, path, region -> regions.add(region));
+        regions.sort(Comparator.comparingInt(Region::getResultStart));
+        result.regions = regions;
+        return result;
+    }
+
+    /**
+     * 追溯,结果边算边交给sink
+     *
+     * @param commitId
+     * @param path
+     * @param sink
+     * @return
+     * @throws IOException            文件在这个提交里不存在时是FileNotFoundException
+     */
+    public Result blame(AnyObjectId commitId, String path, RegionSink sink) throws IOException {
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("blame")) {
+            Result result = walk(commitId, path, sink);
+            sample.read(result.commitsVisited, 0);
+            sample.done();
+            return result;
+        }
+    }
+
+    private Result walk(AnyObjectId commitId, String path, RegionSink sink) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        ObjectReader plain = repository.newObjectReader();
+        try (ObjectReader reader = blobCache != null ? blobCache.newReader(plain) : plain;
+             RevWalk walk = new RevWalk(reader)) {
+            walk.setRetainBody(false);
+            RevCommit head = walk.parseCommit(commitId);
+            ObjectId blob = blobId(reader, head, path);
+            if (blob == null) {
+                throw new FileNotFoundException(path + " not found in " + head.name());
+            }
+            RawText text = text(reader, blob);
+            result.lineCount = text.size();
+            int begin = Math.max(0, Math.min(beginLine, text.size()));
+            int end = endLine < 0 ? text.size() : Math.max(begin, Math.min(endLine, text.size()));
+            result.remaining = end - begin;
+
+            // 完整追溯时记下每行的归属,写索引用
+            boolean whole = begin == 0 && end == text.size();
+            Recorder recorder = new Recorder(sink, result, persistIndex && whole ? text.size() : 0);
+            Index index = persistIndex ? readIndex(reader, path) : null;
+
+            Map<ObjectId, Candidate> pending = new HashMap<>();
+            PriorityQueue<Candidate> queue = new PriorityQueue<>();
+            Candidate first = new Candidate(head, order(head), blob, text);
+            if (end > begin) {
+                first.ranges.add(new Range(begin, begin, end - begin));
+                queue.add(first);
+            }
+            while (!queue.isEmpty() && result.remaining > 0 && !recorder.stopped) {
+                Candidate candidate = queue.poll();
+                pending.remove(candidate.commit);
+                result.commitsVisited++;
+                if (index != null && index.commit.equals(candidate.commit) && index.blob.equals(candidate.blob)) {
+                    result.indexedLines += index.resolve(candidate, recorder);
+                    continue;
+                }
+                List<Range> remaining = candidate.ranges;
+                RevCommit commit = candidate.commit;
+                RevCommit[] parents = new RevCommit[commit.getParentCount()];
+                ObjectId[] parentBlobs = new ObjectId[parents.length];
+                int same = -1;
+                for (int p = 0; p < parents.length; p++) {
+                    parents[p] = walk.parseCommit(commit.getParent(p));
+                    parentBlobs[p] = blobId(reader, parents[p], path);
+                    if (same < 0 && candidate.blob.equals(parentBlobs[p])) {
+                        same = p;
+                    }
+                }
+                // 和git一样,有父提交的文件和这个版本一样时整个交给它,不再跟其他父提交比
+                for (int p = 0; p < parents.length && !remaining.isEmpty(); p++) {
+                    RevCommit parent = parents[p];
+                    ObjectId parentBlob = parentBlobs[p];
+                    if (parentBlob == null || same >= 0 && p != same) {
+                        continue;
+                    }
+                    Candidate target = pending.get(parent);
+                    if (target == null) {
+                        target = new Candidate(parent, order(parent), parentBlob, null);
+                    }
+                    List<Range> passed = new ArrayList<>();
+                    if (parentBlob.equals(candidate.blob)) {
+                        passed = remaining;
+                        remaining = new ArrayList<>();
+                        if (target.text == null) {
+                            target.text = candidate.text;
+                        }
+                    } else {
+                        if (target.text == null) {
+                            target.text = text(reader, parentBlob);
+                        }
+                        List<Range> kept = new ArrayList<>();
+                        split(remaining, unchanged(target.text, candidate.text(reader)), passed, kept);
+                        remaining = kept;
+                    }
+                    if (!passed.isEmpty()) {
+                        target.ranges.addAll(passed);
+                        if (pending.putIfAbsent(parent, target) == null) {
+                            queue.add(target);
+                        }
+                    }
+                }
+                int candidateLines = candidate.text(reader).size();
+                for (Range range : remaining) {
+                    if (!recorder.emit(candidate.commit, candidateLines, range.resultStart, range.sourceStart,
+                            range.length)) {
+                        break;
+                    }
+                }
+                // 文字用完就丢,避免整个历史的版本都留在内存里
+                candidate.text = null;
+            }
+            if (recorder.lineCommits != null && result.remaining == 0) {
+                writeIndex(path, head, blob, recorder);
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private long order(RevCommit commit) {
+        int generation = commitGraph != null ? commitGraph.getGeneration(commit) : 0;
+        if (generation == 0 && commitGraph != null) {
+            generation = Integer.MAX_VALUE;
+        }
+        return ((long) generation << 32) | (commit.getCommitTime() & 0xffffffffL);
+    }
+
+    private static ObjectId blobId(ObjectReader reader, RevCommit commit, String path) throws IOException {
+        try (TreeWalk tw = TreeWalk.forPath(reader, path, commit.getTree())) {
+            if (tw == null || (tw.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_TREE
+                    || (tw.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_GITLINK) {
+                return null;
+            }
+            return tw.getObjectId(0);
+        }
+    }
+
+    private static RawText text(ObjectReader reader, ObjectId blob) throws IOException {
+        return new RawText(reader.open(blob, Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE));
+    }
+
+    /**
+     * 子版本里没变的行段,每段是{子版本起始行,父版本起始行,行数}
+     */
+    private static List<int[]> unchanged(RawText parent, RawText child) {
+        EditList edits = DiffAlgorithm.getAlgorithm(DiffAlgorithm.SupportedAlgorithm.HISTOGRAM)
+                .diff(RawTextComparator.DEFAULT, parent, child);
+        List<int[]> segments = new ArrayList<>(edits.size() + 1);
+        int a = 0;
+        int b = 0;
+        for (Edit edit : edits) {
+            if (edit.getBeginB() > b) {
+                segments.add(new int[]{b, a, edit.getBeginB() - b});
+            }
+            a = edit.getEndA();
+            b = edit.getEndB();
+        }
+        if (child.size() > b) {
+            segments.add(new int[]{b, a, child.size() - b});
+        }
+        return segments;
+    }
+
+    /**
+     * 落在没变的行段里的部分换算成父版本的行号交给父提交,其余的留下
+     */
+    private static void split(List<Range> ranges, List<int[]> segments, List<Range> passed, List<Range> kept) {
+        for (Range range : ranges) {
+            int cursor = range.sourceStart;
+            int end = range.sourceStart + range.length;
+            for (int[] segment : segments) {
+                int from = Math.max(segment[0], cursor);
+                int to = Math.min(segment[0] + segment[2], end);
+                if (from >= to) {
+                    continue;
+                }
+                if (from > cursor) {
+                    kept.add(new Range(range.resultStart + cursor - range.sourceStart, cursor, from - cursor));
+                }
+                passed.add(new Range(range.resultStart + from - range.sourceStart, segment[1] + from - segment[0], to - from));
+                cursor = to;
+            }
+            if (cursor < end) {
+                kept.add(new Range(range.resultStart + cursor - range.sourceStart, cursor, end - cursor));
+            }
+        }
+    }
+
+    private File indexFile(String path) {
+        MessageDigest md = Constants.newMessageDigest();
+        md.update(Constants.encode(path));
+        return new File(new File(repository.getDirectory(), INDEX_DIR), ObjectId.fromRaw(md.digest()).name());
+    }
+
+    /**
+     * 读索引,数量和文件大小、文件的行数对不上,提交已经不在库里,或者行号超出那个提交里文件的行数时都当没有索引
+     */
+    private Index readIndex(ObjectReader reader, String path) {
+        File file = indexFile(path);
+        if (!file.isFile()) {
+            return null;
+        }
+        long size = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION || !in.readUTF().equals(path)) {
+                return null;
+            }
+            byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            in.readFully(raw);
+            ObjectId commit = ObjectId.fromRaw(raw);
+            in.readFully(raw);
+            ObjectId blob = ObjectId.fromRaw(raw);
+            int commitCount = in.readInt();
+            if (commitCount < 0 || (long) commitCount * (Constants.OBJECT_ID_LENGTH + 4) > size) {
+                return null;
+            }
+            ObjectId[] commits = new ObjectId[commitCount];
+            int[] commitLines = new int[commitCount];
+            for (int i = 0; i < commits.length; i++) {
+                in.readFully(raw);
+                commits[i] = ObjectId.fromRaw(raw);
+                commitLines[i] = in.readInt();
+                if (commitLines[i] <= 0 || !reader.has(commits[i], Constants.OBJ_COMMIT)) {
+                    return null;
+                }
+            }
+            int lines = in.readInt();
+            if (lines < 0 || (long) lines * 8 > size || lines != text(reader, blob).size()) {
+                return null;
+            }
+            int[] lineCommits = new int[lines];
+            int[] lineSources = new int[lines];
+            for (int i = 0; i < lines; i++) {
+                lineCommits[i] = in.readInt();
+                lineSources[i] = in.readInt();
+                if (lineCommits[i] < 0 || lineCommits[i] >= commits.length || lineSources[i] < 0
+                        || lineSources[i] >= commitLines[lineCommits[i]]) {
+                    return null;
+                }
+            }
+            return new Index(commit, blob, commits, commitLines, lineCommits, lineSources);
+        } catch (IOException e) {
+            // 文件损坏或者对象已经不在了就当没有索引,完整追溯后会重写
+            return null;
+        }
+    }
+
+    private void writeIndex(String path, RevCommit head, ObjectId blob, Recorder recorder) throws IOException {
+        File file = indexFile(path);
+        file.getParentFile().mkdirs();
+        LockFile lock = new LockFile(file);
+        if (!lock.lock()) {
+            // 其他线程或进程正在写同一个文件,这次不写
+            return;
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(lock.getOutputStream()));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(path);
+            byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            head.copyRawTo(raw, 0);
+            out.write(raw);
+            blob.copyRawTo(raw, 0);
+            out.write(raw);
+            out.writeInt(recorder.commits.size());
+            for (int i = 0; i < recorder.commits.size(); i++) {
+                recorder.commits.get(i).copyRawTo(raw, 0);
+                out.write(raw);
+                out.writeInt(recorder.commitLines.get(i));
+            }
+            out.writeInt(recorder.lineCommits.length);
+            for (int i = 0; i < recorder.lineCommits.length; i++) {
+                out.writeInt(recorder.lineCommits[i]);
+                out.writeInt(recorder.lineSources[i]);
+            }
+            out.close();
+            lock.commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 还没归属的一段行,resultStart是在追溯的版本里的行号,sourceStart是在候选提交的版本里的行号
+     */
+    private static final class Range {
+        final int resultStart;
+        final int sourceStart;
+        final int length;
+
+        Range(int resultStart, int sourceStart, int length) {
+            this.resultStart = resultStart;
+            this.sourceStart = sourceStart;
+            this.length = length;
+        }
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        final RevCommit commit;
+        final long order;
+        final ObjectId blob;
+        final List<Range> ranges = new ArrayList<>();
+        RawText text;
+
+        Candidate(RevCommit commit, long order, ObjectId blob, RawText text) {
+            this.commit = commit;
+            this.order = order;
+            this.blob = blob;
+            this.text = text;
+        }
+
+        RawText text(ObjectReader reader) throws IOException {
+            if (text == null) {
+                text = GitBlame.text(reader, blob);
+            }
+            return text;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            // 新的先处理
+            return Long.compare(other.order, order);
+        }
+    }
+
+    /**
+     * 把归属交给sink,同时记进索引用的数组
+     */
+    private static final class Recorder {
+        final RegionSink sink;
+        final Result result;
+        final int[] lineCommits;
+        final int[] lineSources;
+        final List<ObjectId> commits = new ArrayList<>();
+        final List<Integer> commitLines = new ArrayList<>();
+        final Map<ObjectId, Integer> commitIndex = new HashMap<>();
+        boolean stopped;
+
+        Recorder(RegionSink sink, Result result, int lines) {
+            this.sink = sink;
+            this.result = result;
+            this.lineCommits = lines > 0 ? new int[lines] : null;
+            this.lineSources = lines > 0 ? new int[lines] : null;
+        }
+
+        /**
+         * @param lines 这个提交里文件的行数,索引靠它检查行号
+         */
+        boolean emit(ObjectId commit, int lines, int resultStart, int sourceStart, int length) throws IOException {
+            if (stopped) {
+                return false;
+            }
+            ObjectId id = commit.copy();
+            if (lineCommits != null) {
+                Integer index = commitIndex.get(id);
+                if (index == null) {
+                    index = commits.size();
+                    commits.add(id);
+                    commitLines.add(lines);
+                    commitIndex.put(id, index);
+                }
+                Arrays.fill(lineCommits, resultStart, resultStart + length, index);
+                for (int i = 0; i < length; i++) {
+                    lineSources[resultStart + i] = sourceStart + i;
+                }
+            }
+            result.remaining -= length;
+            if (!sink.region(new Region(id, resultStart, sourceStart, length))) {
+                stopped = true;
+            }
+            return !stopped;
+        }
+    }
+
+    /**
+     * 上次完整追溯的结果
+     */
+    private static final class Index {
+        final ObjectId commit;
+        final ObjectId blob;
+        final ObjectId[] commits;
+        final int[] commitLines;
+        final int[] lineCommits;
+        final int[] lineSources;
+
+        Index(ObjectId commit, ObjectId blob, ObjectId[] commits, int[] commitLines, int[] lineCommits,
+              int[] lineSources) {
+            this.commit = commit;
+            this.blob = blob;
+            this.commits = commits;
+            this.commitLines = commitLines;
+            this.lineCommits = lineCommits;
+            this.lineSources = lineSources;
+        }
+
+        /**
+         * 连续而且来自同一个提交的行合成一段
+         *
+         * @return 用索引归属的行数
+         */
+        int resolve(Candidate candidate, Recorder recorder) throws IOException {
+            int lines = 0;
+            for (Range range : candidate.ranges) {
+                int i = 0;
+                while (i < range.length) {
+                    int line = range.sourceStart + i;
+                    int j = i + 1;
+                    while (j < range.length && lineCommits[line + j - i] == lineCommits[line]
+                            && lineSources[line + j - i] == lineSources[line] + j - i) {
+                        j++;
+                    }
+                    int c = lineCommits[line];
+                    if (!recorder.emit(commits[c], commitLines[c], range.resultStart + i, lineSources[line], j - i)) {
+                        return lines;
+                    }
+                    lines += j - i;
+                    i = j;
+                }
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * 一段来自同一个提交的连续行
+     */
+    public static final class Region {
+        private final ObjectId commit;
+        private final int resultStart;
+        private final int sourceStart;
+        private final int length;
+
+        Region(ObjectId commit, int resultStart, int sourceStart, int length) {
+            this.commit = commit;
+            this.resultStart = resultStart;
+            this.sourceStart = sourceStart;
+            this.length = length;
+        }
+
+        /**
+         * @return 引入这些行的提交
+         */
+        public ObjectId getCommit() {
+            return commit;
+        }
+
+        /**
+         * @return 在追溯的版本里的起始行,从0开始
+         */
+        public int getResultStart() {
+            return resultStart;
+        }
+
+        /**
+         * @return 在引入它的提交里的起始行
+         */
+        public int getSourceStart() {
+            return sourceStart;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + resultStart + "," + (resultStart + length) + ") " + commit.name();
+        }
+    }
+
+    /**
+     * 追溯结果
+     */
+    public static final class Result {
+        private List<Region> regions;
+        private int lineCount;
+        private int remaining;
+        private int commitsVisited;
+        private int indexedLines;
+        private long elapsedNanos;
+
+        /**
+         * @return 按行号排好的结果,用RegionSink追溯时是null
+         */
+        public List<Region> getRegions() {
+            return regions;
+        }
+
+        /**
+         * @return 文件的总行数
+         */
+        public int getLineCount() {
+            return lineCount;
+        }
+
+        /**
+         * @return 要追溯的行是否都有了归属,sink提前停止时是false
+         */
+        public boolean isComplete() {
+            return remaining == 0;
+        }
+
+        public int getCommitsVisited() {
+            return commitsVisited;
+        }
+
+        /**
+         * @return 直接用索引归属的行数
+         */
+        public int getIndexedLines() {
+            return indexedLines;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return "lines=" + lineCount + " commits=" + commitsVisited + " indexed=" + indexedLines
+                    + (isComplete() ? "" : " incomplete") + " " + getElapsedMillis() + "ms";
+        }
+    }
+}
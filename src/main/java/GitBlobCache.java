@@ -0,0 +1,736 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * 按对象id缓存解压后的blob,整个进程共用
+ * 对象id就是内容的哈希,同一个id在哪个仓库里内容都一样,也永远不会变,所以不需要失效,多个仓库可以共用
+ * 内存里按W-TinyLFU淘汰: 新对象先进窗口区(1%),从窗口挤出来后和主区里最久没用的对象比较访问频率,
+ * 频率更高才能进主区,偶尔读一次的大文件不会把反复读的配置文件挤掉;大小不同的对象按字节数计算
+ * 主区分试用区和保护区(80%),试用区里再次命中的对象升到保护区
+ * 可以再加一层磁盘缓存: 挤出内存的对象追加到映射到内存的段文件里,磁盘超过上限时整段删除最旧的段,
+ * 重新打开时扫描段文件重建索引,每条记录都重新算哈希校验,写了一半的记录会被丢掉
+ * 内存里的淘汰策略用这个对象的锁,磁盘层有自己的锁,读写段文件时不挡住只查内存的线程
+ * 被挤掉的段等正在读它的线程读完后再删;windows上映射过的段文件在映射被GC回收前删不掉,之后整理时再删,
+ * 磁盘层在windows上可能超过上限
+ */
+public class GitBlobCache implements AutoCloseable {
+    private static final GitBlobCache DEFAULT = new GitBlobCache(32 * 1024 * 1024);
+    // 每个条目除了数据之外大概的额外开销
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    static {
+        GitMetrics.getDefault()
+                .registerGauge("blobCache.bytes", () -> getDefault().getBytes())
+                .registerGauge("blobCache.hits", () -> getDefault().getHits() + getDefault().getDiskHits())
+                .registerGauge("blobCache.misses", () -> getDefault().getMisses());
+    }
+
+    private final long maxBytes;
+    private final long windowMax;
+    private final long protectedMax;
+    private int maxEntryBytes;
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<ObjectId, byte[]> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<ObjectId, byte[]> probation = new LinkedHashMap<>(256, 0.75f, true);
+    private final LinkedHashMap<ObjectId, byte[]> protectedArea = new LinkedHashMap<>(256, 0.75f, true);
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private DiskTier disk;
+    // 持有锁时挤出内存的对象,放开锁之后再写进磁盘层
+    private Map<ObjectId, byte[]> spilled = Collections.emptyMap();
+
+    private long hits;
+    private long diskHits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    /**
+     * @param maxBytes 内存里最多缓存的字节数
+     */
+    public GitBlobCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.windowMax = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+        this.protectedMax = (maxBytes - windowMax) * PROTECTED_PERCENT / 100;
+        this.maxEntryBytes = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / 8));
+        // 按平均4KB一个对象估算计数器的个数
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(64, maxBytes / 4096)));
+    }
+
+    /**
+     * 进程内共享的缓存,内存上限32MB,没有磁盘层
+     *
+     * @return
+     */
+    public static GitBlobCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * 超过这个大小的blob不缓存,默认是内存上限的1/8
+     *
+     * @param maxEntryBytes
+     * @return
+     */
+    public synchronized GitBlobCache setMaxEntryBytes(int maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+        return this;
+    }
+
+    /**
+     * 加上磁盘层,目录里已有的段文件会被扫描重用
+     *
+     * @param directory 只给这个缓存用的目录
+     * @param maxBytes  段文件的总大小上限
+     * @param segmentBytes 一个段文件的大小,超过它的blob不进磁盘层
+     * @return
+     * @throws IOException
+     */
+    public synchronized GitBlobCache setDiskTier(File directory, long maxBytes, int segmentBytes) throws IOException {
+        if (disk != null) {
+            throw new IllegalStateException("disk tier already set");
+        }
+        disk = new DiskTier(directory, maxBytes, segmentBytes);
+        return this;
+    }
+
+    /**
+     * 从缓存里取,内存里没有时再查磁盘层,磁盘层命中的重新放回内存
+     *
+     * @param id
+     * @return 没有时返回null,返回的数组不能修改
+     */
+    public byte[] get(AnyObjectId id) {
+        DiskTier tier;
+        synchronized (this) {
+            sketch.increment(id);
+            byte[] data = window.get(id);
+            if (data == null) {
+                data = protectedArea.get(id);
+            }
+            if (data == null) {
+                data = probation.remove(id);
+                if (data != null) {
+                    probationBytes -= weight(data);
+                    promote(id.copy(), data);
+                }
+            }
+            if (data != null) {
+                hits++;
+                return data;
+            }
+            tier = disk;
+            if (tier == null) {
+                misses++;
+                return null;
+            }
+        }
+        byte[] data = tier.get(id);
+        Map<ObjectId, byte[]> toSpill;
+        synchronized (this) {
+            if (data == null) {
+                misses++;
+                return null;
+            }
+            diskHits++;
+            if (!contains(id)) {
+                insert(id.copy(), data);
+            }
+            toSpill = drainSpilled();
+        }
+        write(tier, toSpill);
+        return data;
+    }
+
+    /**
+     * 放入缓存,已经在缓存里的忽略
+     *
+     * @param id   blob的id
+     * @param data 放入后不能再修改
+     */
+    public void put(AnyObjectId id, byte[] data) {
+        DiskTier tier;
+        Map<ObjectId, byte[]> toSpill;
+        synchronized (this) {
+            if (data.length > maxEntryBytes || contains(id)) {
+                return;
+            }
+            insert(id.copy(), data);
+            tier = disk;
+            toSpill = drainSpilled();
+        }
+        write(tier, toSpill);
+    }
+
+    private boolean contains(AnyObjectId id) {
+        return window.containsKey(id) || probation.containsKey(id) || protectedArea.containsKey(id);
+    }
+
+    /**
+     * 读blob,缓存里没有时从reader读出来放进缓存
+     *
+     * @param reader
+     * @param id
+     * @return 超过大小上限的blob直接返回reader的loader,可以流式读
+     * @throws IOException
+     */
+    public ObjectLoader open(ObjectReader reader, AnyObjectId id) throws IOException {
+        byte[] data = get(id);
+        if (data != null) {
+            return new ObjectLoader.SmallObject(Constants.OBJ_BLOB, data);
+        }
+        ObjectLoader loader = reader.open(id, Constants.OBJ_BLOB);
+        if (loader.isLarge() || loader.getSize() > maxEntryBytes) {
+            return loader;
+        }
+        data = loader.getCachedBytes();
+        put(id, data);
+        return new ObjectLoader.SmallObject(Constants.OBJ_BLOB, data);
+    }
+
+    /**
+     * 包一层reader,按blob打开的对象走缓存,可以交给DiffFormatter等使用
+     * 关闭返回的reader时会关闭传入的reader
+     *
+     * @param delegate
+     * @return
+     */
+    public ObjectReader newReader(ObjectReader delegate) {
+        return new CachingReader(delegate);
+    }
+
+    /**
+     * 读某个版本上的文件内容
+     *
+     * @param repository
+     * @param revision   分支、标签或者提交id
+     * @param path       用/分隔的路径
+     * @return 版本或者文件不存在时返回null
+     * @throws IOException
+     */
+    public byte[] readFile(Repository repository, String revision, String path) throws IOException {
+        ObjectId commitId = repository.resolve(revision);
+        if (commitId == null) {
+            return null;
+        }
+        try (ObjectReader reader = repository.newObjectReader();
+             RevWalk walk = new RevWalk(reader)) {
+            TreeWalk treeWalk = TreeWalk.forPath(reader, path, walk.parseCommit(commitId).getTree());
+            if (treeWalk == null || treeWalk.getFileMode(0).getObjectType() != Constants.OBJ_BLOB) {
+                return null;
+            }
+            return open(reader, treeWalk.getObjectId(0)).getBytes();
+        }
+    }
+
+    private void insert(ObjectId id, byte[] data) {
+        window.put(id, data);
+        windowBytes += weight(data);
+        Iterator<Map.Entry<ObjectId, byte[]>> it = window.entrySet().iterator();
+        while (windowBytes > windowMax && it.hasNext()) {
+            Map.Entry<ObjectId, byte[]> candidate = it.next();
+            it.remove();
+            windowBytes -= weight(candidate.getValue());
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    /**
+     * 从窗口挤出来的对象,和主区里要被挤掉的对象比较频率,比它们都高才能进主区
+     */
+    private void admit(ObjectId id, byte[] data) {
+        long size = weight(data);
+        long free = maxBytes - windowMax - probationBytes - protectedBytes;
+        List<ObjectId> victims = new ArrayList<>();
+        int victimFrequency = 0;
+        for (LinkedHashMap<ObjectId, byte[]> area : Arrays.asList(probation, protectedArea)) {
+            for (Map.Entry<ObjectId, byte[]> e : area.entrySet()) {
+                if (free >= size) {
+                    break;
+                }
+                victims.add(e.getKey());
+                victimFrequency = Math.max(victimFrequency, sketch.frequency(e.getKey()));
+                free += weight(e.getValue());
+            }
+        }
+        if (free < size || (!victims.isEmpty() && sketch.frequency(id) <= victimFrequency)) {
+            rejections++;
+            spill(id, data);
+            return;
+        }
+        for (ObjectId victim : victims) {
+            byte[] evicted = probation.remove(victim);
+            if (evicted != null) {
+                probationBytes -= weight(evicted);
+            } else {
+                evicted = protectedArea.remove(victim);
+                protectedBytes -= weight(evicted);
+            }
+            evictions++;
+            spill(victim, evicted);
+        }
+        probation.put(id, data);
+        probationBytes += size;
+    }
+
+    /**
+     * 试用区里再次命中的升到保护区,保护区超了把最久没用的降回试用区
+     */
+    private void promote(ObjectId id, byte[] data) {
+        protectedArea.put(id, data);
+        protectedBytes += weight(data);
+        Iterator<Map.Entry<ObjectId, byte[]>> it = protectedArea.entrySet().iterator();
+        while (protectedBytes > protectedMax && it.hasNext()) {
+            Map.Entry<ObjectId, byte[]> eldest = it.next();
+            if (eldest.getKey().equals(id)) {
+                break;
+            }
+            it.remove();
+            protectedBytes -= weight(eldest.getValue());
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += weight(eldest.getValue());
+        }
+    }
+
+    /**
+     * 记下挤出内存的对象,放开锁后由write写进磁盘层
+     */
+    private void spill(ObjectId id, byte[] data) {
+        if (disk != null) {
+            if (spilled.isEmpty()) {
+                spilled = new LinkedHashMap<>();
+            }
+            spilled.put(id, data);
+        }
+    }
+
+    private Map<ObjectId, byte[]> drainSpilled() {
+        Map<ObjectId, byte[]> result = spilled;
+        spilled = Collections.emptyMap();
+        return result;
+    }
+
+    private static void write(DiskTier tier, Map<ObjectId, byte[]> toSpill) {
+        for (Map.Entry<ObjectId, byte[]> e : toSpill.entrySet()) {
+            try {
+                tier.put(e.getKey(), e.getValue());
+            } catch (IOException ex) {
+                // 磁盘层写不进去只是少缓存一个对象
+            }
+        }
+    }
+
+    private static long weight(byte[] data) {
+        return data.length + ENTRY_OVERHEAD;
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedArea.size();
+    }
+
+    /**
+     * @return 内存里缓存的字节数,包括每个条目的估算开销
+     */
+    public synchronized long getBytes() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    /**
+     * @return 磁盘层的段文件总大小,没有磁盘层时是0
+     */
+    public synchronized long getDiskBytes() {
+        return disk == null ? 0 : disk.bytes();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return 主区里被频率更高的对象挤掉的次数
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return 频率不够没能进主区的次数
+     */
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * @return 内存和磁盘层合计的命中率
+     */
+    public synchronized double getHitRatio() {
+        long total = hits + diskHits + misses;
+        return total == 0 ? 0 : (double) (hits + diskHits) / total;
+    }
+
+    /**
+     * 清空内存,磁盘层的段文件留着下次打开时重用
+     */
+    @Override
+    public synchronized void close() {
+        window.clear();
+        probation.clear();
+        protectedArea.clear();
+        windowBytes = 0;
+        probationBytes = 0;
+        protectedBytes = 0;
+        spilled = Collections.emptyMap();
+        if (disk != null) {
+            disk.close();
+            disk = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("entries=%d bytes=%d diskBytes=%d hits=%d diskHits=%d misses=%d hitRatio=%.2f"
+                        + " evictions=%d rejections=%d",
+                size(), getBytes(), getDiskBytes(), hits, diskHits, misses, getHitRatio(), evictions, rejections);
+    }
+
+    /**
+     * 访问频率的近似计数,4行各4位的计数器,取最小值
+     * 计数总数到上限后全部减半,旧的热点会慢慢冷下来
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0x8ebc6af1, 0xb4b82e9d, 0xc2b2ae35};
+        private final byte[] table;
+        private final int mask;
+        private final int resetAt;
+        private int additions;
+
+        FrequencySketch(int counters) {
+            int size = Integer.highestOneBit(Math.max(16, counters - 1)) << 1;
+            table = new byte[size];
+            mask = size - 1;
+            resetAt = size * 10;
+        }
+
+        int frequency(AnyObjectId id) {
+            int hash = id.hashCode();
+            int min = Integer.MAX_VALUE;
+            for (int seed : SEEDS) {
+                min = Math.min(min, table[index(hash, seed)]);
+            }
+            return min;
+        }
+
+        void increment(AnyObjectId id) {
+            int hash = id.hashCode();
+            for (int seed : SEEDS) {
+                int i = index(hash, seed);
+                if (table[i] < 15) {
+                    table[i]++;
+                }
+            }
+            if (++additions >= resetAt) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int index(int hash, int seed) {
+            int h = hash * seed;
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+
+    /**
+     * 磁盘层,记录格式是20字节的id、4字节的长度和内容,全0的id表示段的结尾
+     * 索引和段列表在持有这个对象的锁时使用,读内容时只钉住所在的段,复制数据不持有锁
+     */
+    private static final class DiskTier {
+        private static final String SUFFIX = ".seg";
+        private static final int HEADER = Constants.OBJECT_ID_LENGTH + 4;
+
+        private final File directory;
+        private final long maxBytes;
+        private final int segmentBytes;
+        private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        // 已经挤掉、等读完或者等映射回收后再删的段
+        private final List<Segment> retired = new ArrayList<>();
+        private final Map<ObjectId, Location> index = new HashMap<>();
+        private long bytes;
+        private long nextNumber;
+        private boolean closed;
+
+        DiskTier(File directory, long maxBytes, int segmentBytes) throws IOException {
+            this.directory = directory;
+            this.maxBytes = maxBytes;
+            this.segmentBytes = segmentBytes;
+            FileUtils.mkdirs(directory, true);
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    load(file);
+                }
+            }
+            trim();
+        }
+
+        private void load(File file) throws IOException {
+            String name = file.getName();
+            long number;
+            try {
+                number = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            Segment segment = new Segment(file, map(file, file.length()));
+            segments.add(segment);
+            bytes += file.length();
+            nextNumber = Math.max(nextNumber, number + 1);
+            try (ObjectInserter.Formatter formatter = new ObjectInserter.Formatter()) {
+                MappedByteBuffer buffer = segment.buffer;
+                while (buffer.remaining() >= HEADER) {
+                    byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+                    buffer.get(raw);
+                    int length = buffer.getInt();
+                    ObjectId id = ObjectId.fromRaw(raw);
+                    if (id.equals(ObjectId.zeroId()) || length < 0 || length > buffer.remaining()) {
+                        break;
+                    }
+                    int offset = buffer.position();
+                    byte[] data = new byte[length];
+                    buffer.get(data);
+                    if (!formatter.idFor(Constants.OBJ_BLOB, data).equals(id)) {
+                        // 没写完的记录,后面的都不要了
+                        break;
+                    }
+                    index.put(id, new Location(segment, offset, length));
+                    segment.ids.add(id);
+                }
+            }
+            // 重新打开的段不再追加
+            segment.buffer.position(segment.buffer.limit());
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        byte[] get(AnyObjectId id) {
+            Location location;
+            ByteBuffer buffer;
+            synchronized (this) {
+                location = index.get(id);
+                if (location == null) {
+                    return null;
+                }
+                location.segment.readers++;
+                // 各读各的position,不影响追加写
+                buffer = location.segment.buffer.duplicate();
+            }
+            try {
+                byte[] data = new byte[location.length];
+                buffer.position(location.offset);
+                buffer.get(data);
+                return data;
+            } finally {
+                synchronized (this) {
+                    location.segment.readers--;
+                    deleteRetired();
+                }
+            }
+        }
+
+        synchronized void put(ObjectId id, byte[] data) throws IOException {
+            int needed = HEADER + data.length;
+            if (closed || needed > segmentBytes || index.containsKey(id)) {
+                return;
+            }
+            Segment current = segments.peekLast();
+            if (current == null || current.buffer.remaining() < needed) {
+                File file = new File(directory, String.format("%016d%s", nextNumber++, SUFFIX));
+                current = new Segment(file, map(file, segmentBytes));
+                segments.add(current);
+                bytes += segmentBytes;
+                trim();
+            }
+            MappedByteBuffer buffer = current.buffer;
+            int start = buffer.position();
+            // 先写内容再写id,写到一半时重新打开会因为id不对被丢掉
+            buffer.position(start + HEADER);
+            buffer.put(data);
+            int end = buffer.position();
+            buffer.position(start + Constants.OBJECT_ID_LENGTH);
+            buffer.putInt(data.length);
+            buffer.position(start);
+            id.copyRawTo(buffer);
+            buffer.position(end);
+            index.put(id, new Location(current, start + HEADER, data.length));
+            current.ids.add(id);
+        }
+
+        /**
+         * 超过上限时挤掉最旧的段,正在写的段保留
+         */
+        private void trim() {
+            while (bytes > maxBytes && segments.size() > 1) {
+                Segment oldest = segments.poll();
+                for (ObjectId id : oldest.ids) {
+                    index.remove(id);
+                }
+                bytes -= oldest.file.length();
+                retired.add(oldest);
+            }
+            deleteRetired();
+        }
+
+        /**
+         * 没有线程在读的旧段放掉映射再删文件,删不掉的留到下次
+         */
+        private void deleteRetired() {
+            Iterator<Segment> it = retired.iterator();
+            while (it.hasNext()) {
+                Segment segment = it.next();
+                if (segment.readers > 0) {
+                    continue;
+                }
+                segment.buffer = null;
+                if (segment.file.delete() || !segment.file.exists()) {
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+            segments.clear();
+            index.clear();
+            deleteRetired();
+        }
+
+        private static MappedByteBuffer map(File file, long size) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                // 映射在通道关闭后依然有效
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        // 挤掉并且没人读之后置空,映射就能被GC回收
+        MappedByteBuffer buffer;
+        final List<ObjectId> ids = new ArrayList<>();
+        int readers;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * 按blob打开的对象先查缓存,其他对象直接交给底层reader
+     */
+    private final class CachingReader extends ObjectReader {
+        private final ObjectReader delegate;
+
+        CachingReader(ObjectReader delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ObjectReader newReader() {
+            return new CachingReader(delegate.newReader());
+        }
+
+        @Override
+        public Collection<ObjectId> resolve(AbbreviatedObjectId id) throws IOException {
+            return delegate.resolve(id);
+        }
+
+        @Override
+        public ObjectLoader open(AnyObjectId objectId, int typeHint) throws IOException {
+            if (typeHint == Constants.OBJ_BLOB) {
+                return GitBlobCache.this.open(delegate, objectId);
+            }
+            return delegate.open(objectId, typeHint);
+        }
+
+        @Override
+        public boolean has(AnyObjectId objectId, int typeHint) throws IOException {
+            return delegate.has(objectId, typeHint);
+        }
+
+        @Override
+        public long getObjectSize(AnyObjectId objectId, int typeHint) throws IOException {
+            return delegate.getObjectSize(objectId, typeHint);
+        }
+
+        @Override
+        public Set<ObjectId> getShallowCommits() throws IOException {
+            return delegate.getShallowCommits();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.PackInserter;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+/**
+ * 直接写pack的批量提交
+ * 内容不经过工作区和索引,put时就写进同一个pack,提交时再从下往上生成树对象、写提交,
+ * pack和索引文件一次落盘,最后用期望的旧值更新引用,引用被别人改过时提交失败
+ * 适合把生成的大量文件作为快照提交,不会产生成千上万个松散对象
+ * 用完要close,没有调用call时会丢弃已写的临时pack
+ */
+public class GitBulkCommitWriter implements AutoCloseable {
+    private final Repository repository;
+    private final ObjectInserter inserter;
+    private String refName;
+    private ObjectId parent;
+    private boolean parentResolved;
+    private boolean inheritParentTree;
+    private String message = "";
+    private PersonIdent author;
+    private PersonIdent committer;
+    private Dir root;
+    private long insertedBlobs;
+    private long insertedBytes;
+
+    public GitBulkCommitWriter(Repository repository) {
+        this.repository = repository;
+        ObjectDatabase db = repository.getObjectDatabase();
+        if (db instanceof ObjectDirectory) {
+            PackInserter packInserter = ((ObjectDirectory) db).newPackInserter();
+            // 生成的内容大多是新对象,不用逐个检查是否已存在
+            packInserter.checkExisting(false);
+            this.inserter = packInserter;
+        } else {
+            this.inserter = db.newInserter();
+        }
+    }
+
+    /**
+     * 要更新的引用,默认是HEAD指向的分支
+     *
+     * @param refName 比如refs/heads/snapshots
+     * @return
+     */
+    public GitBulkCommitWriter setRef(String refName) {
+        this.refName = refName;
+        return this;
+    }
+
+    /**
+     * 父提交,默认是引用当前的值,也作为更新引用时的期望旧值
+     *
+     * @param parent 为null时生成没有父提交的根提交
+     * @return
+     */
+    public GitBulkCommitWriter setParent(AnyObjectId parent) {
+        this.parent = parent == null ? null : parent.copy();
+        this.parentResolved = true;
+        return this;
+    }
+
+    /**
+     * 在父提交的树上修改,没有put的文件保持不变
+     * 默认是完整快照,树里只有put进来的文件
+     * 必须在第一次put之前设置
+     *
+     * @param inheritParentTree
+     * @return
+     */
+    public GitBulkCommitWriter setInheritParentTree(boolean inheritParentTree) {
+        if (root != null) {
+            throw new IllegalStateException("content already added");
+        }
+        this.inheritParentTree = inheritParentTree;
+        return this;
+    }
+
+    public GitBulkCommitWriter setMessage(String message) {
+        this.message = message;
+        return this;
+    }
+
+    public GitBulkCommitWriter setAuthor(PersonIdent author) {
+        this.author = author;
+        return this;
+    }
+
+    public GitBulkCommitWriter setCommitter(PersonIdent committer) {
+        this.committer = committer;
+        return this;
+    }
+
+    /**
+     * 写入一个普通文件
+     *
+     * @param path 用/分隔的路径
+     * @param content
+     * @return
+     * @throws IOException
+     */
+    public GitBulkCommitWriter put(String path, byte[] content) throws IOException {
+        insertedBlobs++;
+        insertedBytes += content.length;
+        return put(path, FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB, content));
+    }
+
+    /**
+     * 流式写入,大文件不需要整个读进内存
+     *
+     * @param path
+     * @param mode
+     * @param length
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public GitBulkCommitWriter put(String path, FileMode mode, long length, InputStream in) throws IOException {
+        insertedBlobs++;
+        insertedBytes += length;
+        return put(path, mode, inserter.insert(Constants.OBJ_BLOB, length, in));
+    }
+
+    /**
+     * 放入已经在对象库里的blob
+     *
+     * @param path
+     * @param mode
+     * @param blobId
+     * @return
+     * @throws IOException
+     */
+    public GitBulkCommitWriter put(String path, FileMode mode, AnyObjectId blobId) throws IOException {
+        String[] names = split(path);
+        Dir dir = root();
+        for (int i = 0; i < names.length - 1; i++) {
+            dir = dir.subdir(names[i]);
+        }
+        dir.load().put(names[names.length - 1], new Node(mode, blobId.copy()));
+        return this;
+    }
+
+    /**
+     * 删除文件或整个目录,只在继承父提交的树时有意义
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public GitBulkCommitWriter delete(String path) throws IOException {
+        String[] names = split(path);
+        Dir dir = root();
+        for (int i = 0; i < names.length - 1; i++) {
+            Node node = dir.load().get(names[i]);
+            if (node == null || node.dir == null) {
+                return this;
+            }
+            dir = node.dir;
+        }
+        dir.load().remove(names[names.length - 1]);
+        return this;
+    }
+
+    /**
+     * 写树和提交,落盘pack,再原子地更新引用
+     *
+     * @return 新提交
+     * @throws IOException 引用在这期间被修改过时也会抛出
+     */
+    public RevCommit call() throws IOException {
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("commit")) {
+            // put写进pack的blob也算在这次提交上
+            sample.written(insertedBlobs, insertedBytes);
+            RevCommit commit = commit();
+            sample.done();
+            return commit;
+        }
+    }
+
+    private RevCommit commit() throws IOException {
+        String ref = refName();
+        ObjectId expected = parent();
+        ObjectId tree = root().write();
+        if (tree == null) {
+            tree = inserter.insert(new TreeFormatter());
+        }
+
+        CommitBuilder builder = new CommitBuilder();
+        builder.setTreeId(tree);
+        if (expected != null) {
+            builder.setParentId(expected);
+        }
+        PersonIdent committerIdent = committer != null ? committer : new PersonIdent(repository);
+        builder.setAuthor(author != null ? author : committerIdent);
+        builder.setCommitter(committerIdent);
+        builder.setMessage(message);
+        ObjectId commitId = inserter.insert(builder);
+        RefUpdate.Result result;
+        GitMaintenance.WriteGuard guard = GitMaintenance.beginWrite(repository);
+        try {
+            // pack和索引文件在这里一次写完,之后对象才可见
+            inserter.flush();
+
+            RefUpdate update = repository.updateRef(ref);
+            update.setNewObjectId(commitId);
+            update.setExpectedOldObjectId(expected != null ? expected : ObjectId.zeroId());
+            update.setRefLogMessage("commit (bulk): " + firstLine(message), false);
+            result = update.update();
+        } finally {
+            guard.close();
+        }
+        switch (result) {
+            case NEW:
+            case FAST_FORWARD:
+            case FORCED:
+                break;
+            default:
+                throw new IOException("Could not update " + ref + ": " + result);
+        }
+        try (RevWalk walk = new RevWalk(repository)) {
+            return walk.parseCommit(commitId);
+        }
+    }
+
+    /**
+     * 没有提交时丢弃临时pack
+     */
+    @Override
+    public void close() {
+        inserter.close();
+    }
+
+    private String refName() throws IOException {
+        if (refName == null) {
+            refName = repository.getFullBranch();
+            if (refName == null || !refName.startsWith(Constants.R_REFS)) {
+                throw new IOException("HEAD is detached, set a ref explicitly");
+            }
+        }
+        return refName;
+    }
+
+    private ObjectId parent() throws IOException {
+        if (!parentResolved) {
+            parent = repository.resolve(refName());
+            parentResolved = true;
+        }
+        return parent;
+    }
+
+    private Dir root() throws IOException {
+        if (root == null) {
+            ObjectId base = null;
+            if (inheritParentTree && parent() != null) {
+                try (RevWalk walk = new RevWalk(repository)) {
+                    base = walk.parseCommit(parent()).getTree().copy();
+                }
+            }
+            root = new Dir(base);
+        }
+        return root;
+    }
+
+    private static String[] split(String path) {
+        String[] names = path.split("/");
+        for (String name : names) {
+            if (name.isEmpty() || name.equals(".") || name.equals("..") || name.equals(Constants.DOT_GIT)) {
+                throw new IllegalArgumentException("Invalid path: " + path);
+            }
+        }
+        return names;
+    }
+
+    private static String firstLine(String message) {
+        int nl = message.indexOf('\n');
+        return nl < 0 ? message : message.substring(0, nl);
+    }
+
+    /**
+     * 树里的一项,文件时dir为null
+     */
+    private static final class Node {
+        final FileMode mode;
+        final ObjectId id;
+        final Dir dir;
+
+        Node(FileMode mode, ObjectId id) {
+            this.mode = mode;
+            this.id = id;
+            this.dir = null;
+        }
+
+        Node(Dir dir) {
+            this.mode = FileMode.TREE;
+            this.id = null;
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * 内存里的目录,从父提交继承的子树在被修改之前不展开
+     */
+    private final class Dir {
+        private final ObjectId baseId;
+        private Map<String, Node> entries;
+
+        Dir(ObjectId baseId) {
+            this.baseId = baseId;
+        }
+
+        Map<String, Node> load() throws IOException {
+            if (entries != null) {
+                return entries;
+            }
+            entries = new TreeMap<>();
+            if (baseId == null) {
+                return entries;
+            }
+            try (ObjectReader reader = repository.newObjectReader()) {
+                CanonicalTreeParser parser = new CanonicalTreeParser(null, reader, baseId);
+                for (; !parser.eof(); parser.next()) {
+                    FileMode mode = parser.getEntryFileMode();
+                    ObjectId id = parser.getEntryObjectId();
+                    entries.put(parser.getEntryPathString(),
+                            mode == FileMode.TREE ? new Node(new Dir(id)) : new Node(mode, id));
+                }
+            }
+            return entries;
+        }
+
+        Dir subdir(String name) throws IOException {
+            Node node = load().get(name);
+            if (node == null || node.dir == null) {
+                node = new Node(new Dir(null));
+                entries.put(name, node);
+            }
+            return node.dir;
+        }
+
+        /**
+         * @return 树id,目录为空时返回null
+         */
+        ObjectId write() throws IOException {
+            if (entries == null) {
+                // 没有展开过,原样复用
+                return baseId;
+            }
+            // git要求树里的条目按字节排序,目录名按带/比较
+            TreeMap<byte[], Object[]> sorted = new TreeMap<>(GitBulkCommitWriter::compareNames);
+            for (Map.Entry<String, Node> entry : entries.entrySet()) {
+                Node node = entry.getValue();
+                ObjectId id = node.dir != null ? node.dir.write() : node.id;
+                if (id == null) {
+                    continue;
+                }
+                byte[] name = Constants.encode(entry.getKey());
+                byte[] key = node.dir != null ? withSlash(name) : name;
+                sorted.put(key, new Object[]{name, node.mode, id});
+            }
+            if (sorted.isEmpty()) {
+                return null;
+            }
+            TreeFormatter formatter = new TreeFormatter();
+            for (Object[] item : sorted.values()) {
+                formatter.append((byte[]) item[0], (FileMode) item[1], (ObjectId) item[2]);
+            }
+            return inserter.insert(formatter);
+        }
+    }
+
+    private static byte[] withSlash(byte[] name) {
+        byte[] key = new byte[name.length + 1];
+        System.arraycopy(name, 0, key, 0, name.length);
+        key[name.length] = '/';
+        return key;
+    }
+
+    private static int compareNames(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+}
@@ -0,0 +1,446 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.TransportConfigCallback;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.PackProtocolException;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FilterSpec;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * 同步到指定分支的克隆
+ * 代替每次删掉目录再完整克隆: 目录里已经有克隆时只fetch缺少的对象,再hard reset到远端分支,
+ * reset用GitParallelCheckout并行写文件,只改写和目标提交不一样的文件;仓库损坏时才删掉重新克隆
+ * 可以设置一个本地对象缓存目录,同一个远端、同样过滤条件的所有克隆共用缓存里的裸仓库,
+ * 克隆通过objects/info/alternates引用缓存里的对象,自己只保存缓存里没有的对象
+ * 注意: 用了对象缓存的克隆依赖缓存目录,不能删除缓存或者在缓存上执行gc
+ * 设置过滤条件(blob:none、blob:limit=N、tree:0)时是部分克隆,检出需要的blob在检出前批量补拉,
+ * 设置稀疏规则时工作区只写出匹配的文件,这两种情况下用GitSparseCheckout代替并行检出
+ * JGit 5.4的客户端不支持shallow fetch,不能限制历史深度
+ */
+public class GitCloneSync {
+    private static final String REMOTE = Constants.DEFAULT_REMOTE_NAME;
+    // 同一进程里同一个缓存只允许一个线程更新,跨进程靠文件锁
+    private static final Map<String, Object> CACHE_LOCKS = new ConcurrentHashMap<>();
+
+    private final String uri;
+    private final File directory;
+    private String branch = Constants.MASTER;
+    private boolean cloneSubmodules;
+    private boolean clean = true;
+    private String filter;
+    private List<String> sparsePatterns;
+    private File objectCache;
+    private TransportConfigCallback transportConfigCallback;
+    private CredentialsProvider credentialsProvider;
+
+    public GitCloneSync(String uri, File directory) {
+        this.uri = uri;
+        this.directory = directory;
+    }
+
+    /**
+     * 要同步的分支,默认master
+     *
+     * @param branch 短名称
+     * @return
+     */
+    public GitCloneSync setBranch(String branch) {
+        this.branch = branch;
+        return this;
+    }
+
+    public GitCloneSync setCloneSubmodules(boolean cloneSubmodules) {
+        this.cloneSubmodules = cloneSubmodules;
+        return this;
+    }
+
+    /**
+     * 同步已有克隆时是否删除未跟踪的文件和目录,被忽略的保留,默认删除
+     *
+     * @param clean
+     * @return
+     */
+    public GitCloneSync setClean(boolean clean) {
+        this.clean = clean;
+        return this;
+    }
+
+    /**
+     * 本地对象缓存目录,为null时不使用缓存
+     * 每个远端在目录下有一个以地址和过滤条件的哈希命名的裸仓库
+     *
+     * @param objectCache
+     * @return
+     */
+    public GitCloneSync setObjectCache(File objectCache) {
+        this.objectCache = objectCache;
+        return this;
+    }
+
+    /**
+     * 部分克隆的过滤条件,比如blob:none,服务端要开启uploadpack.allowFilter
+     * 按需补拉对象还要开启uploadpack.allowReachableSHA1InWant
+     *
+     * @param filter 为null时完整克隆
+     * @return
+     */
+    public GitCloneSync setFilter(String filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * 稀疏检出规则,gitignore的写法
+     *
+     * @param sparsePatterns 为null时检出全部文件
+     * @return
+     */
+    public GitCloneSync setSparseCheckout(Collection<String> sparsePatterns) {
+        this.sparsePatterns = sparsePatterns == null ? null : new ArrayList<>(sparsePatterns);
+        return this;
+    }
+
+    public GitCloneSync setTransportConfigCallback(TransportConfigCallback transportConfigCallback) {
+        this.transportConfigCallback = transportConfigCallback;
+        return this;
+    }
+
+    public GitCloneSync setCredentialsProvider(CredentialsProvider credentialsProvider) {
+        this.credentialsProvider = credentialsProvider;
+        return this;
+    }
+
+    /**
+     * 同步到远端分支的最新提交
+     *
+     * @return
+     * @throws GitAPIException 网络或认证失败时不会重新克隆,直接抛出
+     * @throws IOException 只有仓库打不开、配置读不出来或者对象损坏时才重新克隆,其他错误直接抛出
+     */
+    public Result call() throws GitAPIException, IOException {
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("clone")) {
+            if (!sample.isRecording()) {
+                return syncOrClone();
+            }
+            // 传输的字节数按克隆和缓存仓库里pack增加的大小估算
+            File objects = new File(directory, Constants.DOT_GIT + "/objects");
+            File cacheObjects = objectCache != null
+                    ? new File(objectCache, cacheKey() + ".git/objects") : null;
+            long before = GitMetrics.packBytes(objects) + GitMetrics.packBytes(cacheObjects);
+            Result result = syncOrClone();
+            sample.transferred(Math.max(0, GitMetrics.packBytes(objects) + GitMetrics.packBytes(cacheObjects) - before));
+            sample.done();
+            return result;
+        }
+    }
+
+    private Result syncOrClone() throws GitAPIException, IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        File cache = objectCache != null ? updateCache() : null;
+        if (new File(directory, Constants.DOT_GIT).isDirectory()) {
+            result.error = checkClone();
+            if (result.error == null) {
+                result.mode = Result.Mode.UPDATED;
+                try {
+                    result.head = sync(cache);
+                } catch (GitAPIException | IOException | JGitInternalException e) {
+                    if (!isCorrupt(e)) {
+                        throw e;
+                    }
+                    result.error = e;
+                }
+            }
+            if (result.head == null) {
+                // 仓库损坏,删掉重新克隆
+                result.mode = Result.Mode.RECLONED;
+            }
+        } else {
+            result.mode = Result.Mode.CLONED;
+        }
+        if (result.head == null) {
+            // 损坏的目录挪开后在后台删除,不用等删完就开始克隆;挪不开时会删完再返回
+            CompletableFuture<GitDirectoryDeleter.Result> deleting =
+                    new GitDirectoryDeleter().deleteInBackground(directory.toPath());
+            if (directory.exists()) {
+                throw new IOException("Could not remove " + directory + ": " + deleting.join().getFailures());
+            }
+            Git.init().setDirectory(directory).call().close();
+            result.head = sync(cache);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private ObjectId sync(File cache) throws GitAPIException, IOException {
+        if (cache != null) {
+            // 要在打开仓库之前写好,对象库第一次读对象时才加载alternates
+            writeAlternates(cache);
+        }
+        try (Repository repository = new FileRepositoryBuilder()
+                .setWorkTree(directory).setMustExist(true).build();
+             Git git = new Git(repository)) {
+            configureRemote(repository);
+
+            String remoteBranch = Constants.R_REMOTES + REMOTE + "/" + branch;
+            RefSpec spec = new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_REMOTES + REMOTE + "/*");
+            if (cache != null) {
+                // 缓存刚更新过,从本地缓存fetch,对象都已经能通过alternates读到,不会再传输
+                git.fetch().setRemote(cache.getAbsolutePath()).setRefSpecs(spec).call();
+            } else {
+                git.fetch().setRemote(REMOTE).setRefSpecs(spec)
+                        .setTransportConfigCallback(filtered())
+                        .setCredentialsProvider(credentialsProvider)
+                        .call();
+            }
+            ObjectId target = repository.resolve(remoteBranch);
+            if (target == null) {
+                throw new IllegalArgumentException("Branch " + branch + " not found in " + uri);
+            }
+
+            // HEAD切到目标分支,reset时分支跟着移动,工作区只改写有变化的文件
+            RefUpdate head = repository.updateRef(Constants.HEAD);
+            head.disableRefLog();
+            head.link(Constants.R_HEADS + branch);
+            if (filter == null && sparsePatterns == null) {
+                // 和reset --hard一样,变化的文件在线程池里并行写出
+                new GitParallelCheckout(repository).reset(target);
+            } else {
+                RefUpdate update = repository.updateRef(Constants.R_HEADS + branch);
+                update.setNewObjectId(target);
+                update.setRefLogMessage("sync: " + remoteBranch, false);
+                RefUpdate.Result updated = update.forceUpdate();
+                switch (updated) {
+                    case NEW:
+                    case FORCED:
+                    case FAST_FORWARD:
+                    case NO_CHANGE:
+                        break;
+                    default:
+                        throw new IOException("Could not update " + update.getName() + ": " + updated);
+                }
+                new GitSparseCheckout(repository)
+                        .setPatterns(sparsePatterns)
+                        .setLazyFetcher(new GitLazyFetcher(repository)
+                                .setTransportConfigCallback(transportConfigCallback)
+                                .setCredentialsProvider(credentialsProvider))
+                        .checkout(target);
+            }
+            if (clean) {
+                git.clean().setCleanDirectories(true).call();
+            }
+            if (cloneSubmodules) {
+                git.submoduleInit().call();
+                git.submoduleUpdate()
+                        .setTransportConfigCallback(transportConfigCallback)
+                        .setCredentialsProvider(credentialsProvider)
+                        .call();
+            }
+            return target;
+        }
+    }
+
+    /**
+     * 检查已有克隆能不能用: 仓库和配置要能打开,HEAD指向的提交和树要能读出来
+     *
+     * @return 损坏的原因,能用时返回null
+     * @throws IOException 其他读不了的情况,比如没有权限,不能当作损坏删掉
+     */
+    private IOException checkClone() throws IOException {
+        try (Repository repository = new FileRepositoryBuilder()
+                .setWorkTree(directory).setMustExist(true).build()) {
+            if (!repository.getObjectDatabase().exists()) {
+                return new CorruptObjectException("Missing object database in " + repository.getDirectory());
+            }
+            ObjectId head = repository.resolve(Constants.HEAD);
+            if (head != null) {
+                try (RevWalk walk = new RevWalk(repository)) {
+                    RevCommit commit = walk.parseCommit(head);
+                    walk.getObjectReader().open(commit.getTree(), Constants.OBJ_TREE);
+                }
+            }
+            return null;
+        } catch (RepositoryNotFoundException | MissingObjectException | IncorrectObjectTypeException e) {
+            return e;
+        } catch (IOException e) {
+            if (isCorrupt(e)) {
+                return e;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 对象损坏或者配置文件读不出来
+     */
+    private static boolean isCorrupt(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof CorruptObjectException || t instanceof ConfigInvalidException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeAlternates(File cache) throws IOException {
+        File alternates = new File(directory, Constants.DOT_GIT + "/objects/info/alternates");
+        String line = new File(cache, "objects").getAbsolutePath() + "\n";
+        if (!alternates.isFile()
+                || !line.equals(new String(Files.readAllBytes(alternates.toPath()), StandardCharsets.UTF_8))) {
+            FileUtils.mkdirs(alternates.getParentFile(), true);
+            Files.write(alternates.toPath(), line.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void configureRemote(Repository repository) throws IOException {
+        StoredConfig config = repository.getConfig();
+        config.setString("remote", REMOTE, "url", uri);
+        config.setString("remote", REMOTE, "fetch",
+                "+" + Constants.R_HEADS + "*:" + Constants.R_REMOTES + REMOTE + "/*");
+        config.setString("branch", branch, "remote", REMOTE);
+        config.setString("branch", branch, "merge", Constants.R_HEADS + branch);
+        if (filter != null) {
+            // 和git一样记下过滤条件,说明这个远端能补拉缺少的对象
+            config.setBoolean("remote", REMOTE, "promisor", true);
+            config.setString("remote", REMOTE, "partialclonefilter", filter);
+        }
+        config.save();
+    }
+
+    /**
+     * 更新远端对应的缓存仓库,不存在时先创建
+     *
+     * @return 缓存仓库的目录
+     */
+    private File updateCache() throws GitAPIException, IOException {
+        String key = cacheKey();
+        File cache = new File(objectCache, key + ".git");
+        FileUtils.mkdirs(objectCache, true);
+        synchronized (CACHE_LOCKS.computeIfAbsent(key, k -> new Object())) {
+            try (RandomAccessFile lockFile = new RandomAccessFile(new File(objectCache, key + ".lock"), "rw");
+                 FileChannel channel = lockFile.getChannel()) {
+                FileLock lock = channel.lock();
+                try {
+                    if (!new File(cache, "objects").isDirectory()) {
+                        Git.init().setBare(true).setDirectory(cache).call().close();
+                    }
+                    try (Git git = Git.open(cache)) {
+                        git.fetch().setRemote(uri)
+                                .setRefSpecs(new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*"),
+                                        new RefSpec("+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*"))
+                                .setTransportConfigCallback(filtered())
+                                .setCredentialsProvider(credentialsProvider)
+                                .call();
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * 在用户的回调之外给传输加上过滤条件
+     */
+    private TransportConfigCallback filtered() {
+        if (filter == null) {
+            return transportConfigCallback;
+        }
+        return transport -> {
+            try {
+                transport.setFilterSpec(FilterSpec.fromFilterLine(filter));
+            } catch (PackProtocolException e) {
+                throw new IllegalArgumentException("Invalid filter " + filter, e);
+            }
+            if (transportConfigCallback != null) {
+                transportConfigCallback.configure(transport);
+            }
+        };
+    }
+
+    /**
+     * 缓存按地址和过滤条件区分,部分克隆的缓存里缺对象,不能给完整克隆用
+     */
+    private String cacheKey() {
+        String key = filter == null ? uri : uri + "\n" + filter;
+        MessageDigest digest = Constants.newMessageDigest();
+        return ObjectId.fromRaw(digest.digest(key.getBytes(StandardCharsets.UTF_8))).name();
+    }
+
+    /**
+     * 同步结果
+     */
+    public static final class Result {
+        public enum Mode {
+            /** 目录里没有克隆,新克隆 */
+            CLONED,
+            /** 在已有克隆上增量同步 */
+            UPDATED,
+            /** 已有克隆损坏,删掉重新克隆 */
+            RECLONED
+        }
+
+        private Mode mode;
+        private ObjectId head;
+        private Exception error;
+        private long elapsedNanos;
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        /**
+         * @return 同步后的HEAD
+         */
+        public ObjectId getHead() {
+            return head;
+        }
+
+        /**
+         * @return 重新克隆时,已有克隆同步失败的原因
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return mode + " " + (head == null ? "" : head.name()) + " " + getElapsedMillis() + "ms";
+        }
+    }
+}
@@ -0,0 +1,657 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * 提交图索引
+ * 把所有分支和标签能到达的提交按拓扑顺序编号,记下父提交的编号、代数和提交时间,
+ * 查询祖先、合并基、日志时只在int数组上走,不需要从pack里解压提交对象
+ * 分支和标签的顶端还会缓存可达位图,"是否包含"这类查询只需要查一个位
+ * 索引保存在.git/objects/info下面,以后只追加新提交,已有编号不会变
+ */
+public class GitCommitGraph {
+    // 文件名故意和git自己的commit-graph区分开,避免被命令行git当成它的格式
+    public static final String GRAPH_FILE = "objects/info/jgit-commit-graph";
+
+    private static final int GRAPH_MAGIC = 0x4a434752;
+    private static final int GRAPH_VERSION = 1;
+    private static final int NO_PARENT = -1;
+
+    private final Repository repository;
+    private volatile Graph graph = Graph.EMPTY;
+    // 顶端提交的可达位图,编号只追加,更新之后旧位图仍然有效
+    private final Map<ObjectId, BitSet> bitmaps = new ConcurrentHashMap<>();
+
+    private GitCommitGraph(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * 加载已有的索引,并把新提交补进去
+     *
+     * @param repository
+     * @return
+     * @throws IOException
+     */
+    public static GitCommitGraph open(Repository repository) throws IOException {
+        GitCommitGraph commitGraph = new GitCommitGraph(repository);
+        commitGraph.load();
+        commitGraph.update();
+        return commitGraph;
+    }
+
+    /**
+     * 把所有引用能到达但还不在索引里的提交追加进去,有新提交时重新写文件
+     *
+     * @return 新增的提交数
+     * @throws IOException
+     */
+    public synchronized int update() throws IOException {
+        Graph old = graph;
+        Builder builder = new Builder(old);
+        try (RevWalk walk = new RevWalk(repository)) {
+            walk.setRetainBody(false);
+            for (ObjectId tip : tips(walk)) {
+                builder.add(walk, tip);
+            }
+        }
+        if (builder.added == 0) {
+            return 0;
+        }
+        graph = builder.build();
+        write();
+        return builder.added;
+    }
+
+    public int size() {
+        return graph.size;
+    }
+
+    public boolean contains(AnyObjectId id) {
+        return graph.find(id) >= 0;
+    }
+
+    /**
+     * 代数,根提交是1,其他提交是父提交的最大代数加1
+     *
+     * @param id
+     * @return 不在索引里时返回0
+     */
+    public int getGeneration(AnyObjectId id) {
+        Graph g = graph;
+        int pos = g.find(id);
+        return pos < 0 ? 0 : g.generation[pos];
+    }
+
+    /**
+     * 判断ancestor是不是descendant的祖先,提交本身也算自己的祖先
+     *
+     * @param ancestor
+     * @param descendant
+     * @return
+     * @throws MissingObjectException 提交不在索引里,需要先update
+     */
+    public boolean isAncestor(AnyObjectId ancestor, AnyObjectId descendant) throws MissingObjectException {
+        Graph g = graph;
+        int a = g.require(ancestor);
+        int d = g.require(descendant);
+        BitSet bitmap = bitmaps.get(g.ids[d]);
+        if (bitmap != null) {
+            return bitmap.get(a);
+        }
+        if (g.generation[a] > g.generation[d]) {
+            return false;
+        }
+        // 深度优先,代数比目标小的分支不用再往下走
+        int target = g.generation[a];
+        BitSet seen = new BitSet();
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        stack.push(d);
+        while (!stack.isEmpty()) {
+            int pos = stack.pop();
+            if (pos == a) {
+                return true;
+            }
+            if (seen.get(pos) || g.generation[pos] <= target) {
+                continue;
+            }
+            seen.set(pos);
+            BitSet tipBitmap = bitmaps.get(g.ids[pos]);
+            if (tipBitmap != null) {
+                if (tipBitmap.get(a)) {
+                    return true;
+                }
+                continue;
+            }
+            for (int parent : g.parents(pos)) {
+                stack.push(parent);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 判断提交能不能从任意一个分支或标签到达
+     *
+     * @param id
+     * @return
+     * @throws IOException
+     */
+    public boolean isReachableFromRefs(AnyObjectId id) throws IOException {
+        Graph g = graph;
+        int pos = g.find(id);
+        if (pos < 0) {
+            return false;
+        }
+        try (RevWalk walk = new RevWalk(repository)) {
+            for (ObjectId tip : tips(walk)) {
+                if (g.find(tip) >= 0 && getBitmap(tip).get(pos)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从tip可以到达的所有提交,位图下标就是索引里的编号
+     * 计算时遇到已经有位图的提交直接合并,不再往下走
+     *
+     * @param tip
+     * @return
+     * @throws MissingObjectException
+     */
+    public BitSet getBitmap(AnyObjectId tip) throws MissingObjectException {
+        Graph g = graph;
+        int start = g.require(tip);
+        BitSet cached = bitmaps.get(g.ids[start]);
+        if (cached != null) {
+            return cached;
+        }
+        BitSet bitmap = new BitSet(start + 1);
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            int pos = stack.pop();
+            if (bitmap.get(pos)) {
+                continue;
+            }
+            BitSet other = pos == start ? null : bitmaps.get(g.ids[pos]);
+            if (other != null) {
+                bitmap.or(other);
+                continue;
+            }
+            bitmap.set(pos);
+            for (int parent : g.parents(pos)) {
+                if (!bitmap.get(parent)) {
+                    stack.push(parent);
+                }
+            }
+        }
+        bitmaps.put(g.ids[start], bitmap);
+        return bitmap;
+    }
+
+    /**
+     * 给所有分支和标签的顶端算好可达位图,按代数从小到大算,后面的可以复用前面的
+     *
+     * @return 位图数量
+     * @throws IOException
+     */
+    public int buildBitmaps() throws IOException {
+        Graph g = graph;
+        List<Integer> positions = new ArrayList<>();
+        try (RevWalk walk = new RevWalk(repository)) {
+            for (ObjectId tip : tips(walk)) {
+                int pos = g.find(tip);
+                if (pos >= 0) {
+                    positions.add(pos);
+                }
+            }
+        }
+        positions.sort(Comparator.comparingInt(pos -> g.generation[pos]));
+        for (int pos : positions) {
+            getBitmap(g.ids[pos]);
+        }
+        return bitmaps.size();
+    }
+
+    /**
+     * 合并基,有多个时都返回
+     *
+     * @param a
+     * @param b
+     * @return
+     * @throws MissingObjectException
+     */
+    public List<ObjectId> mergeBases(AnyObjectId a, AnyObjectId b) throws MissingObjectException {
+        Graph g = graph;
+        int pa = g.require(a);
+        int pb = g.require(b);
+        if (pa == pb) {
+            return Arrays.asList(g.ids[pa]);
+        }
+        final byte fromA = 1;
+        final byte fromB = 2;
+        final byte stale = 4;
+        Map<Integer, Byte> flags = new HashMap<>();
+        // 代数大的先出队,保证出队时它的所有子孙都已经处理过;代数不变,标记变了也不用重新排队
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                (x, y) -> Integer.compare(g.generation[y], g.generation[x]));
+        BitSet queued = new BitSet();
+        flags.put(pa, fromA);
+        flags.put(pb, fromB);
+        queue.add(pa);
+        queue.add(pb);
+        queued.set(pa);
+        queued.set(pb);
+        // 队列里没有stale标记的提交数,和git的paint_down_to_common一样,都变成stale就可以停了
+        int nonStale = 2;
+        List<Integer> candidates = new ArrayList<>();
+        while (nonStale > 0) {
+            int pos = queue.poll();
+            queued.clear(pos);
+            byte flag = flags.get(pos);
+            if ((flag & stale) == 0) {
+                nonStale--;
+            }
+            if ((flag & (fromA | fromB)) == (fromA | fromB)) {
+                if ((flag & stale) == 0) {
+                    candidates.add(pos);
+                }
+                flag |= stale;
+            }
+            for (int parent : g.parents(pos)) {
+                Byte old = flags.get(parent);
+                byte merged = (byte) ((old == null ? 0 : old) | flag);
+                if (old != null && old == merged) {
+                    continue;
+                }
+                flags.put(parent, merged);
+                if (!queued.get(parent)) {
+                    queue.add(parent);
+                    queued.set(parent);
+                    if ((merged & stale) == 0) {
+                        nonStale++;
+                    }
+                } else if ((old & stale) == 0 && (merged & stale) != 0) {
+                    nonStale--;
+                }
+            }
+        }
+        // 去掉是其他候选祖先的候选
+        List<ObjectId> bases = new ArrayList<>();
+        for (int candidate : candidates) {
+            boolean redundant = false;
+            for (int other : candidates) {
+                if (other != candidate && isAncestor(g.ids[candidate], g.ids[other])) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                bases.add(g.ids[candidate]);
+            }
+        }
+        return bases;
+    }
+
+    /**
+     * 按提交时间倒序列出从start开始的历史,等价于git log的默认顺序
+     *
+     * @param start
+     * @param maxCount 小于0表示不限制
+     * @return
+     * @throws MissingObjectException
+     */
+    public List<ObjectId> log(AnyObjectId start, int maxCount) throws MissingObjectException {
+        Graph g = graph;
+        List<ObjectId> result = new ArrayList<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) -> {
+            int cmp = Integer.compare(g.commitTime[y], g.commitTime[x]);
+            return cmp != 0 ? cmp : Integer.compare(y, x);
+        });
+        BitSet seen = new BitSet();
+        int first = g.require(start);
+        queue.add(first);
+        seen.set(first);
+        while (!queue.isEmpty() && (maxCount < 0 || result.size() < maxCount)) {
+            int pos = queue.poll();
+            result.add(g.ids[pos]);
+            for (int parent : g.parents(pos)) {
+                if (!seen.get(parent)) {
+                    seen.set(parent);
+                    queue.add(parent);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 第一父提交,不需要解析提交对象
+     *
+     * @param id
+     * @return 没有父提交时返回null
+     * @throws MissingObjectException
+     */
+    public ObjectId getFirstParent(AnyObjectId id) throws MissingObjectException {
+        Graph g = graph;
+        int pos = g.require(id);
+        return g.parent1[pos] == NO_PARENT ? null : g.ids[g.parent1[pos]];
+    }
+
+    private Set<ObjectId> tips(RevWalk walk) throws IOException {
+        Set<ObjectId> tips = new LinkedHashSet<>();
+        for (Ref ref : repository.getRefDatabase().getRefs()) {
+            if (ref.getObjectId() == null) {
+                continue;
+            }
+            try {
+                RevObject object = walk.peel(walk.parseAny(ref.getObjectId()));
+                if (object instanceof RevCommit) {
+                    tips.add(object.copy());
+                }
+            } catch (MissingObjectException | IncorrectObjectTypeException e) {
+                // 引用指向的对象不存在,跳过
+            }
+        }
+        return tips;
+    }
+
+    private File graphFile() {
+        return new File(repository.getDirectory(), GRAPH_FILE);
+    }
+
+    /**
+     * 读索引文件,数量和文件大小对不上、父提交编号越界或者不在子提交前面时当作损坏,重新建
+     */
+    private void load() throws IOException {
+        File file = graphFile();
+        if (!file.isFile()) {
+            return;
+        }
+        long length = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != GRAPH_MAGIC || in.readInt() != GRAPH_VERSION) {
+                return;
+            }
+            int size = in.readInt();
+            // 每个提交占id和4个int
+            if (size < 0 || (long) size * (Constants.OBJECT_ID_LENGTH + 16) > length) {
+                throw new IOException("Corrupt commit graph " + file);
+            }
+            ObjectId[] ids = new ObjectId[size];
+            int[] parent1 = new int[size];
+            int[] parent2 = new int[size];
+            int[] generation = new int[size];
+            int[] commitTime = new int[size];
+            byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            for (int i = 0; i < size; i++) {
+                in.readFully(raw);
+                ids[i] = ObjectId.fromRaw(raw);
+                parent1[i] = in.readInt();
+                parent2[i] = in.readInt();
+                generation[i] = in.readInt();
+                commitTime[i] = in.readInt();
+                if (!validParent(parent1[i], i) || !validParent(parent2[i], i)
+                        || parent1[i] == NO_PARENT && parent2[i] != NO_PARENT || generation[i] < 1) {
+                    throw new IOException("Corrupt commit graph " + file);
+                }
+            }
+            Map<Integer, int[]> octopus = new HashMap<>();
+            int octopusCount = in.readInt();
+            if (octopusCount < 0 || octopusCount > size) {
+                throw new IOException("Corrupt commit graph " + file);
+            }
+            for (int i = 0; i < octopusCount; i++) {
+                int pos = in.readInt();
+                int count = in.readInt();
+                if (pos < 0 || pos >= size || count < 3 || (long) count * 4 > length) {
+                    throw new IOException("Corrupt commit graph " + file);
+                }
+                int[] parents = new int[count];
+                for (int p = 0; p < parents.length; p++) {
+                    parents[p] = in.readInt();
+                    if (parents[p] < 0 || parents[p] >= pos) {
+                        throw new IOException("Corrupt commit graph " + file);
+                    }
+                }
+                octopus.put(pos, parents);
+            }
+            graph = new Graph(size, ids, parent1, parent2, octopus, generation, commitTime);
+        } catch (IOException e) {
+            // 文件损坏就重新建
+            graph = Graph.EMPTY;
+        }
+    }
+
+    /**
+     * 父提交总是排在子提交前面
+     */
+    private static boolean validParent(int parent, int pos) {
+        return parent == NO_PARENT || parent >= 0 && parent < pos;
+    }
+
+    private void write() throws IOException {
+        Graph g = graph;
+        File file = graphFile();
+        file.getParentFile().mkdirs();
+        LockFile lock = new LockFile(file);
+        if (!lock.lock()) {
+            // 其他进程正在写,下次更新时再写
+            return;
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(lock.getOutputStream()));
+            out.writeInt(GRAPH_MAGIC);
+            out.writeInt(GRAPH_VERSION);
+            out.writeInt(g.size);
+            byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            for (int i = 0; i < g.size; i++) {
+                g.ids[i].copyRawTo(raw, 0);
+                out.write(raw);
+                out.writeInt(g.parent1[i]);
+                out.writeInt(g.parent2[i]);
+                out.writeInt(g.generation[i]);
+                out.writeInt(g.commitTime[i]);
+            }
+            out.writeInt(g.octopus.size());
+            for (Map.Entry<Integer, int[]> entry : g.octopus.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                for (int parent : entry.getValue()) {
+                    out.writeInt(parent);
+                }
+            }
+            out.close();
+            lock.commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 不可变的索引数据,更新时整体替换
+     */
+    private static final class Graph {
+        static final Graph EMPTY = new Graph(0, new ObjectId[0], new int[0], new int[0],
+                new HashMap<>(), new int[0], new int[0]);
+
+        final int size;
+        final ObjectId[] ids;
+        final int[] parent1;
+        final int[] parent2;
+        // 超过两个父提交的章鱼合并,存全部父提交
+        final Map<Integer, int[]> octopus;
+        final int[] generation;
+        final int[] commitTime;
+        // 按id排序的编号,用来二分查找
+        final int[] sorted;
+
+        Graph(int size, ObjectId[] ids, int[] parent1, int[] parent2, Map<Integer, int[]> octopus,
+              int[] generation, int[] commitTime) {
+            this.size = size;
+            this.ids = ids;
+            this.parent1 = parent1;
+            this.parent2 = parent2;
+            this.octopus = octopus;
+            this.generation = generation;
+            this.commitTime = commitTime;
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (x, y) -> ids[x].compareTo(ids[y]));
+            this.sorted = new int[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = order[i];
+            }
+        }
+
+        int find(AnyObjectId id) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = ids[sorted[mid]].compareTo(id);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return sorted[mid];
+                }
+            }
+            return -1;
+        }
+
+        int require(AnyObjectId id) throws MissingObjectException {
+            int pos = find(id);
+            if (pos < 0) {
+                throw new MissingObjectException(id.copy(), Constants.TYPE_COMMIT);
+            }
+            return pos;
+        }
+
+        int[] parents(int pos) {
+            int[] all = octopus.get(pos);
+            if (all != null) {
+                return all;
+            }
+            if (parent1[pos] == NO_PARENT) {
+                return new int[0];
+            }
+            if (parent2[pos] == NO_PARENT) {
+                return new int[]{parent1[pos]};
+            }
+            return new int[]{parent1[pos], parent2[pos]};
+        }
+    }
+
+    /**
+     * 在旧索引后面追加新提交,父提交总是排在子提交前面
+     */
+    private static final class Builder {
+        private final Graph base;
+        private final List<RevCommit> newCommits = new ArrayList<>();
+        private final Map<ObjectId, Integer> newPositions = new HashMap<>();
+        int added;
+
+        Builder(Graph base) {
+            this.base = base;
+        }
+
+        void add(RevWalk walk, ObjectId tip) throws IOException {
+            if (position(tip) >= 0) {
+                return;
+            }
+            // 后序遍历,父提交全部编号之后才给自己编号,不用递归,历史再深也不会栈溢出
+            ArrayDeque<RevCommit> stack = new ArrayDeque<>();
+            stack.push(walk.parseCommit(tip));
+            while (!stack.isEmpty()) {
+                RevCommit commit = stack.peek();
+                if (position(commit) >= 0) {
+                    stack.pop();
+                    continue;
+                }
+                boolean ready = true;
+                for (RevCommit parent : commit.getParents()) {
+                    if (position(parent) < 0) {
+                        walk.parseHeaders(parent);
+                        stack.push(parent);
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    newPositions.put(commit.copy(), base.size + newCommits.size());
+                    newCommits.add(commit);
+                    added++;
+                }
+            }
+        }
+
+        private int position(AnyObjectId id) {
+            Integer pos = newPositions.get(id);
+            return pos != null ? pos : base.find(id);
+        }
+
+        Graph build() {
+            int size = base.size + newCommits.size();
+            ObjectId[] ids = Arrays.copyOf(base.ids, size);
+            int[] parent1 = Arrays.copyOf(base.parent1, size);
+            int[] parent2 = Arrays.copyOf(base.parent2, size);
+            int[] generation = Arrays.copyOf(base.generation, size);
+            int[] commitTime = Arrays.copyOf(base.commitTime, size);
+            Map<Integer, int[]> octopus = new HashMap<>(base.octopus);
+            for (int i = 0; i < newCommits.size(); i++) {
+                RevCommit commit = newCommits.get(i);
+                int pos = base.size + i;
+                ids[pos] = commit.copy();
+                commitTime[pos] = commit.getCommitTime();
+                int[] parents = new int[commit.getParentCount()];
+                int maxGeneration = 0;
+                for (int p = 0; p < parents.length; p++) {
+                    parents[p] = position(commit.getParent(p));
+                    maxGeneration = Math.max(maxGeneration, generation[parents[p]]);
+                }
+                generation[pos] = maxGeneration + 1;
+                parent1[pos] = parents.length > 0 ? parents[0] : NO_PARENT;
+                parent2[pos] = parents.length > 1 ? parents[1] : NO_PARENT;
+                if (parents.length > 2) {
+                    octopus.put(pos, parents);
+                }
+            }
+            return new Graph(size, ids, parent1, parent2, octopus, generation, commitTime);
+        }
+    }
+}
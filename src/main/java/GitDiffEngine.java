@@ -0,0 +1,414 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.AbstractTreeIterator;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.io.NullOutputStream;
+
+/**
+ * 并行的流式diff
+ * 先用一个DiffFormatter扫出变更列表并做重命名检测,再把每个文件的补丁分给线程池生成,
+ * 按路径顺序逐个交给DiffSink输出,内存里最多只有maxInFlight个文件的补丁
+ * 重命名检测的相似度矩阵受renameLimit限制,超过后只做完全相同内容的重命名检测
+ */
+public class GitDiffEngine {
+    private final Repository repository;
+    private Executor executor = ForkJoinPool.commonPool();
+    private int maxInFlight = 64;
+    private boolean detectRenames = true;
+    private int renameLimit = 400;
+    private int renameScore = 60;
+    private int maxFileSize = 8 * 1024 * 1024;
+    private int context = 3;
+    private TreeFilter pathFilter = TreeFilter.ALL;
+    private GitTreeCache treeCache;
+    private GitBlobCache blobCache;
+    private volatile boolean overRenameLimit;
+
+    public GitDiffEngine(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * 补丁输出的目标,按路径顺序调用,同一时间只有一个线程在调用
+     */
+    public interface DiffSink {
+        /**
+         * @param entry 变更
+         * @param patch 这个文件完整的补丁文本,包括diff --git头
+         * @throws IOException
+         */
+        void write(DiffEntry entry, byte[] patch) throws IOException;
+
+        /**
+         * 写到输出流,不关闭流
+         *
+         * @param out
+         * @return
+         */
+        static DiffSink toStream(OutputStream out) {
+            return (entry, patch) -> out.write(patch);
+        }
+
+        /**
+         * 写到NIO通道,不关闭通道
+         *
+         * @param channel
+         * @return
+         */
+        static DiffSink toChannel(WritableByteChannel channel) {
+            return (entry, patch) -> {
+                ByteBuffer buffer = ByteBuffer.wrap(patch);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            };
+        }
+    }
+
+    /**
+     * 生成补丁用的线程池,默认是ForkJoinPool.commonPool()
+     *
+     * @param executor
+     * @return
+     */
+    public GitDiffEngine setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * 同时在生成或等待输出的文件数上限
+     *
+     * @param maxInFlight
+     * @return
+     */
+    public GitDiffEngine setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    public GitDiffEngine setDetectRenames(boolean detectRenames) {
+        this.detectRenames = detectRenames;
+        return this;
+    }
+
+    /**
+     * 删除文件数乘新增文件数超过它的平方时不再计算相似度,只识别内容完全相同的重命名
+     *
+     * @param renameLimit
+     * @return
+     */
+    public GitDiffEngine setRenameLimit(int renameLimit) {
+        this.renameLimit = renameLimit;
+        return this;
+    }
+
+    /**
+     * 相似度达到多少(0-100)算作重命名
+     *
+     * @param renameScore
+     * @return
+     */
+    public GitDiffEngine setRenameScore(int renameScore) {
+        this.renameScore = renameScore;
+        return this;
+    }
+
+    /**
+     * 超过这个大小的文件按二进制处理,只输出"Binary files differ",不读内容做diff
+     *
+     * @param maxFileSize 字节数
+     * @return
+     */
+    public GitDiffEngine setMaxFileSize(int maxFileSize) {
+        this.maxFileSize = maxFileSize;
+        return this;
+    }
+
+    public GitDiffEngine setContext(int context) {
+        this.context = context;
+        return this;
+    }
+
+    public GitDiffEngine setPathFilter(TreeFilter pathFilter) {
+        this.pathFilter = pathFilter;
+        return this;
+    }
+
+    /**
+     * 设置后树和子树都从缓存读,同一个提交反复参与diff时不再重复解压
+     *
+     * @param treeCache
+     * @return
+     */
+    public GitDiffEngine setTreeCache(GitTreeCache treeCache) {
+        this.treeCache = treeCache;
+        return this;
+    }
+
+    /**
+     * 设置后生成补丁时文件内容从blob缓存读,反复对比的文件不用再解压
+     *
+     * @param blobCache 比如GitBlobCache.getDefault()
+     * @return
+     */
+    public GitDiffEngine setBlobCache(GitBlobCache blobCache) {
+        this.blobCache = blobCache;
+        return this;
+    }
+
+    /**
+     * @return 上一次diff的重命名检测是否因为文件太多而降级
+     */
+    public boolean isOverRenameLimit() {
+        return overRenameLimit;
+    }
+
+    /**
+     * 比较两个提交
+     *
+     * @param oldRevision 可以是HEAD^这样的表达式
+     * @param newRevision
+     * @param sink
+     * @return 变更的文件数
+     * @throws IOException
+     */
+    public int diff(String oldRevision, String newRevision, DiffSink sink) throws IOException {
+        ObjectId oldId = repository.resolve(oldRevision);
+        ObjectId newId = repository.resolve(newRevision);
+        if (oldId == null || newId == null) {
+            throw new MissingObjectException(ObjectId.zeroId(), Constants.TYPE_COMMIT);
+        }
+        if (treeCache != null) {
+            return diff(treeCache.treeParser(oldId), treeCache.treeParser(newId), sink);
+        }
+        try (ObjectReader reader = repository.newObjectReader()) {
+            return diff(treeParser(reader, oldId), treeParser(reader, newId), sink);
+        }
+    }
+
+    /**
+     * 比较暂存区和工作区,等价于不带参数的git diff
+     *
+     * @param sink
+     * @return 变更的文件数
+     * @throws IOException
+     */
+    public int diffWorkingTree(DiffSink sink) throws IOException {
+        return diff(new DirCacheIterator(repository.readDirCache()), new FileTreeIterator(repository), sink);
+    }
+
+    /**
+     * 比较两棵树,新的一边可以是工作区
+     *
+     * @param oldTree
+     * @param newTree
+     * @param sink
+     * @return 变更的文件数
+     * @throws IOException
+     */
+    public int diff(AbstractTreeIterator oldTree, AbstractTreeIterator newTree, DiffSink sink) throws IOException {
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("diff")) {
+            int changed = diff(oldTree, newTree, sink, sample);
+            sample.done();
+            return changed;
+        }
+    }
+
+    private int diff(AbstractTreeIterator oldTree, AbstractTreeIterator newTree, DiffSink sink,
+                     GitMetrics.Sample sample) throws IOException {
+        List<DiffEntry> entries = scan(oldTree, newTree);
+        // 工作区里的文件还没写进对象库,记下id对应的路径,生成补丁时直接读文件
+        Map<ObjectId, String> workTreeFiles = new HashMap<>();
+        if (newTree instanceof WorkingTreeIterator) {
+            for (DiffEntry entry : entries) {
+                AbbreviatedObjectId id = entry.getNewId();
+                if (entry.getChangeType() != DiffEntry.ChangeType.DELETE && id.isComplete()) {
+                    workTreeFiles.put(id.toObjectId(), entry.getNewPath());
+                }
+            }
+        }
+
+        ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+        int next = 0;
+        for (DiffEntry entry : entries) {
+            if (pending.size() >= maxInFlight) {
+                write(sink, entries.get(next++), join(pending.poll()), sample);
+            }
+            pending.add(CompletableFuture.supplyAsync(() -> format(entry, workTreeFiles), executor));
+        }
+        while (!pending.isEmpty()) {
+            write(sink, entries.get(next++), join(pending.poll()), sample);
+        }
+        sample.read(entries.size(), 0);
+        return entries.size();
+    }
+
+    private static void write(DiffSink sink, DiffEntry entry, byte[] patch, GitMetrics.Sample sample)
+            throws IOException {
+        sink.write(entry, patch);
+        sample.written(1, patch.length);
+    }
+
+    private List<DiffEntry> scan(AbstractTreeIterator oldTree, AbstractTreeIterator newTree) throws IOException {
+        try (ObjectReader cached = treeCache != null ? treeCache.newReader() : null;
+             DiffFormatter formatter = new DiffFormatter(NullOutputStream.INSTANCE)) {
+            if (cached != null) {
+                formatter.setReader(cached, repository.getConfig());
+            } else {
+                formatter.setRepository(repository);
+            }
+            formatter.setPathFilter(pathFilter);
+            formatter.setDetectRenames(detectRenames);
+            if (detectRenames) {
+                formatter.getRenameDetector().setRenameLimit(renameLimit);
+                formatter.getRenameDetector().setRenameScore(renameScore);
+            }
+            List<DiffEntry> entries = new ArrayList<>(formatter.scan(oldTree, newTree));
+            overRenameLimit = detectRenames && formatter.getRenameDetector().isOverRenameLimit();
+            entries.sort((a, b) -> sortPath(a).compareTo(sortPath(b)));
+            return entries;
+        }
+    }
+
+    private static String sortPath(DiffEntry entry) {
+        return entry.getChangeType() == DiffEntry.ChangeType.DELETE ? entry.getOldPath() : entry.getNewPath();
+    }
+
+    private byte[] format(DiffEntry entry, Map<ObjectId, String> workTreeFiles) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectReader base = treeCache != null ? treeCache.newReader() : repository.newObjectReader();
+        if (blobCache != null) {
+            base = blobCache.newReader(base);
+        }
+        try (ObjectReader reader = workTreeFiles.isEmpty() ? base : new WorkTreeReader(base, workTreeFiles);
+             DiffFormatter formatter = new DiffFormatter(out)) {
+            formatter.setReader(reader, repository.getConfig());
+            formatter.setContext(context);
+            formatter.setBinaryFileThreshold(maxFileSize);
+            formatter.format(entry);
+            formatter.flush();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * 把提交对应的树准备成树解析器
+     *
+     * @param reader
+     * @param commitId
+     * @return
+     * @throws IOException
+     */
+    public static CanonicalTreeParser treeParser(ObjectReader reader, AnyObjectId commitId) throws IOException {
+        try (RevWalk walk = new RevWalk(reader)) {
+            CanonicalTreeParser parser = new CanonicalTreeParser();
+            parser.reset(reader, walk.parseCommit(commitId).getTree());
+            return parser;
+        }
+    }
+
+    /**
+     * 对象库里找不到的内容从工作区文件读
+     */
+    private final class WorkTreeReader extends ObjectReader {
+        private final ObjectReader delegate;
+        private final Map<ObjectId, String> files;
+
+        WorkTreeReader(ObjectReader delegate, Map<ObjectId, String> files) {
+            this.delegate = delegate;
+            this.files = files;
+        }
+
+        @Override
+        public ObjectReader newReader() {
+            return new WorkTreeReader(delegate.newReader(), files);
+        }
+
+        @Override
+        public Collection<ObjectId> resolve(AbbreviatedObjectId id) throws IOException {
+            return delegate.resolve(id);
+        }
+
+        @Override
+        public ObjectLoader open(AnyObjectId objectId, int typeHint) throws IOException {
+            String path = files.get(objectId);
+            if (path == null) {
+                return delegate.open(objectId, typeHint);
+            }
+            return new ObjectLoader.SmallObject(Constants.OBJ_BLOB, Files.readAllBytes(file(path).toPath()));
+        }
+
+        @Override
+        public long getObjectSize(AnyObjectId objectId, int typeHint) throws IOException {
+            String path = files.get(objectId);
+            return path == null ? delegate.getObjectSize(objectId, typeHint) : file(path).length();
+        }
+
+        @Override
+        public Set<ObjectId> getShallowCommits() throws IOException {
+            return delegate.getShallowCommits();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+
+        private File file(String path) {
+            return new File(repository.getWorkTree(), path);
+        }
+    }
+}
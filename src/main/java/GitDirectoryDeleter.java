@@ -0,0 +1,209 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 并行删除目录
+ * 根目录下的每个子目录用Files.walkFileTree在线程池里单独删除,最后删根目录
+ * 只读文件(比如pack和idx)删不掉时先去掉只读属性再删
+ * 可以先把目录改名挪开再在后台删除,调用方马上就能在原路径上重新建目录
+ * 删不掉的文件不会中断删除,在结果里列出来
+ * 符号链接只删除链接本身,不进入链接指向的目录
+ */
+public class GitDirectoryDeleter {
+    private Executor executor = ForkJoinPool.commonPool();
+
+    /**
+     * 删除用的线程池,默认公共的ForkJoinPool
+     *
+     * @param executor
+     * @return
+     */
+    public GitDirectoryDeleter setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * 删除目录,等删完再返回
+     *
+     * @param dir 不存在时直接返回成功
+     * @return
+     */
+    public Result delete(Path dir) {
+        return deleteAsync(dir).join();
+    }
+
+    /**
+     * 把目录改名挪开后在后台删除,返回时原路径已经不存在
+     * 改名失败时(比如跨文件系统或者文件被占用)在原路径上删完再返回,调用方不会和后台删除抢同一个目录,
+     * 有文件删不掉时原路径还在,结果里列出失败的文件
+     *
+     * @param dir
+     * @return 删除完成时结束
+     */
+    public CompletableFuture<Result> deleteInBackground(Path dir) {
+        if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+            return deleteAsync(dir);
+        }
+        Path moved = dir.resolveSibling("." + dir.getFileName() + ".deleting-" + System.nanoTime());
+        try {
+            return deleteAsync(Files.move(dir, moved, StandardCopyOption.ATOMIC_MOVE));
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(delete(dir));
+        }
+    }
+
+    private CompletableFuture<Result> deleteAsync(Path dir) {
+        Result result = new Result();
+        if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+            return CompletableFuture.completedFuture(result);
+        }
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            deleteEntry(dir, result, false);
+            return CompletableFuture.completedFuture(result);
+        }
+
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            stream.forEach(children::add);
+        } catch (IOException e) {
+            result.failed(dir, e);
+            return CompletableFuture.completedFuture(result);
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Path child : children) {
+            if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                futures.add(CompletableFuture.runAsync(() -> walk(child, result), executor));
+            } else {
+                deleteEntry(child, result, false);
+            }
+        }
+        // 子目录都删完后再删根目录,不阻塞线程池里的线程
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .handle((ignored, error) -> {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                        result.failed(dir, cause instanceof IOException ? (IOException) cause : new IOException(cause));
+                    }
+                    deleteEntry(dir, result, true);
+                    return result;
+                });
+    }
+
+    /**
+     * 删除一个子树,遍历时出错继续删其他文件
+     */
+    private static void walk(Path root, Result result) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    deleteEntry(file, result, false);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    result.failed(file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    if (e != null) {
+                        result.failed(dir, e);
+                    }
+                    deleteEntry(dir, result, true);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            result.failed(root, e);
+        }
+    }
+
+    private static void deleteEntry(Path path, Result result, boolean directory) {
+        try {
+            try {
+                Files.delete(path);
+            } catch (AccessDeniedException e) {
+                // windows上只读文件不能删除,其他系统上是所在目录不可写
+                File file = path.toFile();
+                file.setWritable(true);
+                File parent = file.getParentFile();
+                if (parent != null) {
+                    parent.setWritable(true);
+                }
+                Files.delete(path);
+            }
+            if (directory) {
+                result.directories.incrementAndGet();
+            } else {
+                result.files.incrementAndGet();
+            }
+        } catch (NoSuchFileException e) {
+            // 已经被别人删掉了
+        } catch (IOException e) {
+            result.failed(path, e);
+        }
+    }
+
+    /**
+     * 删除结果
+     */
+    public static final class Result {
+        private final AtomicInteger files = new AtomicInteger();
+        private final AtomicInteger directories = new AtomicInteger();
+        private final Map<Path, IOException> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+
+        void failed(Path path, IOException e) {
+            failures.put(path, e);
+        }
+
+        public int getDeletedFiles() {
+            return files.get();
+        }
+
+        public int getDeletedDirectories() {
+            return directories.get();
+        }
+
+        /**
+         * @return 删不掉的路径和原因,非空目录的失败是因为里面有文件删不掉
+         */
+        public Map<Path, IOException> getFailures() {
+            synchronized (failures) {
+                return new LinkedHashMap<>(failures);
+            }
+        }
+
+        public boolean isSuccess() {
+            return failures.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "files=" + files + " directories=" + directories + " failures=" + failures.size();
+        }
+    }
+}
@@ -0,0 +1,452 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.util.IO;
+
+/**
+ * 不用工作区的批量cherry-pick、revert和rebase
+ * 每一步都是树级别的三方合并,新的树、blob和提交先放在内存里,下一步直接从内存读,
+ * 全部成功后写进同一个pack,最后用期望的旧值更新一次分支
+ * 中间任何一步冲突都不写对象也不动分支,结果里有冲突的那一步和冲突的文件
+ * 不碰工作区和索引,分支正被检出时要自己再用GitParallelCheckout检出新提交
+ */
+public class GitHistoryRewriter {
+    private final Repository repository;
+    private final List<Step> steps = new ArrayList<>();
+    private GitMergeEngine mergeEngine;
+    private String branch;
+    private ObjectId onto;
+    private ObjectId upstream;
+    private boolean keepEmpty;
+    private PersonIdent committer;
+
+    public GitHistoryRewriter(Repository repository) {
+        this.repository = repository;
+        this.mergeEngine = new GitMergeEngine(repository);
+    }
+
+    /**
+     * 要改写的分支,短名称,默认是当前分支
+     *
+     * @param branch
+     * @return
+     */
+    public GitHistoryRewriter setBranch(String branch) {
+        this.branch = branch;
+        return this;
+    }
+
+    /**
+     * 从哪个提交开始应用,默认是分支当前的提交
+     *
+     * @param onto
+     * @return
+     */
+    public GitHistoryRewriter setOnto(AnyObjectId onto) {
+        this.onto = onto == null ? null : onto.copy();
+        return this;
+    }
+
+    /**
+     * 合并用的引擎,可以在上面设置线程池、提交图和blob缓存
+     *
+     * @param mergeEngine
+     * @return
+     */
+    public GitHistoryRewriter setMergeEngine(GitMergeEngine mergeEngine) {
+        this.mergeEngine = mergeEngine;
+        return this;
+    }
+
+    /**
+     * 应用后没有变化的提交是否保留,默认丢掉,和rebase一样
+     *
+     * @param keepEmpty
+     * @return
+     */
+    public GitHistoryRewriter setKeepEmpty(boolean keepEmpty) {
+        this.keepEmpty = keepEmpty;
+        return this;
+    }
+
+    /**
+     * 新提交的提交者,默认从仓库配置读,cherry-pick和rebase保留原来的作者
+     *
+     * @param committer
+     * @return
+     */
+    public GitHistoryRewriter setCommitter(PersonIdent committer) {
+        this.committer = committer;
+        return this;
+    }
+
+    /**
+     * 追加一步cherry-pick,合并提交按第一个父提交算改动
+     *
+     * @param commit
+     * @return
+     */
+    public GitHistoryRewriter cherryPick(AnyObjectId commit) {
+        steps.add(new Step(StepType.CHERRY_PICK, commit.copy()));
+        return this;
+    }
+
+    /**
+     * 追加一步revert,合并提交按第一个父提交算改动
+     *
+     * @param commit
+     * @return
+     */
+    public GitHistoryRewriter revert(AnyObjectId commit) {
+        steps.add(new Step(StepType.REVERT, commit.copy()));
+        return this;
+    }
+
+    /**
+     * 把分支上upstream没有的提交搬到upstream上,合并提交不搬
+     * 这些提交排在其他步骤前面,没有setOnto时从upstream开始
+     *
+     * @param upstream
+     * @return
+     */
+    public GitHistoryRewriter rebase(AnyObjectId upstream) {
+        this.upstream = upstream.copy();
+        return this;
+    }
+
+    /**
+     * 执行所有步骤
+     *
+     * @return
+     * @throws IOException 分支不存在,或者在改写期间被别人改过
+     */
+    public Result call() throws IOException {
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("rewrite")) {
+            Result result = rewrite();
+            sample.written(result.insertedObjects, result.insertedBytes);
+            sample.done();
+            return result;
+        }
+    }
+
+    private Result rewrite() throws IOException {
+        long start = System.nanoTime();
+        String refName = Constants.R_HEADS + (branch != null ? branch : repository.getBranch());
+        Ref ref = repository.exactRef(refName);
+        if (ref == null || ref.getObjectId() == null) {
+            throw new IOException("Branch " + refName + " not found");
+        }
+        Result result = new Result();
+        result.oldHead = ref.getObjectId();
+        PersonIdent ident = committer != null ? committer : new PersonIdent(repository);
+
+        try (ObjectInserter packInserter = newPackInserter();
+             MemoryInserter inserter = new MemoryInserter(packInserter);
+             ObjectReader reader = inserter.newReader();
+             RevWalk walk = new RevWalk(reader)) {
+            List<Step> todo = new ArrayList<>();
+            ObjectId head = onto != null ? onto : result.oldHead;
+            if (upstream != null) {
+                if (onto == null) {
+                    head = upstream;
+                }
+                walk.sort(RevSort.TOPO);
+                walk.sort(RevSort.REVERSE, true);
+                walk.markStart(walk.parseCommit(result.oldHead));
+                walk.markUninteresting(walk.parseCommit(upstream));
+                for (RevCommit c; (c = walk.next()) != null; ) {
+                    if (c.getParentCount() <= 1) {
+                        todo.add(new Step(StepType.REBASE, c.copy()));
+                    }
+                }
+                walk.reset();
+            }
+            todo.addAll(steps);
+            ObjectId emptyTree = inserter.insert(new TreeFormatter());
+
+            for (Step step : todo) {
+                RevCommit commit = walk.parseCommit(step.commit);
+                RevCommit headCommit = walk.parseCommit(head);
+                // rebase时父提交没变的提交原样保留
+                if (step.type == StepType.REBASE && commit.getParentCount() == 1
+                        && commit.getParent(0).equals(head)) {
+                    result.rewritten.put(step.commit, step.commit);
+                    head = step.commit;
+                    continue;
+                }
+                ObjectId parentTree = commit.getParentCount() == 0 ? emptyTree
+                        : walk.parseCommit(commit.getParent(0)).getTree();
+                GitMergeEngine.Result merged;
+                if (step.type == StepType.REVERT) {
+                    merged = mergeEngine.mergeTrees(commit.getTree(), headCommit.getTree(), parentTree, reader, inserter);
+                } else {
+                    merged = mergeEngine.mergeTrees(parentTree, headCommit.getTree(), commit.getTree(), reader, inserter);
+                }
+                if (!merged.isClean()) {
+                    result.failedStep = step.commit;
+                    result.conflicts = merged.getConflicts();
+                    result.elapsedNanos = System.nanoTime() - start;
+                    return result;
+                }
+                if (merged.getTree().equals(headCommit.getTree()) && !keepEmpty) {
+                    result.rewritten.put(step.commit, null);
+                    continue;
+                }
+                CommitBuilder builder = new CommitBuilder();
+                builder.setTreeId(merged.getTree());
+                builder.setParentId(head);
+                builder.setCommitter(ident);
+                builder.setEncoding(commit.getEncoding());
+                if (step.type == StepType.REVERT) {
+                    builder.setAuthor(ident);
+                    builder.setMessage("Revert \"" + commit.getShortMessage() + "\"\n\n"
+                            + "This reverts commit " + commit.name() + ".\n");
+                } else {
+                    builder.setAuthor(commit.getAuthorIdent());
+                    builder.setMessage(commit.getFullMessage());
+                }
+                head = inserter.insert(builder);
+                result.rewritten.put(step.commit, head);
+            }
+
+            result.head = head;
+            result.insertedObjects = inserter.objects.size();
+            result.insertedBytes = inserter.bytes;
+            if (!head.equals(result.oldHead)) {
+                RefUpdate.Result updated;
+                GitMaintenance.WriteGuard guard = GitMaintenance.beginWrite(repository);
+                try {
+                    inserter.flush();
+                    RefUpdate update = repository.updateRef(refName);
+                    update.setNewObjectId(head);
+                    update.setExpectedOldObjectId(result.oldHead);
+                    update.setRefLogMessage("rewrite: " + todo.size() + " steps", false);
+                    // rebase后新提交不是旧提交的后代
+                    update.setForceUpdate(true);
+                    updated = update.update();
+                } finally {
+                    guard.close();
+                }
+                if (updated != RefUpdate.Result.FAST_FORWARD && updated != RefUpdate.Result.FORCED) {
+                    throw new IOException("Could not update " + refName + ": " + updated);
+                }
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private ObjectInserter newPackInserter() {
+        ObjectDatabase db = repository.getObjectDatabase();
+        if (db instanceof ObjectDirectory) {
+            return ((ObjectDirectory) db).newPackInserter();
+        }
+        return db.newInserter();
+    }
+
+    /**
+     * 新对象同时留在内存里,flush之前也能读到
+     * 只在调用线程里写,内容合并的线程只读
+     */
+    private static final class MemoryInserter extends ObjectInserter {
+        final ObjectInserter delegate;
+        final Map<ObjectId, ObjectLoader> objects = new ConcurrentHashMap<>();
+        long bytes;
+
+        MemoryInserter(ObjectInserter delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ObjectId insert(int type, byte[] data, int off, int len) throws IOException {
+            ObjectId id = idFor(type, data, off, len);
+            if (!objects.containsKey(id)) {
+                byte[] copy = new byte[len];
+                System.arraycopy(data, off, copy, 0, len);
+                delegate.insert(type, copy);
+                bytes += len;
+                objects.put(id, new ObjectLoader.SmallObject(type, copy));
+            }
+            return id;
+        }
+
+        @Override
+        public ObjectId insert(int type, long length, InputStream in) throws IOException {
+            byte[] data = new byte[(int) length];
+            IO.readFully(in, data, 0, data.length);
+            return insert(type, data, 0, data.length);
+        }
+
+        /**
+         * 不支持,改写只插入单个对象;底层的PackInserter也不能解析pack
+         */
+        @Override
+        public PackParser newPackParser(InputStream in) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ObjectReader newReader() {
+            return new MemoryReader(this, delegate.newReader());
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() {
+            objects.clear();
+        }
+    }
+
+    private static final class MemoryReader extends ObjectReader {
+        private final MemoryInserter inserter;
+        private final ObjectReader delegate;
+
+        MemoryReader(MemoryInserter inserter, ObjectReader delegate) {
+            this.inserter = inserter;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ObjectReader newReader() {
+            return new MemoryReader(inserter, delegate.newReader());
+        }
+
+        @Override
+        public Collection<ObjectId> resolve(AbbreviatedObjectId id) throws IOException {
+            return delegate.resolve(id);
+        }
+
+        @Override
+        public ObjectLoader open(AnyObjectId objectId, int typeHint) throws IOException {
+            ObjectLoader loader = inserter.objects.get(objectId.toObjectId());
+            return loader != null ? loader : delegate.open(objectId, typeHint);
+        }
+
+        @Override
+        public boolean has(AnyObjectId objectId, int typeHint) throws IOException {
+            return inserter.objects.containsKey(objectId.toObjectId()) || delegate.has(objectId, typeHint);
+        }
+
+        @Override
+        public Set<ObjectId> getShallowCommits() throws IOException {
+            return delegate.getShallowCommits();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+
+    private static final class Step {
+        final StepType type;
+        final ObjectId commit;
+
+        Step(StepType type, ObjectId commit) {
+            this.type = type;
+            this.commit = commit;
+        }
+    }
+
+    private enum StepType {
+        CHERRY_PICK, REVERT, REBASE
+    }
+
+    /**
+     * 改写结果
+     */
+    public static final class Result {
+        private final Map<ObjectId, ObjectId> rewritten = new LinkedHashMap<>();
+        private ObjectId oldHead;
+        private ObjectId head;
+        private ObjectId failedStep;
+        private List<GitMergeEngine.Conflict> conflicts = Collections.emptyList();
+        private long insertedObjects;
+        private long insertedBytes;
+        private long elapsedNanos;
+
+        public boolean isSuccessful() {
+            return failedStep == null;
+        }
+
+        /**
+         * @return 改写前分支的提交
+         */
+        public ObjectId getOldHead() {
+            return oldHead;
+        }
+
+        /**
+         * @return 改写后分支的提交,失败时是null
+         */
+        public ObjectId getHead() {
+            return head;
+        }
+
+        /**
+         * @return 按执行顺序,原提交到新提交,没有变化被丢掉的对应null
+         */
+        public Map<ObjectId, ObjectId> getRewritten() {
+            return Collections.unmodifiableMap(rewritten);
+        }
+
+        /**
+         * @return 冲突的那一步的原提交
+         */
+        public ObjectId getFailedStep() {
+            return failedStep;
+        }
+
+        public List<GitMergeEngine.Conflict> getConflicts() {
+            return conflicts;
+        }
+
+        public long getInsertedObjects() {
+            return insertedObjects;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            if (!isSuccessful()) {
+                return "failed at " + failedStep.name() + " conflicts=" + conflicts + " " + getElapsedMillis() + "ms";
+            }
+            return oldHead.name() + " -> " + head.name() + " steps=" + rewritten.size()
+                    + " objects=" + insertedObjects + " " + getElapsedMillis() + "ms";
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.api.TransportConfigCallback;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+
+/**
+ * 部分克隆(blob:none等过滤条件)里缺少的对象按需从远端拉取
+ * 按对象id直接fetch,服务端要允许按id请求对象(git的uploadpack.allowAnySHA1InWant;
+ * JGit服务端用allowReachableSHA1InWant时,非提交对象还需要位图索引)
+ * 一次要用很多对象时先批量调用fetch,只走一次网络
+ */
+public class GitLazyFetcher {
+    private final Repository repository;
+    private String remote = Constants.DEFAULT_REMOTE_NAME;
+    private TransportConfigCallback transportConfigCallback;
+    private CredentialsProvider credentialsProvider;
+    private long fetchedObjects;
+    private long roundTrips;
+
+    public GitLazyFetcher(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * 从哪个远端拉取,默认origin,也可以直接是地址
+     *
+     * @param remote
+     * @return
+     */
+    public GitLazyFetcher setRemote(String remote) {
+        this.remote = remote;
+        return this;
+    }
+
+    public GitLazyFetcher setTransportConfigCallback(TransportConfigCallback transportConfigCallback) {
+        this.transportConfigCallback = transportConfigCallback;
+        return this;
+    }
+
+    public GitLazyFetcher setCredentialsProvider(CredentialsProvider credentialsProvider) {
+        this.credentialsProvider = credentialsProvider;
+        return this;
+    }
+
+    /**
+     * 拉取本地没有的对象,已有的跳过
+     *
+     * @param ids
+     * @return 实际请求的对象数
+     * @throws IOException
+     */
+    public synchronized int fetch(Collection<? extends AnyObjectId> ids) throws IOException {
+        List<RefSpec> wants = new ArrayList<>();
+        try (ObjectReader reader = repository.newObjectReader()) {
+            for (AnyObjectId id : ids) {
+                if (!reader.has(id)) {
+                    // 源是对象id、没有目标的refspec,只拉对象不建引用
+                    wants.add(new RefSpec(id.name()));
+                }
+            }
+        }
+        if (wants.isEmpty()) {
+            return 0;
+        }
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("fetch");
+             Transport transport = Transport.open(repository, remote)) {
+            if (transportConfigCallback != null) {
+                transportConfigCallback.configure(transport);
+            }
+            transport.setCredentialsProvider(credentialsProvider);
+            long before = sample.isRecording() ? GitMetrics.packBytes(repository) : 0;
+            transport.fetch(NullProgressMonitor.INSTANCE, wants);
+            if (sample.isRecording()) {
+                sample.written(wants.size(), 0).transferred(Math.max(0, GitMetrics.packBytes(repository) - before));
+            }
+            sample.done();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        fetchedObjects += wants.size();
+        roundTrips++;
+        return wants.size();
+    }
+
+    /**
+     * 读对象,本地没有时先拉取再读
+     *
+     * @param id
+     * @param typeHint 不确定时用ObjectReader.OBJ_ANY
+     * @return
+     * @throws IOException
+     */
+    public ObjectLoader open(AnyObjectId id, int typeHint) throws IOException {
+        try (ObjectReader reader = repository.newObjectReader()) {
+            try {
+                return reader.open(id, typeHint);
+            } catch (MissingObjectException e) {
+                fetch(Collections.singleton(id.copy()));
+                return reader.open(id, typeHint);
+            }
+        }
+    }
+
+    public synchronized long getFetchedObjects() {
+        return fetchedObjects;
+    }
+
+    /**
+     * @return 访问远端的次数
+     */
+    public synchronized long getRoundTrips() {
+        return roundTrips;
+    }
+}
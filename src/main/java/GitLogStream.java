@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * 流式的提交日志
+ * 不把git.log()整个收集成列表,一边遍历一边产出轻量的提交记录(id、父提交、作者、时间、短消息)
+ * RevWalk不保留提交正文,正文分批交给线程池并行解析,同时在途的批次有上限,内存占用是固定的
+ * 只看第一父提交时,每遍历N个提交就释放一次RevWalk,超长历史也不会把整个提交图留在堆里
+ */
+public class GitLogStream {
+    private final Repository repository;
+    private final List<AnyObjectId> starts = new ArrayList<>();
+    private int maxCount = -1;
+    private int batchSize = 256;
+    private int maxBatches = 4;
+    private boolean parseBody = true;
+    private boolean firstParent;
+    private int disposeEvery = 10000;
+    private Executor executor = ForkJoinPool.commonPool();
+
+    public GitLogStream(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * 从哪个提交开始,不设置就从HEAD开始
+     *
+     * @param start
+     * @return
+     */
+    public GitLogStream add(AnyObjectId start) {
+        starts.add(start);
+        return this;
+    }
+
+    public GitLogStream setMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+        return this;
+    }
+
+    /**
+     * 每批解析多少个提交正文,最多同时有多少批在途
+     *
+     * @param batchSize
+     * @param maxBatches
+     * @return
+     */
+    public GitLogStream setBuffer(int batchSize, int maxBatches) {
+        if (batchSize < 1 || maxBatches < 1) {
+            throw new IllegalArgumentException("batchSize and maxBatches must be positive");
+        }
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+        return this;
+    }
+
+    /**
+     * 不需要作者和消息时关掉,只输出id、父提交和时间,完全不读正文
+     *
+     * @param parseBody
+     * @return
+     */
+    public GitLogStream setParseBody(boolean parseBody) {
+        this.parseBody = parseBody;
+        return this;
+    }
+
+    /**
+     * 只沿着第一父提交走,等价于git log --first-parent
+     *
+     * @param firstParent
+     * @return
+     */
+    public GitLogStream setFirstParent(boolean firstParent) {
+        this.firstParent = firstParent;
+        return this;
+    }
+
+    /**
+     * 第一父提交模式下每遍历多少个提交释放一次RevWalk
+     *
+     * @param disposeEvery
+     * @return
+     */
+    public GitLogStream setDisposeEvery(int disposeEvery) {
+        this.disposeEvery = disposeEvery;
+        return this;
+    }
+
+    /**
+     * 解析正文用的线程池,默认是ForkJoinPool.commonPool()
+     *
+     * @param executor
+     * @return
+     */
+    public GitLogStream setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * 开始遍历,用完要close
+     *
+     * @return
+     * @throws IOException
+     */
+    public LogIterator call() throws IOException {
+        List<AnyObjectId> ids = new ArrayList<>(starts);
+        if (ids.isEmpty()) {
+            ObjectId head = repository.resolve(Constants.HEAD);
+            if (head != null) {
+                ids.add(head);
+            }
+        }
+        return new LogIterator(ids);
+    }
+
+    /**
+     * 以Stream的形式遍历,Stream关闭时释放RevWalk
+     *
+     * @return
+     * @throws IOException
+     */
+    public Stream<CommitInfo> stream() throws IOException {
+        LogIterator it = call();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(it::close);
+    }
+
+    /**
+     * 日志迭代器
+     * 调用hasNext时才推进RevWalk,正文解析提前几批在线程池里做
+     */
+    public final class LogIterator implements Iterator<CommitInfo>, AutoCloseable {
+        private final RevWalk walk;
+        private final ArrayDeque<CompletableFuture<List<CommitInfo>>> pending = new ArrayDeque<>();
+        private Iterator<CommitInfo> current = Collections.emptyIterator();
+        private int produced;
+        private boolean exhausted;
+        // 第一父提交模式下的下一个提交
+        private ObjectId next;
+        private int sinceDispose;
+        // 从创建到关闭算一次log操作
+        private final GitMetrics.Sample sample;
+        private boolean failed;
+
+        private LogIterator(List<AnyObjectId> ids) throws IOException {
+            walk = new RevWalk(repository);
+            sample = GitMetrics.getDefault().startDetached("log");
+            try {
+                walk.setRetainBody(false);
+                if (firstParent) {
+                    next = ids.isEmpty() ? null : ids.get(0).copy();
+                } else {
+                    for (AnyObjectId id : ids) {
+                        walk.markStart(walk.parseCommit(id));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // 起点不存在等情况,调用方拿不到迭代器,这里自己关掉
+                walk.close();
+                sample.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (!current.hasNext()) {
+                    fill();
+                    CompletableFuture<List<CommitInfo>> batch = pending.poll();
+                    if (batch == null) {
+                        return false;
+                    }
+                    current = join(batch).iterator();
+                }
+                return true;
+            } catch (RuntimeException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public CommitInfo next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void close() {
+            exhausted = true;
+            pending.clear();
+            walk.close();
+            sample.read(produced, 0);
+            if (!failed) {
+                sample.done();
+            }
+            sample.close();
+        }
+
+        private void fill() {
+            try {
+                while (!exhausted && pending.size() < maxBatches) {
+                    List<CommitInfo> batch = nextBatch();
+                    if (batch.isEmpty()) {
+                        exhausted = true;
+                        break;
+                    }
+                    if (parseBody) {
+                        pending.add(CompletableFuture.supplyAsync(() -> decode(batch), executor));
+                    } else {
+                        pending.add(CompletableFuture.completedFuture(batch));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private List<CommitInfo> nextBatch() throws IOException {
+            List<CommitInfo> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && (maxCount < 0 || produced < maxCount)) {
+                RevCommit commit = firstParent ? nextFirstParent() : walk.next();
+                if (commit == null) {
+                    break;
+                }
+                batch.add(new CommitInfo(commit));
+                produced++;
+            }
+            return batch;
+        }
+
+        private RevCommit nextFirstParent() throws IOException {
+            if (next == null) {
+                return null;
+            }
+            if (++sinceDispose > disposeEvery) {
+                // 之前解析过的提交都不再需要了
+                walk.dispose();
+                sinceDispose = 1;
+            }
+            RevCommit commit = walk.parseCommit(next);
+            next = commit.getParentCount() > 0 ? commit.getParent(0).copy() : null;
+            return commit;
+        }
+
+        private List<CommitInfo> decode(List<CommitInfo> batch) {
+            try (ObjectReader reader = repository.newObjectReader()) {
+                for (CommitInfo info : batch) {
+                    byte[] raw = reader.open(info.id, Constants.OBJ_COMMIT).getCachedBytes();
+                    RevCommit parsed = RevCommit.parse(raw);
+                    info.author = parsed.getAuthorIdent();
+                    info.shortMessage = parsed.getShortMessage();
+                }
+                return batch;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private List<CommitInfo> join(CompletableFuture<List<CommitInfo>> batch) {
+            try {
+                return batch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * 轻量的提交记录,不持有RevWalk里的对象
+     */
+    public static final class CommitInfo {
+        private final ObjectId id;
+        private final ObjectId[] parents;
+        private final int commitTime;
+        private PersonIdent author;
+        private String shortMessage;
+
+        private CommitInfo(RevCommit commit) {
+            this.id = commit.copy();
+            this.parents = new ObjectId[commit.getParentCount()];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = commit.getParent(i).copy();
+            }
+            this.commitTime = commit.getCommitTime();
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public String getName() {
+            return id.name();
+        }
+
+        public int getParentCount() {
+            return parents.length;
+        }
+
+        public ObjectId getParent(int i) {
+            return parents[i];
+        }
+
+        /**
+         * @return 提交时间,单位秒
+         */
+        public int getCommitTime() {
+            return commitTime;
+        }
+
+        /**
+         * @return 关闭正文解析时为null
+         */
+        public PersonIdent getAuthorIdent() {
+            return author;
+        }
+
+        /**
+         * @return 关闭正文解析时为null
+         */
+        public String getShortMessage() {
+            return shortMessage;
+        }
+
+        @Override
+        public String toString() {
+            return "commit " + id.name() + " " + shortMessage;
+        }
+    }
+}
@@ -0,0 +1,885 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.PackFile;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.internal.storage.file.RefDirectory;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.storage.pack.PackConfig;
+
+/**
+ * 后台仓库维护
+ * 统计松散对象、pack和松散引用的数量,超过阈值时在低优先级的后台线程里:
+ * 清理过期的不可达松散对象,把松散对象打成一个pack,按几何级数合并小pack,
+ * 打包松散引用,删除过期的reflog
+ * 写pack时限制每秒写入的字节数,避免影响前台的读写
+ * 写操作用beginWrite拿共享锁;维护只在清理不可达对象、安装新pack和改写引用、reflog时拿独占锁,
+ * 写pack这段最慢的时间里不挡写操作。开始时正在写就跳过这一轮,后面的步骤等正在进行的写操作结束
+ * 进程崩溃留下的maintenance.lock超过一定时间后当作失效,下次维护时清掉
+ * 只支持文件仓库
+ */
+public class GitMaintenance implements AutoCloseable {
+    // 正在写或维护的仓库的锁,没人用时删掉
+    private static final Map<String, RepositoryLock> LOCKS = new ConcurrentHashMap<>();
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    // 安装pack、改写引用前等正在进行的写操作结束,最多等这么久,超时这一步留到下一轮
+    private static final long EXCLUSIVE_WAIT_MILLIS = 10 * 1000L;
+
+    private final ScheduledExecutorService executor;
+    private final Map<Repository, ScheduledFuture<?>> scheduled = new ConcurrentHashMap<>();
+    private int looseObjectLimit = 6700;
+    private int looseRefLimit = 100;
+    private int geometricFactor = 2;
+    private long bytesPerSecond;
+    private long reflogExpireMillis = 90 * DAY;
+    private long pruneExpireMillis = 14 * DAY;
+    private long staleLockMillis = DAY / 2;
+
+    public GitMaintenance() {
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "git-maintenance");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = pool;
+    }
+
+    /**
+     * 松散对象超过这个数量时打成pack,默认和git的gc.auto一样是6700
+     *
+     * @param looseObjectLimit
+     * @return
+     */
+    public GitMaintenance setLooseObjectLimit(int looseObjectLimit) {
+        this.looseObjectLimit = looseObjectLimit;
+        return this;
+    }
+
+    /**
+     * 松散引用超过这个数量时写进packed-refs
+     *
+     * @param looseRefLimit
+     * @return
+     */
+    public GitMaintenance setLooseRefLimit(int looseRefLimit) {
+        this.looseRefLimit = looseRefLimit;
+        return this;
+    }
+
+    /**
+     * 几何合并的倍数,合并后每个pack的对象数至少是比它小的所有pack之和的这么多倍
+     *
+     * @param geometricFactor
+     * @return
+     */
+    public GitMaintenance setGeometricFactor(int geometricFactor) {
+        if (geometricFactor < 2) {
+            throw new IllegalArgumentException("geometricFactor must be at least 2");
+        }
+        this.geometricFactor = geometricFactor;
+        return this;
+    }
+
+    /**
+     * 写pack的速度上限
+     *
+     * @param bytesPerSecond 0表示不限制
+     * @return
+     */
+    public GitMaintenance setIoLimit(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * reflog保留多久,默认90天,0表示不删除
+     *
+     * @param reflogExpireMillis
+     * @return
+     */
+    public GitMaintenance setReflogExpire(long reflogExpireMillis) {
+        this.reflogExpireMillis = reflogExpireMillis;
+        return this;
+    }
+
+    /**
+     * 不可达的松散对象保留多久,默认14天,小于0表示不清理
+     *
+     * @param pruneExpireMillis
+     * @return
+     */
+    public GitMaintenance setPruneExpire(long pruneExpireMillis) {
+        this.pruneExpireMillis = pruneExpireMillis;
+        return this;
+    }
+
+    /**
+     * maintenance.lock超过这么久没有更新时当作维护进程已经崩溃,清掉后继续,默认12小时
+     * 维护期间每一步开始前都会更新锁文件的修改时间
+     *
+     * @param staleLockMillis
+     * @return
+     */
+    public GitMaintenance setStaleLockAge(long staleLockMillis) {
+        this.staleLockMillis = staleLockMillis;
+        return this;
+    }
+
+    /**
+     * 定期检查一个仓库,需要时维护
+     *
+     * @param repository
+     * @param periodMillis
+     */
+    public void register(Repository repository, long periodMillis) {
+        ScheduledFuture<?> old = scheduled.put(repository, executor.scheduleWithFixedDelay(() -> {
+            try {
+                maintain(repository);
+            } catch (IOException | RuntimeException e) {
+                // 下一轮再试,异常抛出去定时任务就不再执行了
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS));
+        if (old != null) {
+            old.cancel(false);
+        }
+    }
+
+    public void unregister(Repository repository) {
+        ScheduledFuture<?> future = scheduled.remove(repository);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * 马上在后台线程里维护一次
+     *
+     * @param repository
+     * @return
+     */
+    public CompletableFuture<Report> runNow(Repository repository) {
+        CompletableFuture<Report> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(maintain(repository));
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 写操作开始前调用,结束时关闭,期间维护不会清理对象、安装pack或改写引用
+     * 多个写操作之间不互斥,等锁的时间记到当前线程的GitMetrics采样上
+     *
+     * @param repository
+     * @return
+     */
+    public static WriteGuard beginWrite(Repository repository) {
+        String key = lockKey(repository);
+        ReadWriteLock lock = acquireLock(key);
+        long start = System.nanoTime();
+        lock.readLock().lock();
+        GitMetrics.current().lockWait(System.nanoTime() - start);
+        return () -> {
+            lock.readLock().unlock();
+            releaseLock(key);
+        };
+    }
+
+    /**
+     * 写操作持有的锁
+     */
+    public interface WriteGuard extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static String lockKey(Repository repository) {
+        return repository.getDirectory().getAbsolutePath();
+    }
+
+    /**
+     * 拿到仓库的锁并记一个使用者,用完要releaseLock,同一个仓库同时在用的都是同一把锁
+     */
+    private static ReadWriteLock acquireLock(String key) {
+        return LOCKS.compute(key, (k, lock) -> {
+            RepositoryLock result = lock != null ? lock : new RepositoryLock();
+            result.users++;
+            return result;
+        }).lock;
+    }
+
+    private static void releaseLock(String key) {
+        LOCKS.computeIfPresent(key, (k, lock) -> --lock.users == 0 ? null : lock);
+    }
+
+    /**
+     * users只在LOCKS的compute里读写
+     */
+    private static final class RepositoryLock {
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        int users;
+    }
+
+    /**
+     * 统计仓库当前的状态,只扫描目录,不打开pack
+     *
+     * @param repository
+     * @return
+     */
+    public static Stats scan(Repository repository) {
+        Stats stats = new Stats();
+        File objects = new File(repository.getDirectory(), "objects");
+        File[] fanout = objects.listFiles((dir, name) -> name.length() == 2);
+        if (fanout != null) {
+            for (File dir : fanout) {
+                File[] files = dir.listFiles((d, name) -> name.length() == Constants.OBJECT_ID_STRING_LENGTH - 2);
+                if (files != null) {
+                    stats.looseObjects += files.length;
+                    for (File file : files) {
+                        stats.looseBytes += file.length();
+                    }
+                }
+            }
+        }
+        File[] packs = new File(objects, "pack").listFiles((dir, name) -> name.endsWith(".pack"));
+        stats.packs = packs == null ? 0 : packs.length;
+        stats.looseRefs = countFiles(new File(repository.getDirectory(), Constants.R_REFS));
+        return stats;
+    }
+
+    private static int countFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File file : files) {
+            count += file.isDirectory() ? countFiles(file) : 1;
+        }
+        return count;
+    }
+
+    /**
+     * 在当前线程里维护一次,开始时正在写就跳过
+     *
+     * @param repository
+     * @return
+     * @throws IOException
+     */
+    public Report maintain(Repository repository) throws IOException {
+        if (!(repository instanceof FileRepository)) {
+            throw new IllegalArgumentException("Only file repositories are supported");
+        }
+        String key = lockKey(repository);
+        ReadWriteLock lock = acquireLock(key);
+        try {
+            return maintain(repository, lock);
+        } finally {
+            releaseLock(key);
+        }
+    }
+
+    private Report maintain(Repository repository, ReadWriteLock lock) throws IOException {
+        long start = System.nanoTime();
+        Report report = new Report();
+        // 跨进程的互斥,别的进程在维护时也跳过
+        File lockFile = new File(repository.getDirectory(), "maintenance.lock");
+        LockFile processLock = new LockFile(new File(repository.getDirectory(), "maintenance"));
+        if (!lockProcess(processLock, lockFile)) {
+            report.skipped = true;
+            return report;
+        }
+        try {
+            FileRepository fileRepository = (FileRepository) repository;
+            GC gc = new GC(fileRepository);
+            // 清理时不能有写操作,否则刚写入还没被引用的对象可能被删掉
+            if (!lock.writeLock().tryLock()) {
+                report.skipped = true;
+                return report;
+            }
+            try {
+                report.before = scan(repository);
+                if (pruneExpireMillis >= 0 && report.before.looseObjects > 0) {
+                    // 先清理不可达的对象,免得被打进pack里再也删不掉
+                    gc.setExpireAgeMillis(pruneExpireMillis);
+                    try {
+                        gc.prune(Collections.emptySet());
+                    } catch (ParseException e) {
+                        throw new IOException(e);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (report.before.looseObjects > looseObjectLimit) {
+                lockFile.setLastModified(System.currentTimeMillis());
+                report.packedObjects = packLooseObjects(fileRepository, lock, gc);
+            }
+            lockFile.setLastModified(System.currentTimeMillis());
+            report.mergedPacks = mergePacks(fileRepository, lock);
+            lockFile.setLastModified(System.currentTimeMillis());
+            if (repository.getRefDatabase() instanceof GitReftableDatabase) {
+                // reftable没有松散引用,把叠起来的表合成一张
+                report.packedRefs = exclusive(lock, ((GitReftableDatabase) repository.getRefDatabase())::compact);
+            } else if (report.before.looseRefs > looseRefLimit) {
+                report.packedRefs = exclusive(lock, () -> packRefs(repository));
+            }
+            if (reflogExpireMillis > 0) {
+                File logs = new File(repository.getDirectory(), Constants.LOGS);
+                long cutoff = System.currentTimeMillis() - reflogExpireMillis;
+                report.expiredReflogEntries = exclusive(lock,
+                        () -> expireReflogs(repository.getDirectory(), logs, logs, cutoff));
+            }
+            report.after = scan(repository);
+        } finally {
+            processLock.unlock();
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * 拿跨进程的维护锁,锁文件太久没更新时当作崩溃留下的,挪开后再拿一次
+     * 挪开后发现是刚建的(别的进程抢先清掉旧锁又拿到了),放回去并跳过
+     */
+    private boolean lockProcess(LockFile processLock, File lockFile) throws IOException {
+        if (processLock.lock()) {
+            return true;
+        }
+        long modified = lockFile.lastModified();
+        if (modified == 0 || System.currentTimeMillis() - modified < staleLockMillis) {
+            return false;
+        }
+        File stale = new File(lockFile.getPath() + ".stale-" + System.nanoTime());
+        try {
+            Files.move(lockFile.toPath(), stale.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            return false;
+        }
+        if (System.currentTimeMillis() - stale.lastModified() < staleLockMillis) {
+            Files.move(stale.toPath(), lockFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return false;
+        }
+        Files.deleteIfExists(stale.toPath());
+        return processLock.lock();
+    }
+
+    /**
+     * 维护中要和写操作互斥的一步
+     */
+    private interface Step {
+        int run() throws IOException;
+    }
+
+    /**
+     * 等正在进行的写操作结束后拿独占锁执行,超时返回0,这一步留到下一轮
+     */
+    private static int exclusive(ReadWriteLock lock, Step step) throws IOException {
+        try {
+            if (!lock.writeLock().tryLock(EXCLUSIVE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return 0;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        try {
+            return step.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static int packRefs(Repository repository) throws IOException {
+        List<String> refs = new ArrayList<>();
+        repository.getRefDatabase().getRefsByPrefix(Constants.R_REFS).forEach(ref -> {
+            if (!ref.isSymbolic() && ref.getStorage().isLoose()) {
+                refs.add(ref.getName());
+            }
+        });
+        ((RefDirectory) repository.getRefDatabase()).pack(refs);
+        return refs.size();
+    }
+
+    /**
+     * 所有松散对象写进一个新pack,装好后由prunePacked删除松散文件
+     */
+    private int packLooseObjects(FileRepository repository, ReadWriteLock lock, GC gc) throws IOException {
+        ObjectDirectory odb = repository.getObjectDatabase();
+        List<ObjectId> ids = new ArrayList<>();
+        File[] fanout = odb.getDirectory().listFiles((dir, name) -> name.length() == 2);
+        if (fanout != null) {
+            for (File dir : fanout) {
+                String[] names = dir.list();
+                if (names == null) {
+                    continue;
+                }
+                for (String name : names) {
+                    String hex = dir.getName() + name;
+                    if (ObjectId.isId(hex)) {
+                        ids.add(ObjectId.fromString(hex));
+                    }
+                }
+            }
+        }
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        PendingPack pack = writePack(repository, ids);
+        try {
+            return exclusive(lock, () -> {
+                pack.install(odb);
+                gc.prunePacked();
+                return ids.size();
+            });
+        } finally {
+            pack.discard();
+        }
+    }
+
+    /**
+     * 按几何级数选出要合并的小pack,和git repack --geometric的选法一样
+     *
+     * @return 合并掉的pack数
+     */
+    private int mergePacks(FileRepository repository, ReadWriteLock lock) throws IOException {
+        ObjectDirectory odb = repository.getObjectDatabase();
+        List<PackFile> packs = new ArrayList<>();
+        for (PackFile pack : odb.getPacks()) {
+            if (!pack.shouldBeKept()) {
+                packs.add(pack);
+            }
+        }
+        if (packs.size() < 2) {
+            return 0;
+        }
+        long[] counts = new long[packs.size()];
+        packs.sort((a, b) -> Long.compare(objectCount(a), objectCount(b)));
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = objectCount(packs.get(i));
+        }
+        // 从大到小找第一个不满足倍数关系的位置,它和比它小的都要合并
+        int split = 0;
+        for (int i = counts.length - 1; i > 0; i--) {
+            if (counts[i] < geometricFactor * counts[i - 1]) {
+                split = i + 1;
+                break;
+            }
+        }
+        long total = 0;
+        for (int i = 0; i < split; i++) {
+            total += counts[i];
+        }
+        // 合并后的pack可能又比后面的大,继续往后吞
+        while (split < counts.length && counts[split] < geometricFactor * total) {
+            total += counts[split];
+            split++;
+        }
+        if (split < 2) {
+            return 0;
+        }
+
+        List<PackFile> merged = packs.subList(0, split);
+        List<ObjectId> ids = new ArrayList<>();
+        for (PackFile pack : merged) {
+            for (PackIndex.MutableEntry entry : pack) {
+                ids.add(entry.toObjectId());
+            }
+        }
+        PendingPack pending = writePack(repository, ids);
+        try {
+            return exclusive(lock, () -> {
+                pending.install(odb);
+                // 新pack已经可见,再删旧的
+                for (PackFile pack : merged) {
+                    File packFile = pack.getPackFile();
+                    pack.close();
+                    String base = packFile.getPath().substring(0, packFile.getPath().length() - ".pack".length());
+                    for (String ext : new String[]{".bitmap", ".idx", ".pack"}) {
+                        Files.deleteIfExists(new File(base + ext).toPath());
+                    }
+                }
+                return merged.size();
+            });
+        } finally {
+            pending.discard();
+        }
+    }
+
+    private static long objectCount(PackFile pack) {
+        try {
+            return pack.getIndex().getObjectCount();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 用PackWriter把对象写到临时文件,已有pack里的delta直接复用;不拿锁,写完由PendingPack.install装上
+     */
+    private PendingPack writePack(FileRepository repository, List<ObjectId> ids) throws IOException {
+        File packDir = repository.getObjectDatabase().getPackDirectory();
+        PackConfig config = new PackConfig(repository);
+        // 维护只做增量合并,不生成位图
+        config.setBuildBitmaps(false);
+        try (ObjectReader reader = repository.newObjectReader();
+             ObjectWalk walk = new ObjectWalk(reader);
+             PackWriter writer = new PackWriter(config, reader)) {
+            writer.preparePack(lookup(repository, walk, ids).iterator());
+
+            File tmpPack = File.createTempFile("maintenance_", ".pack_tmp", packDir);
+            File tmpIdx = new File(tmpPack.getPath().replace(".pack_tmp", ".idx_tmp"));
+            PendingPack pending = new PendingPack(tmpPack, tmpIdx);
+            boolean written = false;
+            try {
+                try (OutputStream out = new ThrottledOutputStream(new FileOutputStream(tmpPack), bytesPerSecond)) {
+                    writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, out);
+                }
+                try (OutputStream out = new FileOutputStream(tmpIdx)) {
+                    writer.writeIndex(out);
+                }
+                pending.name = "pack-" + writer.computeName().name();
+                written = true;
+                return pending;
+            } finally {
+                if (!written) {
+                    pending.discard();
+                }
+            }
+        }
+    }
+
+    /**
+     * 对象类型从所有引用出发的ObjectWalk里得到,blob不用解压;
+     * 遍历完还没找到的(只在索引里或者不可达的)才打开对象读类型
+     */
+    private static List<RevObject> lookup(Repository repository, ObjectWalk walk, List<ObjectId> ids)
+            throws IOException {
+        Set<ObjectId> wanted = new HashSet<>(ids);
+        List<RevObject> objects = new ArrayList<>(ids.size());
+        for (Ref ref : repository.getRefDatabase().getRefs()) {
+            if (ref.getObjectId() == null) {
+                continue;
+            }
+            try {
+                walk.markStart(walk.parseAny(ref.getObjectId()));
+            } catch (MissingObjectException e) {
+                // 引用指向的对象不在了,不从它开始
+            }
+        }
+        RevCommit commit;
+        while (!wanted.isEmpty() && (commit = walk.next()) != null) {
+            if (wanted.remove(commit)) {
+                objects.add(commit);
+            }
+        }
+        RevObject object;
+        while (!wanted.isEmpty() && (object = walk.nextObject()) != null) {
+            if (wanted.remove(object)) {
+                objects.add(object);
+            }
+        }
+        for (ObjectId id : wanted) {
+            objects.add(walk.lookupAny(id, walk.getObjectReader().open(id).getType()));
+        }
+        return objects;
+    }
+
+    /**
+     * 写好还没装上的pack
+     */
+    private static final class PendingPack {
+        private final File tmpPack;
+        private final File tmpIdx;
+        private String name;
+
+        PendingPack(File tmpPack, File tmpIdx) {
+            this.tmpPack = tmpPack;
+            this.tmpIdx = tmpIdx;
+        }
+
+        /**
+         * 改成正式的文件名,之后对读者可见
+         */
+        void install(ObjectDirectory odb) throws IOException {
+            File pack = new File(odb.getPackDirectory(), name + ".pack");
+            File idx = new File(odb.getPackDirectory(), name + ".idx");
+            if (!pack.exists()) {
+                tmpPack.setReadOnly();
+                tmpIdx.setReadOnly();
+                Files.move(tmpPack.toPath(), pack.toPath());
+                Files.move(tmpIdx.toPath(), idx.toPath());
+                odb.openPack(pack);
+            }
+        }
+
+        /**
+         * 删掉没装上的临时文件
+         */
+        void discard() throws IOException {
+            Files.deleteIfExists(tmpPack.toPath());
+            Files.deleteIfExists(tmpIdx.toPath());
+        }
+    }
+
+    /**
+     * 删掉所有reflog里早于cutoff的记录
+     * 先锁住对应的引用,更新引用时也要拿这个锁才能追加reflog,读和写之间不会漏掉新记录;
+     * 引用正在更新时跳过
+     *
+     * @return 删掉的记录数
+     */
+    private static int expireReflogs(File gitDir, File logs, File dir, long cutoff) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int expired = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                expired += expireReflogs(gitDir, logs, file, cutoff);
+                continue;
+            }
+            if (file.getName().endsWith(".lock")) {
+                continue;
+            }
+            String refName = logs.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+            LockFile refLock = new LockFile(new File(gitDir, refName));
+            if (!refLock.lock()) {
+                continue;
+            }
+            try {
+                List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+                StringBuilder kept = new StringBuilder();
+                int removed = 0;
+                for (String line : lines) {
+                    if (entryTime(line) < cutoff) {
+                        removed++;
+                    } else {
+                        kept.append(line).append('\n');
+                    }
+                }
+                if (removed == 0) {
+                    continue;
+                }
+                LockFile lock = new LockFile(file);
+                if (!lock.lock()) {
+                    continue;
+                }
+                try {
+                    lock.write(kept.toString().getBytes(StandardCharsets.UTF_8));
+                    if (lock.commit()) {
+                        expired += removed;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                refLock.unlock();
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * reflog一行的格式: 旧值 新值 名字 <邮箱> 秒数 时区\t说明
+     */
+    private static long entryTime(String line) {
+        int tab = line.indexOf('\t');
+        String head = tab < 0 ? line : line.substring(0, tab);
+        String[] parts = head.split(" ");
+        try {
+            return Long.parseLong(parts[parts.length - 2]) * 1000;
+        } catch (RuntimeException e) {
+            // 格式不对的行保留
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 限速输出流,平均写入速度不超过上限
+     */
+    private static final class ThrottledOutputStream extends FilterOutputStream {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long written;
+
+        ThrottledOutputStream(OutputStream out, long bytesPerSecond) {
+            super(out);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            throttle(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            throttle(len);
+        }
+
+        private void throttle(int len) throws IOException {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            written += len;
+            long expectedNanos = written * 1000000000L / bytesPerSecond;
+            long sleepMillis = (expectedNanos - (System.nanoTime() - start)) / 1000000;
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * 仓库的状态
+     */
+    public static final class Stats {
+        private int looseObjects;
+        private long looseBytes;
+        private int packs;
+        private int looseRefs;
+
+        public int getLooseObjects() {
+            return looseObjects;
+        }
+
+        public long getLooseBytes() {
+            return looseBytes;
+        }
+
+        public int getPacks() {
+            return packs;
+        }
+
+        public int getLooseRefs() {
+            return looseRefs;
+        }
+
+        @Override
+        public String toString() {
+            return "looseObjects=" + looseObjects + " packs=" + packs + " looseRefs=" + looseRefs;
+        }
+    }
+
+    /**
+     * 一次维护的结果
+     */
+    public static final class Report {
+        private boolean skipped;
+        private Stats before;
+        private Stats after;
+        private int packedObjects;
+        private int mergedPacks;
+        private int packedRefs;
+        private int expiredReflogEntries;
+        private long elapsedNanos;
+
+        /**
+         * @return 正在写或者别的进程在维护,这一轮没有做
+         */
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        public Stats getBefore() {
+            return before;
+        }
+
+        public Stats getAfter() {
+            return after;
+        }
+
+        /**
+         * @return 打进pack的松散对象数
+         */
+        public int getPackedObjects() {
+            return packedObjects;
+        }
+
+        /**
+         * @return 被合并掉的pack数
+         */
+        public int getMergedPacks() {
+            return mergedPacks;
+        }
+
+        /**
+         * @return 打包的松散引用数,reftable仓库是合并掉的表数
+         */
+        public int getPackedRefs() {
+            return packedRefs;
+        }
+
+        public int getExpiredReflogEntries() {
+            return expiredReflogEntries;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            if (skipped) {
+                return "skipped";
+            }
+            return before + " -> " + after + " packedObjects=" + packedObjects + " mergedPacks=" + mergedPacks
+                    + " packedRefs=" + packedRefs + " expiredReflogEntries=" + expiredReflogEntries;
+        }
+    }
+}
@@ -0,0 +1,709 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.merge.MergeAlgorithm;
+import org.eclipse.jgit.merge.MergeChunk;
+import org.eclipse.jgit.merge.MergeFormatter;
+import org.eclipse.jgit.merge.MergeResult;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.NameConflictTreeWalk;
+
+/**
+ * 不用工作区的合并
+ * 先在提交图上找合并基,再把合并基、我方、对方三棵树按目录一起遍历:
+ * 只有一方改过的文件和子树直接用那一方的id,整棵没变的子树不会展开;
+ * 两边都改过的文本文件在线程池里并行做三方合并,全部完成后从下往上写树
+ * 冲突以结构化数据返回,包括冲突类型和冲突的行区间,有冲突时不写任何对象
+ * probe只判断能不能干净合并,不往对象库里写东西
+ * 有多个合并基时(交叉合并)只用第一个,结果可能比git的recursive策略多出冲突
+ */
+public class GitMergeEngine {
+    private final Repository repository;
+    private Executor executor = ForkJoinPool.commonPool();
+    private GitCommitGraph commitGraph;
+    private GitBlobCache blobCache;
+    private int maxFileSize = 8 * 1024 * 1024;
+    private PersonIdent committer;
+
+    public GitMergeEngine(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * 文件内容合并用的线程池,默认是ForkJoinPool.commonPool()
+     *
+     * @param executor
+     * @return
+     */
+    public GitMergeEngine setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * 设置后合并基从提交图上查,两个提交都在图里时不用解压提交对象
+     *
+     * @param commitGraph
+     * @return
+     */
+    public GitMergeEngine setCommitGraph(GitCommitGraph commitGraph) {
+        this.commitGraph = commitGraph;
+        return this;
+    }
+
+    /**
+     * 设置后合并时读的文件内容走blob缓存
+     *
+     * @param blobCache
+     * @return
+     */
+    public GitMergeEngine setBlobCache(GitBlobCache blobCache) {
+        this.blobCache = blobCache;
+        return this;
+    }
+
+    /**
+     * 超过这个大小的文件两边都改过时不做内容合并,直接算冲突
+     *
+     * @param maxFileSize
+     * @return
+     */
+    public GitMergeEngine setMaxFileSize(int maxFileSize) {
+        this.maxFileSize = maxFileSize;
+        return this;
+    }
+
+    /**
+     * mergeBranch生成的合并提交的作者和提交者,默认从仓库配置读
+     *
+     * @param committer
+     * @return
+     */
+    public GitMergeEngine setCommitter(PersonIdent committer) {
+        this.committer = committer;
+        return this;
+    }
+
+    /**
+     * 合并两个提交,干净时把合并结果的树写进对象库
+     *
+     * @param ours
+     * @param theirs
+     * @return
+     * @throws IOException
+     */
+    public Result merge(AnyObjectId ours, AnyObjectId theirs) throws IOException {
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("merge");
+             ObjectInserter inserter = repository.newObjectInserter()) {
+            Result result = merge(ours, theirs, inserter);
+            inserter.flush();
+            sample.done();
+            return result;
+        }
+    }
+
+    /**
+     * 判断能不能干净合并,不写任何对象
+     * 干净时结果里也有合并后的树id,和真正合并得到的一样
+     *
+     * @param ours
+     * @param theirs
+     * @return
+     * @throws IOException
+     */
+    public Result probe(AnyObjectId ours, AnyObjectId theirs) throws IOException {
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("merge-probe");
+             ObjectInserter formatter = new IdOnlyInserter()) {
+            Result result = merge(ours, theirs, formatter);
+            sample.done();
+            return result;
+        }
+    }
+
+    /**
+     * 把提交合并进分支,等价于git merge --no-ff,干净时生成合并提交并原子地更新分支
+     * 不碰工作区和索引,分支正被检出时要自己再用GitParallelCheckout检出新提交
+     *
+     * @param branch  短名称
+     * @param theirs
+     * @param message 合并提交的信息
+     * @return 有冲突或者对方已经合并过时不生成提交
+     * @throws IOException 分支不存在,或者在合并期间被别人改过
+     */
+    public Result mergeBranch(String branch, AnyObjectId theirs, String message) throws IOException {
+        String refName = Constants.R_HEADS + branch;
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("merge");
+             ObjectInserter inserter = repository.newObjectInserter()) {
+            Ref ref = repository.exactRef(refName);
+            if (ref == null || ref.getObjectId() == null) {
+                throw new IOException("Branch " + branch + " not found");
+            }
+            ObjectId ours = ref.getObjectId();
+            Result result = merge(ours, theirs, inserter);
+            if (!result.isClean() || result.isAlreadyMerged()) {
+                sample.done();
+                return result;
+            }
+            CommitBuilder builder = new CommitBuilder();
+            builder.setTreeId(result.tree);
+            builder.setParentIds(ours, theirs);
+            PersonIdent ident = committer != null ? committer : new PersonIdent(repository);
+            builder.setAuthor(ident);
+            builder.setCommitter(ident);
+            builder.setMessage(message);
+            ObjectId commitId = inserter.insert(builder);
+            RefUpdate.Result updated;
+            GitMaintenance.WriteGuard guard = GitMaintenance.beginWrite(repository);
+            try {
+                inserter.flush();
+                RefUpdate update = repository.updateRef(refName);
+                update.setNewObjectId(commitId);
+                update.setExpectedOldObjectId(ours);
+                update.setRefLogMessage("merge " + theirs.name() + ": Merge made by the 'in-core' strategy.", false);
+                updated = update.update();
+            } finally {
+                guard.close();
+            }
+            if (updated != RefUpdate.Result.FAST_FORWARD && updated != RefUpdate.Result.FORCED) {
+                throw new IOException("Could not update " + refName + ": " + updated);
+            }
+            result.commit = commitId;
+            sample.done();
+            return result;
+        }
+    }
+
+    /**
+     * 按指定的合并基合并三棵树,cherry-pick和revert用
+     * 内容合并的线程用reader.newReader()读对象,能读到reader能读到的所有对象
+     *
+     * @param baseTree  为null时当作空树
+     * @param oursTree
+     * @param theirsTree
+     * @param reader
+     * @param inserter  干净时合并结果写到这里,不会flush
+     * @return 结果里没有合并基提交
+     * @throws IOException
+     */
+    public Result mergeTrees(AnyObjectId baseTree, AnyObjectId oursTree, AnyObjectId theirsTree,
+                             ObjectReader reader, ObjectInserter inserter) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        resolve(result, baseTree == null ? null : baseTree.copy(), oursTree.copy(), theirsTree.copy(), reader, inserter);
+        result.conflicts.sort(Comparator.comparing(Conflict::getPath));
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private Result merge(AnyObjectId oursId, AnyObjectId theirsId, ObjectInserter inserter) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        try (ObjectReader reader = repository.newObjectReader();
+             RevWalk walk = new RevWalk(reader)) {
+            RevCommit ours = walk.parseCommit(oursId);
+            RevCommit theirs = walk.parseCommit(theirsId);
+            result.mergeBases = mergeBases(reader, ours, theirs);
+            ObjectId base = result.mergeBases.isEmpty() ? null : result.mergeBases.get(0);
+            if (base != null && base.equals(theirs)) {
+                result.alreadyMerged = true;
+                result.tree = ours.getTree().copy();
+            } else {
+                ObjectId baseTree = base == null ? null : walk.parseCommit(base).getTree().copy();
+                resolve(result, baseTree, ours.getTree(), theirs.getTree(), reader, inserter);
+            }
+        }
+        result.conflicts.sort(Comparator.comparing(Conflict::getPath));
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void resolve(Result result, ObjectId baseTree, ObjectId oursTree, ObjectId theirsTree,
+                         ObjectReader reader, ObjectInserter inserter) throws IOException {
+        Dir root = walk(reader, baseTree, oursTree, theirsTree, result);
+        if (result.conflicts.isEmpty()) {
+            ObjectId tree = write(root, inserter);
+            result.tree = tree != null ? tree : inserter.insert(new TreeFormatter());
+        }
+    }
+
+    private List<ObjectId> mergeBases(ObjectReader reader, RevCommit ours, RevCommit theirs) throws IOException {
+        if (commitGraph != null && commitGraph.contains(ours) && commitGraph.contains(theirs)) {
+            return commitGraph.mergeBases(ours, theirs);
+        }
+        List<ObjectId> bases = new ArrayList<>();
+        try (RevWalk walk = new RevWalk(reader)) {
+            walk.setRevFilter(RevFilter.MERGE_BASE);
+            walk.markStart(walk.parseCommit(ours));
+            walk.markStart(walk.parseCommit(theirs));
+            for (RevCommit base; (base = walk.next()) != null; ) {
+                bases.add(base.copy());
+            }
+        }
+        return bases;
+    }
+
+    /**
+     * 三棵树一起遍历,只展开两边都改过的子树,两边都改过的文件交给线程池
+     */
+    private Dir walk(ObjectReader reader, ObjectId baseTree, ObjectId oursTree, ObjectId theirsTree, Result result)
+            throws IOException {
+        Dir root = new Dir(null);
+        List<Entry> pending = new ArrayList<>();
+        ArrayDeque<Dir> stack = new ArrayDeque<>();
+        stack.push(root);
+        try (NameConflictTreeWalk tw = new NameConflictTreeWalk(reader)) {
+            if (baseTree != null) {
+                tw.addTree(baseTree);
+            } else {
+                tw.addTree(new EmptyTreeIterator());
+            }
+            tw.addTree(oursTree);
+            tw.addTree(theirsTree);
+            tw.setRecursive(false);
+            while (tw.next()) {
+                while (stack.size() > tw.getDepth() + 1) {
+                    stack.pop();
+                }
+                Dir dir = stack.peek();
+                int mb = tw.getRawMode(0);
+                int mo = tw.getRawMode(1);
+                int mt = tw.getRawMode(2);
+                ObjectId idb = tw.getObjectId(0);
+                ObjectId ido = tw.getObjectId(1);
+                ObjectId idt = tw.getObjectId(2);
+                byte[] name = name(tw.getRawPath());
+
+                if (mo == mt && ido.equals(idt)) {
+                    dir.add(name, mo, ido);
+                } else if (mo == mb && ido.equals(idb)) {
+                    dir.add(name, mt, idt);
+                } else if (mt == mb && idt.equals(idb)) {
+                    dir.add(name, mo, ido);
+                } else if (isTree(mo) && isTree(mt) || isTree(mb) && (isTree(mo) && mt == 0 || mo == 0 && isTree(mt))) {
+                    // 两边都改了这个目录,或者一边删了目录一边改了里面的文件,展开逐个文件比较
+                    Dir sub = new Dir(name);
+                    dir.entries.add(new Entry(name, FileMode.TREE.getBits(), null, sub));
+                    stack.push(sub);
+                    tw.enterSubtree();
+                } else if (mo == 0 || mt == 0) {
+                    result.conflict(tw.getPathString(), ConflictType.MODIFY_DELETE, mb, idb, ido, idt);
+                } else if (isTree(mo) || isTree(mt)) {
+                    result.conflict(tw.getPathString(), ConflictType.DIRECTORY_FILE, mb, idb, ido, idt);
+                } else if (isFile(mo) && isFile(mt) && (mb == 0 || isFile(mb))) {
+                    int mode = mo == mt ? mo : mb == mo ? mt : mb == mt ? mo : -1;
+                    if (mode < 0) {
+                        result.conflict(tw.getPathString(), ConflictType.MODE, mb, idb, ido, idt);
+                    } else if (ido.equals(idt)) {
+                        dir.add(name, mode, ido);
+                    } else {
+                        Entry entry = new Entry(name, mode, null, null);
+                        String path = tw.getPathString();
+                        ObjectId base = mb == 0 ? null : idb;
+                        ObjectReader taskReader = reader.newReader();
+                        entry.content = CompletableFuture.supplyAsync(
+                                () -> mergeContent(taskReader, path, base, ido, idt), executor);
+                        dir.entries.add(entry);
+                        pending.add(entry);
+                    }
+                } else {
+                    // 符号链接、子模块两边改成了不同的值
+                    result.conflict(tw.getPathString(), ConflictType.CONTENT, mb, idb, ido, idt);
+                }
+            }
+        }
+        for (Entry entry : pending) {
+            ContentMerge merged = join(entry.content);
+            if (merged.conflict != null) {
+                result.conflicts.add(merged.conflict);
+            } else {
+                entry.data = merged.data;
+            }
+        }
+        return root;
+    }
+
+    private ContentMerge mergeContent(ObjectReader plain, String path, ObjectId base, ObjectId ours, ObjectId theirs) {
+        try (ObjectReader reader = blobCache != null ? blobCache.newReader(plain) : plain) {
+            byte[] b = base == null ? new byte[0] : read(reader, base);
+            byte[] o = read(reader, ours);
+            byte[] t = read(reader, theirs);
+            ContentMerge merged = new ContentMerge();
+            if (b == null || o == null || t == null || RawText.isBinary(b) || RawText.isBinary(o) || RawText.isBinary(t)) {
+                merged.conflict = new Conflict(path, ConflictType.BINARY, base, ours, theirs);
+                return merged;
+            }
+            MergeResult<RawText> result = new MergeAlgorithm(
+                    DiffAlgorithm.getAlgorithm(DiffAlgorithm.SupportedAlgorithm.HISTOGRAM))
+                    .merge(RawTextComparator.DEFAULT, new RawText(b), new RawText(o), new RawText(t));
+            if (result.containsConflicts()) {
+                Conflict conflict = new Conflict(path, ConflictType.CONTENT, base, ours, theirs);
+                Region region = null;
+                for (MergeChunk chunk : result) {
+                    if (chunk.getConflictState() == MergeChunk.ConflictState.FIRST_CONFLICTING_RANGE) {
+                        region = new Region(chunk.getBegin(), chunk.getEnd());
+                        conflict.regions.add(region);
+                    } else if (chunk.getConflictState() == MergeChunk.ConflictState.NEXT_CONFLICTING_RANGE
+                            && region != null) {
+                        region.theirsStart = chunk.getBegin();
+                        region.theirsEnd = chunk.getEnd();
+                    }
+                }
+                merged.conflict = conflict;
+                return merged;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(o.length, t.length));
+            new MergeFormatter().formatMerge(out, result, Arrays.asList("BASE", "OURS", "THEIRS"),
+                    StandardCharsets.UTF_8);
+            merged.data = out.toByteArray();
+            return merged;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] name(byte[] path) {
+        int slash = path.length - 1;
+        while (slash >= 0 && path[slash] != '/') {
+            slash--;
+        }
+        return Arrays.copyOfRange(path, slash + 1, path.length);
+    }
+
+    /**
+     * @return 超过大小上限时返回null
+     */
+    private byte[] read(ObjectReader reader, ObjectId id) throws IOException {
+        ObjectLoader loader = reader.open(id, Constants.OBJ_BLOB);
+        if (loader.getSize() > maxFileSize) {
+            return null;
+        }
+        return loader.getCachedBytes(maxFileSize);
+    }
+
+    /**
+     * 从下往上写树,空目录不写
+     */
+    private static ObjectId write(Dir dir, ObjectInserter inserter) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : dir.entries) {
+            if (entry.sub != null) {
+                entry.id = write(entry.sub, inserter);
+            } else if (entry.data != null) {
+                entry.id = inserter.insert(Constants.OBJ_BLOB, entry.data);
+            }
+            if (entry.id != null) {
+                entries.add(entry);
+            }
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        // 树里的目录名按末尾带/的方式排序
+        entries.sort((a, b) -> compareTreeOrder(a, b));
+        TreeFormatter formatter = new TreeFormatter();
+        for (Entry entry : entries) {
+            formatter.append(entry.name, FileMode.fromBits(entry.mode), entry.id);
+        }
+        return inserter.insert(formatter);
+    }
+
+    private static int compareTreeOrder(Entry a, Entry b) {
+        int length = Math.min(a.name.length, b.name.length);
+        for (int i = 0; i < length; i++) {
+            int c = (a.name[i] & 0xff) - (b.name[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        int ca = a.name.length > length ? a.name[length] & 0xff : isTree(a.mode) ? '/' : 0;
+        int cb = b.name.length > length ? b.name[length] & 0xff : isTree(b.mode) ? '/' : 0;
+        return ca - cb;
+    }
+
+    private static boolean isTree(int mode) {
+        return (mode & FileMode.TYPE_MASK) == FileMode.TYPE_TREE;
+    }
+
+    private static boolean isFile(int mode) {
+        return (mode & FileMode.TYPE_MASK) == FileMode.TYPE_FILE;
+    }
+
+    private static ContentMerge join(CompletableFuture<ContentMerge> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * 只算id不写对象,probe用
+     */
+    private static final class IdOnlyInserter extends ObjectInserter.Formatter {
+        @Override
+        public ObjectId insert(int objectType, long length, InputStream in) throws IOException {
+            return idFor(objectType, length, in);
+        }
+    }
+
+    private static final class Dir {
+        final byte[] name;
+        final List<Entry> entries = new ArrayList<>();
+
+        Dir(byte[] name) {
+            this.name = name;
+        }
+
+        void add(byte[] name, int mode, ObjectId id) {
+            if (mode != 0) {
+                entries.add(new Entry(name, mode, id.copy(), null));
+            }
+        }
+    }
+
+    private static final class Entry {
+        final byte[] name;
+        final int mode;
+        final Dir sub;
+        ObjectId id;
+        CompletableFuture<ContentMerge> content;
+        byte[] data;
+
+        Entry(byte[] name, int mode, ObjectId id, Dir sub) {
+            this.name = name;
+            this.mode = mode;
+            this.id = id;
+            this.sub = sub;
+        }
+    }
+
+    private static final class ContentMerge {
+        byte[] data;
+        Conflict conflict;
+    }
+
+    public enum ConflictType {
+        /**
+         * 两边改了同一段内容,或者两边改成了不同的符号链接、子模块
+         */
+        CONTENT,
+        /**
+         * 一边改了,另一边删了
+         */
+        MODIFY_DELETE,
+        /**
+         * 一边是文件,另一边是目录
+         */
+        DIRECTORY_FILE,
+        /**
+         * 两边都改了二进制文件或者超过大小上限的文件
+         */
+        BINARY,
+        /**
+         * 两边把权限改成了不同的值
+         */
+        MODE
+    }
+
+    /**
+     * 一个冲突的文件
+     */
+    public static final class Conflict {
+        private final String path;
+        private final ConflictType type;
+        private final ObjectId baseId;
+        private final ObjectId oursId;
+        private final ObjectId theirsId;
+        private final List<Region> regions = new ArrayList<>();
+
+        Conflict(String path, ConflictType type, ObjectId baseId, ObjectId oursId, ObjectId theirsId) {
+            this.path = path;
+            this.type = type;
+            this.baseId = baseId;
+            this.oursId = oursId;
+            this.theirsId = theirsId;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public ConflictType getType() {
+            return type;
+        }
+
+        /**
+         * @return 合并基里没有这个文件时是null
+         */
+        public ObjectId getBaseId() {
+            return baseId;
+        }
+
+        /**
+         * @return 我方删除了时是null
+         */
+        public ObjectId getOursId() {
+            return oursId;
+        }
+
+        /**
+         * @return 对方删除了时是null
+         */
+        public ObjectId getTheirsId() {
+            return theirsId;
+        }
+
+        /**
+         * @return 内容冲突的行区间,其他类型的冲突是空的
+         */
+        public List<Region> getRegions() {
+            return Collections.unmodifiableList(regions);
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + path + (regions.isEmpty() ? "" : " " + regions);
+        }
+    }
+
+    /**
+     * 内容冲突的一段,行号从0开始,不含结尾
+     */
+    public static final class Region {
+        private final int oursStart;
+        private final int oursEnd;
+        private int theirsStart;
+        private int theirsEnd;
+
+        Region(int oursStart, int oursEnd) {
+            this.oursStart = oursStart;
+            this.oursEnd = oursEnd;
+        }
+
+        public int getOursStart() {
+            return oursStart;
+        }
+
+        public int getOursEnd() {
+            return oursEnd;
+        }
+
+        public int getTheirsStart() {
+            return theirsStart;
+        }
+
+        public int getTheirsEnd() {
+            return theirsEnd;
+        }
+
+        @Override
+        public String toString() {
+            return "ours[" + oursStart + "," + oursEnd + ") theirs[" + theirsStart + "," + theirsEnd + ")";
+        }
+    }
+
+    /**
+     * 合并结果
+     */
+    public static final class Result {
+        private List<ObjectId> mergeBases = Collections.emptyList();
+        private final List<Conflict> conflicts = new ArrayList<>();
+        private boolean alreadyMerged;
+        private ObjectId tree;
+        private ObjectId commit;
+        private long elapsedNanos;
+
+        void conflict(String path, ConflictType type, int baseMode, ObjectId base, ObjectId ours, ObjectId theirs) {
+            conflicts.add(new Conflict(path, type, baseMode == 0 ? null : base.copy(),
+                    ObjectId.zeroId().equals(ours) ? null : ours.copy(),
+                    ObjectId.zeroId().equals(theirs) ? null : theirs.copy()));
+        }
+
+        public boolean isClean() {
+            return conflicts.isEmpty();
+        }
+
+        /**
+         * @return 对方已经是我方的祖先,不需要合并
+         */
+        public boolean isAlreadyMerged() {
+            return alreadyMerged;
+        }
+
+        /**
+         * @return 没有共同祖先时是空的
+         */
+        public List<ObjectId> getMergeBases() {
+            return mergeBases;
+        }
+
+        /**
+         * @return 合并后的树,有冲突时是null
+         */
+        public ObjectId getTree() {
+            return tree;
+        }
+
+        /**
+         * @return mergeBranch生成的合并提交,没有生成时是null
+         */
+        public ObjectId getCommit() {
+            return commit;
+        }
+
+        public List<Conflict> getConflicts() {
+            return Collections.unmodifiableList(conflicts);
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            if (alreadyMerged) {
+                return "already merged";
+            }
+            return (isClean() ? "clean tree=" + tree.name() : "conflicts=" + conflicts)
+                    + (commit != null ? " commit=" + commit.name() : "") + " " + getElapsedMillis() + "ms";
+        }
+    }
+}
@@ -0,0 +1,722 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.jgit.api.CloneCommand;
+import org.eclipse.jgit.api.FetchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.GitCommand;
+import org.eclipse.jgit.api.PullCommand;
+import org.eclipse.jgit.api.PushCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.WindowCacheStats;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+
+/**
+ * Git操作的指标
+ * 每种操作(add、commit、status、log、diff、merge、reset、revert、clone、fetch、push、tag等)一个Operation,
+ * 记录耗时直方图、成功和失败次数、读写的对象数和字节数、等写锁的时间、网络传输的字节数
+ * 工具类在入口处用start开始一次采样,JGit自带的命令用call包一层
+ * 默认关闭,关闭时start返回一个什么都不做的共享Sample,开销只有一次volatile读
+ * 每次采样结束时交给注册的Exporter,可以接到日志、Micrometer或者链路追踪上,也可以registerJmx后在jconsole里看
+ * JGit 5.4的WindowCache只有打开的pack文件数和字节数,没有命中次数,pack缓存的情况用这两个gauge和仓库缓存、树缓存、blob缓存的命中数代替
+ * 各个缓存类加载时自己往默认实例上注册gauge,没用到的缓存不会被创建
+ */
+public class GitMetrics {
+    private static final GitMetrics DEFAULT = new GitMetrics();
+    private static final ThreadLocal<Sample> CURRENT = new ThreadLocal<>();
+    private static final Sample NOOP = new Sample(null, "", false);
+    private static final String JMX_DOMAIN = "GitMetrics";
+
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final List<Exporter> exporters = new CopyOnWriteArrayList<>();
+    private volatile boolean enabled;
+    private volatile MBeanServer mbeanServer;
+
+    public GitMetrics() {
+        registerGauge("pack.openFiles", WindowCacheStats::getOpenFiles);
+        registerGauge("pack.openBytes", WindowCacheStats::getOpenBytes);
+    }
+
+    /**
+     * 工具类默认使用的实例
+     *
+     * @return
+     */
+    public static GitMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * 打开或关闭采样,关闭时已有的数据保留
+     *
+     * @param enabled
+     * @return
+     */
+    public GitMetrics setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 每次采样结束时的回调
+     */
+    public interface Exporter {
+        /**
+         * 在结束采样的线程里同步调用,不要做耗时的事
+         *
+         * @param sample
+         */
+        void export(Sample sample);
+    }
+
+    public GitMetrics addExporter(Exporter exporter) {
+        exporters.add(exporter);
+        return this;
+    }
+
+    public GitMetrics removeExporter(Exporter exporter) {
+        exporters.remove(exporter);
+        return this;
+    }
+
+    /**
+     * 注册一个取值时才计算的指标
+     *
+     * @param name
+     * @param supplier
+     * @return
+     */
+    public GitMetrics registerGauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+        return this;
+    }
+
+    /**
+     * 在当前线程上开始一次采样,用try-with-resources关闭
+     * 采样期间当前线程上的写锁等待时间记到这个采样上,可以嵌套,结束后恢复外层的采样
+     *
+     * @param operation 操作名,比如add
+     * @return 关闭时没有调用过done的算作失败
+     */
+    public Sample start(String operation) {
+        if (!enabled) {
+            return NOOP;
+        }
+        Sample sample = new Sample(this, operation, true);
+        sample.previous = CURRENT.get();
+        CURRENT.set(sample);
+        return sample;
+    }
+
+    /**
+     * 开始一次不绑定线程的采样,用于跨多次调用的操作,比如日志迭代器从创建到关闭
+     *
+     * @param operation
+     * @return
+     */
+    public Sample startDetached(String operation) {
+        return enabled ? new Sample(this, operation, false) : NOOP;
+    }
+
+    /**
+     * @return 当前线程上正在进行的采样,没有时返回什么都不做的Sample
+     */
+    public static Sample current() {
+        Sample sample = CURRENT.get();
+        return sample != null ? sample : NOOP;
+    }
+
+    /**
+     * 执行JGit命令并记一次采样,操作名由命令类名得来,比如MergeCommand是merge,DeleteTagCommand是delete-tag
+     * fetch、pull和clone按对象库里pack文件增加的大小估算传输字节数;
+     * push发送的字节数JGit没有提供,只记耗时和成功失败;有引用被拒绝时push不抛异常,这里按失败记
+     *
+     * @param command
+     * @param <T>
+     * @return 命令的返回值
+     * @throws GitAPIException
+     */
+    public <T> T call(GitCommand<T> command) throws GitAPIException {
+        try (Sample sample = start(operationName(command))) {
+            if (!sample.isRecording()) {
+                return command.call();
+            }
+            Repository repository = command.getRepository();
+            boolean fetching = command instanceof FetchCommand || command instanceof PullCommand;
+            long before = fetching ? packBytes(repository) : 0;
+            T result = command.call();
+            if (fetching) {
+                sample.transferred(Math.max(0, packBytes(repository) - before));
+            } else if (command instanceof CloneCommand && result instanceof Git) {
+                sample.transferred(packBytes(((Git) result).getRepository()));
+            } else if (command instanceof PushCommand && !failedUpdates((Iterable<?>) result).isEmpty()) {
+                return result;
+            }
+            sample.done();
+            return result;
+        }
+    }
+
+    /**
+     * 推送结果里没有成功的引用,状态既不是OK也不是UP_TO_DATE
+     *
+     * @param pushResults PushCommand.call()的返回值
+     * @return
+     */
+    public static List<RemoteRefUpdate> failedUpdates(Iterable<?> pushResults) {
+        List<RemoteRefUpdate> failed = new ArrayList<>();
+        for (Object result : pushResults) {
+            for (RemoteRefUpdate update : ((PushResult) result).getRemoteUpdates()) {
+                if (update.getStatus() != RemoteRefUpdate.Status.OK
+                        && update.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE) {
+                    failed.add(update);
+                }
+            }
+        }
+        return failed;
+    }
+
+    static String operationName(GitCommand<?> command) {
+        String name = command.getClass().getSimpleName();
+        if (name.endsWith("Command")) {
+            name = name.substring(0, name.length() - "Command".length());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isUpperCase(c)) {
+                if (i > 0) {
+                    sb.append('-');
+                }
+                c = Character.toLowerCase(c);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param repository
+     * @return 对象库里所有pack文件的大小,不是文件仓库时返回0
+     */
+    static long packBytes(Repository repository) {
+        return repository == null ? 0 : packBytes(new File(repository.getDirectory(), "objects"));
+    }
+
+    /**
+     * @param objectsDirectory objects目录,可以为null或者不存在
+     * @return 目录下所有pack文件的大小
+     */
+    static long packBytes(File objectsDirectory) {
+        if (objectsDirectory == null) {
+            return 0;
+        }
+        File[] packs = new File(objectsDirectory, "pack").listFiles((dir, name) -> name.endsWith(".pack"));
+        long bytes = 0;
+        if (packs != null) {
+            for (File pack : packs) {
+                bytes += pack.length();
+            }
+        }
+        return bytes;
+    }
+
+    private void record(Sample sample) {
+        Operation operation = operations.computeIfAbsent(sample.operation, this::newOperation);
+        operation.record(sample);
+        for (Exporter exporter : exporters) {
+            try {
+                exporter.export(sample);
+            } catch (RuntimeException e) {
+                // 导出失败不影响Git操作
+            }
+        }
+    }
+
+    private Operation newOperation(String name) {
+        Operation operation = new Operation(name);
+        MBeanServer server = mbeanServer;
+        if (server != null) {
+            register(server, operation);
+        }
+        return operation;
+    }
+
+    /**
+     * @param name
+     * @return 还没有采样过时返回null
+     */
+    public Operation getOperation(String name) {
+        return operations.get(name);
+    }
+
+    /**
+     * @return 按操作名排序
+     */
+    public Map<String, Operation> getOperations() {
+        return new TreeMap<>(operations);
+    }
+
+    /**
+     * @return 所有gauge当前的值,按名称排序
+     */
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, supplier) -> values.put(name, supplier.getAsLong()));
+        return values;
+    }
+
+    /**
+     * 清掉所有操作的数据,JMX上已注册的操作也一起注销
+     */
+    public void reset() {
+        MBeanServer server = mbeanServer;
+        for (Operation operation : operations.values()) {
+            if (server != null) {
+                unregister(server, objectName("Operation", operation.name));
+            }
+        }
+        operations.clear();
+    }
+
+    /**
+     * 注册到平台MBeanServer,域名是GitMetrics
+     * 每个操作一个GitMetrics:type=Operation,name=操作名,之后新出现的操作也会注册;
+     * gauge都在GitMetrics:type=Gauges里
+     */
+    public synchronized void registerJmx() {
+        if (mbeanServer != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        mbeanServer = server;
+        for (Operation operation : operations.values()) {
+            register(server, operation);
+        }
+        try {
+            server.registerMBean((GaugesMXBean) this::getGauges, objectName("Gauges", null));
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized void unregisterJmx() {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        mbeanServer = null;
+        for (Operation operation : operations.values()) {
+            unregister(server, objectName("Operation", operation.name));
+        }
+        unregister(server, objectName("Gauges", null));
+    }
+
+    private static void register(MBeanServer server, Operation operation) {
+        try {
+            ObjectName name = objectName("Operation", operation.name);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(operation, name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void unregister(MBeanServer server, ObjectName name) {
+        try {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static ObjectName objectName(String type, String name) {
+        try {
+            return new ObjectName(JMX_DOMAIN + ":type=" + type + (name == null ? "" : ",name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Operation operation : getOperations().values()) {
+            sb.append(operation).append('\n');
+        }
+        getGauges().forEach((name, value) -> sb.append(name).append('=').append(value).append('\n'));
+        return sb.toString();
+    }
+
+    /**
+     * JMX上看到的gauge
+     */
+    public interface GaugesMXBean {
+        Map<String, Long> getGauges();
+    }
+
+    /**
+     * JMX上看到的一种操作的统计
+     */
+    public interface OperationMXBean {
+        long getCount();
+
+        long getErrors();
+
+        double getMeanMillis();
+
+        double getMaxMillis();
+
+        double getP50Millis();
+
+        double getP99Millis();
+
+        long getObjectsRead();
+
+        long getBytesRead();
+
+        long getObjectsWritten();
+
+        long getBytesWritten();
+
+        long getTransportBytes();
+
+        double getLockWaitMillis();
+    }
+
+    /**
+     * 一次采样,只在开始它的线程里修改
+     */
+    public static final class Sample implements AutoCloseable {
+        private final GitMetrics metrics;
+        private final String operation;
+        private final boolean attached;
+        private final long startNanos;
+        private Sample previous;
+        private long elapsedNanos;
+        private boolean success;
+        private boolean closed;
+        private long objectsRead;
+        private long bytesRead;
+        private long objectsWritten;
+        private long bytesWritten;
+        private long transportBytes;
+        private long lockWaitNanos;
+
+        private Sample(GitMetrics metrics, String operation, boolean attached) {
+            this.metrics = metrics;
+            this.operation = operation;
+            this.attached = attached;
+            this.startNanos = metrics == null ? 0 : System.nanoTime();
+        }
+
+        /**
+         * @return 指标关闭时拿到的Sample不记录任何东西
+         */
+        public boolean isRecording() {
+            return metrics != null;
+        }
+
+        /**
+         * 累加从对象库或工作区读到的对象
+         *
+         * @param objects
+         * @param bytes
+         * @return
+         */
+        public Sample read(long objects, long bytes) {
+            if (metrics != null) {
+                objectsRead += objects;
+                bytesRead += bytes;
+            }
+            return this;
+        }
+
+        /**
+         * 累加写出的对象,或者写到工作区、输出流的内容
+         *
+         * @param objects
+         * @param bytes
+         * @return
+         */
+        public Sample written(long objects, long bytes) {
+            if (metrics != null) {
+                objectsWritten += objects;
+                bytesWritten += bytes;
+            }
+            return this;
+        }
+
+        /**
+         * 累加网络传输的字节数
+         *
+         * @param bytes
+         * @return
+         */
+        public Sample transferred(long bytes) {
+            if (metrics != null) {
+                transportBytes += bytes;
+            }
+            return this;
+        }
+
+        /**
+         * 累加等锁的时间
+         *
+         * @param nanos
+         * @return
+         */
+        public Sample lockWait(long nanos) {
+            if (metrics != null) {
+                lockWaitNanos += nanos;
+            }
+            return this;
+        }
+
+        /**
+         * 标记操作成功,在close之前调用
+         */
+        public void done() {
+            success = true;
+        }
+
+        @Override
+        public void close() {
+            if (metrics == null || closed) {
+                return;
+            }
+            closed = true;
+            elapsedNanos = System.nanoTime() - startNanos;
+            if (attached) {
+                if (previous != null) {
+                    CURRENT.set(previous);
+                } else {
+                    CURRENT.remove();
+                }
+            }
+            metrics.record(this);
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public long getObjectsRead() {
+            return objectsRead;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getObjectsWritten() {
+            return objectsWritten;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getTransportBytes() {
+            return transportBytes;
+        }
+
+        public long getLockWaitNanos() {
+            return lockWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + (success ? "ok" : "failed") + " " + elapsedNanos / 1000 + "us"
+                    + " read=" + objectsRead + "/" + bytesRead + "B written=" + objectsWritten + "/" + bytesWritten + "B"
+                    + " transport=" + transportBytes + "B lockWait=" + lockWaitNanos / 1000 + "us";
+        }
+    }
+
+    /**
+     * 一种操作的累计统计
+     * 耗时直方图按微秒取2的幂分桶,第i个桶是[2^(i-1), 2^i)微秒,分位数返回所在桶的上界,误差在2倍以内
+     */
+    public static final class Operation implements OperationMXBean {
+        private static final int BUCKETS = 40;
+
+        private final String name;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final LongAdder objectsRead = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder objectsWritten = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder transportBytes = new LongAdder();
+        private final LongAdder lockWaitNanos = new LongAdder();
+
+        Operation(String name) {
+            this.name = name;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(Sample sample) {
+            long nanos = sample.elapsedNanos;
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+            count.increment();
+            if (!sample.success) {
+                errors.increment();
+            }
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            objectsRead.add(sample.objectsRead);
+            bytesRead.add(sample.bytesRead);
+            objectsWritten.add(sample.objectsWritten);
+            bytesWritten.add(sample.bytesWritten);
+            transportBytes.add(sample.transportBytes);
+            lockWaitNanos.add(sample.lockWaitNanos);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return 各个桶的次数,下标i的桶上界是2^i微秒
+         */
+        public long[] getHistogram() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        /**
+         * @param quantile 0到1之间
+         * @return 近似的分位数耗时
+         */
+        public double getPercentileMillis(double quantile) {
+            long[] counts = getHistogram();
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank)) {
+                    return (1L << i) / 1000.0;
+                }
+            }
+            return getMaxMillis();
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return getPercentileMillis(0.5);
+        }
+
+        @Override
+        public double getP99Millis() {
+            return getPercentileMillis(0.99);
+        }
+
+        @Override
+        public long getObjectsRead() {
+            return objectsRead.sum();
+        }
+
+        @Override
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        @Override
+        public long getObjectsWritten() {
+            return objectsWritten.sum();
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        @Override
+        public long getTransportBytes() {
+            return transportBytes.sum();
+        }
+
+        @Override
+        public double getLockWaitMillis() {
+            return lockWaitNanos.sum() / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s count=%d errors=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms"
+                            + " read=%d/%dB written=%d/%dB transport=%dB lockWait=%.2fms",
+                    name, getCount(), getErrors(), getMeanMillis(), getP50Millis(), getP99Millis(), getMaxMillis(),
+                    getObjectsRead(), getBytesRead(), getObjectsWritten(), getBytesWritten(), getTransportBytes(),
+                    getLockWaitMillis());
+        }
+    }
+}
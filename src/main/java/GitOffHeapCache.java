@@ -0,0 +1,407 @@
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * 堆外的对象数据缓存,所有仓库共用一个字节预算
+ * 数据放在一块直接内存里,按固定大小的块分配,一个对象占一段连续的块,放不下时淘汰最久没用的对象
+ * 直接内存按对象id分成几段,每段有自己的锁、LRU和空闲块,不同线程读写不同的段互不等待
+ * 堆上只有每个对象一个小条目和每段一个空闲块的位图,缓存再大也不会让GC扫描的堆变大
+ * 直接内存在第一次put时才分配,分配后整个进程里一直占着,不随淘汰归还
+ * 不同的使用方用newOwner拿到各自的编号,同一个对象id在不同仓库里互不影响
+ */
+public class GitOffHeapCache {
+    private static final int BLOCK_SIZE = 512;
+    // 每段至少这么多块,小缓存只有一段
+    private static final int MIN_SEGMENT_BLOCKS = 2048;
+    private static final int MAX_SEGMENTS = 16;
+    private static final AtomicLong OWNERS = new AtomicLong();
+
+    private static volatile GitOffHeapCache defaultCache = new GitOffHeapCache(64L * 1024 * 1024);
+
+    static {
+        // 共享缓存可能被GitPackAccess换掉,每次取值时重新拿
+        GitMetrics.getDefault()
+                .registerGauge("treeCache.bytes", () -> getDefault().getBytes())
+                .registerGauge("treeCache.hits", () -> getDefault().getHits())
+                .registerGauge("treeCache.misses", () -> getDefault().getMisses());
+    }
+
+    private final long capacity;
+    private final Segment[] segments;
+    private volatile ByteBuffer arena;
+
+    /**
+     * @param capacity 直接内存的大小,按块大小向下取整,不能超过2GB;
+     *                 分成几段时每段大小一样,比一段还大的对象不缓存
+     */
+    public GitOffHeapCache(long capacity) {
+        long blocks = capacity / BLOCK_SIZE;
+        if (capacity < 0 || blocks > Integer.MAX_VALUE / BLOCK_SIZE) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        int count = 1;
+        while (count < MAX_SEGMENTS && blocks / (count * 2) >= MIN_SEGMENT_BLOCKS) {
+            count *= 2;
+        }
+        int segmentBlocks = (int) (blocks / count);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(i * segmentBlocks, segmentBlocks);
+        }
+        this.capacity = (long) count * segmentBlocks * BLOCK_SIZE;
+    }
+
+    /**
+     * 进程内共享的缓存,默认64MB
+     *
+     * @return
+     */
+    public static GitOffHeapCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * 替换共享的缓存,只影响之后拿默认缓存的使用方
+     *
+     * @param cache
+     */
+    public static void setDefault(GitOffHeapCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * @return 新的使用方编号,进程内唯一
+     */
+    public static long newOwner() {
+        return OWNERS.incrementAndGet();
+    }
+
+    /**
+     * 拿到数据的只读视图,直接读堆外内存,不复制
+     * 视图关闭前对象不会被淘汰,占的块也不会被别的对象复用;关闭后不能再读视图
+     *
+     * @param owner
+     * @param id
+     * @return 不在缓存里时返回null
+     */
+    public View open(long owner, AnyObjectId id) {
+        Key key = new Key(owner, id);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.entries.get(key);
+            if (entry == null) {
+                segment.misses++;
+                return null;
+            }
+            segment.hits++;
+            entry.pins++;
+            ByteBuffer buffer = arena.duplicate();
+            int offset = (segment.base + entry.firstBlock) * BLOCK_SIZE;
+            buffer.limit(offset + entry.length).position(offset);
+            return new View(segment, entry, buffer.slice().asReadOnlyBuffer());
+        }
+    }
+
+    /**
+     * 取出数据,复制到新的堆数组里,给需要byte[]的调用方用
+     *
+     * @param owner
+     * @param id
+     * @return 不在缓存里时返回null
+     */
+    public byte[] get(long owner, AnyObjectId id) {
+        try (View view = open(owner, id)) {
+            if (view == null) {
+                return null;
+            }
+            ByteBuffer buffer = view.buffer();
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        }
+    }
+
+    /**
+     * 放入数据,比一段还大的不缓存;段里的块都被打开的视图占着时也不缓存
+     *
+     * @param owner
+     * @param id
+     * @param data 放入后可以修改,缓存里是复制的数据
+     */
+    public void put(long owner, AnyObjectId id, byte[] data) {
+        Key key = new Key(owner, id.copy());
+        Segment segment = segmentFor(key);
+        int needed = Math.max(1, (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        if (needed > segment.blocks) {
+            return;
+        }
+        ByteBuffer memory = arena();
+        synchronized (segment) {
+            Entry old = segment.entries.remove(key);
+            if (old != null) {
+                segment.drop(old);
+            }
+            int first = segment.findFree(needed);
+            Iterator<Entry> it = segment.entries.values().iterator();
+            while (first < 0 && it.hasNext()) {
+                Entry eldest = it.next();
+                if (eldest.pins > 0) {
+                    continue;
+                }
+                it.remove();
+                segment.drop(eldest);
+                segment.evictions++;
+                first = segment.findFree(needed);
+            }
+            if (first < 0) {
+                return;
+            }
+            segment.free.clear(first, first + needed);
+            if (segment.writer == null) {
+                segment.writer = memory.duplicate();
+            }
+            segment.writer.position((segment.base + first) * BLOCK_SIZE);
+            segment.writer.put(data);
+            segment.entries.put(key, new Entry(first, needed, data.length));
+            segment.bytes += data.length;
+        }
+    }
+
+    /**
+     * 删掉一个使用方的所有数据,还开着的视图关闭后再回收
+     *
+     * @param owner
+     */
+    public void invalidate(long owner) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                Iterator<Map.Entry<Key, Entry>> it = segment.entries.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Key, Entry> e = it.next();
+                    if (e.getKey().owner == owner) {
+                        it.remove();
+                        segment.drop(e.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private Segment segmentFor(Key key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    private ByteBuffer arena() {
+        ByteBuffer result = arena;
+        if (result == null) {
+            synchronized (this) {
+                result = arena;
+                if (result == null) {
+                    result = ByteBuffer.allocateDirect((int) capacity);
+                    arena = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return 直接内存的大小
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 缓存的对象数据总字节数,不含块里没用满的部分
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    public long getMisses() {
+        long misses = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    public long getEvictions() {
+        long evictions = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                evictions += segment.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return "entries=" + size() + " bytes=" + getBytes() + " capacity=" + capacity + " segments=" + segments.length
+                + " hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions();
+    }
+
+    /**
+     * 缓存数据的只读视图,用完要关闭
+     */
+    public static final class View implements AutoCloseable {
+        private final Segment segment;
+        private final Entry entry;
+        private final ByteBuffer buffer;
+        private boolean closed;
+
+        private View(Segment segment, Entry entry, ByteBuffer buffer) {
+            this.segment = segment;
+            this.entry = entry;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return 从0开始、长度是数据长度的只读缓冲区
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            synchronized (segment) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                entry.pins--;
+                if (entry.removed && entry.pins == 0) {
+                    segment.free.set(entry.firstBlock, entry.firstBlock + entry.blocks);
+                }
+            }
+        }
+    }
+
+    /**
+     * 直接内存里连续的一段,所有字段都在持有这个对象的锁时使用
+     */
+    private static final class Segment {
+        final int base;
+        final int blocks;
+        final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        // 空闲的块
+        final BitSet free;
+        // 写数据用,按块移动position
+        ByteBuffer writer;
+        long bytes;
+        long hits;
+        long misses;
+        long evictions;
+
+        Segment(int base, int blocks) {
+            this.base = base;
+            this.blocks = blocks;
+            this.free = new BitSet(blocks);
+            free.set(0, blocks);
+        }
+
+        /**
+         * @return 第一段够长的连续空闲块的起点,没有时返回-1
+         */
+        int findFree(int needed) {
+            int start = free.nextSetBit(0);
+            while (start >= 0 && start + needed <= blocks) {
+                int end = free.nextClearBit(start);
+                if (end - start >= needed) {
+                    return start;
+                }
+                start = free.nextSetBit(end);
+            }
+            return -1;
+        }
+
+        /**
+         * 条目已经从表里删掉,没有打开的视图时马上回收它的块
+         */
+        void drop(Entry entry) {
+            entry.removed = true;
+            bytes -= entry.length;
+            if (entry.pins == 0) {
+                free.set(entry.firstBlock, entry.firstBlock + entry.blocks);
+            }
+        }
+    }
+
+    private static final class Key {
+        final long owner;
+        final ObjectId id;
+
+        Key(long owner, AnyObjectId id) {
+            this.owner = owner;
+            this.id = id.toObjectId();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return owner == other.owner && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode() * 31 + Long.hashCode(owner);
+        }
+    }
+
+    private static final class Entry {
+        final int firstBlock;
+        final int blocks;
+        final int length;
+        // 打开着的视图数,大于0时不淘汰
+        int pins;
+        boolean removed;
+
+        Entry(int firstBlock, int blocks, int length) {
+            this.firstBlock = firstBlock;
+            this.blocks = blocks;
+            this.length = length;
+        }
+    }
+}
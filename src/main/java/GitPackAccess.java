@@ -0,0 +1,124 @@
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.eclipse.jgit.util.SystemReader;
+
+/**
+ * pack文件的读取方式和进程内共享的缓存
+ * JGit的WindowCache本来就是整个进程的所有仓库共用的,打开mmap后pack按窗口用FileChannel.map映射,
+ * 窗口数据留在页缓存里,不再复制进堆上的数组,packedGitLimit限制的是映射的字节数而不是堆
+ * 树数据的缓存是堆外的GitOffHeapCache,大小也在这里设置
+ * idx文件JGit打开时会整个读进堆里,没有映射的方式,这部分不受这里的设置影响
+ * 要在打开仓库之前install,之后再改会关掉已经打开的pack
+ * windows上映射过的文件在映射被GC回收前删不掉,维护时删除旧pack会失败,所以默认只在其他系统上打开mmap
+ */
+public class GitPackAccess {
+    private final WindowCacheConfig config = new WindowCacheConfig();
+    private long offHeapCacheBytes = GitOffHeapCache.getDefault().getCapacity();
+
+    public GitPackAccess() {
+        if (!SystemReader.getInstance().isWindows()) {
+            config.setPackedGitMMAP(true);
+            // 映射不占堆,窗口可以大一些,少建窗口对象
+            config.setPackedGitWindowSize(WindowCacheConfig.MB);
+            config.setPackedGitLimit(512L * WindowCacheConfig.MB);
+        }
+    }
+
+    /**
+     * 是否用FileChannel.map读pack
+     *
+     * @param mmap
+     * @return
+     */
+    public GitPackAccess setMmap(boolean mmap) {
+        config.setPackedGitMMAP(mmap);
+        return this;
+    }
+
+    /**
+     * 所有仓库一起最多缓存的pack窗口字节数
+     *
+     * @param bytes
+     * @return
+     */
+    public GitPackAccess setPackedGitLimit(long bytes) {
+        config.setPackedGitLimit(bytes);
+        return this;
+    }
+
+    /**
+     * 一个窗口的大小,必须是2的幂
+     *
+     * @param bytes
+     * @return
+     */
+    public GitPackAccess setWindowSize(int bytes) {
+        config.setPackedGitWindowSize(bytes);
+        return this;
+    }
+
+    /**
+     * 同时打开的pack文件数
+     *
+     * @param openFiles
+     * @return
+     */
+    public GitPackAccess setOpenFiles(int openFiles) {
+        config.setPackedGitOpenFiles(openFiles);
+        return this;
+    }
+
+    /**
+     * JGit自己的delta基对象缓存,在堆上,每个ObjectReader一份
+     *
+     * @param bytes
+     * @return
+     */
+    public GitPackAccess setDeltaBaseCacheLimit(int bytes) {
+        config.setDeltaBaseCacheLimit(bytes);
+        return this;
+    }
+
+    /**
+     * 超过这个大小的对象用流读,不整个放进内存
+     *
+     * @param bytes
+     * @return
+     */
+    public GitPackAccess setStreamFileThreshold(int bytes) {
+        config.setStreamFileThreshold(bytes);
+        return this;
+    }
+
+    /**
+     * 所有仓库共用的堆外树缓存的大小
+     *
+     * @param bytes
+     * @return
+     */
+    public GitPackAccess setOffHeapCacheBytes(long bytes) {
+        this.offHeapCacheBytes = bytes;
+        return this;
+    }
+
+    public boolean isMmap() {
+        return config.isPackedGitMMAP();
+    }
+
+    /**
+     * 应用到整个进程
+     * 堆外缓存大小变了时换一个新的共享缓存,已经拿到旧缓存的仓库继续用旧的
+     */
+    public void install() {
+        config.install();
+        if (GitOffHeapCache.getDefault().getCapacity() != offHeapCacheBytes) {
+            GitOffHeapCache.setDefault(new GitOffHeapCache(offHeapCacheBytes));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "mmap=" + config.isPackedGitMMAP() + " packedGitLimit=" + config.getPackedGitLimit()
+                + " windowSize=" + config.getPackedGitWindowSize() + " openFiles=" + config.getPackedGitOpenFiles()
+                + " deltaBaseCacheLimit=" + config.getDeltaBaseCacheLimit() + " offHeapCache=" + offHeapCacheBytes;
+    }
+}
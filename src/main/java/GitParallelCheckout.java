@@ -0,0 +1,622 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheCheckout.CheckoutMetadata;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.CheckoutConflictException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.CoreConfig;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.FileUtils;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * 并行检出
+ * 先对比索引和目标提交算出要改的文件,删除和建目录在当前线程按顺序做,
+ * 解压blob和写文件分片交给线程池,每个分片一个reader,最后一次性提交索引
+ * 内容没变并且文件大小、修改时间和索引一致的文件不重写,修改时间不早于索引文件的条目再比较内容
+ * checkout(commitId)和reset效果和checkout -f / reset --hard一样,本地修改会被覆盖;
+ * checkoutBranch和checkout(headId, commitId)像DirCacheCheckout一样先检查冲突,有冲突时什么都不改
+ * 没有换行符转换和过滤器时直接写目标文件,大文件先设置好长度;
+ * 否则按.gitattributes交给DirCacheCheckout.checkoutEntry处理,也是并行的
+ */
+public class GitParallelCheckout {
+    private static final int MIN_SLICE = 64;
+    // 超过这个大小的文件先设置长度再写
+    private static final long PREALLOCATE_THRESHOLD = 1024 * 1024;
+
+    private final Repository repository;
+    private Executor executor = ForkJoinPool.commonPool();
+    private int parallelism = ForkJoinPool.getCommonPoolParallelism();
+    private boolean skipUnchanged = true;
+
+    public GitParallelCheckout(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * 写文件用的线程池,以及最多分成几片
+     *
+     * @param executor
+     * @param parallelism
+     * @return
+     */
+    public GitParallelCheckout setExecutor(Executor executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * 是否根据索引里的文件大小和修改时间跳过没变的文件,默认跳过
+     * 设成false时所有文件都重写
+     *
+     * @param skipUnchanged
+     * @return
+     */
+    public GitParallelCheckout setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+        return this;
+    }
+
+    /**
+     * 切换到分支,HEAD指向这个分支
+     * 有冲突时抛出CheckoutConflictException,见{@link #checkout(AnyObjectId, AnyObjectId)}
+     *
+     * @param branch 短名称
+     * @return
+     * @throws IOException
+     */
+    public Result checkoutBranch(String branch) throws IOException {
+        String refName = Constants.R_HEADS + branch;
+        ObjectId commitId = repository.resolve(refName);
+        if (commitId == null) {
+            throw new IOException("Branch " + branch + " not found");
+        }
+        Result result = checkout(repository.resolve(Constants.HEAD), commitId);
+        RefUpdate head = repository.updateRef(Constants.HEAD);
+        head.setRefLogMessage("checkout: moving to " + branch, false);
+        RefUpdate.Result linked = head.link(refName);
+        if (linked != RefUpdate.Result.NEW && linked != RefUpdate.Result.FORCED
+                && linked != RefUpdate.Result.NO_CHANGE) {
+            throw new IOException("Could not update HEAD: " + linked);
+        }
+        return result;
+    }
+
+    /**
+     * 和reset --hard一样,当前分支移到指定提交,清掉合并状态
+     *
+     * @param commitId
+     * @return
+     * @throws IOException
+     */
+    public Result reset(AnyObjectId commitId) throws IOException {
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("reset")) {
+            Result result = resetHard(commitId);
+            sample.written(result.written, result.bytes);
+            sample.done();
+            return result;
+        }
+    }
+
+    private Result resetHard(AnyObjectId commitId) throws IOException {
+        Result result = checkoutTree(null, commitId, true);
+        RefUpdate update = repository.updateRef(Constants.HEAD);
+        update.setNewObjectId(commitId);
+        update.setRefLogMessage("reset: moving to " + commitId.name(), false);
+        RefUpdate.Result updated = update.forceUpdate();
+        if (updated == RefUpdate.Result.LOCK_FAILURE || updated == RefUpdate.Result.IO_FAILURE
+                || updated == RefUpdate.Result.REJECTED) {
+            throw new IOException("Could not update HEAD: " + updated);
+        }
+        repository.writeMergeHeads(null);
+        repository.writeMergeCommitMsg(null);
+        repository.writeCherryPickHead(null);
+        repository.writeRevertHead(null);
+        return result;
+    }
+
+    /**
+     * 把索引和工作区切换到指定提交,不修改HEAD和分支,本地修改会被覆盖
+     *
+     * @param commitId
+     * @return
+     * @throws IOException
+     */
+    public Result checkout(AnyObjectId commitId) throws IOException {
+        return checkout(null, commitId, true);
+    }
+
+    /**
+     * 把索引和工作区从headId切换到commitId,不修改HEAD和分支,和不带-f的checkout一样:
+     * 两个提交里一样的文件保留本地改动;要改写或删除的文件在索引或工作区里有没提交的改动,
+     * 或者会覆盖未跟踪的文件时算冲突,抛出CheckoutConflictException,索引和工作区都不动
+     *
+     * @param headId   工作区当前对应的提交,还没有提交时为null
+     * @param commitId
+     * @return
+     * @throws CheckoutConflictException 有冲突
+     * @throws IOException
+     */
+    public Result checkout(AnyObjectId headId, AnyObjectId commitId) throws IOException {
+        return checkout(headId, commitId, false);
+    }
+
+    private Result checkout(AnyObjectId headId, AnyObjectId commitId, boolean force) throws IOException {
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("checkout")) {
+            Result result = checkoutTree(headId, commitId, force);
+            sample.written(result.written, result.bytes);
+            sample.done();
+            return result;
+        }
+    }
+
+    private Result checkoutTree(AnyObjectId headId, AnyObjectId commitId, boolean force) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        File workTree = repository.getWorkTree();
+        DirCache dirCache = repository.lockDirCache();
+        try (ObjectReader reader = repository.newObjectReader();
+             RevWalk revWalk = new RevWalk(reader);
+             TreeWalk treeWalk = new TreeWalk(repository, reader)) {
+            Map<String, DirCacheEntry> old = new HashMap<>();
+            for (int i = 0; i < dirCache.getEntryCount(); i++) {
+                DirCacheEntry entry = dirCache.getEntry(i);
+                old.put(entry.getPathString(), entry);
+            }
+            Set<String> tracked = force ? Collections.emptySet() : new HashSet<>(old.keySet());
+            Map<String, DirCacheEntry> head = force ? Collections.emptyMap() : readTree(revWalk, headId);
+            Stat stat = Stat.of(repository, dirCache, reader);
+
+            treeWalk.addTree(revWalk.parseCommit(commitId).getTree());
+            treeWalk.setRecursive(true);
+            // 换行符转换和smudge过滤器按.gitattributes决定
+            treeWalk.setOperationType(TreeWalk.OperationType.CHECKOUT_OP);
+            List<DirCacheEntry> entries = new ArrayList<>();
+            List<DirCacheEntry> toWrite = new ArrayList<>();
+            List<CheckoutMetadata> metadata = new ArrayList<>();
+            List<String> conflicts = new ArrayList<>();
+            boolean plain = isPlain(repository);
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                DirCacheEntry entry = new DirCacheEntry(path);
+                entry.setFileMode(treeWalk.getFileMode(0));
+                entry.setObjectId(treeWalk.getObjectId(0));
+                if (isAttributes(path)) {
+                    // 可能有过滤器或者eol设置,交给JGit写
+                    plain = false;
+                }
+
+                DirCacheEntry previous = old.remove(path);
+                File file = new File(workTree, path);
+                if (!force && previous != null && sameContent(previous, entry)) {
+                    // 这个文件不用切换,保留索引条目和本地改动
+                    entries.add(previous);
+                    result.unchanged++;
+                    continue;
+                }
+                entries.add(entry);
+                if (!force && (previous == null
+                        ? entry.getFileMode() != FileMode.GITLINK && occupied(file, path, tracked)
+                        : dirty(previous, head.get(path), file, stat))) {
+                    conflicts.add(path);
+                } else if (skipUnchanged && previous != null && unchanged(previous, entry, file, stat)) {
+                    entry.setLength(previous.getLength());
+                    entry.setLastModified(previous.getLastModified());
+                    result.unchanged++;
+                } else {
+                    toWrite.add(entry);
+                    metadata.add(new CheckoutMetadata(treeWalk.getEolStreamType(TreeWalk.OperationType.CHECKOUT_OP),
+                            treeWalk.getFilterCommand(Constants.ATTR_FILTER_TYPE_SMUDGE)));
+                }
+            }
+
+            if (!force) {
+                for (DirCacheEntry previous : old.values()) {
+                    String path = previous.getPathString();
+                    if (dirty(previous, head.get(path), new File(workTree, path), stat)) {
+                        conflicts.add(path);
+                    }
+                }
+                // 要建目录的位置上有未跟踪的文件
+                Set<String> blocked = new TreeSet<>();
+                for (DirCacheEntry entry : toWrite) {
+                    String path = entry.getPathString();
+                    for (int slash = path.indexOf('/'); slash > 0; slash = path.indexOf('/', slash + 1)) {
+                        String dir = path.substring(0, slash);
+                        File file = new File(workTree, dir);
+                        if (!tracked.contains(dir) && (file.isFile() || Files.isSymbolicLink(file.toPath()))) {
+                            blocked.add(dir);
+                        }
+                    }
+                }
+                conflicts.addAll(blocked);
+                if (!conflicts.isEmpty()) {
+                    throw new CheckoutConflictException(conflicts.toArray(new String[0]));
+                }
+            }
+
+            // 先删掉目标提交里没有的文件,再按从上到下的顺序建目录
+            for (DirCacheEntry previous : old.values()) {
+                if (delete(workTree, new File(workTree, previous.getPathString()))) {
+                    result.deleted++;
+                }
+            }
+            prepareDirectories(workTree, toWrite);
+            writeAll(toWrite, metadata, plain, result);
+
+            DirCacheBuilder builder = dirCache.builder();
+            for (DirCacheEntry entry : entries) {
+                builder.add(entry);
+            }
+            if (!builder.commit()) {
+                throw new IOException("Could not write index " + repository.getIndexFile());
+            }
+        } finally {
+            dirCache.unlock();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * 没有换行符转换时内容原样写出
+     */
+    private static boolean isPlain(Repository repository) {
+        CoreConfig.AutoCRLF autoCRLF = repository.getConfig().getEnum(ConfigConstants.CONFIG_CORE_SECTION, null,
+                ConfigConstants.CONFIG_KEY_AUTOCRLF, CoreConfig.AutoCRLF.FALSE);
+        String eol = repository.getConfig().getString(ConfigConstants.CONFIG_CORE_SECTION, null,
+                ConfigConstants.CONFIG_KEY_EOL);
+        return autoCRLF != CoreConfig.AutoCRLF.TRUE && eol == null;
+    }
+
+    private static boolean isAttributes(String path) {
+        return path.equals(Constants.DOT_GIT_ATTRIBUTES) || path.endsWith("/" + Constants.DOT_GIT_ATTRIBUTES);
+    }
+
+    private static Map<String, DirCacheEntry> readTree(RevWalk revWalk, AnyObjectId commitId) throws IOException {
+        Map<String, DirCacheEntry> entries = new HashMap<>();
+        if (commitId == null) {
+            return entries;
+        }
+        try (TreeWalk treeWalk = new TreeWalk(revWalk.getObjectReader())) {
+            treeWalk.addTree(revWalk.parseCommit(commitId).getTree());
+            treeWalk.setRecursive(true);
+            while (treeWalk.next()) {
+                DirCacheEntry entry = new DirCacheEntry(treeWalk.getPathString());
+                entry.setFileMode(treeWalk.getFileMode(0));
+                entry.setObjectId(treeWalk.getObjectId(0));
+                entries.put(entry.getPathString(), entry);
+            }
+        }
+        return entries;
+    }
+
+    private static boolean sameContent(DirCacheEntry a, DirCacheEntry b) {
+        return a.getObjectId().equals(b.getObjectId()) && a.getFileMode().equals(b.getFileMode());
+    }
+
+    private static boolean unchanged(DirCacheEntry previous, DirCacheEntry entry, File file, Stat stat)
+            throws IOException {
+        return sameContent(previous, entry)
+                && previous.getFileMode() != FileMode.SYMLINK
+                && !stat.modified(previous, file);
+    }
+
+    /**
+     * 索引条目和headId里的不一样(暂存了没提交),或者工作区文件改过;工作区里已经删掉的不算
+     */
+    private static boolean dirty(DirCacheEntry previous, DirCacheEntry committed, File file, Stat stat)
+            throws IOException {
+        if (committed == null || !sameContent(previous, committed)) {
+            return true;
+        }
+        if (!file.exists() && !Files.isSymbolicLink(file.toPath())) {
+            return false;
+        }
+        return stat.modified(previous, file);
+    }
+
+    /**
+     * 要写的位置上有未跟踪的文件,或者有包含未跟踪文件的目录
+     */
+    private static boolean occupied(File file, String path, Set<String> tracked) {
+        if (Files.isSymbolicLink(file.toPath()) || file.isFile()) {
+            return true;
+        }
+        String[] children = file.isDirectory() ? file.list() : null;
+        if (children == null) {
+            return false;
+        }
+        for (String child : children) {
+            String childPath = path + "/" + child;
+            File childFile = new File(file, child);
+            if (childFile.isDirectory() && !Files.isSymbolicLink(childFile.toPath())
+                    ? occupied(childFile, childPath, tracked) : !tracked.contains(childPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 判断工作区文件和索引条目是否一样,顺序和WorkingTreeIterator.isModified相同:
+     * 大小或修改时间不同就算改过;都相同但条目修改时间不早于索引文件(racily clean)
+     * 或者读索引时已被标记的,再比较内容;GitSparseCheckout也用它检查本地修改
+     */
+    static final class Stat {
+        private final long indexModified;
+        private final boolean hashable;
+        private final ObjectReader reader;
+
+        private Stat(long indexModified, boolean hashable, ObjectReader reader) {
+            this.indexModified = indexModified;
+            this.hashable = hashable;
+            this.reader = reader;
+        }
+
+        /**
+         * 在锁住并读出索引之后调用
+         */
+        static Stat of(Repository repository, DirCache dirCache, ObjectReader reader) {
+            // 修改时间不早于索引文件的条目可能在写索引的同一时刻又被改过,只看大小和时间分不出来
+            long indexModified = repository.getIndexFile().lastModified();
+            // 没有换行符转换和.gitattributes时工作区文件可以直接算blob id和索引比较
+            boolean hashable = isPlain(repository);
+            for (int i = 0; hashable && i < dirCache.getEntryCount(); i++) {
+                hashable = !isAttributes(dirCache.getEntry(i).getPathString());
+            }
+            return new Stat(indexModified, hashable, reader);
+        }
+
+        boolean modified(DirCacheEntry entry, File file) throws IOException {
+            Path path = file.toPath();
+            FileMode mode = entry.getFileMode();
+            if (mode == FileMode.GITLINK) {
+                return false;
+            }
+            if (mode == FileMode.SYMLINK) {
+                if (!Files.isSymbolicLink(path)) {
+                    return true;
+                }
+                byte[] target = reader.open(entry.getObjectId(), Constants.OBJ_BLOB).getCachedBytes();
+                return !Files.readSymbolicLink(path).toString().equals(RawParseUtils.decode(target));
+            }
+            if (!file.isFile() || Files.isSymbolicLink(path)) {
+                return true;
+            }
+            long length = file.length();
+            if (!entry.isSmudged() && length != entry.getLength()) {
+                return true;
+            }
+            if (FS.DETECTED.lastModified(file) != entry.getLastModified()) {
+                return true;
+            }
+            if (!entry.isSmudged() && entry.getLastModified() < indexModified) {
+                return false;
+            }
+            if (!hashable) {
+                // 有换行符转换或过滤器时不自己算,当作改过
+                return true;
+            }
+            try (InputStream in = Files.newInputStream(path)) {
+                ObjectId id = new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, length, in);
+                return !entry.getObjectId().equals(id);
+            }
+        }
+    }
+
+    /**
+     * 父目录排序后按顺序创建,路径上挡着的文件先删掉;要写文件的位置上挡着的目录也删掉
+     */
+    private static void prepareDirectories(File workTree, List<DirCacheEntry> toWrite) throws IOException {
+        TreeSet<String> dirs = new TreeSet<>();
+        for (DirCacheEntry entry : toWrite) {
+            String path = entry.getPathString();
+            for (int slash = path.indexOf('/'); slash > 0; slash = path.indexOf('/', slash + 1)) {
+                dirs.add(path.substring(0, slash));
+            }
+        }
+        for (String dir : dirs) {
+            File file = new File(workTree, dir);
+            if (file.isFile() || Files.isSymbolicLink(file.toPath())) {
+                FileUtils.delete(file);
+            }
+            if (!file.isDirectory()) {
+                FileUtils.mkdir(file, true);
+            }
+        }
+        for (DirCacheEntry entry : toWrite) {
+            File file = new File(workTree, entry.getPathString());
+            if (entry.getFileMode() != FileMode.GITLINK && file.isDirectory() && !Files.isSymbolicLink(file.toPath())) {
+                FileUtils.delete(file, FileUtils.RECURSIVE);
+            }
+        }
+    }
+
+    private static boolean delete(File workTree, File file) throws IOException {
+        if (!file.exists() && !Files.isSymbolicLink(file.toPath())) {
+            return false;
+        }
+        FileUtils.delete(file, FileUtils.RECURSIVE | FileUtils.RETRY);
+        // 删掉变空的父目录
+        for (File dir = file.getParentFile(); !dir.equals(workTree); dir = dir.getParentFile()) {
+            String[] children = dir.list();
+            if (children == null || children.length > 0 || !dir.delete()) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    private void writeAll(List<DirCacheEntry> toWrite, List<CheckoutMetadata> metadata, boolean plain, Result result)
+            throws IOException {
+        int slices = Math.max(1, Math.min(parallelism, (toWrite.size() + MIN_SLICE - 1) / MIN_SLICE));
+        int sliceSize = Math.max(1, (toWrite.size() + slices - 1) / slices);
+        AtomicLong bytes = new AtomicLong();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int from = 0; from < toWrite.size(); from += sliceSize) {
+            int to = Math.min(toWrite.size(), from + sliceSize);
+            List<DirCacheEntry> slice = toWrite.subList(from, to);
+            List<CheckoutMetadata> sliceMetadata = metadata.subList(from, to);
+            futures.add(CompletableFuture.runAsync(() -> writeSlice(slice, sliceMetadata, plain, bytes), executor));
+        }
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        result.written = toWrite.size();
+        result.bytes = bytes.get();
+    }
+
+    /**
+     * 一个分片用一个reader
+     */
+    private void writeSlice(List<DirCacheEntry> slice, List<CheckoutMetadata> metadata, boolean plain,
+                            AtomicLong bytes) {
+        File workTree = repository.getWorkTree();
+        try (ObjectReader reader = repository.newObjectReader()) {
+            for (int i = 0; i < slice.size(); i++) {
+                DirCacheEntry entry = slice.get(i);
+                File file = new File(workTree, entry.getPathString());
+                FileMode mode = entry.getFileMode();
+                if (mode == FileMode.GITLINK) {
+                    FileUtils.mkdirs(file, true);
+                    continue;
+                }
+                if (!plain || mode == FileMode.SYMLINK) {
+                    DirCacheCheckout.checkoutEntry(repository, entry, reader, false, metadata.get(i));
+                } else {
+                    write(reader, entry, file);
+                }
+                bytes.addAndGet(entry.getLength());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void write(ObjectReader reader, DirCacheEntry entry, File file) throws IOException {
+        ObjectLoader loader = reader.open(entry.getObjectId(), Constants.OBJ_BLOB);
+        long size = loader.getSize();
+        if (Files.isSymbolicLink(file.toPath())) {
+            FileUtils.delete(file);
+        }
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            if (size >= PREALLOCATE_THRESHOLD) {
+                out.setLength(size);
+            }
+            OutputStream stream = Channels.newOutputStream(out.getChannel());
+            loader.copyTo(stream);
+            // 原来的文件比新内容长时截掉多出来的部分
+            out.setLength(size);
+        }
+        if (FS.DETECTED.supportsExecute()) {
+            FS.DETECTED.setExecute(file, entry.getFileMode() == FileMode.EXECUTABLE_FILE);
+        }
+        entry.setLength(size);
+        entry.setLastModified(FS.DETECTED.lastModified(file));
+    }
+
+    /**
+     * 检出结果
+     */
+    public static final class Result {
+        private int written;
+        private int deleted;
+        private int unchanged;
+        private long bytes;
+        private long elapsedNanos;
+
+        /**
+         * @return 写到工作区的文件数
+         */
+        public int getWritten() {
+            return written;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @return 没变、没有重写的文件数
+         */
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * @return 写出的字节数
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        public double getFilesPerSecond() {
+            return elapsedNanos == 0 ? 0 : written * 1e9 / elapsedNanos;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "written=" + written + " deleted=" + deleted + " unchanged=" + unchanged
+                    + " " + String.format("%.0f", getFilesPerSecond()) + " files/s"
+                    + " " + String.format("%.0f", getBytesPerSecond() / 1024) + " KB/s";
+        }
+    }
+}
@@ -0,0 +1,850 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.FileSnapshot;
+import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.internal.storage.io.BlockSource;
+import org.eclipse.jgit.internal.storage.reftable.MergedReftable;
+import org.eclipse.jgit.internal.storage.reftable.RefCursor;
+import org.eclipse.jgit.internal.storage.reftable.ReftableCompactor;
+import org.eclipse.jgit.internal.storage.reftable.ReftableConfig;
+import org.eclipse.jgit.internal.storage.reftable.ReftableReader;
+import org.eclipse.jgit.internal.storage.reftable.ReftableWriter;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefRename;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.SymbolicRef;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+
+/**
+ * 用reftable存引用
+ * .git/reftable下是一叠reftable文件,tables.list按从旧到新列出,后面的表覆盖前面的同名引用
+ * reftable按引用名排序、分块建索引、前缀压缩,查一个引用或者按前缀列引用只读几个块,
+ * 不用像packed-refs那样整个读进内存,更新时只追加一张小表,不用重写全部引用
+ * 每次更新(包括BatchRefUpdate)写一张表,换tables.list是原子的,所以多个引用一起更新也是原子的
+ * 表的个数按几何级数自动合并,新表比下面的表大一半以上时和它合成一张
+ * reflog和文件仓库一样追加到logs目录下,Repository.getReflogReader照常能读
+ * 写之前锁tables.list.lock,和其他进程互斥;读不加文件锁,tables.list变了就重新加载
+ * 合并掉的表别的进程可能还开着,删不掉时留着,打开仓库和每次写的时候再删
+ */
+public class GitReftableDatabase extends RefDatabase {
+    static final String DIR = "reftable";
+    static final String TABLES_LIST = "tables.list";
+
+    private final Repository repository;
+    private final File dir;
+    private final File tablesList;
+    private final ReftableConfig config;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Stack stack;
+    private boolean swept;
+
+    public GitReftableDatabase(Repository repository) {
+        this.repository = repository;
+        this.dir = new File(repository.getDirectory(), DIR);
+        this.tablesList = new File(dir, TABLES_LIST);
+        this.config = new ReftableConfig(repository);
+    }
+
+    @Override
+    public void create() throws IOException {
+        Files.createDirectories(dir.toPath());
+        if (!tablesList.exists()) {
+            Files.write(tablesList.toPath(), new byte[0]);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (stack != null) {
+            stack.close();
+            stack = null;
+        }
+    }
+
+    @Override
+    public void refresh() {
+        close();
+    }
+
+    @Override
+    public boolean performsAtomicTransactions() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isNameConflicting(String name) throws IOException {
+        MergedReftable merged = stack().merged;
+        // 已有的引用是name的上级目录
+        for (int slash = name.lastIndexOf('/'); slash > 0; slash = name.lastIndexOf('/', slash - 1)) {
+            if (merged.hasRef(name.substring(0, slash))) {
+                return true;
+            }
+        }
+        // name是已有引用的上级目录
+        return merged.hasRefsWithPrefix(name + "/");
+    }
+
+    @Override
+    public synchronized Ref exactRef(String name) throws IOException {
+        MergedReftable merged = stack().merged;
+        Ref ref = merged.exactRef(name);
+        return ref != null && ref.isSymbolic() ? merged.resolve(ref) : ref;
+    }
+
+    /**
+     * 按前缀列引用,只扫描前缀覆盖的那一段
+     */
+    @Override
+    public synchronized List<Ref> getRefsByPrefix(String prefix) throws IOException {
+        MergedReftable merged = stack().merged;
+        List<Ref> refs = new ArrayList<>();
+        try (RefCursor cursor = prefix.isEmpty() ? merged.allRefs() : merged.seekRefsWithPrefix(prefix)) {
+            while (cursor.next()) {
+                Ref ref = cursor.getRef();
+                if (ref.isSymbolic()) {
+                    ref = merged.resolve(ref);
+                }
+                // 指向不存在的分支的符号引用不列出来,和RefDirectory一样
+                if (ref != null && ref.getObjectId() != null) {
+                    refs.add(ref);
+                }
+            }
+        }
+        return Collections.unmodifiableList(refs);
+    }
+
+    /**
+     * RefDatabase要求实现的旧接口,列引用用{@link #getRefsByPrefix(String)}
+     */
+    @Override
+    @Deprecated
+    public Map<String, Ref> getRefs(String prefix) throws IOException {
+        Map<String, Ref> refs = new LinkedHashMap<>();
+        for (Ref ref : getRefsByPrefix(prefix)) {
+            refs.put(ref.getName().substring(prefix.length()), ref);
+        }
+        return refs;
+    }
+
+    @Override
+    public List<Ref> getAdditionalRefs() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 写进表里的引用都带了剥离值,只有别处构造的引用才需要解析
+     */
+    @Override
+    public Ref peel(Ref ref) throws IOException {
+        Ref leaf = ref.getLeaf();
+        if (leaf.isPeeled() || leaf.getObjectId() == null) {
+            return ref;
+        }
+        try (RevWalk walk = new RevWalk(repository)) {
+            Ref peeled = peeledRef(walk, leaf.getName(), leaf.getObjectId());
+            return ref.isSymbolic() ? new SymbolicRef(ref.getName(), peeled) : peeled;
+        }
+    }
+
+    @Override
+    public RefUpdate newUpdate(String name, boolean detach) throws IOException {
+        Ref ref = exactRef(name);
+        if (ref == null) {
+            ref = new ObjectIdRef.Unpeeled(Ref.Storage.NEW, name, null);
+        } else if (detach && ref.isSymbolic()) {
+            ref = new ObjectIdRef.Unpeeled(Ref.Storage.LOOSE, name, ref.getObjectId());
+        }
+        return new ReftableRefUpdate(ref);
+    }
+
+    @Override
+    public RefRename newRename(String fromName, String toName) throws IOException {
+        return new ReftableRefRename(newUpdate(fromName, false), newUpdate(toName, false));
+    }
+
+    @Override
+    public BatchRefUpdate newBatchUpdate() {
+        return new ReftableBatchRefUpdate();
+    }
+
+    /**
+     * @return 当前叠了几张表
+     * @throws IOException
+     */
+    public synchronized int getTableCount() throws IOException {
+        return stack().names.size();
+    }
+
+    /**
+     * 把所有表合成一张,删掉的引用不再保留
+     * 别的进程正在写时不等待,直接返回0
+     *
+     * @return 合并掉的表数
+     * @throws IOException
+     */
+    public int compact() throws IOException {
+        LockFile lock = lockStack();
+        if (lock == null) {
+            return 0;
+        }
+        try {
+            Stack current = stack();
+            if (current.names.size() <= 1) {
+                return 0;
+            }
+            List<String> obsolete = new ArrayList<>(current.names);
+            String compacted = compactTables(current, obsolete, false);
+            writeList(lock, Collections.singletonList(compacted), obsolete);
+            return obsolete.size();
+        } finally {
+            unlockStack(lock);
+        }
+    }
+
+    /**
+     * 新建reftable,用来从文件存储迁移
+     *
+     * @param gitDir
+     * @param refs 符号引用的目标可以不存在
+     * @param config
+     * @throws IOException
+     */
+    static void create(File gitDir, Collection<Ref> refs, ReftableConfig config) throws IOException {
+        File dir = new File(gitDir, DIR);
+        Files.createDirectories(dir.toPath());
+        // 先拿锁再写表,拿着锁的进程看到的不在列表里的表都可以删
+        LockFile lock = new LockFile(new File(dir, TABLES_LIST));
+        if (!lock.lock()) {
+            throw new IOException("Could not lock " + new File(dir, TABLES_LIST));
+        }
+        try {
+            String name = writeTable(dir, 1, 1, out -> {
+                ReftableWriter writer = new ReftableWriter(config)
+                        .setMinUpdateIndex(1)
+                        .setMaxUpdateIndex(1)
+                        .begin(out);
+                List<Ref> sorted = new ArrayList<>(refs);
+                sorted.sort(Comparator.comparing(Ref::getName));
+                for (Ref ref : sorted) {
+                    writer.writeRef(ref, 1);
+                }
+                writer.finish();
+            });
+            lock.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+            if (!lock.commit()) {
+                throw new IOException("Could not write " + new File(dir, TABLES_LIST));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 当前的表栈,tables.list被改过时重新加载
+     */
+    private synchronized Stack stack() throws IOException {
+        if (stack == null || stack.snapshot.isModified(tablesList)) {
+            stack = load(stack);
+        }
+        if (!swept) {
+            // 打开后第一次读时清理以前没删掉的表,别的进程在写就等下次写的时候
+            swept = true;
+            LockFile lock = new LockFile(tablesList);
+            if (lock.lock()) {
+                try {
+                    stack = load(stack);
+                    deleteObsolete(stack.names);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return stack;
+    }
+
+    /**
+     * 加载tables.list里的表,名字没变的表继续用已经打开的
+     * 读列表和打开文件之间表可能被别的进程合并删掉,这时重新读列表
+     */
+    private Stack load(Stack previous) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            FileSnapshot snapshot = FileSnapshot.save(tablesList);
+            List<String> names = new ArrayList<>();
+            if (tablesList.exists()) {
+                for (String line : Files.readAllLines(tablesList.toPath(), StandardCharsets.UTF_8)) {
+                    if (!line.trim().isEmpty()) {
+                        names.add(line.trim());
+                    }
+                }
+            }
+            Map<String, ReftableReader> readers = new LinkedHashMap<>();
+            List<ReftableReader> opened = new ArrayList<>();
+            try {
+                for (String name : names) {
+                    ReftableReader reader = previous != null ? previous.readers.get(name) : null;
+                    if (reader == null) {
+                        reader = open(new File(dir, name));
+                        opened.add(reader);
+                    }
+                    readers.put(name, reader);
+                }
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                for (ReftableReader reader : opened) {
+                    reader.close();
+                }
+                if (attempt < 3) {
+                    continue;
+                }
+                throw e;
+            }
+            if (previous != null) {
+                for (Map.Entry<String, ReftableReader> entry : previous.readers.entrySet()) {
+                    if (readers.get(entry.getKey()) != entry.getValue()) {
+                        entry.getValue().close();
+                    }
+                }
+            }
+            return new Stack(snapshot, names, readers);
+        }
+    }
+
+    private static ReftableReader open(File file) throws IOException {
+        return new ReftableReader(BlockSource.from(new FileInputStream(file)));
+    }
+
+    /**
+     * 拿写锁,先拿进程内的锁再锁tables.list,然后重新加载表栈
+     *
+     * @return 别的进程在写时返回null
+     */
+    private LockFile lockStack() throws IOException {
+        writeLock.lock();
+        try {
+            Files.createDirectories(dir.toPath());
+            LockFile lock = new LockFile(tablesList);
+            if (!lock.lock()) {
+                writeLock.unlock();
+                return null;
+            }
+            synchronized (this) {
+                stack = load(stack);
+                deleteObsolete(stack.names);
+            }
+            return lock;
+        } catch (IOException | RuntimeException e) {
+            writeLock.unlock();
+            throw e;
+        }
+    }
+
+    private void unlockStack(LockFile lock) {
+        lock.unlock();
+        writeLock.unlock();
+    }
+
+    /**
+     * 追加一张表,需要时和下面的表合并,最后换掉tables.list,再记reflog
+     * 调用方拿着写锁
+     *
+     * @param lock
+     * @param refs 删除的引用用没有对象id的NEW引用表示
+     * @param logs
+     * @throws IOException
+     */
+    private void commit(LockFile lock, Collection<Ref> refs, List<LogRecord> logs) throws IOException {
+        Stack current = stack();
+        long index = current.maxUpdateIndex() + 1;
+        String name = writeTable(dir, index, index, out -> {
+            ReftableWriter writer = new ReftableWriter(config)
+                    .setMinUpdateIndex(index)
+                    .setMaxUpdateIndex(index)
+                    .begin(out);
+            List<Ref> sorted = new ArrayList<>(refs);
+            sorted.sort(Comparator.comparing(Ref::getName));
+            for (Ref ref : sorted) {
+                writer.writeRef(ref, index);
+            }
+            writer.finish();
+        });
+
+        List<String> names = new ArrayList<>(current.names);
+        names.add(name);
+        // 几何级数合并: 从最新的表往下,下面的表不到上面几张加起来的两倍就并进来
+        int start = names.size() - 1;
+        long sum = new File(dir, name).length();
+        while (start > 0 && new File(dir, names.get(start - 1)).length() < 2 * sum) {
+            start--;
+            sum += new File(dir, names.get(start)).length();
+        }
+        List<String> obsolete = Collections.emptyList();
+        if (start < names.size() - 1) {
+            obsolete = new ArrayList<>(names.subList(start, names.size()));
+            String compacted = compactTables(current, obsolete, start > 0);
+            names = new ArrayList<>(names.subList(0, start));
+            names.add(compacted);
+        }
+        writeList(lock, names, obsolete);
+
+        for (Ref ref : refs) {
+            if (!ref.isSymbolic() && ref.getObjectId() == null) {
+                // 删掉的引用reflog也删掉,和RefDirectory一样
+                Files.deleteIfExists(logFile(ref.getName()).toPath());
+            }
+        }
+        for (LogRecord log : logs) {
+            appendLog(log);
+        }
+    }
+
+    private File logFile(String refName) {
+        return new File(new File(repository.getDirectory(), Constants.LOGS), refName);
+    }
+
+    /**
+     * 分支、远程分支、notes和HEAD记reflog,其他引用已经有reflog文件时才记,和core.logAllRefUpdates的默认行为一样
+     */
+    private void appendLog(LogRecord log) throws IOException {
+        File file = logFile(log.refName);
+        boolean wanted = log.refName.equals(Constants.HEAD)
+                || log.refName.startsWith(Constants.R_HEADS)
+                || log.refName.startsWith(Constants.R_REMOTES)
+                || log.refName.startsWith(Constants.R_NOTES)
+                || file.exists();
+        if (!wanted) {
+            return;
+        }
+        String line = log.oldId.name() + " " + log.newId.name() + " " + log.who.toExternalString()
+                + "\t" + log.message.replace('\n', ' ') + "\n";
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), line.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * 把连续的几张表合成一张
+     *
+     * @param includeDeletes 合并的不是最底下的表时要保留删除记录,否则会露出更早的值
+     */
+    private String compactTables(Stack current, List<String> names, boolean includeDeletes) throws IOException {
+        List<ReftableReader> readers = new ArrayList<>();
+        List<ReftableReader> opened = new ArrayList<>();
+        try {
+            for (String name : names) {
+                ReftableReader reader = current.readers.get(name);
+                if (reader == null) {
+                    reader = open(new File(dir, name));
+                    opened.add(reader);
+                }
+                readers.add(reader);
+            }
+            long min = readers.get(0).minUpdateIndex();
+            long max = readers.get(readers.size() - 1).maxUpdateIndex();
+            return writeTable(dir, min, max, out -> {
+                ReftableCompactor compactor = new ReftableCompactor()
+                        .setConfig(config)
+                        .setIncludeDeletes(includeDeletes)
+                        .setMinUpdateIndex(min)
+                        .setMaxUpdateIndex(max);
+                compactor.addAll(readers);
+                compactor.compact(out);
+            });
+        } finally {
+            for (ReftableReader reader : opened) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * 换tables.list并重新加载,再删掉合并掉的表
+     * 别的进程可能还开着旧表,删不掉就留给下次
+     */
+    private void writeList(LockFile lock, List<String> names, List<String> obsolete) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (String name : names) {
+            content.append(name).append('\n');
+        }
+        lock.write(content.toString().getBytes(StandardCharsets.UTF_8));
+        if (!lock.commit()) {
+            throw new IOException("Could not write " + tablesList);
+        }
+        synchronized (this) {
+            stack = load(stack);
+        }
+        for (String name : obsolete) {
+            new File(dir, name).delete();
+        }
+    }
+
+    /**
+     * 删掉目录里不在tables.list中的表,调用方拿着tables.list.lock,这时不会有正在写的新表
+     * 还被别的进程开着删不掉的,留到下次
+     */
+    private void deleteObsolete(List<String> names) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".ref") && !names.contains(name));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 写一张表,文件名是更新序号范围加随机数,和git的命名方式一样
+     */
+    private static String writeTable(File dir, long min, long max, TableOutput output) throws IOException {
+        String name = String.format("0x%012x-0x%012x-%08x.ref", min, max, ThreadLocalRandom.current().nextInt());
+        File file = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            output.write(out);
+            out.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+        return name;
+    }
+
+    private interface TableOutput {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static Ref peeledRef(RevWalk walk, String name, ObjectId id) throws IOException {
+        RevObject object = walk.parseAny(id);
+        if (object instanceof RevTag) {
+            return new ObjectIdRef.PeeledTag(Ref.Storage.PACKED, name, id, walk.peel(object).copy());
+        }
+        return new ObjectIdRef.PeeledNonTag(Ref.Storage.PACKED, name, id);
+    }
+
+    private static Ref deletedRef(String name) {
+        return new ObjectIdRef.Unpeeled(Ref.Storage.NEW, name, null);
+    }
+
+    private static Ref symbolicRef(String name, String target) {
+        return new SymbolicRef(name, new ObjectIdRef.Unpeeled(Ref.Storage.NEW, target, null));
+    }
+
+    private PersonIdent ident(PersonIdent ident) {
+        return ident != null ? ident : new PersonIdent(repository);
+    }
+
+    private static String withResult(String message, boolean includeResult, String result) {
+        if (!includeResult || result == null) {
+            return message;
+        }
+        return message.isEmpty() ? result : message + ": " + result;
+    }
+
+    /**
+     * 一次打开的表栈
+     */
+    private static final class Stack {
+        final FileSnapshot snapshot;
+        final List<String> names;
+        final Map<String, ReftableReader> readers;
+        final MergedReftable merged;
+
+        Stack(FileSnapshot snapshot, List<String> names, Map<String, ReftableReader> readers) {
+            this.snapshot = snapshot;
+            this.names = names;
+            this.readers = readers;
+            this.merged = new MergedReftable(new ArrayList<>(readers.values()));
+        }
+
+        long maxUpdateIndex() throws IOException {
+            return names.isEmpty() ? 0 : readers.get(names.get(names.size() - 1)).maxUpdateIndex();
+        }
+
+        void close() {
+            for (ReftableReader reader : readers.values()) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // 只读,关闭失败不影响结果
+                }
+            }
+        }
+    }
+
+    private static final class LogRecord {
+        final String refName;
+        final PersonIdent who;
+        final ObjectId oldId;
+        final ObjectId newId;
+        final String message;
+
+        LogRecord(String refName, PersonIdent who, ObjectId oldId, ObjectId newId, String message) {
+            this.refName = refName;
+            this.who = who;
+            this.oldId = oldId != null ? oldId : ObjectId.zeroId();
+            this.newId = newId != null ? newId : ObjectId.zeroId();
+            this.message = message;
+        }
+    }
+
+    /**
+     * 单个引用的更新,锁住整个表栈,写一张只有这个引用的表
+     */
+    private final class ReftableRefUpdate extends RefUpdate {
+        private LockFile lock;
+        private String dst;
+
+        ReftableRefUpdate(Ref ref) {
+            super(ref);
+        }
+
+        @Override
+        protected RefDatabase getRefDatabase() {
+            return GitReftableDatabase.this;
+        }
+
+        @Override
+        protected Repository getRepository() {
+            return repository;
+        }
+
+        @Override
+        protected boolean tryLock(boolean deref) throws IOException {
+            lock = lockStack();
+            if (lock == null) {
+                return false;
+            }
+            dst = deref ? getRef().getLeaf().getName() : getRef().getName();
+            Ref current = exactRef(dst);
+            setOldObjectId(current != null ? current.getObjectId() : null);
+            return true;
+        }
+
+        @Override
+        protected void unlock() {
+            if (lock != null) {
+                unlockStack(lock);
+                lock = null;
+            }
+        }
+
+        @Override
+        protected Result doUpdate(Result status) throws IOException {
+            Ref ref;
+            try (RevWalk walk = new RevWalk(repository)) {
+                ref = peeledRef(walk, dst, getNewObjectId());
+            }
+            List<LogRecord> logs = new ArrayList<>();
+            if (getRefLogMessage() != null) {
+                String message = withResult(getRefLogMessage(), isRefLogIncludingResult(), resultString(status));
+                PersonIdent who = ident(getRefLogIdent());
+                logs.add(new LogRecord(dst, who, getOldObjectId(), getNewObjectId(), message));
+                // 通过HEAD更新分支时HEAD也记一条
+                if (!dst.equals(getRef().getName())) {
+                    logs.add(new LogRecord(getRef().getName(), who, getOldObjectId(), getNewObjectId(), message));
+                }
+            }
+            commit(lock, Collections.singletonList(ref), logs);
+            return status;
+        }
+
+        @Override
+        protected Result doDelete(Result status) throws IOException {
+            commit(lock, Collections.singletonList(deletedRef(dst)), Collections.emptyList());
+            return status;
+        }
+
+        @Override
+        protected Result doLink(String target) throws IOException {
+            List<LogRecord> logs = new ArrayList<>();
+            if (getRefLogMessage() != null) {
+                logs.add(new LogRecord(getName(), ident(getRefLogIdent()), getOldObjectId(), getNewObjectId(),
+                        getRefLogMessage()));
+            }
+            commit(lock, Collections.singletonList(symbolicRef(getName(), target)), logs);
+            return getRef().getStorage() == Ref.Storage.NEW ? Result.NEW : Result.FORCED;
+        }
+
+        private String resultString(Result status) {
+            switch (status) {
+                case FORCED:
+                    return "forced-update";
+                case FAST_FORWARD:
+                    return "fast-forward";
+                case NEW:
+                    return "created";
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * 改名: 删旧引用、建新引用、HEAD指向旧分支时跟着改,写在同一张表里
+     */
+    private final class ReftableRefRename extends RefRename {
+        ReftableRefRename(RefUpdate source, RefUpdate destination) {
+            super(source, destination);
+        }
+
+        @Override
+        protected RefUpdate.Result doRename() throws IOException {
+            LockFile lock = lockStack();
+            if (lock == null) {
+                return RefUpdate.Result.LOCK_FAILURE;
+            }
+            try {
+                MergedReftable merged = stack().merged;
+                String from = source.getName();
+                String to = destination.getName();
+                Ref src = merged.exactRef(from);
+                if (src == null || src.isSymbolic() || src.getObjectId() == null) {
+                    return RefUpdate.Result.IO_FAILURE;
+                }
+                if (merged.hasRef(to)) {
+                    return RefUpdate.Result.LOCK_FAILURE;
+                }
+                List<Ref> refs = new ArrayList<>();
+                refs.add(deletedRef(from));
+                refs.add(src.getPeeledObjectId() != null
+                        ? new ObjectIdRef.PeeledTag(Ref.Storage.PACKED, to, src.getObjectId(), src.getPeeledObjectId())
+                        : new ObjectIdRef.PeeledNonTag(Ref.Storage.PACKED, to, src.getObjectId()));
+                if (needToUpdateHEAD()) {
+                    refs.add(symbolicRef(Constants.HEAD, to));
+                }
+                File fromLog = logFile(from);
+                if (fromLog.exists()) {
+                    File toLog = logFile(to);
+                    Files.createDirectories(toLog.getParentFile().toPath());
+                    Files.move(fromLog.toPath(), toLog.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                List<LogRecord> logs = new ArrayList<>();
+                if (destination.getRefLogMessage() != null) {
+                    logs.add(new LogRecord(to, ident(destination.getRefLogIdent()), src.getObjectId(),
+                            src.getObjectId(), destination.getRefLogMessage()));
+                }
+                commit(lock, refs, logs);
+                return RefUpdate.Result.RENAMED;
+            } finally {
+                unlockStack(lock);
+            }
+        }
+    }
+
+    /**
+     * 批量更新,校验全部命令后写一张表
+     * 原子模式下有一条失败就全部不生效
+     */
+    private final class ReftableBatchRefUpdate extends BatchRefUpdate {
+        ReftableBatchRefUpdate() {
+            super(GitReftableDatabase.this);
+        }
+
+        @Override
+        public void execute(RevWalk walk, ProgressMonitor monitor, List<String> options) throws IOException {
+            List<ReceiveCommand> pending = ReceiveCommand.filter(getCommands(), ReceiveCommand.Result.NOT_ATTEMPTED);
+            if (pending.isEmpty()) {
+                return;
+            }
+            LockFile lock = lockStack();
+            if (lock == null) {
+                for (ReceiveCommand command : pending) {
+                    command.setResult(ReceiveCommand.Result.LOCK_FAILURE);
+                }
+                return;
+            }
+            try {
+                MergedReftable merged = stack().merged;
+                Map<String, Ref> refs = new HashMap<>();
+                List<LogRecord> logs = new ArrayList<>();
+                List<ReceiveCommand> accepted = new ArrayList<>();
+                PersonIdent who = ident(getRefLogIdent());
+                for (ReceiveCommand command : pending) {
+                    String name = command.getRefName();
+                    Ref current = merged.exactRef(name);
+                    ObjectId oldId = current != null && current.getObjectId() != null
+                            ? current.getObjectId() : ObjectId.zeroId();
+                    if (!oldId.equals(command.getOldId()) || (current != null && current.isSymbolic())) {
+                        command.setResult(ReceiveCommand.Result.LOCK_FAILURE);
+                        continue;
+                    }
+                    if (refs.containsKey(name)) {
+                        command.setResult(ReceiveCommand.Result.REJECTED_OTHER_REASON, "duplicate ref");
+                        continue;
+                    }
+                    if (command.getType() == ReceiveCommand.Type.DELETE) {
+                        refs.put(name, deletedRef(name));
+                        accepted.add(command);
+                        continue;
+                    }
+                    if (command.getType() == ReceiveCommand.Type.CREATE && isNameConflicting(name)) {
+                        command.setResult(ReceiveCommand.Result.LOCK_FAILURE, "name conflict");
+                        continue;
+                    }
+                    Ref ref;
+                    try {
+                        ref = peeledRef(walk, name, command.getNewId());
+                    } catch (MissingObjectException e) {
+                        command.setResult(ReceiveCommand.Result.REJECTED_MISSING_OBJECT);
+                        continue;
+                    }
+                    if (command.getType() == ReceiveCommand.Type.UPDATE) {
+                        command.updateType(walk);
+                    }
+                    if (command.getType() == ReceiveCommand.Type.UPDATE_NONFASTFORWARD && !isAllowNonFastForwards()) {
+                        command.setResult(ReceiveCommand.Result.REJECTED_NONFASTFORWARD);
+                        continue;
+                    }
+                    refs.put(name, ref);
+                    accepted.add(command);
+                    if (!isRefLogDisabled() && getRefLogMessage() != null) {
+                        String result = command.getType() == ReceiveCommand.Type.CREATE ? "created"
+                                : command.getType() == ReceiveCommand.Type.UPDATE ? "fast-forward" : "forced-update";
+                        logs.add(new LogRecord(name, who, command.getOldId(), command.getNewId(),
+                                withResult(getRefLogMessage(), isRefLogIncludingResult(), result)));
+                    }
+                }
+                if (accepted.size() < pending.size() && isAtomic()) {
+                    ReceiveCommand.abort(pending);
+                    return;
+                }
+                if (!accepted.isEmpty()) {
+                    commit(lock, refs.values(), logs);
+                }
+                for (ReceiveCommand command : accepted) {
+                    command.setResult(ReceiveCommand.Result.OK);
+                }
+            } finally {
+                unlockStack(lock);
+            }
+        }
+    }
+}
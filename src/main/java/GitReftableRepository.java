@@ -0,0 +1,118 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.reftable.ReftableConfig;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.SymbolicRef;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * 引用存在reftable里的文件仓库
+ * 对象、索引、配置、reflog和普通文件仓库一样,只有引用换成GitReftableDatabase,
+ * Git命令(branchCreate、checkout、commit、tag等)都照常可用
+ * .git/reftable/tables.list存在时按reftable打开,否则就是普通文件仓库
+ * 迁移后HEAD文件指向refs/heads/.invalid(和git的做法一样),不认识reftable的程序只能看到没有分支的空仓库,
+ * 所以迁移过的仓库要用这个类打开,不能用Git.open和FileRepositoryBuilder
+ */
+public class GitReftableRepository extends FileRepository {
+    private static final String INVALID_HEAD = "ref: refs/heads/.invalid\n";
+
+    private final GitReftableDatabase reftable;
+
+    /**
+     * @param gitDir .git目录
+     * @throws IOException
+     */
+    public GitReftableRepository(File gitDir) throws IOException {
+        super(gitDir);
+        reftable = isReftable(gitDir) ? new GitReftableDatabase(this) : null;
+    }
+
+    /**
+     * 打开工作区或者.git目录
+     *
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    public static GitReftableRepository open(File dir) throws IOException {
+        File dotGit = new File(dir, Constants.DOT_GIT);
+        return new GitReftableRepository(dotGit.isDirectory() ? dotGit : dir);
+    }
+
+    /**
+     * @param gitDir
+     * @return 引用是否存在reftable里
+     */
+    public static boolean isReftable(File gitDir) {
+        return new File(new File(gitDir, GitReftableDatabase.DIR), GitReftableDatabase.TABLES_LIST).isFile();
+    }
+
+    @Override
+    public RefDatabase getRefDatabase() {
+        return reftable != null ? reftable : super.getRefDatabase();
+    }
+
+    /**
+     * 把文件存储的引用迁移到reftable,reflog留在logs目录下不用动
+     * 先写好reftable再删packed-refs和松散引用,迁移期间不能有别的进程改引用
+     * 传入的仓库迁移后不要再用,改用返回的仓库
+     *
+     * @param repository
+     * @return 迁移后的仓库,用完要close
+     * @throws IOException
+     */
+    public static GitReftableRepository migrate(Repository repository) throws IOException {
+        File gitDir = repository.getDirectory();
+        if (isReftable(gitDir)) {
+            return new GitReftableRepository(gitDir);
+        }
+        GitMaintenance.WriteGuard guard = GitMaintenance.beginWrite(repository);
+        try {
+            RefDatabase refDb = repository.getRefDatabase();
+            Map<String, Ref> refs = new TreeMap<>();
+            for (Ref ref : refDb.getRefs()) {
+                refs.put(ref.getName(), ref);
+            }
+            // 没有提交过时HEAD指向的分支还不存在,getRefs里没有HEAD
+            Ref head = refDb.exactRef(Constants.HEAD);
+            if (head != null) {
+                refs.put(Constants.HEAD, head);
+            }
+            List<Ref> converted = new ArrayList<>();
+            for (Ref ref : refs.values()) {
+                if (ref.isSymbolic()) {
+                    converted.add(new SymbolicRef(ref.getName(),
+                            new ObjectIdRef.Unpeeled(Ref.Storage.NEW, ref.getTarget().getName(), null)));
+                } else {
+                    converted.add(refDb.peel(ref));
+                }
+            }
+            GitReftableDatabase.create(gitDir, converted, new ReftableConfig(repository));
+
+            // reftable已经生效,再清掉旧的文件存储
+            Files.write(new File(gitDir, Constants.HEAD).toPath(), INVALID_HEAD.getBytes(StandardCharsets.UTF_8));
+            FileUtils.delete(new File(gitDir, Constants.PACKED_REFS), FileUtils.SKIP_MISSING);
+            File[] children = new File(gitDir, Constants.R_REFS).listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    FileUtils.delete(child, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+                }
+            }
+        } finally {
+            guard.close();
+        }
+        return new GitReftableRepository(gitDir);
+    }
+}
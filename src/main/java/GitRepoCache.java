@@ -0,0 +1,255 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * 仓库句柄缓存
+ * 以规范化后的git目录为key,同一个仓库只打开一次Repository,
+ * 调用方之间共享配置和pack列表,不再每次都重新读取
+ * 句柄带引用计数,引用归零后的仓库在空闲超时或者打开数量超过上限时才真正关闭
+ */
+public class GitRepoCache {
+    // 默认缓存,空闲5分钟回收,最多同时打开256个仓库
+    private static final GitRepoCache DEFAULT = new GitRepoCache(TimeUnit.MINUTES.toMillis(5), 256);
+
+    static {
+        GitMetrics.getDefault()
+                .registerGauge("repoCache.hits", () -> getDefault().getHits())
+                .registerGauge("repoCache.misses", () -> getDefault().getMisses())
+                .registerGauge("repoCache.open", () -> getDefault().size());
+    }
+
+    private final long idleTimeoutMillis;
+    private final int maxOpen;
+    // accessOrder为true,迭代顺序就是最近最少使用的顺序
+    private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long lastSweep = System.currentTimeMillis();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param idleTimeoutMillis 引用归零后多久没有被使用就关闭
+     * @param maxOpen           最多同时打开的仓库数,每个仓库都会占用文件句柄
+     */
+    public GitRepoCache(long idleTimeoutMillis, int maxOpen) {
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("maxOpen < 1: " + maxOpen);
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * 获取进程内共享的缓存
+     *
+     * @return
+     */
+    public static GitRepoCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * 按工作区目录打开仓库,等价于打开dir/.git
+     *
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    public Handle open(String dir) throws IOException {
+        return openGitDir(Paths.get(dir, ".git").toFile());
+    }
+
+    /**
+     * 按git目录打开仓库,用完必须close句柄
+     *
+     * @param gitDir
+     * @return
+     * @throws IOException
+     */
+    public Handle openGitDir(File gitDir) throws IOException {
+        File key = gitDir.getCanonicalFile();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            sweepIfDue(now);
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                entry.refs++;
+                entry.lastUsed = now;
+                return new Handle(key, entry);
+            }
+        }
+
+        // 构建仓库要读config,不在锁里做
+        misses.incrementAndGet();
+        // 迁移到reftable的仓库用FileRepositoryBuilder打开看不到引用
+        Repository repository = GitReftableRepository.isReftable(key)
+                ? new GitReftableRepository(key)
+                : new FileRepositoryBuilder()
+                .setGitDir(key)
+                .setMustExist(true)
+                .build();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                // 其他线程抢先打开了同一个仓库,用它的,自己这个关掉
+                repository.close();
+            } else {
+                entry = new Entry(repository);
+                entries.put(key, entry);
+            }
+            entry.refs++;
+            entry.lastUsed = now;
+            evictOverflow();
+            return new Handle(key, entry);
+        }
+    }
+
+    /**
+     * 关闭所有引用归零并且超过空闲时间的仓库
+     *
+     * @return 本次关闭的数量
+     */
+    public synchronized int evictIdle() {
+        long now = System.currentTimeMillis();
+        lastSweep = now;
+        int evicted = 0;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.refs == 0 && now - entry.lastUsed >= idleTimeoutMillis) {
+                it.remove();
+                close(entry);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * 关闭所有引用归零的仓库,还在使用的保留
+     */
+    public synchronized void clear() {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.refs == 0) {
+                it.remove();
+                close(entry);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GitRepoCache[open=" + size() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+
+    private void sweepIfDue(long now) {
+        // 不开后台线程,打开仓库的时候顺便清理
+        if (now - lastSweep >= Math.max(idleTimeoutMillis / 4, 1000)) {
+            evictIdle();
+        }
+    }
+
+    private void evictOverflow() {
+        // 超过上限时从最久没用的开始关,正在使用的跳过
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxOpen && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refs == 0) {
+                it.remove();
+                close(entry);
+            }
+        }
+    }
+
+    private void close(Entry entry) {
+        evictions.incrementAndGet();
+        entry.repository.close();
+    }
+
+    private synchronized void release(File key, Entry entry) {
+        entry.refs--;
+        entry.lastUsed = System.currentTimeMillis();
+        if (entry.refs == 0 && entries.get(key) == entry && entries.size() > maxOpen) {
+            evictOverflow();
+        }
+    }
+
+    private static final class Entry {
+        final Repository repository;
+        int refs;
+        long lastUsed;
+
+        Entry(Repository repository) {
+            this.repository = repository;
+        }
+    }
+
+    /**
+     * 仓库句柄,close只是归还引用,不会关闭仓库
+     */
+    public final class Handle implements AutoCloseable {
+        private final File key;
+        private final Entry entry;
+        private boolean closed;
+
+        private Handle(File key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        public Repository getRepository() {
+            return entry.repository;
+        }
+
+        /**
+         * 包装成Git对象,Git.close()归还这个句柄,不会关闭共享的仓库
+         *
+         * @return
+         */
+        public Git git() {
+            return new Git(entry.repository) {
+                @Override
+                public void close() {
+                    Handle.this.close();
+                }
+            };
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(key, entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheCheckout.CheckoutMetadata;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.CheckoutConflictException;
+import org.eclipse.jgit.ignore.IgnoreNode;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * 稀疏检出
+ * 索引里保留目标提交的全部文件,工作区只写出匹配规则的文件,
+ * 其他文件在索引里标记为assume-valid,status不会把它们当成被删除
+ * 规则和.git/info/sparse-checkout一样用gitignore的写法,比如"docs/"、"!docs/old/"
+ * 部分克隆里缺少的blob在写文件之前一次性批量拉取
+ * 只改写内容有变化的文件,不再匹配的文件从工作区删掉;内容没变的文件保留本地修改,
+ * 要改写或删除的文件有本地修改时抛出CheckoutConflictException,索引和工作区都不动
+ * 注意: 之后要用这个类切换提交,普通的checkout/reset会写出全部文件
+ */
+public class GitSparseCheckout {
+    private static final String SPARSE_FILE = "info/sparse-checkout";
+
+    private final Repository repository;
+    private List<String> patterns = Collections.emptyList();
+    private GitLazyFetcher fetcher;
+
+    public GitSparseCheckout(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * 检出规则,为空时检出全部文件
+     *
+     * @param patterns
+     * @return
+     */
+    public GitSparseCheckout setPatterns(Collection<String> patterns) {
+        this.patterns = patterns == null ? Collections.emptyList() : new ArrayList<>(patterns);
+        return this;
+    }
+
+    /**
+     * 部分克隆时用来拉取缺少的blob,为null时缺少对象直接报错
+     *
+     * @param fetcher
+     * @return
+     */
+    public GitSparseCheckout setLazyFetcher(GitLazyFetcher fetcher) {
+        this.fetcher = fetcher;
+        return this;
+    }
+
+    /**
+     * 把索引和工作区切换到指定提交,不修改HEAD和分支
+     * 工作区文件和索引里的不一样时不改写也不删除,有这样的文件就什么都不做,抛出冲突
+     *
+     * @param commitId
+     * @return
+     * @throws CheckoutConflictException 要改写或删除的文件有本地修改
+     * @throws IOException
+     */
+    public Result checkout(AnyObjectId commitId) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        IgnoreNode rules = rules();
+        File workTree = repository.getWorkTree();
+        DirCache dirCache = repository.lockDirCache();
+        try (ObjectReader reader = repository.newObjectReader();
+             RevWalk revWalk = new RevWalk(reader);
+             TreeWalk treeWalk = new TreeWalk(repository, reader)) {
+            Map<String, DirCacheEntry> old = new HashMap<>();
+            for (int i = 0; i < dirCache.getEntryCount(); i++) {
+                DirCacheEntry entry = dirCache.getEntry(i);
+                old.put(entry.getPathString(), entry);
+            }
+            GitParallelCheckout.Stat stat = GitParallelCheckout.Stat.of(repository, dirCache, reader);
+
+            treeWalk.addTree(revWalk.parseCommit(commitId).getTree());
+            treeWalk.setRecursive(true);
+            // 换行符转换和smudge过滤器按.gitattributes决定
+            treeWalk.setOperationType(TreeWalk.OperationType.CHECKOUT_OP);
+            List<DirCacheEntry> entries = new ArrayList<>();
+            List<DirCacheEntry> toWrite = new ArrayList<>();
+            List<CheckoutMetadata> metadata = new ArrayList<>();
+            Set<ObjectId> missing = new LinkedHashSet<>();
+            List<String> toDelete = new ArrayList<>();
+            List<String> conflicts = new ArrayList<>();
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                FileMode mode = treeWalk.getFileMode(0);
+                ObjectId id = treeWalk.getObjectId(0);
+                DirCacheEntry entry = new DirCacheEntry(path);
+                entry.setFileMode(mode);
+                entry.setObjectId(id);
+
+                DirCacheEntry previous = old.remove(path);
+                File file = new File(workTree, path);
+                if (!matches(rules, path)) {
+                    entry.setAssumeValid(true);
+                    entries.add(entry);
+                    result.skipped++;
+                    if (previous != null && !previous.isAssumeValid()) {
+                        if (dirty(previous, file, stat)) {
+                            conflicts.add(path);
+                        } else {
+                            toDelete.add(path);
+                        }
+                    }
+                } else if (previous != null && !previous.isAssumeValid() && sameContent(previous, entry)) {
+                    // 内容没变,保留索引条目和本地修改
+                    entries.add(previous);
+                } else if (previous != null && dirty(previous, file, stat)) {
+                    entries.add(entry);
+                    conflicts.add(path);
+                } else {
+                    entries.add(entry);
+                    toWrite.add(entry);
+                    metadata.add(new CheckoutMetadata(treeWalk.getEolStreamType(TreeWalk.OperationType.CHECKOUT_OP),
+                            treeWalk.getFilterCommand(Constants.ATTR_FILTER_TYPE_SMUDGE)));
+                    if (mode != FileMode.GITLINK && !reader.has(id)) {
+                        missing.add(id);
+                    }
+                }
+            }
+            // 新提交里没有的文件
+            for (DirCacheEntry previous : old.values()) {
+                String path = previous.getPathString();
+                if (previous.isAssumeValid()) {
+                    continue;
+                }
+                if (dirty(previous, new File(workTree, path), stat)) {
+                    conflicts.add(path);
+                } else {
+                    toDelete.add(path);
+                }
+            }
+            if (!conflicts.isEmpty()) {
+                Collections.sort(conflicts);
+                throw new CheckoutConflictException(conflicts.toArray(new String[0]));
+            }
+            for (String path : toDelete) {
+                delete(workTree, path, result);
+            }
+
+            if (!missing.isEmpty() && fetcher != null) {
+                result.fetched = fetcher.fetch(missing);
+            }
+            for (int i = 0; i < toWrite.size(); i++) {
+                DirCacheEntry entry = toWrite.get(i);
+                if (entry.getFileMode() == FileMode.GITLINK) {
+                    FileUtils.mkdirs(new File(workTree, entry.getPathString()), true);
+                } else {
+                    DirCacheCheckout.checkoutEntry(repository, entry, reader, false, metadata.get(i));
+                }
+                result.written++;
+            }
+
+            DirCacheBuilder builder = dirCache.builder();
+            for (DirCacheEntry entry : entries) {
+                builder.add(entry);
+            }
+            if (!builder.commit()) {
+                throw new IOException("Could not write index " + repository.getIndexFile());
+            }
+        } finally {
+            dirCache.unlock();
+        }
+        writeSparseFile();
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private IgnoreNode rules() throws IOException {
+        if (patterns.isEmpty()) {
+            return null;
+        }
+        IgnoreNode rules = new IgnoreNode();
+        rules.parse(new ByteArrayInputStream(String.join("\n", patterns).getBytes(StandardCharsets.UTF_8)));
+        return rules;
+    }
+
+    /**
+     * 文件本身或者任意一级父目录匹配规则就检出,越靠近文件的结果优先
+     */
+    private static boolean matches(IgnoreNode rules, String path) {
+        if (rules == null) {
+            return true;
+        }
+        Boolean match = rules.checkIgnored(path, false);
+        for (int slash = path.lastIndexOf('/'); match == null && slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+            match = rules.checkIgnored(path.substring(0, slash), true);
+        }
+        return match != null && match;
+    }
+
+    private static boolean sameContent(DirCacheEntry a, DirCacheEntry b) {
+        return a.getObjectId().equals(b.getObjectId()) && a.getFileMode().equals(b.getFileMode());
+    }
+
+    /**
+     * 工作区文件和索引条目不一样;已经删掉的不算,没检出过的条目上出现了文件算
+     */
+    private static boolean dirty(DirCacheEntry previous, File file, GitParallelCheckout.Stat stat)
+            throws IOException {
+        if (!file.exists() && !Files.isSymbolicLink(file.toPath())) {
+            return false;
+        }
+        return previous.isAssumeValid() || stat.modified(previous, file);
+    }
+
+    private static void delete(File workTree, String path, Result result) throws IOException {
+        File file = new File(workTree, path);
+        if (!file.exists()) {
+            return;
+        }
+        FileUtils.delete(file, FileUtils.RECURSIVE | FileUtils.RETRY);
+        result.deleted++;
+        // 删掉变空的父目录
+        for (File dir = file.getParentFile(); !dir.equals(workTree); dir = dir.getParentFile()) {
+            String[] children = dir.list();
+            if (children == null || children.length > 0 || !dir.delete()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 规则写到.git/info/sparse-checkout,命令行git也能看到
+     */
+    private void writeSparseFile() throws IOException {
+        File file = new File(repository.getDirectory(), SPARSE_FILE);
+        StoredConfig config = repository.getConfig();
+        if (patterns.isEmpty()) {
+            FileUtils.delete(file, FileUtils.SKIP_MISSING);
+            config.unset(ConfigConstants.CONFIG_CORE_SECTION, null, "sparseCheckout");
+        } else {
+            FileUtils.mkdirs(file.getParentFile(), true);
+            Files.write(file.toPath(), (String.join("\n", patterns) + "\n").getBytes(StandardCharsets.UTF_8));
+            config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, "sparseCheckout", true);
+        }
+        config.save();
+    }
+
+    /**
+     * 检出结果
+     */
+    public static final class Result {
+        private int written;
+        private int deleted;
+        private int skipped;
+        private int fetched;
+        private long elapsedNanos;
+
+        /**
+         * @return 写到工作区的文件数
+         */
+        public int getWritten() {
+            return written;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @return 不匹配规则、没有写出的文件数
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return 从远端补拉的blob数
+         */
+        public int getFetched() {
+            return fetched;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return "written=" + written + " deleted=" + deleted + " skipped=" + skipped + " fetched=" + fetched;
+        }
+    }
+}
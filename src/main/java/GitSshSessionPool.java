@@ -0,0 +1,373 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+import com.jcraft.jsch.Session;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FtpChannel;
+import org.eclipse.jgit.transport.JschConfigSessionFactory;
+import org.eclipse.jgit.transport.OpenSshConfig;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * 带连接池的ssh会话工厂
+ * 传输结束时会话不断开,放回池里,下次连同一个(用户,主机,端口)时直接在已认证的会话上开新的exec通道,
+ * 一个会话上同时打开的通道数有上限,超过后再建新会话
+ * 私钥只解密一次,解密后的内容缓存在池里,这个池建出来的JSch实例共用,close时清零
+ * 空闲超时的会话在下次取会话时断开,也可以手动调用evictIdle
+ */
+public class GitSshSessionPool extends JschConfigSessionFactory implements AutoCloseable {
+    // 私钥路径、修改时间加口令摘要 -> {解密后的私钥, 公钥}
+    private final Map<String, byte[][]> decrypted = new ConcurrentHashMap<>();
+    private final AtomicLong identityLoads = new AtomicLong();
+    private final AtomicLong identityFailures = new AtomicLong();
+    private final long idleTimeoutMillis;
+    private final int maxChannelsPerSession;
+    // 私钥路径 -> 口令
+    private final Map<String, String> identities = new LinkedHashMap<>();
+    private final Map<String, List<PooledEntry>> pool = new LinkedHashMap<>();
+    private String strictHostKeyChecking;
+    // 父类建会话时记下底层的jsch会话,用来判断连接是否还活着
+    private Session lastCreated;
+    private long connects;
+    private long reuses;
+
+    /**
+     * 默认空闲5分钟断开,一个会话最多同时8个通道
+     */
+    public GitSshSessionPool() {
+        this(5 * 60 * 1000L, 8);
+    }
+
+    /**
+     * @param idleTimeoutMillis 会话空闲多久后断开
+     * @param maxChannelsPerSession 一个会话同时打开的通道数上限,不要超过服务端的MaxSessions(OpenSSH默认10)
+     */
+    public GitSshSessionPool(long idleTimeoutMillis, int maxChannelsPerSession) {
+        if (maxChannelsPerSession < 1) {
+            throw new IllegalArgumentException("maxChannelsPerSession must be positive");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxChannelsPerSession = maxChannelsPerSession;
+    }
+
+    /**
+     * 添加私钥,第一次用到时才解密
+     *
+     * @param keyPath
+     * @param passphrase 没有口令时传null
+     * @return
+     */
+    public synchronized GitSshSessionPool addIdentity(String keyPath, String passphrase) {
+        identities.put(keyPath, passphrase);
+        return this;
+    }
+
+    /**
+     * 比如"no"表示不检查known_hosts,为null时使用ssh配置
+     *
+     * @param strictHostKeyChecking
+     * @return
+     */
+    public GitSshSessionPool setStrictHostKeyChecking(String strictHostKeyChecking) {
+        this.strictHostKeyChecking = strictHostKeyChecking;
+        return this;
+    }
+
+    @Override
+    protected void configure(OpenSshConfig.Host host, Session session) {
+        if (strictHostKeyChecking != null) {
+            session.setConfig("StrictHostKeyChecking", strictHostKeyChecking);
+        }
+    }
+
+    /**
+     * 把缓存里解密好的私钥加到JSch上,不再重新解密
+     */
+    @Override
+    protected void configureJSch(JSch jsch) {
+        Map<String, String> keys;
+        synchronized (this) {
+            keys = new LinkedHashMap<>(identities);
+        }
+        for (Map.Entry<String, String> key : keys.entrySet()) {
+            try {
+                byte[][] identity = loadIdentity(key.getKey(), key.getValue());
+                jsch.addIdentity(key.getKey(), identity[0].clone(), identity[1], null);
+            } catch (JSchException e) {
+                // 和ssh一样,一个私钥用不了就试下一个
+                identityFailures.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    protected Session createSession(OpenSshConfig.Host hc, String user, String host, int port, FS fs)
+            throws JSchException {
+        Session session = super.createSession(hc, user, host, port, fs);
+        lastCreated = session;
+        return session;
+    }
+
+    /**
+     * 先从池里找有空闲通道的会话,没有时再建新连接
+     */
+    @Override
+    public synchronized RemoteSession getSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms)
+            throws TransportException {
+        evictIdle();
+        String key = key(uri);
+        List<PooledEntry> entries = pool.computeIfAbsent(key, k -> new ArrayList<>());
+        for (Iterator<PooledEntry> it = entries.iterator(); it.hasNext(); ) {
+            PooledEntry entry = it.next();
+            if (!entry.isAlive()) {
+                it.remove();
+                entry.session.disconnect();
+                continue;
+            }
+            if (entry.inUse < maxChannelsPerSession) {
+                entry.inUse++;
+                reuses++;
+                return new PooledSession(entry);
+            }
+        }
+        lastCreated = null;
+        RemoteSession session = openSession(uri, credentialsProvider, fs, tms);
+        PooledEntry entry = new PooledEntry(session, lastCreated);
+        entry.inUse++;
+        entries.add(entry);
+        connects++;
+        return new PooledSession(entry);
+    }
+
+    /**
+     * 建立新连接并完成认证
+     *
+     * @param uri
+     * @param credentialsProvider
+     * @param fs
+     * @param tms
+     * @return
+     * @throws TransportException
+     */
+    protected RemoteSession openSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms)
+            throws TransportException {
+        return super.getSession(uri, credentialsProvider, fs, tms);
+    }
+
+    /**
+     * 传输结束时调用,会话放回池里而不是断开
+     */
+    @Override
+    public void releaseSession(RemoteSession session) {
+        if (session instanceof PooledSession) {
+            ((PooledSession) session).release();
+        } else {
+            super.releaseSession(session);
+        }
+    }
+
+    /**
+     * 断开空闲超时的会话
+     *
+     * @return 断开的会话数
+     */
+    public synchronized int evictIdle() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (Iterator<List<PooledEntry>> lists = pool.values().iterator(); lists.hasNext(); ) {
+            List<PooledEntry> entries = lists.next();
+            for (Iterator<PooledEntry> it = entries.iterator(); it.hasNext(); ) {
+                PooledEntry entry = it.next();
+                if (entry.inUse == 0 && now - entry.lastUsed >= idleTimeoutMillis) {
+                    it.remove();
+                    entry.session.disconnect();
+                    evicted++;
+                }
+            }
+            if (entries.isEmpty()) {
+                lists.remove();
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return 池里的会话数,包括正在使用的
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (List<PooledEntry> entries : pool.values()) {
+            size += entries.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return 新建连接的次数
+     */
+    public synchronized long getConnects() {
+        return connects;
+    }
+
+    /**
+     * @return 复用已有会话的次数
+     */
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    /**
+     * @return 这个池解密私钥的次数
+     */
+    public long getIdentityLoads() {
+        return identityLoads.get();
+    }
+
+    /**
+     * @return 私钥读取或解密失败的次数,口令错误时可以从这里看出来
+     */
+    public long getIdentityFailures() {
+        return identityFailures.get();
+    }
+
+    /**
+     * 断开所有会话,正在使用的会话上的通道也会断开,缓存的私钥清零
+     */
+    @Override
+    public synchronized void close() {
+        for (List<PooledEntry> entries : pool.values()) {
+            for (PooledEntry entry : entries) {
+                entry.session.disconnect();
+            }
+        }
+        pool.clear();
+        for (byte[][] identity : decrypted.values()) {
+            Arrays.fill(identity[0], (byte) 0);
+        }
+        decrypted.clear();
+    }
+
+    private synchronized void release(PooledEntry entry) {
+        entry.inUse--;
+        entry.lastUsed = System.currentTimeMillis();
+    }
+
+    private static String key(URIish uri) {
+        String user = uri.getUser() != null ? uri.getUser() : "";
+        return user + "@" + uri.getHost() + ":" + uri.getPort();
+    }
+
+    /**
+     * 解密私钥,同一个文件没有修改过、口令也相同时只解密一次
+     */
+    private byte[][] loadIdentity(String keyPath, String passphrase) throws JSchException {
+        File file = new File(keyPath);
+        String cacheKey = file.getAbsolutePath() + "@" + file.lastModified() + "@" + digest(passphrase);
+        byte[][] cached = decrypted.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+        KeyPair keyPair = KeyPair.load(new JSch(), keyPath);
+        try {
+            if (keyPair.isEncrypted() && !keyPair.decrypt(passphrase)) {
+                throw new JSchException("Could not decrypt " + keyPath);
+            }
+            ByteArrayOutputStream privateKey = new ByteArrayOutputStream();
+            keyPair.writePrivateKey(privateKey);
+            byte[][] identity = {privateKey.toByteArray(), keyPair.getPublicKeyBlob()};
+            identityLoads.incrementAndGet();
+            decrypted.put(cacheKey, identity);
+            return identity;
+        } finally {
+            keyPair.dispose();
+        }
+    }
+
+    /**
+     * 缓存键里不放口令原文
+     */
+    private static String digest(String passphrase) {
+        if (passphrase == null) {
+            return "";
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(md.digest(passphrase.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 池里的一个已认证会话
+     */
+    private static final class PooledEntry {
+        final RemoteSession session;
+        final Session sock;
+        int inUse;
+        long lastUsed = System.currentTimeMillis();
+
+        PooledEntry(RemoteSession session, Session sock) {
+            this.session = session;
+            this.sock = sock;
+        }
+
+        boolean isAlive() {
+            return sock == null || sock.isConnected();
+        }
+    }
+
+    /**
+     * 交给传输使用的会话,断开时只是放回池里
+     */
+    private final class PooledSession implements RemoteSession {
+        private final PooledEntry entry;
+        private boolean released;
+
+        PooledSession(PooledEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Process exec(String commandName, int timeout) throws IOException {
+            // 每次exec在同一个ssh连接上开一个新通道
+            return entry.session.exec(commandName, timeout);
+        }
+
+        @Override
+        public FtpChannel getFtpChannel() {
+            return entry.session.getFtpChannel();
+        }
+
+        @Override
+        public void disconnect() {
+            release();
+        }
+
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                GitSshSessionPool.this.release(entry);
+            }
+        }
+    }
+}
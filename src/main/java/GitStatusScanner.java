@@ -0,0 +1,439 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.IndexDiff.StageState;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * 并行的文件状态扫描
+ * 工作区按顶层目录拆成多个任务放进ForkJoinPool里遍历,索引只读一次给所有任务共用,
+ * 结果只保留有变化的路径,每个路径一个状态码,不再生成十个字符串集合
+ * 多个仓库可以用scanAll同时扫描
+ */
+public class GitStatusScanner {
+    // 状态码,可以组合,比如已删除但工作区还有文件就是REMOVED|UNTRACKED
+    public static final short ADDED = 1;
+    public static final short CHANGED = 1 << 1;
+    public static final short REMOVED = 1 << 2;
+    public static final short MISSING = 1 << 3;
+    public static final short MODIFIED = 1 << 4;
+    public static final short UNTRACKED = 1 << 5;
+    public static final short CONFLICTING = 1 << 6;
+    // 不在索引里的被忽略的文件,或者整个被忽略的目录
+    public static final short IGNORED = 1 << 7;
+    // 里面全是未跟踪文件的目录,只记最上层的那个
+    public static final short UNTRACKED_FOLDER = 1 << 8;
+    // 冲突的路径在索引里有哪些阶段,和CONFLICTING一起出现
+    public static final short STAGE_BASE = 1 << 9;
+    public static final short STAGE_OURS = 1 << 10;
+    public static final short STAGE_THEIRS = 1 << 11;
+
+    private static final int HEAD_TREE = 0;
+    private static final int INDEX = 1;
+    private static final int WORKING_TREE = 2;
+
+    private final ForkJoinPool pool;
+
+    public GitStatusScanner() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public GitStatusScanner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 扫描整个仓库
+     *
+     * @param repository
+     * @return
+     * @throws IOException
+     */
+    public Result scan(Repository repository) throws IOException {
+        return scan(repository, null);
+    }
+
+    /**
+     * 只扫描指定的路径,路径可以是文件也可以是目录
+     *
+     * @param repository
+     * @param paths      为null时扫描整个仓库
+     * @return
+     * @throws IOException
+     */
+    public Result scan(Repository repository, Collection<String> paths) throws IOException {
+        return scan(repository, repository.readDirCache(), paths);
+    }
+
+    /**
+     * 用已经读好的索引扫描,调用方可以在多次扫描之间复用同一个DirCache
+     *
+     * @param repository
+     * @param index
+     * @param paths      为null时扫描整个仓库
+     * @return
+     * @throws IOException
+     */
+    public Result scan(Repository repository, DirCache index, Collection<String> paths) throws IOException {
+        if (paths != null && paths.isEmpty()) {
+            return new Result(new String[0], new short[0]);
+        }
+        TreeFilter filter = paths == null ? TreeFilter.ALL : PathFilterGroup.createFromStrings(paths);
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("status")) {
+            ObjectId headTree = repository.resolve("HEAD^{tree}");
+            Entries entries = pool.invoke(new WalkTask(repository, index, headTree, filter, true));
+            Result result = entries.toResult();
+            sample.read(index.getEntryCount(), 0);
+            sample.done();
+            return result;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 同时扫描多个仓库
+     *
+     * @param repositories
+     * @return 按传入顺序排列的结果
+     * @throws IOException
+     */
+    public Map<Repository, Result> scanAll(Collection<Repository> repositories) throws IOException {
+        List<ForkJoinTask<Result>> tasks = new ArrayList<>(repositories.size());
+        for (Repository repository : repositories) {
+            tasks.add(pool.submit(() -> {
+                try {
+                    return scan(repository);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        Map<Repository, Result> results = new LinkedHashMap<>();
+        int i = 0;
+        try {
+            for (Repository repository : repositories) {
+                results.put(repository, tasks.get(i++).join());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return results;
+    }
+
+    /**
+     * 遍历一个目录的任务,根任务遇到顶层目录就拆成子任务
+     */
+    private static final class WalkTask extends RecursiveTask<Entries> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Repository repository;
+        private final transient DirCache index;
+        private final ObjectId headTree;
+        private final transient TreeFilter filter;
+        private final boolean root;
+
+        WalkTask(Repository repository, DirCache index, ObjectId headTree, TreeFilter filter, boolean root) {
+            this.repository = repository;
+            this.index = index;
+            this.headTree = headTree;
+            this.filter = filter;
+            this.root = root;
+        }
+
+        @Override
+        protected Entries compute() {
+            Entries entries = new Entries();
+            List<WalkTask> subtasks = new ArrayList<>();
+            try (TreeWalk walk = new TreeWalk(repository)) {
+                if (headTree != null) {
+                    walk.addTree(headTree);
+                } else {
+                    walk.addTree(new EmptyTreeIterator());
+                }
+                walk.addTree(new DirCacheIterator(index));
+                FileTreeIterator workingTree = new FileTreeIterator(repository);
+                walk.addTree(workingTree);
+                workingTree.setDirCacheIterator(walk, INDEX);
+                walk.setFilter(filter);
+                walk.setRecursive(false);
+
+                // 最近一个记下的未跟踪目录,它下面的目录不再单独记
+                String untrackedFolder = null;
+                while (walk.next()) {
+                    if (walk.isSubtree()) {
+                        if (!shouldEnter(walk)) {
+                            entries.add(walk.getPathString(), IGNORED);
+                            continue;
+                        }
+                        if (root) {
+                            // 顶层目录交给子任务,子任务从根开始按路径过滤
+                            TreeFilter sub = PathFilter.create(walk.getPathString());
+                            if (filter != TreeFilter.ALL) {
+                                sub = AndTreeFilter.create(sub, filter);
+                            }
+                            subtasks.add(new WalkTask(repository, index, headTree, sub, false));
+                        } else {
+                            String path = walk.getPathString();
+                            if (walk.getRawMode(HEAD_TREE) == 0 && walk.getRawMode(INDEX) == 0
+                                    && (untrackedFolder == null || !path.startsWith(untrackedFolder + "/"))) {
+                                entries.add(path, UNTRACKED_FOLDER);
+                                untrackedFolder = path;
+                            }
+                            walk.enterSubtree();
+                        }
+                        continue;
+                    }
+                    short code = classify(walk);
+                    if (code != 0) {
+                        entries.add(walk.getPathString(), code);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            for (WalkTask task : invokeAll(subtasks)) {
+                entries.addAll(task.join());
+            }
+            return entries;
+        }
+
+        private boolean shouldEnter(TreeWalk walk) throws IOException {
+            // 只在工作区里出现并且被忽略的目录不用进去
+            if (walk.getRawMode(HEAD_TREE) != 0 || walk.getRawMode(INDEX) != 0) {
+                return true;
+            }
+            WorkingTreeIterator workingTree = walk.getTree(WORKING_TREE, WorkingTreeIterator.class);
+            return workingTree != null && !workingTree.isEntryIgnored();
+        }
+
+        private short classify(TreeWalk walk) throws IOException {
+            boolean inHead = walk.getRawMode(HEAD_TREE) != 0;
+            DirCacheIterator indexIter = walk.getTree(INDEX, DirCacheIterator.class);
+            WorkingTreeIterator workingTree = walk.getTree(WORKING_TREE, WorkingTreeIterator.class);
+
+            if (indexIter == null) {
+                short code = 0;
+                if (inHead) {
+                    code |= REMOVED;
+                }
+                if (workingTree != null) {
+                    code |= workingTree.isEntryIgnored() ? IGNORED : UNTRACKED;
+                }
+                return code;
+            }
+
+            DirCacheEntry entry = indexIter.getDirCacheEntry();
+            if (entry != null && entry.getStage() > 0) {
+                // 每个阶段单独走到一次,合并结果时按路径或在一起
+                return (short) (CONFLICTING | STAGE_BASE << (entry.getStage() - 1));
+            }
+            short code = 0;
+            if (!inHead) {
+                code |= ADDED;
+            } else if (walk.getRawMode(HEAD_TREE) != walk.getRawMode(INDEX) || !walk.idEqual(HEAD_TREE, INDEX)) {
+                code |= CHANGED;
+            }
+            if (workingTree == null) {
+                if (entry == null || !entry.isSkipWorkTree()) {
+                    code |= MISSING;
+                }
+            } else if (entry != null && entry.getFileMode() != FileMode.GITLINK
+                    && workingTree.isModified(entry, true, walk.getObjectReader())) {
+                code |= MODIFIED;
+            }
+            return code;
+        }
+    }
+
+    /**
+     * 扫描过程中的可增长数组
+     */
+    private static final class Entries {
+        private String[] paths = new String[16];
+        private short[] codes = new short[16];
+        private int size;
+
+        void add(String path, short code) {
+            if (size == paths.length) {
+                paths = Arrays.copyOf(paths, size * 2);
+                codes = Arrays.copyOf(codes, size * 2);
+            }
+            paths[size] = path;
+            codes[size] = code;
+            size++;
+        }
+
+        void addAll(Entries other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.paths[i], other.codes[i]);
+            }
+        }
+
+        Result toResult() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> paths[a].compareTo(paths[b]));
+            String[] sortedPaths = new String[size];
+            short[] sortedCodes = new short[size];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (n > 0 && sortedPaths[n - 1].equals(paths[order[i]])) {
+                    // 冲突路径的多个阶段
+                    sortedCodes[n - 1] |= codes[order[i]];
+                    continue;
+                }
+                sortedPaths[n] = paths[order[i]];
+                sortedCodes[n] = codes[order[i]];
+                n++;
+            }
+            return new Result(Arrays.copyOf(sortedPaths, n), Arrays.copyOf(sortedCodes, n));
+        }
+    }
+
+    /**
+     * 扫描结果,只包含有变化的路径,按路径排序
+     */
+    public static final class Result {
+        private final String[] paths;
+        private final short[] codes;
+
+        Result(String[] paths, short[] codes) {
+            this.paths = paths;
+            this.codes = codes;
+        }
+
+        public int size() {
+            return paths.length;
+        }
+
+        public String getPath(int i) {
+            return paths[i];
+        }
+
+        public short getCode(int i) {
+            return codes[i];
+        }
+
+        /**
+         * 查询某个路径的状态码
+         *
+         * @param path
+         * @return 没有变化时返回0
+         */
+        public short getCode(String path) {
+            int i = Arrays.binarySearch(paths, path);
+            return i < 0 ? 0 : codes[i];
+        }
+
+        /**
+         * 冲突路径的类型,和status()的getConflictingStageState一致
+         *
+         * @return 路径,没有冲突时是空的
+         */
+        public Map<String, StageState> getStageStates() {
+            Map<String, StageState> states = new LinkedHashMap<>();
+            for (int i = 0; i < paths.length; i++) {
+                if ((codes[i] & CONFLICTING) != 0) {
+                    states.put(paths[i], toStageState(codes[i]));
+                }
+            }
+            return states;
+        }
+
+        private static StageState toStageState(short code) {
+            switch ((code & (STAGE_BASE | STAGE_OURS | STAGE_THEIRS)) / STAGE_BASE) {
+                case 1:
+                    return StageState.BOTH_DELETED;
+                case 2:
+                    return StageState.ADDED_BY_US;
+                case 3:
+                    return StageState.DELETED_BY_THEM;
+                case 4:
+                    return StageState.ADDED_BY_THEM;
+                case 5:
+                    return StageState.DELETED_BY_US;
+                case 6:
+                    return StageState.BOTH_ADDED;
+                default:
+                    return StageState.BOTH_MODIFIED;
+            }
+        }
+
+        /**
+         * 取出带有指定状态的路径
+         *
+         * @param mask 状态码,可以用|组合
+         * @return
+         */
+        public List<String> getPaths(int mask) {
+            List<String> list = new ArrayList<>();
+            for (int i = 0; i < paths.length; i++) {
+                if ((codes[i] & mask) != 0) {
+                    list.add(paths[i]);
+                }
+            }
+            return list;
+        }
+
+        /**
+         * 和status().isClean()一样,被忽略的文件和未跟踪目录不算
+         */
+        public boolean isClean() {
+            for (short code : codes) {
+                if ((code & ~(IGNORED | UNTRACKED_FOLDER)) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < paths.length; i++) {
+                sb.append(toShortCode(codes[i])).append(' ').append(paths[i]).append('\n');
+            }
+            return sb.toString();
+        }
+
+        private static String toShortCode(short code) {
+            StringBuilder sb = new StringBuilder();
+            if ((code & CONFLICTING) != 0) sb.append('U');
+            if ((code & ADDED) != 0) sb.append('A');
+            if ((code & CHANGED) != 0) sb.append('C');
+            if ((code & REMOVED) != 0) sb.append('D');
+            if ((code & MISSING) != 0) sb.append('!');
+            if ((code & MODIFIED) != 0) sb.append('M');
+            if ((code & UNTRACKED) != 0) sb.append('?');
+            if ((code & UNTRACKED_FOLDER) != 0) sb.append("?/");
+            if ((code & IGNORED) != 0) sb.append('I');
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,518 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.ignore.IgnoreNode;
+import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.CoreConfig;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * 增量文件状态
+ * 用WatchService监听工作区,两次查询之间只记录改动过的路径,
+ * 下一次查询只重新扫描这些路径,没有改动时直接返回上一次的结果
+ * 被忽略的目录不注册监听,忽略规则变化时重新注册
+ * 监听事件溢出、索引或者HEAD变化时退回全量扫描,监听数用完时每次查询都全量扫描
+ * 结果会按索引校验和保存到.git下面,进程重启后只需要按修改时间找出期间改动过的路径
+ */
+public class GitStatusWatcher implements AutoCloseable {
+    // 快照文件名,放在.git目录里
+    public static final String SNAPSHOT_FILE = "jgit-status-cache";
+
+    private static final int SNAPSHOT_MAGIC = 0x4a535443;
+    private static final int SNAPSHOT_VERSION = 2;
+    // 文件系统时间戳精度不够时,往前多算一点
+    private static final long MTIME_SLACK_MILLIS = 2000;
+
+    private final Repository repository;
+    private final GitStatusScanner scanner;
+    private final Path workTree;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+
+    // 两次查询之间改动过的路径,相对工作区,用/分隔
+    private final TreeSet<String> dirty = new TreeSet<>();
+    private boolean fullRescan = true;
+    // 忽略规则变了或者事件溢出,新建的目录可能漏了注册,要重新注册一遍
+    private boolean rewatch;
+    // 监听没有注册全(比如inotify的监听数用完了),每次查询都全量扫描
+    private boolean polling;
+    // .git/info/exclude和core.excludesFile的时间戳,它们不在工作区里,收不到事件
+    private long excludesStamp;
+
+    // 上一次的结果和它对应的索引校验和、HEAD
+    private TreeMap<String, Short> cached;
+    private byte[] indexChecksum;
+    private ObjectId headTree;
+    private long snapshotTimeMillis;
+
+    private final AtomicLong fullScans = new AtomicLong();
+    private final AtomicLong incrementalScans = new AtomicLong();
+
+    public GitStatusWatcher(Repository repository) throws IOException {
+        this(repository, new GitStatusScanner());
+    }
+
+    /**
+     * 注册监听,如果有可用的快照就加载它
+     *
+     * @param repository
+     * @param scanner
+     * @throws IOException
+     */
+    public GitStatusWatcher(Repository repository, GitStatusScanner scanner) throws IOException {
+        this.repository = repository;
+        this.scanner = scanner;
+        this.workTree = repository.getWorkTree().toPath();
+        this.watchService = workTree.getFileSystem().newWatchService();
+
+        // 先加载快照,再注册监听,注册的同时找出快照之后改过的文件
+        long snapshotTime = loadSnapshot() ? snapshotTimeMillis : Long.MAX_VALUE;
+        excludesStamp = readExcludesStamp();
+        registerAll(workTree, snapshotTime);
+    }
+
+    /**
+     * 查询文件状态
+     *
+     * @return
+     * @throws IOException
+     */
+    public synchronized GitStatusScanner.Result status() throws IOException {
+        drainEvents();
+        long stamp = readExcludesStamp();
+        if (stamp != excludesStamp) {
+            excludesStamp = stamp;
+            rewatch = true;
+        }
+        if (rewatch) {
+            rewatch();
+        }
+        // 扫描期间的改动不一定能被这次扫描看到,快照时间按扫描开始的时间算
+        long startMillis = System.currentTimeMillis();
+        byte[] checksum = readIndexChecksum();
+        ObjectId head = repository.resolve("HEAD^{tree}");
+
+        if (cached == null || fullRescan || polling
+                || !Arrays.equals(checksum, indexChecksum) || !Objects.equals(head, headTree)) {
+            fullScans.incrementAndGet();
+            dirty.clear();
+            fullRescan = false;
+            cached = toMap(scanner.scan(repository));
+            indexChecksum = checksum;
+            headTree = head;
+            snapshotTimeMillis = startMillis;
+            saveSnapshot();
+        } else if (!dirty.isEmpty()) {
+            incrementalScans.incrementAndGet();
+            GitStatusScanner.Result partial = scanner.scan(repository, dirty);
+            for (String path : dirty) {
+                // 路径可能是目录,把它下面的旧结果一起去掉
+                cached.remove(path);
+                // '0'是'/'的下一个字符
+                cached.subMap(path + "/", path + "0").clear();
+                // 上层记成未跟踪目录或忽略目录的结果也可能变了,部分扫描会重新记下来
+                for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1)) {
+                    Short code = cached.get(path.substring(0, i));
+                    if (code != null && (code & (GitStatusScanner.UNTRACKED_FOLDER | GitStatusScanner.IGNORED)) != 0) {
+                        cached.remove(path.substring(0, i));
+                    }
+                }
+            }
+            dirty.clear();
+            cached.putAll(toMap(partial));
+            snapshotTimeMillis = startMillis;
+            saveSnapshot();
+        }
+        return toResult(cached);
+    }
+
+    public long getFullScans() {
+        return fullScans.get();
+    }
+
+    public long getIncrementalScans() {
+        return incrementalScans.get();
+    }
+
+    /**
+     * 停止监听,保存快照
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            drainEvents();
+            saveSnapshot();
+        } finally {
+            watchService.close();
+        }
+    }
+
+    private void drainEvents() throws IOException {
+        WatchKey key;
+        try {
+            while ((key = watchService.poll()) != null) {
+                Path dir = watchedDirs.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // 丢掉的事件里可能有新建的目录
+                        rewatch = true;
+                        continue;
+                    }
+                    if (dir == null) {
+                        fullRescan = true;
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    if (isGitDir(path)) {
+                        continue;
+                    }
+                    if (path.getFileName().toString().equals(Constants.DOT_GIT_IGNORE)) {
+                        rewatch = true;
+                        continue;
+                    }
+                    dirty.add(relativize(path));
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && !polling && Files.isDirectory(path)) {
+                        registerAll(path, Long.MAX_VALUE);
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirs.remove(key);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            fullRescan = true;
+        }
+    }
+
+    /**
+     * 去掉所有监听重新注册,之后做一次全量扫描
+     *
+     * @throws IOException
+     */
+    private void rewatch() throws IOException {
+        rewatch = false;
+        cancelAll();
+        polling = false;
+        fullRescan = true;
+        registerAll(workTree, Long.MAX_VALUE);
+    }
+
+    private void cancelAll() {
+        for (WatchKey key : watchedDirs.keySet()) {
+            key.cancel();
+        }
+        watchedDirs.clear();
+    }
+
+    /**
+     * 注册目录监听,被忽略而且没有已跟踪文件的目录跳过
+     *
+     * @param start
+     * @param modifiedSince 修改时间晚于它的文件和目录记为改动过
+     * @throws IOException
+     */
+    private void registerAll(Path start, long modifiedSince) throws IOException {
+        long threshold = modifiedSince == Long.MAX_VALUE ? Long.MAX_VALUE : modifiedSince - MTIME_SLACK_MILLIS;
+        IgnoreRules ignores = new IgnoreRules();
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            private DirCache index;
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (isGitDir(dir) || !dir.equals(workTree) && ignores.isIgnored(dir) && !isTracked(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key;
+                try {
+                    key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (IOException e) {
+                    // 监听数用完了,已经注册的也放掉,之后每次都全量扫描
+                    polling = true;
+                    cancelAll();
+                    return FileVisitResult.TERMINATE;
+                }
+                watchedDirs.put(key, dir);
+                // 目录的修改时间变了说明里面有文件新建或者删除
+                if (attrs.lastModifiedTime().toMillis() >= threshold && !dir.equals(workTree)) {
+                    dirty.add(relativize(dir));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.lastModifiedTime().toMillis() >= threshold) {
+                    if (file.getFileName().toString().equals(Constants.DOT_GIT_IGNORE)) {
+                        // 监听注册完了,规则的变化只影响扫描结果
+                        fullRescan = true;
+                    }
+                    dirty.add(relativize(file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            private boolean isTracked(Path dir) throws IOException {
+                if (index == null) {
+                    index = repository.readDirCache();
+                }
+                return index.getEntriesWithin(relativize(dir)).length > 0;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                // 遍历期间被删掉的文件,交给事件处理
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (modifiedSince != Long.MAX_VALUE && workTree.equals(start)
+                && Files.getLastModifiedTime(workTree).toMillis() >= threshold) {
+            // 根目录下有文件新建或删除,被删掉的已跟踪文件在磁盘上已经找不到了,只能全量扫描
+            fullRescan = true;
+        }
+        if (modifiedSince != Long.MAX_VALUE) {
+            for (File file : excludesFiles()) {
+                if (file.lastModified() >= threshold) {
+                    fullRescan = true;
+                }
+            }
+        }
+    }
+
+    private List<File> excludesFiles() {
+        List<File> files = new ArrayList<>();
+        files.add(new File(repository.getDirectory(), Constants.INFO_EXCLUDE));
+        String path = repository.getConfig().get(CoreConfig.KEY).getExcludesFile();
+        if (path != null) {
+            files.add(path.startsWith("~/")
+                    ? repository.getFS().resolve(repository.getFS().userHome(), path.substring(2))
+                    : repository.getFS().resolve(null, path));
+        }
+        return files;
+    }
+
+    private long readExcludesStamp() {
+        long stamp = 0;
+        for (File file : excludesFiles()) {
+            stamp = stamp * 31 + (file.lastModified() ^ file.length());
+        }
+        return stamp;
+    }
+
+    /**
+     * 按目录逐层加载的忽略规则,查找顺序和WorkingTreeIterator一样:
+     * 从最近的.gitignore往上找,最后是.git/info/exclude和core.excludesFile
+     */
+    private final class IgnoreRules {
+        private final Map<Path, IgnoreNode> nodes = new HashMap<>();
+        private List<IgnoreNode> excludes;
+
+        boolean isIgnored(Path dir) throws IOException {
+            for (Path parent = dir.getParent(); ; parent = parent.getParent()) {
+                IgnoreNode node = nodes.get(parent);
+                if (node == null) {
+                    node = parse(parent.resolve(Constants.DOT_GIT_IGNORE).toFile());
+                    nodes.put(parent, node);
+                }
+                // 子目录的规则按相对它自己的路径匹配,前面带/
+                String path = toSlashPath(parent, dir);
+                Boolean ignored = node.checkIgnored(parent.equals(workTree) ? path : "/" + path, true);
+                if (ignored != null) {
+                    return ignored;
+                }
+                if (parent.equals(workTree)) {
+                    break;
+                }
+            }
+            if (excludes == null) {
+                excludes = new ArrayList<>();
+                for (File file : excludesFiles()) {
+                    excludes.add(parse(file));
+                }
+            }
+            for (IgnoreNode node : excludes) {
+                Boolean ignored = node.checkIgnored(relativize(dir), true);
+                if (ignored != null) {
+                    return ignored;
+                }
+            }
+            return false;
+        }
+
+        private IgnoreNode parse(File file) throws IOException {
+            IgnoreNode node = new IgnoreNode();
+            if (file.isFile()) {
+                try (FileInputStream in = new FileInputStream(file)) {
+                    node.parse(in);
+                }
+            }
+            return node;
+        }
+    }
+
+    private boolean isGitDir(Path path) {
+        return path.getFileName() != null && path.getFileName().toString().equals(Constants.DOT_GIT)
+                && workTree.equals(path.getParent());
+    }
+
+    private String relativize(Path path) {
+        return toSlashPath(workTree, path);
+    }
+
+    private static String toSlashPath(Path base, Path path) {
+        StringBuilder sb = new StringBuilder();
+        for (Path name : base.relativize(path)) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(name.toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 索引文件最后20个字节就是整个索引的SHA-1校验和
+     *
+     * @return 没有索引文件时返回空数组
+     * @throws IOException
+     */
+    private byte[] readIndexChecksum() throws IOException {
+        File indexFile = repository.getIndexFile();
+        if (!indexFile.isFile()) {
+            return new byte[0];
+        }
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+            byte[] checksum = new byte[Constants.OBJECT_ID_LENGTH];
+            if (file.length() < checksum.length) {
+                return new byte[0];
+            }
+            file.seek(file.length() - checksum.length);
+            file.readFully(checksum);
+            return checksum;
+        }
+    }
+
+    private boolean loadSnapshot() throws IOException {
+        File file = new File(repository.getDirectory(), SNAPSHOT_FILE);
+        if (!file.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                return false;
+            }
+            byte[] checksum = new byte[in.readUnsignedByte()];
+            in.readFully(checksum);
+            ObjectId head = in.readBoolean() ? readObjectId(in) : null;
+            // 快照对应的索引或者HEAD已经变了,快照作废
+            if (!Arrays.equals(checksum, readIndexChecksum())
+                    || !Objects.equals(head, repository.resolve("HEAD^{tree}"))) {
+                return false;
+            }
+            long time = in.readLong();
+            int count = in.readInt();
+            TreeMap<String, Short> map = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                map.put(in.readUTF(), in.readShort());
+            }
+            cached = map;
+            indexChecksum = checksum;
+            headTree = head;
+            snapshotTimeMillis = time;
+            fullRescan = false;
+            return true;
+        } catch (IOException e) {
+            // 快照损坏就当没有,重新全量扫描
+            return false;
+        }
+    }
+
+    private void saveSnapshot() throws IOException {
+        if (cached == null || fullRescan || !dirty.isEmpty()) {
+            return;
+        }
+        LockFile lock = new LockFile(new File(repository.getDirectory(), SNAPSHOT_FILE));
+        if (!lock.lock()) {
+            return;
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(lock.getOutputStream()));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeByte(indexChecksum.length);
+            out.write(indexChecksum);
+            out.writeBoolean(headTree != null);
+            if (headTree != null) {
+                byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+                headTree.copyRawTo(raw, 0);
+                out.write(raw);
+            }
+            out.writeLong(snapshotTimeMillis);
+            out.writeInt(cached.size());
+            for (Map.Entry<String, Short> entry : cached.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeShort(entry.getValue());
+            }
+            out.close();
+            lock.commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ObjectId readObjectId(DataInputStream in) throws IOException {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        in.readFully(raw);
+        return ObjectId.fromRaw(raw);
+    }
+
+    private static TreeMap<String, Short> toMap(GitStatusScanner.Result result) {
+        TreeMap<String, Short> map = new TreeMap<>();
+        for (int i = 0; i < result.size(); i++) {
+            map.put(result.getPath(i), result.getCode(i));
+        }
+        return map;
+    }
+
+    private static GitStatusScanner.Result toResult(TreeMap<String, Short> map) {
+        String[] paths = new String[map.size()];
+        short[] codes = new short[map.size()];
+        int i = 0;
+        for (Map.Entry<String, Short> entry : map.entrySet()) {
+            paths[i] = entry.getKey();
+            codes[i] = entry.getValue();
+            i++;
+        }
+        return new GitStatusScanner.Result(paths, codes);
+    }
+}
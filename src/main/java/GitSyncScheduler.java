@@ -0,0 +1,565 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.TransportConfigCallback;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.SshTransport;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * 多仓库并行同步
+ * fetch和push放到有界线程池里执行,同一个主机同时进行的操作数有上限,
+ * 传输失败时按指数退避重试,同一主机上的其他仓库也会一起等待
+ * 每个主机有自己的队列,拿到主机的许可后才交给线程池,排队和退避都不占工作线程,慢的主机不会拖住别的主机
+ * 所有ssh传输共用同一个会话工厂,工厂能复用会话时同一主机的连接就能复用
+ * 每个操作返回耗时、尝试次数、传输的对象数和fetch收到的pack字节数
+ */
+public class GitSyncScheduler implements AutoCloseable {
+    // 本地路径或file://的远端都算作这个主机
+    public static final String LOCAL_HOST = "local";
+
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    // 退避结束后重新派发
+    private final ScheduledExecutorService timer;
+    private final Map<String, HostState> hosts = new ConcurrentHashMap<>();
+    private int maxPerHost = 4;
+    private int maxAttempts = 3;
+    private long initialBackoffMillis = 1000;
+    private long maxBackoffMillis = 60000;
+    private int timeoutSeconds;
+    private SshSessionFactory sshSessionFactory;
+    private CredentialsProvider credentialsProvider;
+
+    /**
+     * 使用自带的固定大小线程池,close时关闭
+     *
+     * @param threads
+     */
+    public GitSyncScheduler(int threads) {
+        this(Executors.newFixedThreadPool(threads), true);
+    }
+
+    /**
+     * 使用外部的线程池,close时不关闭
+     *
+     * @param executor
+     */
+    public GitSyncScheduler(ExecutorService executor) {
+        this(executor, false);
+    }
+
+    private GitSyncScheduler(ExecutorService executor, boolean ownExecutor) {
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "git-sync-backoff");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 同一个主机同时进行的操作数上限,要在提交第一个操作之前设置
+     *
+     * @param maxPerHost
+     * @return
+     */
+    public GitSyncScheduler setMaxPerHost(int maxPerHost) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("maxPerHost must be positive");
+        }
+        this.maxPerHost = maxPerHost;
+        return this;
+    }
+
+    /**
+     * 传输失败时的重试次数和退避时间,每次失败等待时间翻倍,加上随机抖动
+     *
+     * @param maxAttempts 包括第一次
+     * @param initialBackoffMillis
+     * @param maxBackoffMillis
+     * @return
+     */
+    public GitSyncScheduler setRetry(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    public GitSyncScheduler setTimeout(int timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+        return this;
+    }
+
+    /**
+     * 所有ssh传输共用的会话工厂
+     *
+     * @param sshSessionFactory
+     * @return
+     */
+    public GitSyncScheduler setSshSessionFactory(SshSessionFactory sshSessionFactory) {
+        this.sshSessionFactory = sshSessionFactory;
+        return this;
+    }
+
+    public GitSyncScheduler setCredentialsProvider(CredentialsProvider credentialsProvider) {
+        this.credentialsProvider = credentialsProvider;
+        return this;
+    }
+
+    /**
+     * 提交一个fetch
+     *
+     * @param repository
+     * @param remote 远端名,比如origin
+     * @return
+     */
+    public CompletableFuture<SyncResult> fetch(Repository repository, String remote) {
+        return submit(repository, remote, SyncResult.Operation.FETCH, null);
+    }
+
+    /**
+     * 提交一个push
+     *
+     * @param repository
+     * @param remote
+     * @param refSpecs 为空时推送当前分支
+     * @return
+     */
+    public CompletableFuture<SyncResult> push(Repository repository, String remote, RefSpec... refSpecs) {
+        return submit(repository, remote, SyncResult.Operation.PUSH, Arrays.asList(refSpecs));
+    }
+
+    /**
+     * 对所有仓库做fetch,等全部完成后返回,顺序和传入的一致
+     *
+     * @param repositories
+     * @param remote
+     * @return
+     */
+    public List<SyncResult> fetchAll(Collection<Repository> repositories, String remote) {
+        List<CompletableFuture<SyncResult>> futures = new ArrayList<>();
+        for (Repository repository : repositories) {
+            futures.add(fetch(repository, remote));
+        }
+        List<SyncResult> results = new ArrayList<>();
+        for (CompletableFuture<SyncResult> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    /**
+     * 某个主机连续失败的次数,成功一次后清零
+     *
+     * @param host
+     * @return
+     */
+    public int getConsecutiveFailures(String host) {
+        HostState state = hosts.get(host);
+        return state == null ? 0 : state.failures.get();
+    }
+
+    /**
+     * 关闭后还在排队或退避的操作按失败返回;使用外部线程池时已经排队的操作照常执行
+     */
+    @Override
+    public void close() {
+        timer.shutdown();
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private CompletableFuture<SyncResult> submit(Repository repository, String remote,
+                                                 SyncResult.Operation operation, List<RefSpec> refSpecs) {
+        Job job = new Job(repository, remote, operation, refSpecs);
+        try {
+            job.result.host = host(repository, remote);
+        } catch (URISyntaxException e) {
+            job.finish(e);
+            return job.future;
+        }
+        HostState state = hosts.computeIfAbsent(job.result.host, h -> new HostState());
+        synchronized (state) {
+            state.queue.add(job);
+        }
+        dispatch(state);
+        return job.future;
+    }
+
+    /**
+     * 主机不在退避中、进行中的操作数没到上限时,把排队的操作交给线程池;
+     * 还在退避时让定时器到点后再来派发
+     */
+    private void dispatch(HostState state) {
+        while (true) {
+            Job job;
+            synchronized (state) {
+                if (state.queue.isEmpty() || state.running >= maxPerHost) {
+                    return;
+                }
+                long wait = state.notBefore - System.currentTimeMillis();
+                if (wait > 0) {
+                    if (!state.wakeup) {
+                        try {
+                            timer.schedule(() -> {
+                                synchronized (state) {
+                                    state.wakeup = false;
+                                }
+                                dispatch(state);
+                            }, wait, TimeUnit.MILLISECONDS);
+                            state.wakeup = true;
+                        } catch (RejectedExecutionException e) {
+                            rejectQueued(state, e);
+                        }
+                    }
+                    return;
+                }
+                job = state.queue.poll();
+                state.running++;
+            }
+            try {
+                executor.execute(() -> attempt(state, job));
+            } catch (RejectedExecutionException e) {
+                synchronized (state) {
+                    state.running--;
+                }
+                job.finish(e);
+            }
+        }
+    }
+
+    /**
+     * 调度器已关闭,排队的操作都按失败返回
+     */
+    private static void rejectQueued(HostState state, Exception e) {
+        for (Job job; (job = state.queue.poll()) != null; ) {
+            job.finish(e);
+        }
+    }
+
+    /**
+     * 在工作线程里传输一次,传输失败并且还能重试时放回这个主机的队首
+     */
+    private void attempt(HostState state, Job job) {
+        SyncResult result = job.result;
+        Exception error = null;
+        boolean retry = false;
+        try {
+            result.attempts++;
+            long attemptStart = System.nanoTime();
+            transfer(job.repository, job.remote, result.operation, job.refSpecs, result);
+            result.latencyMillis = (System.nanoTime() - attemptStart) / 1000000;
+            state.failures.set(0);
+            result.success = true;
+        } catch (TransportException e) {
+            error = e;
+            state.failed(initialBackoffMillis, maxBackoffMillis);
+            retry = result.attempts < maxAttempts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = e;
+        } catch (Exception e) {
+            // 非传输错误重试也没有用
+            error = e;
+        } finally {
+            synchronized (state) {
+                state.running--;
+                if (retry) {
+                    result.error = error;
+                    state.queue.addFirst(job);
+                }
+            }
+        }
+        if (!retry) {
+            job.finish(error);
+        }
+        dispatch(state);
+    }
+
+    private void transfer(Repository repository, String remote, SyncResult.Operation operation,
+                          List<RefSpec> refSpecs, SyncResult result) throws Exception {
+        ObjectCounter counter = new ObjectCounter();
+        TransportConfigCallback callback = transport -> {
+            if (transport instanceof SshTransport && sshSessionFactory != null) {
+                ((SshTransport) transport).setSshSessionFactory(sshSessionFactory);
+            }
+        };
+        Git git = new Git(repository);
+        if (operation == SyncResult.Operation.FETCH) {
+            Set<File> packsBefore = packs(repository);
+            GitMaintenance.WriteGuard guard = GitMaintenance.beginWrite(repository);
+            try {
+                git.fetch().setRemote(remote)
+                        .setProgressMonitor(counter)
+                        .setTransportConfigCallback(callback)
+                        .setCredentialsProvider(credentialsProvider)
+                        .setTimeout(timeoutSeconds)
+                        .call();
+            } finally {
+                guard.close();
+            }
+            long bytes = 0;
+            for (File pack : packs(repository)) {
+                if (!packsBefore.contains(pack)) {
+                    bytes += pack.length();
+                }
+            }
+            result.bytes = bytes;
+        } else {
+            Iterable<PushResult> pushResults = git.push().setRemote(remote)
+                    .setRefSpecs(refSpecs)
+                    .setProgressMonitor(counter)
+                    .setTransportConfigCallback(callback)
+                    .setCredentialsProvider(credentialsProvider)
+                    .setTimeout(timeoutSeconds)
+                    .call();
+            List<RemoteRefUpdate> failed = GitMetrics.failedUpdates(pushResults);
+            if (!failed.isEmpty()) {
+                // 被拒绝不是传输错误,重试也没有用
+                StringBuilder message = new StringBuilder("Push to " + remote + " failed:");
+                for (RemoteRefUpdate update : failed) {
+                    message.append(' ').append(update.getRemoteName()).append(' ').append(update.getStatus());
+                    if (update.getMessage() != null) {
+                        message.append(" (").append(update.getMessage()).append(')');
+                    }
+                }
+                throw new IOException(message.toString());
+            }
+        }
+        result.objects = counter.objects;
+    }
+
+    private static Set<File> packs(Repository repository) {
+        File[] files = new File(repository.getDirectory(), "objects/pack")
+                .listFiles((dir, name) -> name.endsWith(".pack"));
+        return files == null ? new HashSet<>() : new HashSet<>(Arrays.asList(files));
+    }
+
+    private static String host(Repository repository, String remote) throws URISyntaxException {
+        RemoteConfig config = new RemoteConfig(repository.getConfig(), remote);
+        List<URIish> uris = config.getURIs();
+        if (uris.isEmpty()) {
+            // 远端名本身就是地址
+            uris = Arrays.asList(new URIish(remote));
+        }
+        String host = uris.get(0).getHost();
+        return host == null || host.isEmpty() ? LOCAL_HOST : host;
+    }
+
+    /**
+     * 一个主机的排队、并发和退避状态,queue、running和wakeup在持有这个对象的锁时使用
+     */
+    private static final class HostState {
+        final ArrayDeque<Job> queue = new ArrayDeque<>();
+        final AtomicInteger failures = new AtomicInteger();
+        volatile long notBefore;
+        int running;
+        // 已经让定时器在退避结束时派发
+        boolean wakeup;
+
+        void failed(long initialBackoffMillis, long maxBackoffMillis) {
+            int n = failures.incrementAndGet();
+            long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(n - 1, 20));
+            // 加上最多一半的随机抖动,避免所有仓库同时重试
+            backoff += ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            notBefore = System.currentTimeMillis() + backoff;
+        }
+    }
+
+    /**
+     * 一个排队中的操作,从提交到返回结果只记一次采样,包括排队、退避和重试
+     */
+    private static final class Job {
+        final Repository repository;
+        final String remote;
+        final List<RefSpec> refSpecs;
+        final SyncResult result;
+        final CompletableFuture<SyncResult> future = new CompletableFuture<>();
+        final GitMetrics.Sample sample;
+        final long start = System.nanoTime();
+
+        Job(Repository repository, String remote, SyncResult.Operation operation, List<RefSpec> refSpecs) {
+            this.repository = repository;
+            this.remote = remote;
+            this.refSpecs = refSpecs;
+            this.result = new SyncResult(repository.getDirectory(), remote, operation);
+            this.sample = GitMetrics.getDefault()
+                    .startDetached(operation == SyncResult.Operation.FETCH ? "fetch" : "push");
+        }
+
+        void finish(Exception error) {
+            result.totalMillis = (System.nanoTime() - start) / 1000000;
+            result.error = result.success ? null : error;
+            // fetch收到的对象写进本地对象库,push发出的对象从本地读
+            if (result.operation == SyncResult.Operation.FETCH) {
+                sample.written(result.objects, 0).transferred(Math.max(0, result.bytes));
+            } else {
+                sample.read(result.objects, 0);
+            }
+            if (result.success) {
+                sample.done();
+            }
+            sample.close();
+            future.complete(result);
+        }
+    }
+
+    /**
+     * 从进度回调里统计传输的对象数
+     */
+    private static final class ObjectCounter implements ProgressMonitor {
+        private boolean counting;
+        int objects;
+
+        @Override
+        public void start(int totalTasks) {
+        }
+
+        @Override
+        public void beginTask(String title, int totalWork) {
+            counting = title.startsWith("Receiving objects") || title.startsWith("Writing objects");
+        }
+
+        @Override
+        public void update(int completed) {
+            if (counting) {
+                objects += completed;
+            }
+        }
+
+        @Override
+        public void endTask() {
+            counting = false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * 一次同步操作的结果
+     */
+    public static final class SyncResult {
+        public enum Operation {
+            FETCH, PUSH
+        }
+
+        private final File directory;
+        private final String remote;
+        private final Operation operation;
+        private String host;
+        private int attempts;
+        private long latencyMillis;
+        private long totalMillis;
+        private int objects;
+        private long bytes = -1;
+        private boolean success;
+        private Exception error;
+
+        private SyncResult(File directory, String remote, Operation operation) {
+            this.directory = directory;
+            this.remote = remote;
+            this.operation = operation;
+        }
+
+        /**
+         * @return 仓库的.git目录
+         */
+        public File getDirectory() {
+            return directory;
+        }
+
+        public String getRemote() {
+            return remote;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return 最后一次成功传输的耗时
+         */
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /**
+         * @return 包括排队、退避和重试在内的总耗时
+         */
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public int getObjects() {
+            return objects;
+        }
+
+        /**
+         * @return fetch收到的pack字节数,push时JGit不提供,为-1
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + directory + " " + remote + "@" + host
+                    + (success ? " ok " : " failed ") + latencyMillis + "ms objects=" + objects
+                    + " bytes=" + bytes + " attempts=" + attempts;
+        }
+    }
+}
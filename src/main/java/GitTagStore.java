@@ -0,0 +1,527 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.PackInserter;
+import org.eclipse.jgit.internal.storage.file.RefDirectory;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TagBuilder;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+
+/**
+ * 批量标签
+ * 列表直接流式读packed-refs,里面带了剥离值(^开头的行)的附注标签不用再解析标签对象,
+ * 松散标签和没有剥离值的条目共用一个RevWalk剥离,不会每个标签建一个RevWalk
+ * 创建和删除先攒起来,call时标签对象写进同一个pack,引用用一个原子的BatchRefUpdate更新,
+ * 文件仓库里原子批量更新直接改写packed-refs,几千个标签也不会产生几千个松散引用文件
+ * 批量更新要么全部成功要么全部不生效
+ */
+public class GitTagStore {
+    // 文件头带peeled特性时,没有剥离值的标签条目一定不是附注标签
+    private static final String PEELED_TRAIT = " peeled";
+    private static final int DISPOSE_INTERVAL = 1000;
+
+    private final Repository repository;
+    private final List<Op> pending = new ArrayList<>();
+    private boolean force;
+    private PersonIdent tagger;
+
+    public GitTagStore(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * 创建时是否覆盖已有的同名标签,默认不覆盖,有同名标签时整批失败
+     *
+     * @param force
+     * @return
+     */
+    public GitTagStore setForce(boolean force) {
+        this.force = force;
+        return this;
+    }
+
+    /**
+     * 附注标签的标签人,默认取仓库配置的用户
+     *
+     * @param tagger
+     * @return
+     */
+    public GitTagStore setTagger(PersonIdent tagger) {
+        this.tagger = tagger;
+        return this;
+    }
+
+    /**
+     * 创建轻量标签
+     *
+     * @param name 标签名,可以带refs/tags/前缀
+     * @param target
+     * @return
+     */
+    public GitTagStore create(String name, AnyObjectId target) {
+        return create(name, target, null);
+    }
+
+    /**
+     * 创建附注标签
+     *
+     * @param name
+     * @param target
+     * @param message 为null时创建轻量标签
+     * @return
+     */
+    public GitTagStore create(String name, AnyObjectId target, String message) {
+        pending.add(new Op(refName(name), target.copy(), message));
+        return this;
+    }
+
+    /**
+     * 删除标签,标签不存在时忽略
+     *
+     * @param name
+     * @return
+     */
+    public GitTagStore delete(String name) {
+        pending.add(new Op(refName(name), null, null));
+        return this;
+    }
+
+    /**
+     * 执行攒下的创建和删除
+     *
+     * @return
+     * @throws IOException 标签已存在、引用被别人锁住等,这时一个标签都不会改
+     */
+    public Result call() throws IOException {
+        try (GitMetrics.Sample sample = GitMetrics.getDefault().start("tag")) {
+            Result result = apply();
+            sample.written(result.created + result.updated, 0);
+            sample.done();
+            return result;
+        }
+    }
+
+    private Result apply() throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        if (pending.isEmpty()) {
+            return result;
+        }
+        RefDatabase refDb = repository.getRefDatabase();
+        Map<String, Op> ops = new TreeMap<>();
+        for (Op op : pending) {
+            if (ops.put(op.refName, op) != null) {
+                throw new IllegalArgumentException("duplicate tag in batch: " + op.refName);
+            }
+        }
+        Map<String, Ref> existing = refDb.exactRef(ops.keySet().toArray(new String[0]));
+
+        GitMaintenance.WriteGuard guard = GitMaintenance.beginWrite(repository);
+        try (ObjectInserter inserter = newInserter();
+             RevWalk walk = new RevWalk(repository)) {
+            PersonIdent ident = tagger != null ? tagger : new PersonIdent(repository);
+            List<ReceiveCommand> commands = new ArrayList<>();
+            for (Op op : ops.values()) {
+                Ref old = existing.get(op.refName);
+                if (op.target == null) {
+                    if (old != null && old.getObjectId() != null) {
+                        commands.add(new ReceiveCommand(old.getObjectId(), ObjectId.zeroId(), op.refName,
+                                ReceiveCommand.Type.DELETE));
+                        result.deleted++;
+                    }
+                    continue;
+                }
+                if (old != null && !force) {
+                    throw new IOException("tag already exists: " + op.refName);
+                }
+                ObjectId newId = op.target;
+                if (op.message != null) {
+                    RevObject target = walk.parseAny(op.target);
+                    TagBuilder tag = new TagBuilder();
+                    tag.setObjectId(target);
+                    tag.setTag(Repository.shortenRefName(op.refName));
+                    tag.setTagger(ident);
+                    tag.setMessage(op.message);
+                    newId = inserter.insert(tag);
+                }
+                if (old == null) {
+                    commands.add(new ReceiveCommand(ObjectId.zeroId(), newId, op.refName));
+                    result.created++;
+                } else if (!newId.equals(old.getObjectId())) {
+                    commands.add(new ReceiveCommand(old.getObjectId(), newId, op.refName,
+                            ReceiveCommand.Type.UPDATE_NONFASTFORWARD));
+                    result.updated++;
+                }
+            }
+            // 标签对象先落盘,引用才能指向它们
+            inserter.flush();
+
+            if (!commands.isEmpty()) {
+                BatchRefUpdate batch = refDb.newBatchUpdate()
+                        .setAtomic(true)
+                        .setAllowNonFastForwards(true)
+                        .setRefLogMessage("tag: batch", false);
+                batch.addCommand(commands);
+                batch.execute(walk, NullProgressMonitor.INSTANCE);
+                for (ReceiveCommand command : commands) {
+                    if (command.getResult() != ReceiveCommand.Result.OK) {
+                        throw new IOException("Could not update " + command.getRefName() + ": "
+                                + command.getResult()
+                                + (command.getMessage() != null ? " " + command.getMessage() : ""));
+                    }
+                }
+            }
+        } finally {
+            guard.close();
+        }
+        pending.clear();
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private ObjectInserter newInserter() {
+        ObjectDatabase db = repository.getObjectDatabase();
+        if (db instanceof ObjectDirectory) {
+            PackInserter packInserter = ((ObjectDirectory) db).newPackInserter();
+            packInserter.checkExisting(false);
+            return packInserter;
+        }
+        return db.newInserter();
+    }
+
+    private static String refName(String name) {
+        String refName = name.startsWith(Constants.R_TAGS) ? name : Constants.R_TAGS + name;
+        if (!Repository.isValidRefName(refName)) {
+            throw new IllegalArgumentException("invalid tag name: " + name);
+        }
+        return refName;
+    }
+
+    /**
+     * 按名字顺序列出全部标签,用完要close
+     *
+     * @return
+     * @throws IOException
+     */
+    public TagIterator list() throws IOException {
+        return new TagIterator();
+    }
+
+    /**
+     * 标签迭代器
+     * 文件仓库先读松散标签再打开packed-refs,和git一样保证列表里不会漏掉中途被打包的标签
+     * packed-refs一行一行读,不会把二十万个标签一次读进内存
+     */
+    public final class TagIterator implements Iterator<TagInfo>, AutoCloseable {
+        private final RevWalk walk;
+        private BufferedReader packed;
+        private boolean peeledTrait;
+        private String line;
+        private Iterator<Map.Entry<String, ObjectId>> loose = Collections.emptyIterator();
+        private Map.Entry<String, ObjectId> looseHead;
+        private TagInfo packedHead;
+        private Iterator<Ref> refs;
+        private TagInfo next;
+        private int sinceDispose;
+
+        private TagIterator() throws IOException {
+            walk = new RevWalk(repository);
+            walk.setRetainBody(false);
+            RefDatabase refDb = repository.getRefDatabase();
+            if (!(refDb instanceof RefDirectory)) {
+                refs = refDb.getRefsByPrefix(Constants.R_TAGS).iterator();
+                return;
+            }
+            loose = scanLoose().entrySet().iterator();
+            looseHead = loose.hasNext() ? loose.next() : null;
+            try {
+                packed = Files.newBufferedReader(
+                        new File(repository.getDirectory(), Constants.PACKED_REFS).toPath(), StandardCharsets.UTF_8);
+                line = packed.readLine();
+                if (line != null && line.startsWith(RefDirectory.PACKED_REFS_HEADER)) {
+                    peeledTrait = (line + " ").contains(PEELED_TRAIT + " ");
+                    line = packed.readLine();
+                }
+                packedHead = readPacked();
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                packed = null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = advance();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public TagInfo next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            TagInfo tag = next;
+            next = null;
+            return tag;
+        }
+
+        private TagInfo advance() throws IOException {
+            if (refs != null) {
+                if (!refs.hasNext()) {
+                    return null;
+                }
+                Ref ref = repository.getRefDatabase().peel(refs.next());
+                return new TagInfo(ref.getName(), ref.getObjectId(), ref.getPeeledObjectId());
+            }
+            int cmp;
+            if (looseHead == null && packedHead == null) {
+                return null;
+            } else if (looseHead == null) {
+                cmp = 1;
+            } else if (packedHead == null) {
+                cmp = -1;
+            } else {
+                cmp = looseHead.getKey().compareTo(packedHead.refName);
+            }
+            if (cmp > 0) {
+                TagInfo tag = packedHead;
+                packedHead = readPacked();
+                return tag.peeledId != null || peeledTrait ? tag : peel(tag);
+            }
+            // 松散引用比packed-refs里的新
+            if (cmp == 0) {
+                packedHead = readPacked();
+            }
+            TagInfo tag = new TagInfo(looseHead.getKey(), looseHead.getValue(), null);
+            looseHead = loose.hasNext() ? loose.next() : null;
+            return peel(tag);
+        }
+
+        /**
+         * 读下一个标签条目,后面紧跟的^行是它的剥离值
+         */
+        private TagInfo readPacked() throws IOException {
+            while (line != null) {
+                String current = line;
+                line = packed.readLine();
+                if (current.isEmpty() || current.charAt(0) == '#' || current.charAt(0) == '^') {
+                    continue;
+                }
+                int space = current.indexOf(' ');
+                String name = current.substring(space + 1);
+                if (!name.startsWith(Constants.R_TAGS)) {
+                    continue;
+                }
+                ObjectId peeled = null;
+                if (line != null && !line.isEmpty() && line.charAt(0) == '^') {
+                    peeled = ObjectId.fromString(line.substring(1));
+                    line = packed.readLine();
+                }
+                return new TagInfo(name, ObjectId.fromString(current.substring(0, space)), peeled);
+            }
+            return null;
+        }
+
+        /**
+         * 没有剥离值时解析对象,附注标签一直剥到非标签对象
+         */
+        private TagInfo peel(TagInfo tag) throws IOException {
+            if (++sinceDispose >= DISPOSE_INTERVAL) {
+                // 解析过的对象留在RevWalk里,定期清掉,内存不会随标签数增长
+                walk.dispose();
+                sinceDispose = 0;
+            }
+            RevObject object = walk.parseAny(tag.objectId);
+            if (object instanceof RevTag) {
+                return new TagInfo(tag.refName, tag.objectId, walk.peel(object).copy());
+            }
+            return tag;
+        }
+
+        @Override
+        public void close() {
+            walk.close();
+            if (packed != null) {
+                try {
+                    packed.close();
+                } catch (IOException e) {
+                    // 只读,关闭失败不影响结果
+                }
+            }
+        }
+    }
+
+    /**
+     * 松散标签一般很少,直接遍历refs/tags目录
+     */
+    private TreeMap<String, ObjectId> scanLoose() throws IOException {
+        TreeMap<String, ObjectId> loose = new TreeMap<>();
+        Path root = new File(repository.getDirectory(), Constants.R_TAGS).toPath();
+        if (!Files.isDirectory(root)) {
+            return loose;
+        }
+        Set<String> symbolic = new HashSet<>();
+        try (Stream<Path> files = Files.walk(root)) {
+            Iterator<Path> it = files.filter(Files::isRegularFile).iterator();
+            while (it.hasNext()) {
+                Path file = it.next();
+                String name = Constants.R_TAGS + root.relativize(file).toString().replace(File.separatorChar, '/');
+                if (name.endsWith(".lock")) {
+                    continue;
+                }
+                byte[] content;
+                try {
+                    content = Files.readAllBytes(file);
+                } catch (NoSuchFileException e) {
+                    // 读之前被打包删掉了,packed-refs里会有
+                    continue;
+                }
+                if (content.length >= Constants.OBJECT_ID_STRING_LENGTH && content[0] != 'r') {
+                    loose.put(name, ObjectId.fromString(content, 0));
+                } else {
+                    symbolic.add(name);
+                }
+            }
+        }
+        for (String name : symbolic) {
+            Ref ref = repository.exactRef(name);
+            if (ref != null && ref.getObjectId() != null) {
+                loose.put(name, ref.getObjectId());
+            }
+        }
+        return loose;
+    }
+
+    private static final class Op {
+        final String refName;
+        final ObjectId target;
+        final String message;
+
+        Op(String refName, ObjectId target, String message) {
+            this.refName = refName;
+            this.target = target;
+            this.message = message;
+        }
+    }
+
+    /**
+     * 标签和它指向的对象
+     */
+    public static final class TagInfo {
+        private final String refName;
+        private final ObjectId objectId;
+        private final ObjectId peeledId;
+
+        TagInfo(String refName, ObjectId objectId, ObjectId peeledId) {
+            this.refName = refName;
+            this.objectId = objectId;
+            this.peeledId = peeledId;
+        }
+
+        /**
+         * @return 去掉refs/tags/的标签名
+         */
+        public String getName() {
+            return refName.substring(Constants.R_TAGS.length());
+        }
+
+        public String getRefName() {
+            return refName;
+        }
+
+        /**
+         * @return 引用里存的值,附注标签是标签对象
+         */
+        public ObjectId getObjectId() {
+            return objectId;
+        }
+
+        /**
+         * @return 标签最终指向的对象,一般是提交
+         */
+        public ObjectId getTargetId() {
+            return peeledId != null ? peeledId : objectId;
+        }
+
+        public boolean isAnnotated() {
+            return peeledId != null;
+        }
+
+        @Override
+        public String toString() {
+            return getName() + " " + getTargetId().name() + (isAnnotated() ? " (annotated)" : "");
+        }
+    }
+
+    /**
+     * 批量更新结果
+     */
+    public static final class Result {
+        private int created;
+        private int updated;
+        private int deleted;
+        private long elapsedNanos;
+
+        public int getCreated() {
+            return created;
+        }
+
+        /**
+         * @return 强制覆盖的标签数
+         */
+        public int getUpdated() {
+            return updated;
+        }
+
+        /**
+         * @return 实际删除的标签数,不存在的不算
+         */
+        public int getDeleted() {
+            return deleted;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return "created=" + created + " updated=" + updated + " deleted=" + deleted;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+/**
+ * 树对象缓存
+ * 按树id缓存解压后的树数据,数据放在堆外的GitOffHeapCache里,总字节数有上限,超过后淘汰最久没用的
+ * newReader拿到的reader读树时先查缓存,同一个提交和很多提交做diff时,子树也不用反复解压和重新展开delta链
+ * 每个任务自己开一个reader用完关闭,缓存自己读对象时从空闲的reader里借,不用ThreadLocal,线程池的线程不会一直留着reader
+ * of拿到的缓存都用进程内共享的GitOffHeapCache,所有仓库一起受同一个字节预算约束
+ */
+public class GitTreeCache implements AutoCloseable {
+    private static final int MAX_COMMITS = 4096;
+
+    private static final Map<Repository, GitTreeCache> CACHES = new WeakHashMap<>();
+
+    // 只持有对象库,不持有仓库,仓库被回收时缓存表里的条目才能跟着回收
+    private final ObjectDatabase objectDatabase;
+    private final GitOffHeapCache store;
+    private final long owner = GitOffHeapCache.newOwner();
+    // 提交到树的映射,省掉解析提交
+    private final LinkedHashMap<ObjectId, ObjectId> commitTrees = new LinkedHashMap<ObjectId, ObjectId>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, ObjectId> eldest) {
+            return size() > MAX_COMMITS;
+        }
+    };
+    // 空闲的底层reader,treeId和getTree借用,用完放回去
+    private final Queue<ObjectReader> idleReaders = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * 单独使用一块堆外内存
+     *
+     * @param repository
+     * @param maxBytes
+     */
+    public GitTreeCache(Repository repository, long maxBytes) {
+        this(repository, new GitOffHeapCache(maxBytes));
+    }
+
+    /**
+     * @param repository
+     * @param store 可以和别的仓库的缓存共用
+     */
+    public GitTreeCache(Repository repository, GitOffHeapCache store) {
+        this.objectDatabase = repository.getObjectDatabase();
+        this.store = store;
+    }
+
+    /**
+     * 仓库共用的缓存,数据放在GitOffHeapCache.getDefault()里,仓库被回收后缓存跟着回收
+     *
+     * @param repository
+     * @return
+     */
+    public static GitTreeCache of(Repository repository) {
+        synchronized (CACHES) {
+            return CACHES.computeIfAbsent(repository, repo -> new GitTreeCache(repo, GitOffHeapCache.getDefault()));
+        }
+    }
+
+    /**
+     * 读树时走缓存的reader,用完要关闭
+     *
+     * @return
+     */
+    public ObjectReader newReader() {
+        return new CachingReader(objectDatabase.newReader());
+    }
+
+    /**
+     * 提交或树对应的树解析器
+     *
+     * @param id 提交id或树id
+     * @return
+     * @throws IOException
+     */
+    public CanonicalTreeParser treeParser(AnyObjectId id) throws IOException {
+        CanonicalTreeParser parser = new CanonicalTreeParser();
+        parser.reset(getTree(treeId(id)));
+        return parser;
+    }
+
+    /**
+     * 提交对应的树id,传入的已经是树时原样返回
+     *
+     * @param id
+     * @return
+     * @throws IOException
+     */
+    public ObjectId treeId(AnyObjectId id) throws IOException {
+        synchronized (this) {
+            ObjectId tree = commitTrees.get(id);
+            if (tree != null) {
+                return tree;
+            }
+        }
+        ObjectId tree;
+        ObjectReader reader = borrowReader();
+        try {
+            ObjectLoader loader = reader.open(id);
+            if (loader.getType() == Constants.OBJ_TREE) {
+                return id.copy();
+            }
+            tree = RevCommit.parse(loader.getCachedBytes()).getTree().copy();
+        } finally {
+            returnReader(reader);
+        }
+        synchronized (this) {
+            commitTrees.put(id.copy(), tree);
+        }
+        return tree;
+    }
+
+    /**
+     * 解压后的树数据,命中时从堆外复制一份出来
+     *
+     * @param treeId
+     * @return
+     * @throws IOException
+     */
+    public byte[] getTree(AnyObjectId treeId) throws IOException {
+        byte[] raw = store.get(owner, treeId);
+        if (raw != null) {
+            hits.incrementAndGet();
+            return raw;
+        }
+        misses.incrementAndGet();
+        ObjectReader reader = borrowReader();
+        try {
+            raw = reader.open(treeId, Constants.OBJ_TREE).getCachedBytes();
+        } finally {
+            returnReader(reader);
+        }
+        store.put(owner, treeId, raw);
+        return raw;
+    }
+
+    private ObjectReader borrowReader() {
+        ObjectReader reader = idleReaders.poll();
+        return reader != null ? reader : objectDatabase.newReader();
+    }
+
+    private void returnReader(ObjectReader reader) {
+        idleReaders.add(reader);
+        // 和close并发时,放回去的reader可能没被close清理到
+        if (closed && idleReaders.remove(reader)) {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return 存放数据的堆外缓存里的对象数,和别的仓库共用时是所有仓库的合计
+     */
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * @return 存放数据的堆外缓存里的字节数,和别的仓库共用时是所有仓库的合计
+     */
+    public long getBytes() {
+        return store.getBytes();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 清空缓存并关闭空闲的reader,newReader拿到的由调用方自己关闭
+     */
+    @Override
+    public void close() {
+        closed = true;
+        store.invalidate(owner);
+        synchronized (this) {
+            commitTrees.clear();
+        }
+        ObjectReader reader;
+        while ((reader = idleReaders.poll()) != null) {
+            reader.close();
+        }
+        synchronized (CACHES) {
+            CACHES.values().remove(this);
+        }
+    }
+
+    /**
+     * 读树时先查缓存的reader,其他对象直接交给底层reader
+     */
+    private final class CachingReader extends ObjectReader {
+        private final ObjectReader delegate;
+
+        CachingReader(ObjectReader delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ObjectReader newReader() {
+            return new CachingReader(delegate.newReader());
+        }
+
+        @Override
+        public Collection<ObjectId> resolve(AbbreviatedObjectId id) throws IOException {
+            return delegate.resolve(id);
+        }
+
+        @Override
+        public ObjectLoader open(AnyObjectId objectId, int typeHint) throws IOException {
+            if (typeHint == Constants.OBJ_TREE) {
+                return new ObjectLoader.SmallObject(Constants.OBJ_TREE, getTree(objectId));
+            }
+            return delegate.open(objectId, typeHint);
+        }
+
+        @Override
+        public boolean has(AnyObjectId objectId, int typeHint) throws IOException {
+            return delegate.has(objectId, typeHint);
+        }
+
+        @Override
+        public long getObjectSize(AnyObjectId objectId, int typeHint) throws IOException {
+            return delegate.getObjectSize(objectId, typeHint);
+        }
+
+        @Override
+        public Set<ObjectId> getShallowCommits() throws IOException {
+            return delegate.getShallowCommits();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+}
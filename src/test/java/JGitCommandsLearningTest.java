@@ -1,26 +1,63 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.StreamSupport.stream;
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.KeyPair;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.MergeCommand;
+import org.eclipse.jgit.api.MergeResult;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.NoMessageException;
+import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.CheckoutConflictException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.merge.MergeStrategy;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.Daemon;
 import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.transport.PushResult;
 import org.eclipse.jgit.transport.RemoteRefUpdate;
 import org.eclipse.jgit.transport.RemoteRefUpdate.Status;
+import org.eclipse.jgit.transport.RemoteSession;
 import org.eclipse.jgit.transport.TrackingRefUpdate;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.FileUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -293,4 +330,1872 @@ public class JGitCommandsLearningTest {
         assertEquals(RefUpdate.Result.NEW, refUpdate.getResult());
         assertEquals(commit.getId(), local.getRepository().resolve(ORIGIN_MASTER));
     }
+
+    /**
+     * 同一个仓库多次打开拿到的是同一个Repository
+     * @throws IOException
+     */
+    @Test
+    public void testRepoCacheReusesRepository() throws IOException {
+        GitRepoCache cache = new GitRepoCache(0, 16);
+        String dir = local.getRepository().getWorkTree().getPath();
+        try (GitRepoCache.Handle first = cache.open(dir);
+             GitRepoCache.Handle second = cache.open(dir)) {
+            assertSame(first.getRepository(), second.getRepository());
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+//        引用已经归零,空闲时间为0,马上就会被回收
+        assertEquals(1, cache.evictIdle());
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+//        git()持有句柄,没close之前不会被回收
+        try (Git git = cache.open(dir).git()) {
+            assertEquals(0, cache.evictIdle());
+            assertTrue(git.getRepository().getObjectDatabase().exists());
+        }
+        assertEquals(1, cache.evictIdle());
+    }
+
+    /**
+     * 超过最大打开数时回收最久没用的仓库,正在使用的不回收
+     * @throws IOException
+     */
+    @Test
+    public void testRepoCacheEvictsOverMaxOpen() throws IOException {
+        GitRepoCache cache = new GitRepoCache(Long.MAX_VALUE, 1);
+        try (GitRepoCache.Handle localHandle = cache.openGitDir(local.getRepository().getDirectory())) {
+            try (GitRepoCache.Handle remoteHandle = cache.openGitDir(remote.getRepository().getDirectory())) {
+                assertEquals(2, cache.size());
+                assertTrue(remoteHandle.getRepository().getObjectDatabase().exists());
+            }
+            assertEquals(1, cache.size());
+            assertEquals(1, cache.getEvictions());
+            assertTrue(localHandle.getRepository().getObjectDatabase().exists());
+        }
+    }
+
+    /**
+     * 并行扫描的结果和status命令一致
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testStatusScanner() throws IOException, GitAPIException {
+        new File(local.getRepository().getWorkTree(), "src/main").mkdirs();
+        File changed = createFile("src/main/changed.txt");
+        File modified = createFile("src/main/modified.txt");
+        File removed = createFile("removed.txt");
+        File missing = createFile("missing.txt");
+        local.add().addFilepattern(".").call();
+        local.commit().setMessage("init").call();
+
+        Files.write(changed.toPath(), "staged".getBytes(UTF_8));
+        local.add().addFilepattern("src/main/changed.txt").call();
+        Files.write(modified.toPath(), "not staged".getBytes(UTF_8));
+        local.rm().addFilepattern(removed.getName()).call();
+        missing.delete();
+        createFile("added.txt");
+        local.add().addFilepattern("added.txt").call();
+        createFile("src/untracked.txt");
+        new File(local.getRepository().getWorkTree(), "new/sub").mkdirs();
+        createFile("new/sub/untracked.txt");
+        new File(local.getRepository().getWorkTree(), "build").mkdirs();
+        createFile("build/out.class");
+        createFile("debug.log");
+        Files.write(new File(local.getRepository().getWorkTree(), ".gitignore").toPath(),
+                "build/\n*.log\n".getBytes(UTF_8));
+
+        org.eclipse.jgit.api.Status expected = local.status().call();
+        GitStatusScanner.Result result = new GitStatusScanner().scan(local.getRepository());
+
+        assertEquals(expected.getAdded(), new HashSet<>(result.getPaths(GitStatusScanner.ADDED)));
+        assertEquals(expected.getChanged(), new HashSet<>(result.getPaths(GitStatusScanner.CHANGED)));
+        assertEquals(expected.getRemoved(), new HashSet<>(result.getPaths(GitStatusScanner.REMOVED)));
+        assertEquals(expected.getMissing(), new HashSet<>(result.getPaths(GitStatusScanner.MISSING)));
+        assertEquals(expected.getModified(), new HashSet<>(result.getPaths(GitStatusScanner.MODIFIED)));
+        assertEquals(expected.getUntracked(), new HashSet<>(result.getPaths(GitStatusScanner.UNTRACKED)));
+        assertEquals(expected.getUntrackedFolders(), new HashSet<>(result.getPaths(GitStatusScanner.UNTRACKED_FOLDER)));
+        assertEquals(expected.getIgnoredNotInIndex(), new HashSet<>(result.getPaths(GitStatusScanner.IGNORED)));
+        assertEquals(GitStatusScanner.MODIFIED, result.getCode("src/main/modified.txt"));
+        assertEquals(0, result.getCode("does-not-exist"));
+    }
+
+    /**
+     * 冲突的路径和阶段与status()一致
+     * @throws Exception
+     */
+    @Test
+    public void testStatusScannerConflicts() throws Exception {
+        File file = createFile("readme.txt");
+        local.add().addFilepattern(file.getName()).call();
+        local.commit().setMessage("init").call();
+        local.branchCreate().setName("dev").call();
+        Files.write(file.toPath(), "master".getBytes(UTF_8));
+        Files.write(createFile("both.txt").toPath(), "master".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        local.commit().setMessage("master").call();
+        local.checkout().setName("dev").call();
+        Files.write(file.toPath(), "dev".getBytes(UTF_8));
+        Files.write(createFile("both.txt").toPath(), "dev".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        local.commit().setMessage("dev").call();
+        local.checkout().setName("master").call();
+        local.merge().include(local.getRepository().exactRef("refs/heads/dev")).call();
+
+        org.eclipse.jgit.api.Status expected = local.status().call();
+        GitStatusScanner.Result result = new GitStatusScanner().scan(local.getRepository());
+
+        assertFalse(expected.getConflicting().isEmpty());
+        assertEquals(expected.getConflicting(), new HashSet<>(result.getPaths(GitStatusScanner.CONFLICTING)));
+        assertEquals(expected.getConflictingStageState(), result.getStageStates());
+        assertFalse(result.isClean());
+    }
+
+    /**
+     * 同时扫描两个仓库
+     * @throws IOException
+     */
+    @Test
+    public void testStatusScannerMultipleRepositories() throws IOException {
+        createFile("readme.txt");
+        Map<Repository, GitStatusScanner.Result> results = new GitStatusScanner()
+                .scanAll(Arrays.asList(local.getRepository(), remote.getRepository()));
+        assertEquals(singletonList("readme.txt"), results.get(local.getRepository()).getPaths(GitStatusScanner.UNTRACKED));
+        assertTrue(results.get(remote.getRepository()).isClean());
+    }
+
+    /**
+     * 监听到改动后只扫描改动的路径
+     * @throws Exception
+     */
+    @Test
+    public void testStatusWatcherIncremental() throws Exception {
+        File file = createFile("readme.txt");
+        local.add().addFilepattern(file.getName()).call();
+        local.commit().setMessage("init").call();
+
+        try (GitStatusWatcher watcher = new GitStatusWatcher(local.getRepository())) {
+            assertTrue(watcher.status().isClean());
+            assertTrue(watcher.status().isClean());
+            assertEquals(1, watcher.getFullScans());
+            assertEquals(0, watcher.getIncrementalScans());
+
+            Files.write(file.toPath(), "changed".getBytes(UTF_8));
+            long deadline = System.currentTimeMillis() + 10000;
+            GitStatusScanner.Result result = watcher.status();
+            while (result.isClean() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                result = watcher.status();
+            }
+            assertEquals(GitStatusScanner.MODIFIED, result.getCode("readme.txt"));
+            assertEquals(1, watcher.getFullScans());
+            assertTrue(watcher.getIncrementalScans() > 0);
+        }
+    }
+
+    /**
+     * .gitignore改了之后重新扫描,之前未跟踪的文件变成被忽略
+     * @throws Exception
+     */
+    @Test
+    public void testStatusWatcherIgnoreRules() throws Exception {
+        new File(local.getRepository().getWorkTree(), "build").mkdirs();
+        createFile("build/out.class");
+        createFile("debug.log");
+
+        try (GitStatusWatcher watcher = new GitStatusWatcher(local.getRepository())) {
+            assertEquals(GitStatusScanner.UNTRACKED, watcher.status().getCode("debug.log"));
+
+            Files.write(new File(local.getRepository().getWorkTree(), ".gitignore").toPath(),
+                    "build/\n*.log\n".getBytes(UTF_8));
+            long deadline = System.currentTimeMillis() + 10000;
+            GitStatusScanner.Result result = watcher.status();
+            while (result.getCode("debug.log") != GitStatusScanner.IGNORED && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                result = watcher.status();
+            }
+            assertEquals(local.status().call().getIgnoredNotInIndex(),
+                    new HashSet<>(result.getPaths(GitStatusScanner.IGNORED)));
+            assertEquals(GitStatusScanner.UNTRACKED, result.getCode(".gitignore"));
+            assertEquals(2, watcher.getFullScans());
+        }
+    }
+
+    /**
+     * 重启后从快照恢复,不需要全量扫描
+     * @throws Exception
+     */
+    @Test
+    public void testStatusWatcherSnapshot() throws Exception {
+        new File(local.getRepository().getWorkTree(), "dir").mkdirs();
+        File file = createFile("dir/readme.txt");
+        local.add().addFilepattern(".").call();
+        local.commit().setMessage("init").call();
+//        根目录刚刚新建过文件,修改时间挪到过去,否则重启后会认为根目录有改动而全量扫描
+        Files.setLastModifiedTime(local.getRepository().getWorkTree().toPath(),
+                FileTime.fromMillis(System.currentTimeMillis() - 3600 * 1000));
+
+        try (GitStatusWatcher watcher = new GitStatusWatcher(local.getRepository())) {
+            assertTrue(watcher.status().isClean());
+        }
+        assertTrue(new File(local.getRepository().getDirectory(), GitStatusWatcher.SNAPSHOT_FILE).isFile());
+
+        Files.write(file.toPath(), "changed while not watching".getBytes(UTF_8));
+        try (GitStatusWatcher watcher = new GitStatusWatcher(local.getRepository())) {
+            assertEquals(GitStatusScanner.MODIFIED, watcher.status().getCode("dir/readme.txt"));
+            assertEquals(0, watcher.getFullScans());
+        }
+    }
+
+    /**
+     * 流式日志和RevWalk的顺序一致,正文是并行解析的
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testLogStream() throws IOException, GitAPIException {
+        List<RevCommit> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            expected.add(0, local.commit().setMessage("commit " + i + "\n\nbody").call());
+        }
+
+        List<GitLogStream.CommitInfo> commits;
+        try (Stream<GitLogStream.CommitInfo> stream = new GitLogStream(local.getRepository())
+                .setBuffer(3, 2).stream()) {
+            commits = stream.collect(toList());
+        }
+        assertEquals(expected.size(), commits.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), commits.get(i).getId());
+            assertEquals(expected.get(i).getShortMessage(), commits.get(i).getShortMessage());
+            assertEquals(expected.get(i).getAuthorIdent(), commits.get(i).getAuthorIdent());
+        }
+    }
+
+    /**
+     * 第一父提交模式,中途释放RevWalk也不影响结果
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testLogStreamFirstParent() throws IOException, GitAPIException {
+        RevCommit initialCommit = local.commit().setMessage("init commit").call();
+        local.checkout().setCreateBranch(true).setName("side").call();
+        RevCommit sideCommit = local.commit().setMessage("commit on side branch").call();
+        local.checkout().setName(MASTER).call();
+        RevCommit masterCommit = local.commit().setMessage("commit on master").call();
+        local.merge().include(sideCommit).setMessage("merge side").call();
+        ObjectId merge = local.getRepository().resolve(MASTER);
+
+        List<ObjectId> ids = new ArrayList<>();
+        try (GitLogStream.LogIterator it = new GitLogStream(local.getRepository())
+                .setFirstParent(true).setDisposeEvery(1).setParseBody(false).call()) {
+            it.forEachRemaining(info -> ids.add(info.getId()));
+        }
+        assertEquals(Arrays.asList(merge, masterCommit.getId(), initialCommit.getId()), ids);
+    }
+
+    /**
+     * 提交图上的祖先、合并基和日志查询,结果和RevWalk一致
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testCommitGraph() throws IOException, GitAPIException {
+        RevCommit initialCommit = local.commit().setMessage("init commit").call();
+        local.checkout().setCreateBranch(true).setName("side").call();
+        RevCommit sideCommit = local.commit().setMessage("commit on side branch").call();
+        local.checkout().setName(MASTER).call();
+        RevCommit masterCommit = local.commit().setMessage("commit on master").call();
+        local.tag().setName("v1").setObjectId(masterCommit).call();
+
+        GitCommitGraph graph = GitCommitGraph.open(local.getRepository());
+        assertEquals(3, graph.size());
+        assertEquals(1, graph.getGeneration(initialCommit));
+        assertEquals(2, graph.getGeneration(sideCommit));
+        assertTrue(graph.isAncestor(initialCommit, sideCommit));
+        assertFalse(graph.isAncestor(sideCommit, masterCommit));
+        assertEquals(singletonList(initialCommit.getId()), graph.mergeBases(sideCommit, masterCommit));
+        assertEquals(initialCommit.getId(), graph.getFirstParent(masterCommit));
+
+        assertEquals(2, graph.buildBitmaps());
+        assertEquals(2, graph.getBitmap(masterCommit).cardinality());
+        assertTrue(graph.isAncestor(initialCommit, masterCommit));
+        assertTrue(graph.isReachableFromRefs(sideCommit));
+
+        List<ObjectId> expected = new ArrayList<>();
+        try (RevWalk revWalk = new RevWalk(local.getRepository())) {
+            revWalk.markStart(revWalk.parseCommit(masterCommit));
+            for (RevCommit commit : revWalk) {
+                expected.add(commit.getId());
+            }
+        }
+        assertEquals(expected, graph.log(masterCommit, -1));
+    }
+
+    /**
+     * 提交图保存到文件,重新打开时只追加新提交;文件损坏时重新建
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testCommitGraphIncremental() throws IOException, GitAPIException {
+        RevCommit initialCommit = local.commit().setMessage("init commit").call();
+        GitCommitGraph.open(local.getRepository());
+        assertTrue(new File(local.getRepository().getDirectory(), GitCommitGraph.GRAPH_FILE).isFile());
+
+        local.checkout().setCreateBranch(true).setName("side").call();
+        RevCommit sideCommit = local.commit().setMessage("commit on side branch").call();
+        local.checkout().setName(MASTER).call();
+        local.commit().setMessage("commit on master").call();
+        MergeResult merge = local.merge().include(sideCommit).setMessage("merge side").call();
+
+        GitCommitGraph graph = GitCommitGraph.open(local.getRepository());
+        assertEquals(4, graph.size());
+        assertEquals(0, graph.update());
+        assertEquals(3, graph.getGeneration(merge.getNewHead()));
+        assertTrue(graph.isAncestor(sideCommit, merge.getNewHead()));
+        assertTrue(graph.isAncestor(initialCommit, merge.getNewHead()));
+        assertEquals(singletonList(sideCommit.getId()), graph.mergeBases(sideCommit, merge.getNewHead()));
+
+//        第一个提交的父提交编号改成越界的值,文件当作损坏重新建
+        File file = new File(local.getRepository().getDirectory(), GitCommitGraph.GRAPH_FILE);
+        byte[] data = Files.readAllBytes(file.toPath());
+        data[12 + Constants.OBJECT_ID_LENGTH + 3] = 99;
+        Files.write(file.toPath(), data);
+        graph = GitCommitGraph.open(local.getRepository());
+        assertEquals(4, graph.size());
+        assertTrue(graph.isAncestor(initialCommit, merge.getNewHead()));
+    }
+
+    /**
+     * 并行diff按路径顺序输出,内容和git diff一致,能识别重命名
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testDiffEngine() throws IOException, GitAPIException {
+        File workTree = local.getRepository().getWorkTree();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            content.append("line ").append(i).append('\n');
+        }
+        for (int i = 0; i < 10; i++) {
+            Files.write(new File(workTree, "file" + i + ".txt").toPath(), (i + "\n" + content).getBytes(UTF_8));
+        }
+        Files.write(new File(workTree, "moved.txt").toPath(), content.toString().getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        local.commit().setMessage("init commit").call();
+
+        for (int i = 0; i < 10; i += 2) {
+            Files.write(new File(workTree, "file" + i + ".txt").toPath(), (content + "end\n").getBytes(UTF_8));
+        }
+        new File(workTree, "moved.txt").renameTo(new File(workTree, "renamed.txt"));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        local.diff().setOutputStream(expected).call();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        int count = new GitDiffEngine(local.getRepository()).setMaxInFlight(2).setDetectRenames(false)
+                .diffWorkingTree(GitDiffEngine.DiffSink.toStream(actual));
+        assertEquals(7, count);
+        assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+
+        local.add().addFilepattern(".").call();
+        local.rm().addFilepattern("moved.txt").call();
+        local.commit().setMessage("second commit").call();
+        List<String> paths = new ArrayList<>();
+        List<DiffEntry.ChangeType> types = new ArrayList<>();
+        new GitDiffEngine(local.getRepository()).diff("HEAD^", "HEAD", (entry, patch) -> {
+            paths.add(entry.getNewPath());
+            types.add(entry.getChangeType());
+        });
+        assertEquals(Arrays.asList("file0.txt", "file2.txt", "file4.txt", "file6.txt", "file8.txt", "renamed.txt"),
+                paths);
+        assertEquals(DiffEntry.ChangeType.RENAME, types.get(5));
+    }
+
+    /**
+     * 同一个提交和多个提交做diff时,树从缓存里取,输出和不用缓存时一致
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testTreeCache() throws IOException, GitAPIException {
+        File workTree = local.getRepository().getWorkTree();
+        new File(workTree, "dir/sub").mkdirs();
+        List<RevCommit> commits = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Files.write(new File(workTree, "dir/sub/file" + i + ".txt").toPath(), ("content " + i).getBytes(UTF_8));
+            local.add().addFilepattern("dir").call();
+            commits.add(local.commit().setMessage("commit " + i).call());
+        }
+        RevCommit main = commits.get(commits.size() - 1);
+
+        try (GitTreeCache cache = new GitTreeCache(local.getRepository(), 1024 * 1024)) {
+            for (RevCommit commit : commits.subList(0, 3)) {
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                new GitDiffEngine(local.getRepository()).diff(commit.getName(), main.getName(),
+                        GitDiffEngine.DiffSink.toStream(expected));
+                ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                new GitDiffEngine(local.getRepository()).setTreeCache(cache)
+                        .diff(cache.treeParser(commit), cache.treeParser(main), GitDiffEngine.DiffSink.toStream(actual));
+                assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+            }
+            assertTrue(cache.getHits() > 0);
+            assertEquals(main.getTree(), cache.treeId(main));
+        }
+
+        try (GitTreeCache small = new GitTreeCache(local.getRepository(), 200)) {
+            for (RevCommit commit : commits) {
+                small.getTree(commit.getTree());
+            }
+            assertTrue(small.getBytes() <= 200);
+            assertTrue(small.size() < commits.size());
+        }
+    }
+
+    /**
+     * 批量暂存的结果和逐个git.add()一致,索引只写一次
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testBatchStager() throws IOException, GitAPIException {
+        File workTree = local.getRepository().getWorkTree();
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            String path = "gen/" + (i % 10) + "/file" + i + ".txt";
+            new File(workTree, path).getParentFile().mkdirs();
+            Files.write(new File(workTree, path).toPath(), ("content " + i).getBytes(UTF_8));
+            paths.add(path);
+        }
+
+        GitBatchStager.Result result = new GitBatchStager(local.getRepository())
+                .setExecutor(ForkJoinPool.commonPool(), 4)
+                .addAll(paths.stream().map(GitBatchStager.Operation::add))
+                .call();
+        assertEquals(1200, result.getAdded());
+        assertTrue(result.getFilesPerSecond() > 0);
+        local.commit().setMessage("generated").call();
+        assertTrue(local.status().call().isClean());
+
+        Files.write(new File(workTree, paths.get(0)).toPath(), "changed".getBytes(UTF_8));
+        new File(workTree, paths.get(1)).delete();
+        Files.write(new File(workTree, "untracked.txt").toPath(), "new".getBytes(UTF_8));
+        result = new GitBatchStager(local.getRepository())
+                .update(paths.get(0))
+                .add(paths.get(1))
+                .remove(paths.get(2))
+                .update("untracked.txt")
+                .call();
+        assertEquals(0, result.getAdded());
+        assertEquals(1, result.getUpdated());
+        assertEquals(2, result.getRemoved());
+        org.eclipse.jgit.api.Status status = local.status().call();
+        assertEquals(singleton(paths.get(0)), status.getChanged());
+        assertEquals(new HashSet<>(paths.subList(1, 3)), status.getRemoved());
+        assertEquals(new HashSet<>(Arrays.asList(paths.get(2), "untracked.txt")), status.getUntracked());
+    }
+
+    /**
+     * 和git.add()一样做换行符转换,core.filemode为false时不改索引里的权限
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testBatchStagerAutoCrlfAndFileMode() throws IOException, GitAPIException {
+        File file = createFile("crlf.txt");
+        local.add().addFilepattern(file.getName()).call();
+        local.commit().setMessage("init").call();
+        StoredConfig config = local.getRepository().getConfig();
+        config.setBoolean("core", null, "autocrlf", true);
+        config.setBoolean("core", null, "filemode", false);
+        config.save();
+
+        Files.write(file.toPath(), "a\r\nb\r\n".getBytes(UTF_8));
+        assertTrue(file.setExecutable(true));
+        GitBatchStager.Result result = new GitBatchStager(local.getRepository()).add(file.getName()).call();
+        assertEquals(1, result.getUpdated());
+
+        DirCacheEntry entry = local.getRepository().readDirCache().getEntry(file.getName());
+        assertEquals(FileMode.REGULAR_FILE, entry.getFileMode());
+        try (ObjectReader reader = local.getRepository().newObjectReader()) {
+            assertEquals("a\nb\n", new String(reader.open(entry.getObjectId(), OBJ_BLOB).getBytes(), UTF_8));
+        }
+        assertEquals(singleton(file.getName()), local.status().call().getChanged());
+        assertTrue(local.status().call().getModified().isEmpty());
+    }
+
+    /**
+     * 直接写pack,不产生松散对象
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testBatchStagerWritePack() throws IOException, GitAPIException {
+        File workTree = local.getRepository().getWorkTree();
+        for (int i = 0; i < 20; i++) {
+            Files.write(new File(workTree, "file" + i + ".txt").toPath(), ("content " + i).getBytes(UTF_8));
+        }
+        try (Stream<java.nio.file.Path> files = Files.list(workTree.toPath())) {
+            new GitBatchStager(local.getRepository()).setWritePack(true)
+                    .addAll(files.filter(Files::isRegularFile)
+                            .map(file -> GitBatchStager.Operation.add(file.getFileName().toString())))
+                    .call();
+        }
+        File objects = new File(local.getRepository().getDirectory(), "objects");
+        File[] looseDirs = objects.listFiles((dir, name) -> name.length() == 2);
+        assertEquals(0, looseDirs.length);
+        assertEquals(1, new File(objects, "pack").list((dir, name) -> name.endsWith(".pack")).length);
+        local.commit().setMessage("generated").call();
+        assertTrue(local.status().call().isClean());
+    }
+
+    /**
+     * 批量提交直接写一个pack,不经过工作区和索引
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testBulkCommitWriter() throws IOException, GitAPIException {
+        RevCommit initialCommit = local.commit().setMessage("init commit").call();
+        File objects = new File(local.getRepository().getDirectory(), "objects");
+        int looseBefore = objects.listFiles((dir, name) -> name.length() == 2).length;
+
+        RevCommit commit;
+        try (GitBulkCommitWriter writer = new GitBulkCommitWriter(local.getRepository())) {
+            for (int i = 0; i < 100; i++) {
+                writer.put("gen/" + (i % 3) + "/file" + i + ".txt", ("content " + i).getBytes(UTF_8));
+            }
+            byte[] big = new byte[64 * 1024];
+            writer.put("gen-big.bin", FileMode.REGULAR_FILE, big.length, new java.io.ByteArrayInputStream(big));
+            commit = writer.setMessage("generated snapshot").call();
+        }
+
+        assertEquals(looseBefore, objects.listFiles((dir, name) -> name.length() == 2).length);
+        assertEquals(1, new File(objects, "pack").list((dir, name) -> name.endsWith(".pack")).length);
+        assertEquals(commit.getId(), local.getRepository().resolve(MASTER));
+        assertEquals(initialCommit, commit.getParent(0));
+        assertFalse(new File(local.getRepository().getWorkTree(), "gen").exists());
+
+        List<String> paths = new ArrayList<>();
+        try (TreeWalk walk = new TreeWalk(local.getRepository())) {
+            walk.addTree(commit.getTree());
+            walk.setRecursive(true);
+            while (walk.next()) {
+                paths.add(walk.getPathString());
+            }
+        }
+        assertEquals(101, paths.size());
+        assertEquals("gen-big.bin", paths.get(0));
+        assertEquals("gen/0/file0.txt", paths.get(1));
+    }
+
+    /**
+     * 在父提交的树上修改,引用被别人改过时提交失败
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testBulkCommitWriterInheritTree() throws IOException, GitAPIException {
+        createFile("readme.txt");
+        new File(local.getRepository().getWorkTree(), "dir").mkdirs();
+        Files.write(new File(local.getRepository().getWorkTree(), "dir/a.txt").toPath(), "a".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit initialCommit = local.commit().setMessage("init commit").call();
+
+        RevCommit commit;
+        try (GitBulkCommitWriter writer = new GitBulkCommitWriter(local.getRepository())) {
+            commit = writer.setInheritParentTree(true)
+                    .put("dir/b.txt", "b".getBytes(UTF_8))
+                    .delete("readme.txt")
+                    .setMessage("bulk update")
+                    .call();
+        }
+        try (TreeWalk walk = new TreeWalk(local.getRepository())) {
+            walk.addTree(commit.getTree());
+            walk.setRecursive(true);
+            List<String> paths = new ArrayList<>();
+            while (walk.next()) {
+                paths.add(walk.getPathString());
+            }
+            assertEquals(Arrays.asList("dir/a.txt", "dir/b.txt"), paths);
+        }
+
+        try (GitBulkCommitWriter writer = new GitBulkCommitWriter(local.getRepository())) {
+            writer.setParent(initialCommit).put("c.txt", "c".getBytes(UTF_8));
+            writer.call();
+            fail("ref was moved by another commit");
+        } catch (IOException e) {
+            assertEquals(commit.getId(), local.getRepository().resolve(MASTER));
+        }
+    }
+
+    /**
+     * 多个仓库并行push和fetch,同一主机的并发受限制
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    @Test
+    public void testSyncScheduler() throws IOException, GitAPIException {
+        List<Git> upstreams = new ArrayList<>();
+        List<Repository> downstreams = new ArrayList<>();
+        try (GitSyncScheduler scheduler = new GitSyncScheduler(4).setMaxPerHost(2)) {
+            List<CompletableFuture<GitSyncScheduler.SyncResult>> pushes = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                File bare = tempFolder.newFolder("mirror" + i + ".git");
+                Git.init().setBare(true).setDirectory(bare).call().close();
+                Git upstream = Git.cloneRepository().setURI(bare.getCanonicalPath())
+                        .setDirectory(tempFolder.newFolder("up" + i)).call();
+                upstream.commit().setMessage("commit " + i).call();
+                upstreams.add(upstream);
+                downstreams.add(Git.cloneRepository().setURI(bare.getCanonicalPath())
+                        .setDirectory(tempFolder.newFolder("down" + i)).call().getRepository());
+            }
+            for (Git upstream : upstreams) {
+                pushes.add(scheduler.push(upstream.getRepository(), "origin"));
+            }
+            for (CompletableFuture<GitSyncScheduler.SyncResult> push : pushes) {
+                GitSyncScheduler.SyncResult result = push.join();
+                assertTrue(String.valueOf(result.getError()), result.isSuccess());
+                assertEquals(GitSyncScheduler.LOCAL_HOST, result.getHost());
+            }
+
+            List<GitSyncScheduler.SyncResult> results = scheduler.fetchAll(downstreams, "origin");
+            for (int i = 0; i < results.size(); i++) {
+                GitSyncScheduler.SyncResult result = results.get(i);
+                assertTrue(result.isSuccess());
+                assertEquals(1, result.getAttempts());
+                assertTrue(result.getObjects() > 0);
+                assertTrue(result.getBytes() > 0);
+                assertEquals(upstreams.get(i).getRepository().resolve(MASTER),
+                        downstreams.get(i).resolve(ORIGIN_MASTER));
+            }
+        } finally {
+            upstreams.forEach(Git::close);
+            downstreams.forEach(Repository::close);
+        }
+    }
+
+    /**
+     * 连接失败时按退避重试,主机的连续失败次数会记下来;退避时不占工作线程
+     * @throws Exception
+     */
+    @Test
+    public void testSyncSchedulerRetry() throws Exception {
+        StoredConfig config = local.getRepository().getConfig();
+        config.setString("remote", "unreachable", "url", "ssh://git@127.0.0.1:1/repo.git");
+        config.setString("remote", "unreachable", "fetch", "+refs/heads/*:refs/remotes/unreachable/*");
+        config.save();
+
+        try (GitSyncScheduler scheduler = new GitSyncScheduler(1).setRetry(2, 10, 100).setTimeout(5)) {
+            GitSyncScheduler.SyncResult result = scheduler.fetch(local.getRepository(), "unreachable").get();
+            assertFalse(result.isSuccess());
+            assertEquals(2, result.getAttempts());
+            assertNotNull(result.getError());
+            assertEquals(2, scheduler.getConsecutiveFailures("127.0.0.1"));
+        }
+
+//        只有一个工作线程,退避中的主机不占着它,别的主机的操作照常执行
+        try (GitSyncScheduler scheduler = new GitSyncScheduler(1).setRetry(2, 2000, 2000).setTimeout(5)) {
+            CompletableFuture<GitSyncScheduler.SyncResult> slow = scheduler.fetch(local.getRepository(), "unreachable");
+            GitSyncScheduler.SyncResult result = scheduler.fetch(local.getRepository(), "origin").get();
+            assertTrue(String.valueOf(result.getError()), result.isSuccess());
+            assertFalse(slow.isDone());
+            assertEquals(2, slow.get().getAttempts());
+        }
+    }
+
+    /**
+     * 推送被拒绝时按失败返回,不重试
+     * @throws Exception
+     */
+    @Test
+    public void testSyncSchedulerRejectedPush() throws Exception {
+        local.commit().setMessage("first").call();
+        local.push().call();
+        local.commit().setAmend(true).setMessage("amended").call();
+
+        try (GitSyncScheduler scheduler = new GitSyncScheduler(1).setRetry(3, 10, 100)) {
+            GitSyncScheduler.SyncResult result = scheduler.push(local.getRepository(), "origin").get();
+            assertFalse(result.isSuccess());
+            assertEquals(1, result.getAttempts());
+            assertTrue(result.getError().getMessage(),
+                    result.getError().getMessage().contains(Status.REJECTED_NONFASTFORWARD.name()));
+        }
+        assertEquals(1, GitMetrics.failedUpdates(local.push().call()).size());
+    }
+
+    /**
+     * 会话用完放回池里,下次直接复用,一个会话上的通道数有上限
+     * @throws Exception
+     */
+    @Test
+    public void testSshSessionPool() throws Exception {
+        List<String> disconnected = new ArrayList<>();
+        GitSshSessionPool pool = new GitSshSessionPool(200, 2) {
+            @Override
+            protected RemoteSession openSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) {
+                return new RemoteSession() {
+                    @Override
+                    public Process exec(String commandName, int timeout) {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    @Override
+                    public void disconnect() {
+                        disconnected.add(uri.getHost());
+                    }
+                };
+            }
+        };
+        URIish uri = new URIish("ssh://git@example.com/repo.git");
+
+        RemoteSession first = pool.getSession(uri, null, FS.DETECTED, 0);
+        pool.releaseSession(first);
+        RemoteSession second = pool.getSession(uri, null, FS.DETECTED, 0);
+        assertEquals(1, pool.getConnects());
+        assertEquals(1, pool.getReuses());
+
+//        第一个会话上已经有两个通道,第三个要新建会话
+        RemoteSession third = pool.getSession(uri, null, FS.DETECTED, 0);
+        RemoteSession fourth = pool.getSession(uri, null, FS.DETECTED, 0);
+        assertEquals(2, pool.getConnects());
+        assertEquals(2, pool.size());
+        assertTrue(disconnected.isEmpty());
+
+        for (RemoteSession session : Arrays.asList(second, third, fourth)) {
+            session.disconnect();
+        }
+        assertEquals(0, pool.evictIdle());
+        Thread.sleep(250);
+        assertEquals(2, pool.evictIdle());
+        assertEquals(Arrays.asList("example.com", "example.com"), disconnected);
+        assertEquals(0, pool.size());
+    }
+
+    /**
+     * 私钥在一个池里只解密一次,口令不同的池不共用
+     * @throws Exception
+     */
+    @Test
+    public void testSshSessionPoolIdentityCache() throws Exception {
+        File key = new File(tempFolder.getRoot(), "id_rsa");
+        KeyPair keyPair = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 2048);
+        keyPair.writePrivateKey(key.getPath(), "secret".getBytes(UTF_8));
+        keyPair.dispose();
+
+        try (GitSshSessionPool pool = new GitSshSessionPool().addIdentity(key.getPath(), "secret")) {
+            for (int i = 0; i < 3; i++) {
+                JSch jsch = new JSch();
+                pool.configureJSch(jsch);
+                assertTrue(jsch.getIdentityNames().contains(key.getPath()));
+            }
+            assertEquals(1, pool.getIdentityLoads());
+        }
+
+//        口令不同的池不能拿到别的池解密好的私钥
+        try (GitSshSessionPool pool = new GitSshSessionPool().addIdentity(key.getPath(), "wrong")) {
+            JSch jsch = new JSch();
+            pool.configureJSch(jsch);
+            assertFalse(jsch.getIdentityNames().contains(key.getPath()));
+            assertEquals(0, pool.getIdentityLoads());
+            assertEquals(1, pool.getIdentityFailures());
+        }
+    }
+
+    /**
+     * 已有克隆时增量同步,本地修改和未跟踪文件被还原,损坏时重新克隆
+     * @throws Exception
+     */
+    @Test
+    public void testCloneSync() throws Exception {
+        File remoteDir = remote.getRepository().getWorkTree();
+        Files.write(new File(remoteDir, "a.txt").toPath(), "a".getBytes(UTF_8));
+        remote.add().addFilepattern("a.txt").call();
+        remote.commit().setMessage("first").call();
+        String uri = remote.getRepository().getDirectory().getCanonicalPath();
+        File target = new File(tempFolder.getRoot(), "ci");
+
+        GitCloneSync sync = new GitCloneSync(uri, target);
+        GitCloneSync.Result first = sync.call();
+        assertEquals(GitCloneSync.Result.Mode.CLONED, first.getMode());
+        assertEquals("a", new String(Files.readAllBytes(new File(target, "a.txt").toPath()), UTF_8));
+
+        Files.write(new File(remoteDir, "b.txt").toPath(), "b".getBytes(UTF_8));
+        remote.add().addFilepattern("b.txt").call();
+        RevCommit second = remote.commit().setMessage("second").call();
+        Files.write(new File(target, "a.txt").toPath(), "changed".getBytes(UTF_8));
+        Files.write(new File(target, "junk.txt").toPath(), "junk".getBytes(UTF_8));
+        new File(target, ".git/info").mkdirs();
+        Files.write(new File(target, ".git/info/exclude").toPath(), "*.log\n".getBytes(UTF_8));
+        Files.write(new File(target, "build.log").toPath(), "log".getBytes(UTF_8));
+
+        GitCloneSync.Result updated = sync.call();
+        assertEquals(GitCloneSync.Result.Mode.UPDATED, updated.getMode());
+        assertEquals(second.getId(), updated.getHead());
+        assertEquals("a", new String(Files.readAllBytes(new File(target, "a.txt").toPath()), UTF_8));
+        assertTrue(new File(target, "b.txt").isFile());
+        assertFalse(new File(target, "junk.txt").exists());
+        assertTrue(new File(target, "build.log").isFile());
+
+//        远端连不上不是损坏,不能删掉已有克隆
+        try {
+            new GitCloneSync(uri + "-missing", target).call();
+            fail();
+        } catch (GitAPIException e) {
+            try (Git git = Git.open(target)) {
+                assertEquals(second.getId(), git.getRepository().resolve(MASTER));
+            }
+        }
+
+//        删掉对象库模拟损坏
+        FileUtils.delete(new File(target, ".git/objects"), FileUtils.RECURSIVE);
+        GitCloneSync.Result recloned = sync.call();
+        assertEquals(GitCloneSync.Result.Mode.RECLONED, recloned.getMode());
+        assertNotNull(recloned.getError());
+        assertEquals(second.getId(), recloned.getHead());
+        try (Git git = Git.open(target)) {
+            assertTrue(git.status().call().isClean());
+        }
+    }
+
+    /**
+     * 多个克隆共用对象缓存,克隆自己不保存对象
+     * @throws Exception
+     */
+    @Test
+    public void testCloneSyncObjectCache() throws Exception {
+        File remoteDir = remote.getRepository().getWorkTree();
+        for (int i = 0; i < 10; i++) {
+            Files.write(new File(remoteDir, "file" + i + ".txt").toPath(), ("content " + i).getBytes(UTF_8));
+        }
+        remote.add().addFilepattern(".").call();
+        RevCommit commit = remote.commit().setMessage("files").call();
+        String uri = remote.getRepository().getDirectory().getCanonicalPath();
+        File cache = tempFolder.newFolder("cache");
+
+        for (int i = 0; i < 2; i++) {
+            File target = new File(tempFolder.getRoot(), "agent" + i);
+            GitCloneSync.Result result = new GitCloneSync(uri, target).setObjectCache(cache).call();
+            assertEquals(commit.getId(), result.getHead());
+            assertTrue(new File(target, ".git/objects/info/alternates").isFile());
+            File[] packs = new File(target, ".git/objects/pack").listFiles();
+            assertTrue(packs == null || packs.length == 0);
+            try (Git git = Git.open(target)) {
+                assertTrue(git.status().call().isClean());
+                assertEquals(uri, git.getRepository().getConfig().getString("remote", "origin", "url"));
+            }
+        }
+        File[] caches = cache.listFiles((dir, name) -> name.endsWith(".git"));
+        assertEquals(1, caches.length);
+    }
+
+    /**
+     * 部分克隆加稀疏检出,只下载和写出需要的目录,其他blob用到时再补拉
+     * @throws Exception
+     */
+    @Test
+    public void testCloneSyncPartialSparse() throws Exception {
+        File remoteDir = remote.getRepository().getWorkTree();
+        new File(remoteDir, "app").mkdir();
+        new File(remoteDir, "docs").mkdir();
+        Files.write(new File(remoteDir, "app/a.txt").toPath(), "a".getBytes(UTF_8));
+        Files.write(new File(remoteDir, "app/b.txt").toPath(), "b".getBytes(UTF_8));
+        Files.write(new File(remoteDir, "docs/manual.txt").toPath(), "manual".getBytes(UTF_8));
+        Files.write(new File(remoteDir, "root.txt").toPath(), "root".getBytes(UTF_8));
+        remote.add().addFilepattern(".").call();
+        remote.commit().setMessage("layout").call();
+        StoredConfig remoteConfig = remote.getRepository().getConfig();
+        remoteConfig.setBoolean("uploadpack", null, "allowFilter", true);
+        remoteConfig.save();
+//        进程内的git://服务,允许按id请求任意对象
+        Daemon daemon = new Daemon(new InetSocketAddress("127.0.0.1", 0));
+        daemon.setRepositoryResolver((client, name) -> {
+            remote.getRepository().incrementOpen();
+            return remote.getRepository();
+        });
+        daemon.setUploadPackFactory((client, db) -> {
+            UploadPack uploadPack = new UploadPack(db);
+            uploadPack.setRequestPolicy(UploadPack.RequestPolicy.ANY);
+            return uploadPack;
+        });
+        daemon.start();
+        try {
+            String uri = "git://127.0.0.1:" + daemon.getAddress().getPort() + "/remote";
+            File target = new File(tempFolder.getRoot(), "sparse");
+
+            GitCloneSync sync = new GitCloneSync(uri, target)
+                    .setFilter("blob:none")
+                    .setSparseCheckout(singletonList("app/"));
+            assertEquals(GitCloneSync.Result.Mode.CLONED, sync.call().getMode());
+            assertEquals("a", new String(Files.readAllBytes(new File(target, "app/a.txt").toPath()), UTF_8));
+            assertFalse(new File(target, "docs").exists());
+            assertFalse(new File(target, "root.txt").exists());
+
+            try (Git git = Git.open(target)) {
+                Repository repository = git.getRepository();
+                assertTrue(git.status().call().isClean());
+                ObjectId manual;
+                try (TreeWalk walk = TreeWalk.forPath(repository, "docs/manual.txt",
+                        new RevWalk(repository).parseCommit(repository.resolve(MASTER)).getTree())) {
+                    manual = walk.getObjectId(0);
+                }
+                assertFalse(repository.getObjectDatabase().has(manual));
+                GitLazyFetcher fetcher = new GitLazyFetcher(repository);
+                assertEquals("manual", new String(fetcher.open(manual, OBJ_BLOB).getBytes(), UTF_8));
+                assertEquals(1, fetcher.getRoundTrips());
+            }
+
+            Files.write(new File(remoteDir, "app/a.txt").toPath(), "a2".getBytes(UTF_8));
+            remote.commit().setAll(true).setMessage("change a").call();
+            GitCloneSync.Result updated = sync.call();
+            assertEquals(GitCloneSync.Result.Mode.UPDATED, updated.getMode());
+            assertEquals("a2", new String(Files.readAllBytes(new File(target, "app/a.txt").toPath()), UTF_8));
+            assertFalse(new File(target, "docs").exists());
+
+//            部分克隆和完整克隆不能共用一个对象缓存
+            File cache = new File(tempFolder.getRoot(), "cache");
+            new GitCloneSync(uri, new File(tempFolder.getRoot(), "partial")).setObjectCache(cache)
+                    .setFilter("blob:none").call();
+            File full = new File(tempFolder.getRoot(), "full");
+            new GitCloneSync(uri, full).setObjectCache(cache).call();
+            assertEquals("manual", new String(Files.readAllBytes(new File(full, "docs/manual.txt").toPath()), UTF_8));
+            assertEquals(2, cache.list((dir, name) -> name.endsWith(".git")).length);
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    /**
+     * 稀疏检出缩小规则时,要删掉的文件有本地修改就不动工作区,抛出冲突;
+     * 内容不用切换的文件上的修改保留下来
+     * @throws Exception
+     */
+    @Test
+    public void testSparseCheckoutConflicts() throws Exception {
+        File workTree = local.getRepository().getWorkTree();
+        File a = new File(workTree, "app/a.txt");
+        File d = new File(workTree, "docs/d.txt");
+        a.getParentFile().mkdir();
+        d.getParentFile().mkdir();
+        Files.write(a.toPath(), "a".getBytes(UTF_8));
+        Files.write(d.toPath(), "d".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit commit = local.commit().setMessage("layout").call();
+
+        GitSparseCheckout sparse = new GitSparseCheckout(local.getRepository());
+        Files.write(a.toPath(), "local a".getBytes(UTF_8));
+        Files.write(d.toPath(), "local d".getBytes(UTF_8));
+        try {
+            sparse.setPatterns(singletonList("app/")).checkout(commit);
+            fail();
+        } catch (CheckoutConflictException e) {
+            assertEquals(singletonList("docs/d.txt"), Arrays.asList(e.getConflictingFiles()));
+        }
+        assertEquals("local d", new String(Files.readAllBytes(d.toPath()), UTF_8));
+        assertFalse(new File(local.getRepository().getDirectory(), "info/sparse-checkout").exists());
+
+//        放弃docs下的修改后可以缩小
+        local.checkout().addPath("docs/d.txt").call();
+        GitSparseCheckout.Result result = sparse.checkout(commit);
+        assertEquals(1, result.getDeleted());
+        assertEquals(0, result.getWritten());
+        assertFalse(new File(workTree, "docs").exists());
+        assertEquals("local a", new String(Files.readAllBytes(a.toPath()), UTF_8));
+        assertEquals(singleton("app/a.txt"), local.status().call().getModified());
+    }
+
+    /**
+     * 并行检出切换分支,只写有变化的文件,reset回去后工作区和索引一致
+     * @throws Exception
+     */
+    @Test
+    public void testParallelCheckout() throws Exception {
+        File workTree = local.getRepository().getWorkTree();
+        for (int i = 0; i < 300; i++) {
+            File file = new File(workTree, "dir" + (i % 7) + "/sub" + (i % 3) + "/file" + i + ".txt");
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), ("content " + i).getBytes(UTF_8));
+        }
+        local.add().addFilepattern(".").call();
+        RevCommit base = local.commit().setMessage("base").call();
+
+        local.branchCreate().setName("other").call();
+        local.checkout().setName("other").call();
+        for (int i = 0; i < 10; i++) {
+            Files.write(new File(workTree, "dir" + (i % 7) + "/sub" + (i % 3) + "/file" + i + ".txt").toPath(),
+                    ("changed " + i).getBytes(UTF_8));
+        }
+        local.rm().addFilepattern("dir6").call();
+        Files.write(new File(workTree, "added.txt").toPath(), "added".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        local.commit().setMessage("other").call();
+        local.checkout().setName("master").call();
+
+        GitParallelCheckout checkout = new GitParallelCheckout(local.getRepository())
+                .setExecutor(ForkJoinPool.commonPool(), 4);
+        GitParallelCheckout.Result result = checkout.checkoutBranch("other");
+//        file6在dir6里已经删了,改动的9个文件加上added.txt;dir6下有42个文件
+        assertEquals(10, result.getWritten());
+        assertEquals(42, result.getDeleted());
+        assertEquals(300 - 42 - 9, result.getUnchanged());
+        assertFalse(new File(workTree, "dir6").exists());
+        assertEquals("changed 3", new String(Files.readAllBytes(
+                new File(workTree, "dir3/sub0/file3.txt").toPath()), UTF_8));
+        assertEquals("refs/heads/other", local.getRepository().getFullBranch());
+        assertTrue(local.status().call().isClean());
+
+        Files.write(new File(workTree, "dir0/sub0/file0.txt").toPath(), "local edit".getBytes(UTF_8));
+        result = checkout.reset(base);
+        assertEquals(42 + 9, result.getWritten());
+        assertEquals(1, result.getDeleted());
+        assertEquals(base.getId(), local.getRepository().resolve("other"));
+        assertEquals("content 0", new String(Files.readAllBytes(
+                new File(workTree, "dir0/sub0/file0.txt").toPath()), UTF_8));
+        assertTrue(local.status().call().isClean());
+    }
+
+    /**
+     * 并行检出切换分支前检查冲突:要改的文件有本地修改、会覆盖未跟踪文件时不切换;
+     * reset会覆盖本地修改,大小和修改时间都没变的racily clean文件也能发现
+     * @throws Exception
+     */
+    @Test
+    public void testParallelCheckoutConflicts() throws Exception {
+        File workTree = local.getRepository().getWorkTree();
+        File a = new File(workTree, "a.txt");
+        File b = new File(workTree, "b.txt");
+        File c = new File(workTree, "c.txt");
+        Files.write(a.toPath(), "a".getBytes(UTF_8));
+        Files.write(b.toPath(), "b".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit base = local.commit().setMessage("base").call();
+        local.branchCreate().setName("other").call();
+        local.checkout().setName("other").call();
+        Files.write(a.toPath(), "a2".getBytes(UTF_8));
+        Files.write(c.toPath(), "c".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        local.commit().setMessage("other").call();
+        local.checkout().setName("master").call();
+
+        GitParallelCheckout checkout = new GitParallelCheckout(local.getRepository());
+        Files.write(a.toPath(), "local".getBytes(UTF_8));
+        Files.write(c.toPath(), "untracked".getBytes(UTF_8));
+        try {
+            checkout.checkoutBranch("other");
+            fail();
+        } catch (CheckoutConflictException e) {
+            assertEquals(Arrays.asList("a.txt", "c.txt"), Arrays.asList(e.getConflictingFiles()));
+        }
+        assertEquals("local", new String(Files.readAllBytes(a.toPath()), UTF_8));
+        assertEquals("untracked", new String(Files.readAllBytes(c.toPath()), UTF_8));
+        assertEquals(MASTER, local.getRepository().getFullBranch());
+
+//        reset覆盖本地修改,两个分支一样的文件上的修改切换时保留下来
+        FileUtils.delete(c);
+        checkout.reset(base);
+        assertEquals("a", new String(Files.readAllBytes(a.toPath()), UTF_8));
+        Files.write(b.toPath(), "local b".getBytes(UTF_8));
+        checkout.checkoutBranch("other");
+        assertEquals("a2", new String(Files.readAllBytes(a.toPath()), UTF_8));
+        assertEquals("local b", new String(Files.readAllBytes(b.toPath()), UTF_8));
+        assertEquals(singleton("b.txt"), local.status().call().getModified());
+
+//        写完索引的同一时刻又改了文件:大小和修改时间都和索引一样
+        checkout.reset(base);
+        long indexed = DirCache.read(local.getRepository()).getEntry("a.txt").getLastModified();
+        Files.write(a.toPath(), "x".getBytes(UTF_8));
+        assertTrue(a.setLastModified(indexed));
+        assertTrue(local.getRepository().getIndexFile().setLastModified(indexed));
+        GitParallelCheckout.Result result = checkout.reset(base);
+        assertEquals(1, result.getWritten());
+        assertEquals("a", new String(Files.readAllBytes(a.toPath()), UTF_8));
+        assertTrue(local.status().call().isClean());
+    }
+
+    /**
+     * 并行删除整个仓库目录,只读文件也能删,符号链接指向的目录不受影响
+     * @throws Exception
+     */
+    @Test
+    public void testDirectoryDeleter() throws Exception {
+        File workTree = local.getRepository().getWorkTree();
+        for (int i = 0; i < 50; i++) {
+            File file = new File(workTree, "dir" + (i % 5) + "/file" + i + ".txt");
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), ("content " + i).getBytes(UTF_8));
+        }
+//        直接写成pack,pack和idx文件是只读的
+        new GitBatchStager(local.getRepository()).setWritePack(true)
+                .addAll(Stream.of(workTree.list((d, name) -> name.startsWith("dir")))
+                        .flatMap(d -> Stream.of(new File(workTree, d).list()).map(f -> d + "/" + f))
+                        .map(GitBatchStager.Operation::add))
+                .call();
+        local.commit().setMessage("files").call();
+        File readOnly = new File(workTree, "dir0/read-only.txt");
+        Files.write(readOnly.toPath(), "r".getBytes(UTF_8));
+        readOnly.setWritable(false);
+        File outside = tempFolder.newFolder("outside");
+        Files.write(new File(outside, "keep.txt").toPath(), "keep".getBytes(UTF_8));
+        Files.createSymbolicLink(new File(workTree, "link").toPath(), outside.toPath());
+
+        GitDirectoryDeleter.Result result = new GitDirectoryDeleter().delete(workTree.toPath());
+        assertTrue(result.getFailures().toString(), result.isSuccess());
+        assertFalse(workTree.exists());
+        assertTrue(result.getDeletedFiles() > 50);
+        assertTrue(new File(outside, "keep.txt").isFile());
+        assertTrue(new GitDirectoryDeleter().delete(workTree.toPath()).isSuccess());
+    }
+
+    /**
+     * 后台删除时目录先被挪开,原路径马上可以重新使用
+     * @throws Exception
+     */
+    @Test
+    public void testDirectoryDeleterInBackground() throws Exception {
+        File dir = tempFolder.newFolder("build");
+        for (int i = 0; i < 20; i++) {
+            File file = new File(dir, "sub" + (i % 4) + "/file" + i);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), new byte[1024]);
+        }
+
+        CompletableFuture<GitDirectoryDeleter.Result> future =
+                new GitDirectoryDeleter().deleteInBackground(dir.toPath());
+        assertFalse(dir.exists());
+        assertTrue(dir.mkdir());
+
+        GitDirectoryDeleter.Result result = future.join();
+        assertTrue(result.isSuccess());
+        assertEquals(20, result.getDeletedFiles());
+        assertEquals(5, result.getDeletedDirectories());
+        assertTrue(dir.isDirectory());
+        String[] left = tempFolder.getRoot().list((parent, name) -> name.contains(".deleting-"));
+        assertEquals(0, left.length);
+    }
+
+    /**
+     * 松散对象打包、小pack按几何级数合并、松散引用打包、过期reflog删除,之后仓库内容不变
+     * @throws Exception
+     */
+    @Test
+    public void testMaintenance() throws Exception {
+        Repository repository = local.getRepository();
+        File workTree = repository.getWorkTree();
+//        每次写一个pack,得到对象数差不多的几个小pack
+        for (int i = 0; i < 4; i++) {
+            Files.write(new File(workTree, "packed" + i + ".txt").toPath(), ("packed " + i).getBytes(UTF_8));
+            new GitBatchStager(repository).setWritePack(true).add("packed" + i + ".txt").call();
+        }
+        for (int i = 0; i < 5; i++) {
+            Files.write(new File(workTree, "loose" + i + ".txt").toPath(), ("loose " + i).getBytes(UTF_8));
+            local.add().addFilepattern("loose" + i + ".txt").call();
+            local.commit().setMessage("commit " + i).call();
+            local.branchCreate().setName("branch" + i).call();
+        }
+        File reflog = new File(repository.getDirectory(), "logs/refs/heads/branch0");
+        String old = ObjectId.zeroId().name() + " " + ObjectId.zeroId().name()
+                + " A U Thor <author@example.com> 1000000000 +0000\told entry\n";
+        Files.write(reflog.toPath(), (old + new String(Files.readAllBytes(reflog.toPath()), UTF_8)).getBytes(UTF_8));
+
+        GitMaintenance.Stats before = GitMaintenance.scan(repository);
+        assertEquals(4, before.getPacks());
+        assertTrue(before.getLooseObjects() > 10);
+        assertTrue(before.getLooseRefs() >= 6);
+
+        try (GitMaintenance maintenance = new GitMaintenance()
+                .setLooseObjectLimit(10)
+                .setLooseRefLimit(1)
+                .setIoLimit(10 * 1024 * 1024)) {
+            GitMaintenance.Report report = maintenance.runNow(repository).get();
+            assertFalse(report.isSkipped());
+            assertEquals(before.getLooseObjects(), report.getPackedObjects());
+//            松散对象打成的pack比4个小pack加起来的两倍还大,只合并4个小pack
+            assertEquals(4, report.getMergedPacks());
+            assertTrue(report.getPackedRefs() >= 6);
+            assertEquals(1, report.getExpiredReflogEntries());
+            assertEquals(0, report.getAfter().getLooseObjects());
+            assertEquals(0, report.getAfter().getLooseRefs());
+            assertEquals(2, report.getAfter().getPacks());
+        }
+
+        assertTrue(local.status().call().isClean());
+        assertEquals(5, stream(local.log().call().spliterator(), false).count());
+        assertNotNull(repository.exactRef("refs/heads/branch4"));
+        try (RevWalk walk = new RevWalk(repository)) {
+            RevCommit head = walk.parseCommit(repository.resolve(MASTER));
+            assertEquals("loose 4", new String(repository.open(
+                    TreeWalk.forPath(repository, "loose4.txt", head.getTree()).getObjectId(0)).getBytes(), UTF_8));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertTrue(repository.getObjectDatabase().has(
+                    repository.readDirCache().getEntry("packed" + i + ".txt").getObjectId()));
+        }
+    }
+
+    /**
+     * 有写操作在进行或者别的进程在维护时跳过这一轮,崩溃留下的锁文件过期后清掉
+     * @throws Exception
+     */
+    @Test
+    public void testMaintenanceSkipsDuringWrite() throws Exception {
+        Repository repository = local.getRepository();
+        try (GitMaintenance maintenance = new GitMaintenance().setLooseObjectLimit(0).setStaleLockAge(60 * 1000)) {
+            GitMaintenance.WriteGuard guard = GitMaintenance.beginWrite(repository);
+            try {
+                assertTrue(maintenance.runNow(repository).get().isSkipped());
+            } finally {
+                guard.close();
+            }
+            assertFalse(maintenance.runNow(repository).get().isSkipped());
+
+            File lockFile = new File(repository.getDirectory(), "maintenance.lock");
+            assertTrue(lockFile.createNewFile());
+            assertTrue(maintenance.runNow(repository).get().isSkipped());
+            assertTrue(lockFile.setLastModified(System.currentTimeMillis() - 2 * 60 * 1000));
+            assertFalse(maintenance.runNow(repository).get().isSkipped());
+            assertFalse(lockFile.exists());
+        }
+    }
+
+    /**
+     * 一次原子更新创建上千个标签,列表从packed-refs读出剥离值,再批量删除
+     * @throws Exception
+     */
+    @Test
+    public void testTagStore() throws Exception {
+        Repository repository = local.getRepository();
+        createFile("first.txt");
+        local.add().addFilepattern("first.txt").call();
+        RevCommit first = local.commit().setMessage("first").call();
+        createFile("second.txt");
+        local.add().addFilepattern("second.txt").call();
+        RevCommit second = local.commit().setMessage("second").call();
+//        普通方式建的松散标签
+        local.tag().setName("loose-light").setAnnotated(false).setObjectId(first).call();
+        local.tag().setName("loose-annotated").setMessage("loose").setObjectId(second).call();
+
+        GitTagStore store = new GitTagStore(repository);
+        for (int i = 0; i < 1000; i++) {
+            String name = String.format("release/v%04d", i);
+            if (i % 2 == 0) {
+                store.create(name, first);
+            } else {
+                store.create(name, second, "release " + i);
+            }
+        }
+        GitTagStore.Result created = store.call();
+        assertEquals(1000, created.getCreated());
+//        原子批量更新直接写进packed-refs
+        assertFalse(new File(repository.getDirectory(), "refs/tags/release/v0000").exists());
+
+        List<GitTagStore.TagInfo> tags = new ArrayList<>();
+        try (GitTagStore.TagIterator it = store.list()) {
+            it.forEachRemaining(tags::add);
+        }
+        assertEquals(1002, tags.size());
+        assertEquals("loose-annotated", tags.get(0).getName());
+        assertTrue(tags.get(0).isAnnotated());
+        assertEquals(second, tags.get(0).getTargetId());
+        assertEquals("loose-light", tags.get(1).getName());
+        assertFalse(tags.get(1).isAnnotated());
+        assertEquals(first, tags.get(1).getTargetId());
+        for (int i = 0; i < 1000; i++) {
+            GitTagStore.TagInfo tag = tags.get(i + 2);
+            assertEquals(String.format("release/v%04d", i), tag.getName());
+            assertEquals(i % 2 == 1, tag.isAnnotated());
+            assertEquals(i % 2 == 0 ? first : second, tag.getTargetId());
+        }
+        assertEquals(second, repository.getRefDatabase()
+                .peel(repository.exactRef("refs/tags/release/v0001")).getPeeledObjectId());
+
+//        有一个已存在的标签时整批都不生效
+        try {
+            new GitTagStore(repository).create("new-tag", first).create("release/v0000", second).call();
+            fail();
+        } catch (IOException expected) {
+            assertNull(repository.exactRef("refs/tags/new-tag"));
+        }
+
+        store.delete("loose-light").delete("missing");
+        for (int i = 0; i < 1000; i += 2) {
+            store.delete(String.format("release/v%04d", i));
+        }
+        GitTagStore.Result deleted = store.call();
+        assertEquals(501, deleted.getDeleted());
+        assertEquals(501, local.tagList().call().size());
+    }
+
+    /**
+     * 迁移到reftable后Git命令照常工作,引用、reflog都在,表的个数会自动合并
+     * @throws Exception
+     */
+    @Test
+    public void testReftable() throws Exception {
+        Repository repository = local.getRepository();
+        File gitDir = repository.getDirectory();
+        createFile("first.txt");
+        local.add().addFilepattern("first.txt").call();
+        RevCommit first = local.commit().setMessage("first").call();
+        for (int i = 0; i < 20; i++) {
+            local.branchCreate().setName("feature/b" + i).call();
+        }
+        GitTagStore tags = new GitTagStore(repository);
+        for (int i = 0; i < 300; i++) {
+            tags.create("v" + i, first, i % 2 == 0 ? null : "release " + i);
+        }
+        tags.call();
+        int masterLog = repository.getReflogReader(MASTER).getReverseEntries().size();
+
+        try (GitReftableRepository db = GitReftableRepository.migrate(repository)) {
+            assertTrue(db.getRefDatabase() instanceof GitReftableDatabase);
+            assertFalse(new File(gitDir, "packed-refs").exists());
+            assertEquals(0, new File(gitDir, "refs").list().length);
+//            不认识reftable的程序只能看到没有分支的空仓库
+            try (Repository plain = new FileRepository(gitDir)) {
+                assertNull(plain.resolve(MASTER));
+            }
+
+            assertEquals(MASTER, db.getFullBranch());
+            assertEquals(first, db.resolve(MASTER));
+            assertEquals(20, db.getRefDatabase().getRefsByPrefix("refs/heads/feature/").size());
+            assertEquals(300, db.getRefDatabase().getRefsByPrefix(Constants.R_TAGS).size());
+            assertEquals(first, db.getRefDatabase().peel(db.exactRef("refs/tags/v1")).getPeeledObjectId());
+            assertEquals(masterLog, db.getReflogReader(MASTER).getReverseEntries().size());
+
+            Git git = new Git(db);
+            git.branchCreate().setName("dev").call();
+            git.checkout().setName("dev").call();
+            assertEquals("refs/heads/dev", db.getFullBranch());
+            createFile("second.txt");
+            git.add().addFilepattern("second.txt").call();
+            RevCommit second = git.commit().setMessage("second").call();
+            assertEquals(second, db.resolve("refs/heads/dev"));
+            assertEquals(first, db.resolve(MASTER));
+            assertTrue(db.getReflogReader("refs/heads/dev").getLastEntry().getComment().startsWith("commit"));
+            assertTrue(db.getReflogReader(Constants.HEAD).getLastEntry().getComment().startsWith("commit"));
+
+//            改名时HEAD跟着走
+            git.branchRename().setOldName("dev").setNewName("develop").call();
+            assertEquals("refs/heads/develop", db.getFullBranch());
+            assertNull(db.exactRef("refs/heads/dev"));
+            git.checkout().setName("master").call();
+            git.branchDelete().setBranchNames("develop").setForce(true).call();
+            assertNull(db.exactRef("refs/heads/develop"));
+
+//            批量删除是一次原子更新
+            GitTagStore store = new GitTagStore(db);
+            for (int i = 0; i < 300; i += 3) {
+                store.delete("v" + i);
+            }
+            assertEquals(100, store.call().getDeleted());
+            try {
+                new GitTagStore(db).create("new-tag", first).create("v1", second).call();
+                fail();
+            } catch (IOException expected) {
+                assertNull(db.exactRef("refs/tags/new-tag"));
+            }
+
+            GitReftableDatabase reftable = (GitReftableDatabase) db.getRefDatabase();
+            assertTrue(reftable.getTableCount() < 5);
+            reftable.compact();
+            assertEquals(1, reftable.getTableCount());
+        }
+
+//        合并掉的表当时被别的进程开着没删掉,下次打开时再删
+        File stale = new File(gitDir, "reftable/0x000000000001-0x000000000001-00000000.ref");
+        Files.write(stale.toPath(), new byte[0]);
+        try (GitReftableRepository reopened = GitReftableRepository.open(gitDir)) {
+            assertEquals(200, reopened.getRefDatabase().getRefsByPrefix(Constants.R_TAGS).size());
+            assertFalse(stale.exists());
+            assertEquals(first, reopened.resolve("refs/heads/feature/b7"));
+            assertNull(reopened.exactRef("refs/tags/v0"));
+            assertTrue(new Git(reopened).status().call().isClean());
+        }
+    }
+
+    /**
+     * 打开指标后工具类和JGit命令都按操作名记录,失败单独计数,关闭后不再记录
+     * @throws Exception
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        Repository repository = local.getRepository();
+        GitMetrics metrics = GitMetrics.getDefault();
+        List<String> exported = new ArrayList<>();
+        GitMetrics.Exporter exporter = sample -> exported.add(sample.getOperation());
+        metrics.reset();
+        metrics.setEnabled(true).addExporter(exporter);
+        metrics.registerJmx();
+        try {
+            createFile("a.txt");
+            new GitBatchStager(repository).add("a.txt").call();
+            RevCommit commit = metrics.call(local.commit().setMessage("first"));
+            new GitTagStore(repository).create("v1", commit).call();
+            try {
+                new GitTagStore(repository).create("v1", commit).call();
+                fail();
+            } catch (IOException expected) {
+            }
+            metrics.call(local.tagDelete().setTags("v1"));
+
+            assertEquals(Arrays.asList("add", "commit", "tag", "tag", "delete-tag"), exported);
+            GitMetrics.Operation add = metrics.getOperation("add");
+            assertEquals(1, add.getCount());
+            assertEquals(0, add.getErrors());
+            assertEquals(1, add.getObjectsWritten());
+            assertEquals(1, Arrays.stream(add.getHistogram()).sum());
+            assertTrue(add.getP99Millis() >= add.getMaxMillis());
+            GitMetrics.Operation tag = metrics.getOperation("tag");
+            assertEquals(2, tag.getCount());
+            assertEquals(1, tag.getErrors());
+            assertTrue(metrics.getGauges().containsKey("pack.openFiles"));
+//            缓存类加载时自己注册gauge
+            assertEquals(GitBlobCache.getDefault().getMisses(), (long) metrics.getGauges().get("blobCache.misses"));
+
+            javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            assertEquals(2L, server.getAttribute(GitMetrics.objectName("Operation", "tag"), "Count"));
+
+//            关闭后拿到的是不记录的Sample
+            metrics.setEnabled(false);
+            new GitBatchStager(repository).add("a.txt").call();
+            assertEquals(1, metrics.getOperation("add").getCount());
+            assertFalse(metrics.start("add").isRecording());
+        } finally {
+            metrics.setEnabled(false).removeExporter(exporter);
+            metrics.unregisterJmx();
+            metrics.reset();
+        }
+    }
+
+    /**
+     * 堆外缓存跨块存取,满了淘汰最久没用的;两个仓库的树缓存共用一个预算互不干扰;mmap读pack结果不变
+     * @throws Exception
+     */
+    @Test
+    public void testOffHeapCache() throws Exception {
+        GitOffHeapCache store = new GitOffHeapCache(4096);
+        long owner = GitOffHeapCache.newOwner();
+        byte[] big = new byte[2000];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) i;
+        }
+        ObjectId a = ObjectId.fromString("0000000000000000000000000000000000000001");
+        ObjectId b = ObjectId.fromString("0000000000000000000000000000000000000002");
+        ObjectId c = ObjectId.fromString("0000000000000000000000000000000000000003");
+        store.put(owner, a, big);
+        store.put(owner, b, new byte[0]);
+        assertArrayEquals(big, store.get(owner, a));
+        assertArrayEquals(new byte[0], store.get(owner, b));
+        assertNull(store.get(GitOffHeapCache.newOwner(), a));
+//        一共8块,a占4块,b占1块,再放4块时要淘汰最久没用的a
+        store.get(owner, b);
+        store.put(owner, c, big);
+        assertNull(store.get(owner, a));
+        assertNotNull(store.get(owner, b));
+        assertEquals(1, store.getEvictions());
+        store.put(owner, a, new byte[5000]);
+        assertNull(store.get(owner, a));
+        store.invalidate(owner);
+        assertEquals(0, store.size());
+        assertEquals(0, store.getBytes());
+
+//        视图直接读堆外内存,关闭前占的块不会被淘汰或复用
+        store.put(owner, a, big);
+        try (GitOffHeapCache.View view = store.open(owner, a)) {
+            assertTrue(view.buffer().isReadOnly());
+            assertEquals(big.length, view.buffer().remaining());
+            store.put(owner, b, new byte[3000]);
+            assertNull(store.get(owner, b));
+            store.invalidate(owner);
+            assertEquals(big[1999], view.buffer().get(1999));
+        }
+        store.put(owner, b, new byte[3000]);
+        assertNotNull(store.get(owner, b));
+        assertNull(store.open(owner, a));
+
+        Files.write(createFile("a.txt").toPath(), "hello".getBytes(UTF_8));
+        local.add().addFilepattern("a.txt").call();
+        RevCommit commit = local.commit().setMessage("first").call();
+        local.push().call();
+        GitOffHeapCache shared = new GitOffHeapCache(1024 * 1024);
+        try (GitTreeCache remoteTrees = new GitTreeCache(remote.getRepository(), shared)) {
+            try (GitTreeCache localTrees = new GitTreeCache(local.getRepository(), shared)) {
+                localTrees.getTree(commit.getTree());
+                remoteTrees.getTree(commit.getTree());
+                assertEquals(2, localTrees.size());
+                assertEquals(1, localTrees.getMisses());
+                localTrees.getTree(commit.getTree());
+                assertEquals(1, localTrees.getHits());
+            }
+            assertEquals(1, shared.size());
+        }
+
+        try {
+            new GitPackAccess().setMmap(true).setOffHeapCacheBytes(GitOffHeapCache.getDefault().getCapacity()).install();
+            FileRepository packed = new FileRepository(remote.getRepository().getDirectory());
+            try (ObjectReader reader = packed.newObjectReader()) {
+                ObjectId blob = TreeWalk.forPath(packed, "a.txt", commit.getTree()).getObjectId(0);
+                assertEquals("hello", new String(reader.open(blob).getBytes(), UTF_8));
+            } finally {
+                packed.close();
+            }
+        } finally {
+            new org.eclipse.jgit.storage.file.WindowCacheConfig().install();
+        }
+    }
+
+    /**
+     * 常用的blob不会被只读一次的大量blob挤掉;挤出内存的进磁盘层,重新打开后还能命中;diff和按版本读文件走缓存
+     * @throws Exception
+     */
+    @Test
+    public void testBlobCache() throws Exception {
+        org.eclipse.jgit.lib.ObjectInserter.Formatter formatter = new org.eclipse.jgit.lib.ObjectInserter.Formatter();
+        File diskDir = tempFolder.newFolder("blob-cache");
+        byte[] hot = new byte[5000];
+        ObjectId hotId = formatter.idFor(OBJ_BLOB, hot);
+        List<ObjectId> cold = new ArrayList<>();
+        try (GitBlobCache cache = new GitBlobCache(100000).setDiskTier(diskDir, 1024 * 1024, 64 * 1024)) {
+            cache.put(hotId, hot);
+            for (int i = 0; i < 10; i++) {
+                assertNotNull(cache.get(hotId));
+            }
+            for (int i = 0; i < 60; i++) {
+                byte[] data = new byte[5000];
+                Arrays.fill(data, (byte) (i + 1));
+                ObjectId id = formatter.idFor(OBJ_BLOB, data);
+                cold.add(id);
+                assertNull(cache.get(id));
+                cache.put(id, data);
+            }
+            assertNotNull(cache.get(hotId));
+            assertTrue(cache.getRejections() > 0);
+            assertTrue(cache.getBytes() <= 100000);
+//            没进主区的从磁盘层读回来
+            byte[] fromDisk = cache.get(cold.get(cold.size() - 2));
+            assertEquals(59, fromDisk[0]);
+            assertEquals(1, cache.getDiskHits());
+            assertTrue(cache.getHitRatio() > 0);
+        }
+        try (GitBlobCache reopened = new GitBlobCache(100000).setDiskTier(diskDir, 1024 * 1024, 64 * 1024)) {
+            byte[] data = reopened.get(cold.get(cold.size() - 1));
+            assertNotNull(data);
+            assertEquals(60, data[0]);
+            assertEquals(1, reopened.getDiskHits());
+        }
+//        磁盘层超过上限时旧段被删掉
+        File smallDir = tempFolder.newFolder("blob-cache-small");
+        try (GitBlobCache small = new GitBlobCache(10000).setDiskTier(smallDir, 128 * 1024, 64 * 1024)) {
+            for (int i = 0; i < 100; i++) {
+                byte[] data = new byte[5000];
+                Arrays.fill(data, (byte) i);
+                small.put(formatter.idFor(OBJ_BLOB, data), data);
+            }
+            assertTrue(small.getDiskBytes() <= 128 * 1024);
+            assertTrue(smallDir.list().length <= 2);
+        }
+
+        Files.write(createFile("a.txt").toPath(), "one\ntwo\n".getBytes(UTF_8));
+        local.add().addFilepattern("a.txt").call();
+        RevCommit first = local.commit().setMessage("first").call();
+        Files.write(new File(local.getRepository().getWorkTree(), "a.txt").toPath(), "one\nthree\n".getBytes(UTF_8));
+        local.add().addFilepattern("a.txt").call();
+        RevCommit second = local.commit().setMessage("second").call();
+
+        GitBlobCache cache = new GitBlobCache(1024 * 1024);
+        assertEquals("one\ntwo\n", new String(cache.readFile(local.getRepository(), first.name(), "a.txt"), UTF_8));
+        assertArrayEquals(cache.readFile(local.getRepository(), first.name(), "a.txt"),
+                cache.readFile(local.getRepository(), first.name(), "a.txt"));
+        assertEquals(2, cache.getHits());
+        assertNull(cache.readFile(local.getRepository(), first.name(), "missing.txt"));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new GitDiffEngine(local.getRepository()).diff(first.name(), second.name(),
+                GitDiffEngine.DiffSink.toStream(expected));
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        new GitDiffEngine(local.getRepository()).setBlobCache(cache).diff(first.name(), second.name(),
+                GitDiffEngine.DiffSink.toStream(actual));
+        assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+        assertEquals(3, cache.getHits());
+    }
+
+    /**
+     * 不用工作区的合并,两边都改过的文件做三方合并,冲突返回行区间
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMergeEngine() throws Exception {
+        File workTree = local.getRepository().getWorkTree();
+        Files.write(createFile("a.txt").toPath(), "1\n2\n3\n4\n5\n".getBytes(UTF_8));
+        new File(workTree, "dir").mkdir();
+        Files.write(createFile("dir/b.txt").toPath(), "b\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit base = local.commit().setMessage("base").call();
+        local.branchCreate().setName("dev").call();
+
+        Files.write(new File(workTree, "a.txt").toPath(), "one\n2\n3\n4\n5\n".getBytes(UTF_8));
+        Files.write(createFile("dir/c.txt").toPath(), "c\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit ours = local.commit().setMessage("ours").call();
+
+        local.checkout().setName("dev").call();
+        Files.write(new File(workTree, "a.txt").toPath(), "1\n2\n3\n4\nfive\n".getBytes(UTF_8));
+        Files.write(createFile("d.txt").toPath(), "d\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit theirs = local.commit().setMessage("theirs").call();
+        local.checkout().setName("master").call();
+
+        GitMergeEngine engine = new GitMergeEngine(local.getRepository());
+        GitMergeEngine.Result probe = engine.probe(ours, theirs);
+        assertTrue(probe.isClean());
+        assertEquals(base, probe.getMergeBases().get(0));
+//        probe不写对象
+        assertFalse(local.getRepository().getObjectDatabase().has(probe.getTree()));
+
+        GitMergeEngine.Result merged = engine.mergeBranch("master", theirs, "merge dev");
+        assertTrue(merged.isClean());
+        assertEquals(probe.getTree(), merged.getTree());
+        RevCommit commit = new RevWalk(local.getRepository()).parseCommit(merged.getCommit());
+        assertEquals(commit, local.getRepository().exactRef("refs/heads/master").getObjectId());
+        assertEquals(ours, commit.getParent(0));
+        assertEquals(theirs, commit.getParent(1));
+        GitBlobCache cache = new GitBlobCache(1024 * 1024);
+        assertEquals("one\n2\n3\n4\nfive\n",
+                new String(cache.readFile(local.getRepository(), commit.name(), "a.txt"), UTF_8));
+        assertNotNull(cache.readFile(local.getRepository(), commit.name(), "dir/b.txt"));
+        assertNotNull(cache.readFile(local.getRepository(), commit.name(), "dir/c.txt"));
+        assertNotNull(cache.readFile(local.getRepository(), commit.name(), "d.txt"));
+        assertTrue(engine.merge(commit, theirs).isAlreadyMerged());
+//        master正被检出,工作区要自己从合并前的提交切换过去,有本地修改时会报冲突
+        new GitParallelCheckout(local.getRepository()).checkout(ours, commit);
+        assertTrue(local.status().call().isClean());
+
+//        两边改同一行
+        local.checkout().setName("dev").call();
+        Files.write(new File(workTree, "a.txt").toPath(), "1\ntwo\n3\n4\nfive\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit devEdit = local.commit().setMessage("dev edit").call();
+        local.checkout().setName("master").call();
+        Files.write(new File(workTree, "a.txt").toPath(), "one\nTWO\n3\n4\nfive\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit masterEdit = local.commit().setMessage("master edit").call();
+
+        GitMergeEngine.Result conflicted = engine.mergeBranch("master", devEdit, "merge dev again");
+        assertFalse(conflicted.isClean());
+        assertNull(conflicted.getCommit());
+        assertEquals(masterEdit, local.getRepository().exactRef("refs/heads/master").getObjectId());
+        assertEquals(1, conflicted.getConflicts().size());
+        GitMergeEngine.Conflict conflict = conflicted.getConflicts().get(0);
+        assertEquals("a.txt", conflict.getPath());
+        assertEquals(GitMergeEngine.ConflictType.CONTENT, conflict.getType());
+        assertEquals(1, conflict.getRegions().size());
+//        合并基是dev,master的第一行也和它不同,和第二行连成一段冲突
+        assertEquals(0, conflict.getRegions().get(0).getOursStart());
+        assertEquals(2, conflict.getRegions().get(0).getOursEnd());
+        assertEquals(0, conflict.getRegions().get(0).getTheirsStart());
+        assertEquals(2, conflict.getRegions().get(0).getTheirsEnd());
+    }
+
+    /**
+     * 一边删了目录、一边改了里面的文件时只有改过的文件冲突,另一边新加的文件保留
+     * @throws Exception
+     */
+    @Test
+    public void testMergeEngineDeletedDirectory() throws Exception {
+        new File(local.getRepository().getWorkTree(), "dir").mkdir();
+        Files.write(createFile("dir/b.txt").toPath(), "b\n".getBytes(UTF_8));
+        Files.write(createFile("dir/e.txt").toPath(), "e\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        local.commit().setMessage("base").call();
+        local.branchCreate().setName("dev").call();
+        local.rm().addFilepattern("dir").call();
+        RevCommit deleted = local.commit().setMessage("delete dir").call();
+
+        local.checkout().setName("dev").call();
+        Files.write(createFile("dir/new.txt").toPath(), "new\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit added = local.commit().setMessage("add file").call();
+        Files.write(createFile("dir/b.txt").toPath(), "b2\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit modified = local.commit().setMessage("modify b").call();
+
+        GitMergeEngine engine = new GitMergeEngine(local.getRepository());
+        GitMergeEngine.Result conflicted = engine.probe(deleted, modified);
+        assertEquals(1, conflicted.getConflicts().size());
+        assertEquals("dir/b.txt", conflicted.getConflicts().get(0).getPath());
+        assertEquals(GitMergeEngine.ConflictType.MODIFY_DELETE, conflicted.getConflicts().get(0).getType());
+
+        GitMergeEngine.Result merged = engine.merge(deleted, added);
+        assertTrue(merged.isClean());
+        try (TreeWalk walk = new TreeWalk(local.getRepository())) {
+            walk.addTree(merged.getTree());
+            walk.setRecursive(true);
+            assertTrue(walk.next());
+            assertEquals("dir/new.txt", walk.getPathString());
+            assertFalse(walk.next());
+        }
+    }
+
+    /**
+     * 不用工作区批量revert、cherry-pick和rebase,冲突时分支不动
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHistoryRewriter() throws Exception {
+        Repository repository = local.getRepository();
+        File workTree = repository.getWorkTree();
+        Files.write(createFile("a.txt").toPath(), "1\n2\n3\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit base = local.commit().setMessage("base").call();
+        local.branchCreate().setName("dev").call();
+        Files.write(createFile("b.txt").toPath(), "b\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit addB = local.commit().setMessage("add b").call();
+        Files.write(new File(workTree, "a.txt").toPath(), "1\n2\nthree\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit editA = local.commit().setMessage("edit a").call();
+
+        local.checkout().setName("dev").call();
+        Files.write(new File(workTree, "a.txt").toPath(), "one\n2\n3\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit devA = local.commit().setMessage("dev a").call();
+        Files.write(createFile("c.txt").toPath(), "c\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit devC = local.commit().setMessage("dev c").call();
+        local.checkout().setName("master").call();
+
+//        dev搬到master上,两边改a.txt的不同行
+        GitHistoryRewriter.Result rebased = new GitHistoryRewriter(repository)
+                .setBranch("dev").rebase(editA).call();
+        assertTrue(rebased.isSuccessful());
+        assertEquals(devC, rebased.getOldHead());
+        assertEquals(2, rebased.getRewritten().size());
+        assertEquals(rebased.getHead(), repository.exactRef("refs/heads/dev").getObjectId());
+        GitBlobCache cache = new GitBlobCache(1024 * 1024);
+        assertEquals("one\n2\nthree\n",
+                new String(cache.readFile(repository, rebased.getHead().name(), "a.txt"), UTF_8));
+        assertNotNull(cache.readFile(repository, rebased.getHead().name(), "b.txt"));
+        try (RevWalk walk = new RevWalk(repository)) {
+            RevCommit head = walk.parseCommit(rebased.getHead());
+            assertEquals("dev c", head.getFullMessage());
+            assertEquals(rebased.getRewritten().get(devA), head.getParent(0));
+            assertEquals(editA, walk.parseCommit(head.getParent(0)).getParent(0));
+        }
+//        已经在upstream上的提交原样保留
+        GitHistoryRewriter.Result again = new GitHistoryRewriter(repository)
+                .setBranch("dev").rebase(editA).call();
+        assertEquals(rebased.getHead(), again.getHead());
+
+//        revert两个提交,再把dev上的c.txt拿过来
+        GitHistoryRewriter.Result rewritten = new GitHistoryRewriter(repository)
+                .revert(editA).revert(addB).cherryPick(devC).call();
+        assertTrue(rewritten.isSuccessful());
+        assertEquals(3, rewritten.getRewritten().size());
+        ObjectId master = repository.exactRef("refs/heads/master").getObjectId();
+        assertEquals(rewritten.getHead(), master);
+        assertEquals("1\n2\n3\n", new String(cache.readFile(repository, master.name(), "a.txt"), UTF_8));
+        assertNull(cache.readFile(repository, master.name(), "b.txt"));
+        assertNotNull(cache.readFile(repository, master.name(), "c.txt"));
+        try (RevWalk walk = new RevWalk(repository)) {
+            RevCommit revertB = walk.parseCommit(walk.parseCommit(master).getParent(0));
+            assertTrue(revertB.getFullMessage().startsWith("Revert \"add b\""));
+        }
+
+//        冲突时分支不动: base提交新增的a.txt和dev上的内容不同
+        GitHistoryRewriter.Result failed = new GitHistoryRewriter(repository)
+                .setBranch("dev").revert(devC).cherryPick(base).call();
+        assertFalse(failed.isSuccessful());
+        assertEquals(base, failed.getFailedStep());
+        assertEquals("a.txt", failed.getConflicts().get(0).getPath());
+        assertEquals(rebased.getHead(), repository.exactRef("refs/heads/dev").getObjectId());
+    }
+
+    /**
+     * 逐行追溯,只追溯部分行时提前停,索引让下一次只处理新提交
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBlame() throws Exception {
+        Repository repository = local.getRepository();
+        File file = createFile("a.txt");
+        Files.write(file.toPath(), "1\n2\n3\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit c1 = local.commit().setMessage("c1").call();
+        Files.write(file.toPath(), "1\nB\n3\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit c2 = local.commit().setMessage("c2").call();
+        Files.write(file.toPath(), "1\nB\n3\n4\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit c3 = local.commit().setMessage("c3").call();
+        Files.write(createFile("other.txt").toPath(), "x\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit c4 = local.commit().setMessage("c4").call();
+
+        GitBlame.Result result = new GitBlame(repository).setCommitGraph(GitCommitGraph.open(repository))
+                .blame(c4, "a.txt");
+        assertTrue(result.isComplete());
+        assertEquals(4, result.getLineCount());
+        List<GitBlame.Region> regions = result.getRegions();
+        assertEquals(4, regions.size());
+        assertEquals(c1, regions.get(0).getCommit());
+        assertEquals(c2, regions.get(1).getCommit());
+        assertEquals(c1, regions.get(2).getCommit());
+        assertEquals(2, regions.get(2).getSourceStart());
+        assertEquals(c3, regions.get(3).getCommit());
+
+//        只追溯最后一行,到c3就停
+        GitBlame.Result last = new GitBlame(repository).setLineRange(3, 4).blame(c4, "a.txt");
+        assertEquals(1, last.getRegions().size());
+        assertEquals(c3, last.getRegions().get(0).getCommit());
+        assertEquals(2, last.getCommitsVisited());
+//        sink返回false时停止
+        List<GitBlame.Region> streamed = new ArrayList<>();
+        GitBlame.Result stopped = new GitBlame(repository).blame(c4, "a.txt", region -> {
+            streamed.add(region);
+            return false;
+        });
+        assertFalse(stopped.isComplete());
+        assertEquals(1, streamed.size());
+
+//        第一次写索引,第二次在新提交上只处理新提交
+        new GitBlame(repository).setPersistIndex(true).blame(c4, "a.txt");
+        Files.write(file.toPath(), "one\nB\n3\n4\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit c5 = local.commit().setMessage("c5").call();
+        GitBlame.Result indexed = new GitBlame(repository).setPersistIndex(true).blame(c5, "a.txt");
+        assertEquals(2, indexed.getCommitsVisited());
+        assertEquals(3, indexed.getIndexedLines());
+        assertEquals(c5, indexed.getRegions().get(0).getCommit());
+        assertEquals(c2, indexed.getRegions().get(1).getCommit());
+        assertEquals(c1, indexed.getRegions().get(2).getCommit());
+        assertEquals(c3, indexed.getRegions().get(3).getCommit());
+
+//        合并后的文件和side一样时整个交给side,即使和master也有相同的行
+        local.checkout().setCreateBranch(true).setName("side").setStartPoint(c1).call();
+        Files.write(file.toPath(), "one\nB\n3\n4\nside\n".getBytes(UTF_8));
+        local.add().addFilepattern(".").call();
+        RevCommit s1 = local.commit().setMessage("s1").call();
+        local.checkout().setName(MASTER).call();
+        MergeResult merged = local.merge().include(s1).setStrategy(MergeStrategy.THEIRS)
+                .setFastForward(MergeCommand.FastForwardMode.NO_FF).call();
+        List<GitBlame.Region> mergedRegions = new GitBlame(repository).blame(merged.getNewHead(), "a.txt").getRegions();
+        assertEquals(3, mergedRegions.size());
+        assertEquals(s1, mergedRegions.get(0).getCommit());
+        assertEquals(c1, mergedRegions.get(1).getCommit());
+        assertEquals(s1, mergedRegions.get(2).getCommit());
+        try {
+            new GitBlame(repository).blame(c5, "missing.txt");
+            fail();
+        } catch (FileNotFoundException e) {
+            // 文件不存在
+        }
+    }
 }
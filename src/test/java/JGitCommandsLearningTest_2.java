@@ -1,25 +1,18 @@
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
-import java.nio.file.Paths;
 import java.util.*;
 
 
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
 import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.CheckoutConflictException;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.transport.*;
 import org.eclipse.jgit.treewalk.AbstractTreeIterator;
-import org.eclipse.jgit.treewalk.CanonicalTreeParser;
-import org.eclipse.jgit.util.FS;
 import org.junit.Test;
 
 public class JGitCommandsLearningTest_2 {
@@ -34,50 +27,39 @@ public class JGitCommandsLearningTest_2 {
     // ssh地址
     public final String sshUri = "git@github.com:ssghyqr/software.git";
     // 会话工厂,ssh连接必须的工厂
-    public final SshSessionFactory sshSessionFactory = new JschConfigSessionFactory() {
-        @Override
-        protected void configure(OpenSshConfig.Host host, Session session) {
-            session.setConfig("StrictHostKeyChecking", "no");
-        }
-
-        @Override
-        protected JSch createDefaultJSch(FS fs) throws JSchException {
-            JSch sch = super.createDefaultJSch(fs);
-            //keyPath 私钥文件 path
-//                这一步的passphrase是必须的
-            sch.addIdentity(keyPath, passphrase);
-            return sch;
-        }
-    };
+    public final SshSessionFactory sshSessionFactory = new GitSshSessionPool()
+            .setStrictHostKeyChecking("no")
+//                这一步的passphrase是必须的,私钥只解密一次,连接在多次传输间复用
+            .addIdentity(keyPath, passphrase);
+
+    static {
+//        打开仓库之前设置: pack在非windows上按mmap读,所有仓库的树共用一块128MB的堆外缓存
+        new GitPackAccess().setOffHeapCacheBytes(128L * 1024 * 1024).install();
+    }
 
     /**
      * 目录（文件夹）删除的方法
      *
      * @param path
+     * @throws IOException 有删不掉的文件时抛出第一个失败,其余的附在suppressed里
      */
-    public void deleteDir(String path) {
-        // 为传进来的路径参数创建一个文件对象
-        File file = new File(path);
-        // 如果目标路径是一个文件，那么直接调用delete方法删除即可
-        // file.delete();
-        // 如果是一个目录，那么必须把该目录下的所有文件和子目录全部删除，才能删除该目标目录，这里要用到递归函数
-        // 创建一个files数组，用来存放目标目录下所有的文件和目录的file对象
-        // 将目标目录下所有的file对象存入files数组中
-        File[] files = Objects.requireNonNull(file.listFiles());
-        // 循环遍历files数组
-        for (File temp : files) {
-            // 判断该temp对象是否为文件对象
-            if (temp.isFile()) {
-                temp.delete();
-            }
-            // 判断该temp对象是否为目录对象
-            if (temp.isDirectory()) {
-                // 将该temp目录的路径给delete方法（自己），达到递归的目的
-                deleteDir(temp.getAbsolutePath());
-                // 确保该temp目录下已被清空后，删除该temp目录
-                temp.delete();
+    public void deleteDir(String path) throws IOException {
+        // 清空目标目录下所有的文件和子目录,目标目录本身保留
+        GitDirectoryDeleter deleter = new GitDirectoryDeleter();
+        IOException failure = null;
+        for (File temp : Objects.requireNonNull(new File(path).listFiles())) {
+            // 子目录按下一级并行删除,只读的pack文件也能删掉
+            for (IOException e : deleter.delete(temp.toPath()).getFailures().values()) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
             }
         }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     /**
@@ -89,38 +71,27 @@ public class JGitCommandsLearningTest_2 {
      * @throws IOException
      */
     public static AbstractTreeIterator prepareTreeParser(Repository repository, String objectId) throws IOException {
-        try (RevWalk walk = new RevWalk(repository)) {
-            RevCommit commit = walk.parseCommit(ObjectId.fromString(objectId));
-            RevTree tree = walk.parseTree(commit.getTree().getId());
-            CanonicalTreeParser treeParser = new CanonicalTreeParser();
-            try (ObjectReader reader = repository.newObjectReader()) {
-                treeParser.reset(reader, tree.getId());
-            }
-            walk.dispose();
-            return treeParser;
-        }
+//        树从仓库共用的缓存里取,同一个提交反复对比时不再重复解压
+        return GitTreeCache.of(repository).treeParser(ObjectId.fromString(objectId));
     }
 
 
     /**
      * 获取git仓库单例对象
+     * 仓库从GitRepoCache里取,同一个目录只打开一次,空闲超时后由缓存关闭
+     * 返回的git用完要close,close只归还句柄,仓库留在缓存里给后面的调用复用
      *
      * @param dir
      * @return
      */
     public static Git openRpo(String dir) {
-        Git git = null;
         try {
-//            配置的一个仓库
-            Repository repository = new FileRepositoryBuilder()
-                    .setGitDir(Paths.get(dir, ".git").toFile())
-                    .build();
-//            仓库得到一个git对象
-            git = new Git(repository);
+//            仓库得到一个git对象,持有句柄直到close
+            return GitRepoCache.getDefault().open(dir).git();
         } catch (IOException e) {
-            e.printStackTrace();
+//            打不开直接抛出,不再打印后返回null
+            throw new UncheckedIOException(e);
         }
-        return git;
     }
 
     /**
@@ -128,8 +99,9 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitBashHere() {
-        Git git = openRpo(localPath);
-        System.out.println(git);
+        try (Git git = openRpo(localPath)) {
+            System.out.println(git);
+        }
     }
 
     /**
@@ -145,16 +117,21 @@ public class JGitCommandsLearningTest_2 {
 
     /**
      * 添加到暂存区
+     * 所有操作一起提交,索引只锁定和重写一次
      *
-     * @throws GitAPIException
+     * @throws IOException
      */
     @Test
-    public void gitAdd() throws GitAPIException {
-        Git git = openRpo(localPath);
-        git.add().addFilepattern("add.txt").call();
-        git.add().addFilepattern("delete.txt").call();
-        git.add().addFilepattern("modify.txt").call();
-        git.rm().addFilepattern("delete.txt").call();
+    public void gitAdd() throws IOException {
+        try (Git git = openRpo(localPath)) {
+            GitBatchStager.Result result = new GitBatchStager(git.getRepository())
+                    .add("add.txt")
+                    .add("modify.txt")
+                    .remove("delete.txt")
+                    .call();
+            new File(localPath, "delete.txt").delete();   //git.rm()会同时删除工作区文件
+            System.out.println(result);
+        }
     }
 
     /**
@@ -164,33 +141,34 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitCommit() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        git.commit().setMessage("first commit").call();
+        try (Git git = openRpo(localPath)) {
+            git.commit().setMessage("first commit").call();
+        }
     }
 
     /**
      * 暂存区文件状态
+     * 用GitStatusScanner并行扫描,每个有变化的路径一个状态码
      *
-     * @throws GitAPIException
+     * @throws IOException
      */
     @Test
-    public void gitStatus() throws GitAPIException {
+    public void gitStatus() throws IOException {
         Map<String, String> map = new HashMap<String, String>();
-        Git git = openRpo(localPath);
-
-        Status status = git.status().call();
-        map.put("Added", status.getAdded().toString());
-        map.put("Changed", status.getChanged().toString());
-        map.put("Conflicting", status.getConflicting().toString());
-        map.put("ConflictingStageState", status.getConflictingStageState().toString());
-        map.put("IgnoredNotInIndex", status.getIgnoredNotInIndex().toString());
-        map.put("Missing", status.getMissing().toString());
-        map.put("Modified", status.getModified().toString());
-        map.put("Removed", status.getRemoved().toString());
-        map.put("UntrackedFiles", status.getUntracked().toString());
-        map.put("UntrackedFolders", status.getUntrackedFolders().toString());
-        System.out.println(map);
+        try (Git git = openRpo(localPath)) {
+            GitStatusScanner.Result status = new GitStatusScanner().scan(git.getRepository());
+            map.put("Added", status.getPaths(GitStatusScanner.ADDED).toString());
+            map.put("Changed", status.getPaths(GitStatusScanner.CHANGED).toString());
+            map.put("Conflicting", status.getPaths(GitStatusScanner.CONFLICTING).toString());
+            map.put("ConflictingStageState", status.getStageStates().toString());
+            map.put("IgnoredNotInIndex", status.getPaths(GitStatusScanner.IGNORED).toString());
+            map.put("Missing", status.getPaths(GitStatusScanner.MISSING).toString());
+            map.put("Modified", status.getPaths(GitStatusScanner.MODIFIED).toString());
+            map.put("Removed", status.getPaths(GitStatusScanner.REMOVED).toString());
+            map.put("UntrackedFiles", status.getPaths(GitStatusScanner.UNTRACKED).toString());
+            map.put("UntrackedFolders", status.getPaths(GitStatusScanner.UNTRACKED_FOLDER).toString());
+            System.out.println(map);
+        }
     }
 
     /**
@@ -200,39 +178,33 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitBranchList() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        //得到所有分支信息
-        List<Ref> callList = git.branchList().call();
-        for (Ref ref : callList)
-            System.out.println(ref.getName());
+        try (Git git = openRpo(localPath)) {
+            //得到所有分支信息
+            List<Ref> callList = git.branchList().call();
+            for (Ref ref : callList)
+                System.out.println(ref.getName());
+        }
     }
 
     /**
      * 创建分支
      *
      * @throws GitAPIException
+     * @throws IOException
      */
     @Test
-    public void gitBranchAddDev() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        List<Ref> callList = git.branchList().call();
-        if (callList.size() <= 0) {
-//            没有提交过,没有master分支先提交一次
-            git.commit().setMessage("first commit").call();
-        } else {
-            for (Ref ref : callList) {
-                if (ref.getName().split("/")[2].equals("dev")) {
-                    System.out.println("dev exist");
-                } else {
-                    if (callList.size() <= 1) {
-                        git.branchCreate().setName("dev").call();
-                    }
-                }
+    public void gitBranchAddDev() throws GitAPIException, IOException {
+        try (Git git = openRpo(localPath)) {
+//            直接查dev分支,不用列出全部分支逐个比较
+            if (git.getRepository().exactRef(Constants.R_HEADS + "dev") != null) {
+                System.out.println("dev exist");
+            } else if (git.getRepository().resolve(Constants.HEAD) == null) {
+//                没有提交过,没有master分支先提交一次
+                git.commit().setMessage("first commit").call();
+            } else {
+                git.branchCreate().setName("dev").call();
             }
         }
-//
     }
 
     /**
@@ -242,41 +214,60 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitBranchDelDev() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        //设置删除分支的名字
-        git.branchDelete().setBranchNames("dev").call();
+        try (Git git = openRpo(localPath)) {
+            //设置删除分支的名字
+            git.branchDelete().setBranchNames("dev").call();
+        }
     }
 
     /**
      * 跳转分支
      *
      * @throws GitAPIException
+     * @throws IOException
      */
     @Test
-    public void gitBranchCheckout() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        //设置分支名
-        git.checkout().setName("dev").call();
+    public void gitBranchCheckout() throws GitAPIException, IOException {
+        try (Git git = openRpo(localPath)) {
+            //设置分支名,变化的文件并行写出;要改的文件有本地修改时不切换
+            GitParallelCheckout.Result result = new GitParallelCheckout(git.getRepository()).checkoutBranch("dev");
+            System.out.println(result);
+        } catch (CheckoutConflictException e) {
+            System.out.println(Arrays.toString(e.getConflictingFiles()));
+        }
     }
 
     /**
      * 合并dev和master
      *
-     * @throws GitAPIException
+     * @throws IOException
      */
     @Test
-    public void gitMerge() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        Ref refdev = git.checkout().setName("dev").call(); //切换分支获取分支信息存入Ref对象里
-        git.checkout().setName("master").call();   //切换回master分支
-        MergeResult mergeResult = git.merge().include(refdev)  // 合并目标分支
-                .setCommit(true)           //同时提交
-                .setFastForward(MergeCommand.FastForwardMode.NO_FF)// 分支合并策略NO_FF代表普通合并 //  FF代表快速合并
-                .setMessage("master Merge dev")     //设置提交信息
-                .call();
+    public void gitMerge() throws IOException {
+        try (Git git = openRpo(localPath)) {
+            Repository repository = git.getRepository();
+
+            Ref refdev = repository.exactRef(Constants.R_HEADS + "dev"); //直接读分支,不用来回切换工作区
+            ObjectId before = repository.resolve(Constants.R_HEADS + "master");
+            GitMergeEngine.Result result = new GitMergeEngine(repository)
+                    .mergeBranch("master", refdev.getObjectId(), "master Merge dev"); //NO_FF合并并提交,冲突时不提交
+            if (result.isClean() && result.getCommit() != null
+                    && (Constants.R_HEADS + "master").equals(repository.getFullBranch())) {
+                try {
+                    //master正被检出,工作区从合并前的提交切到合并结果,要改的文件有本地修改时不动工作区
+                    new GitParallelCheckout(repository).checkout(before, result.getCommit());
+                } catch (CheckoutConflictException e) {
+                    //工作区和索引还是合并前的,master退回去,不然下次提交会把合并进来的改动又改回去
+                    RefUpdate update = repository.updateRef(Constants.R_HEADS + "master");
+                    update.setNewObjectId(before);
+                    update.setExpectedOldObjectId(result.getCommit());
+                    update.setForceUpdate(true);
+                    update.update();
+                    System.out.println(Arrays.toString(e.getConflictingFiles()));
+                }
+            }
+            System.out.println(result.getConflicts());
+        }
     }
 
     /**
@@ -286,16 +277,16 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitRemoteList() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        Map<String, String> urlMap = new HashMap<>();
-        List<RemoteConfig> remoteConfigList = git
-                .remoteList()   //获取list
-                .call();
-        for (RemoteConfig x : remoteConfigList) {
-            urlMap.put(x.getName(), x.getURIs().toString());   //获取名字，获取URL
+        try (Git git = openRpo(localPath)) {
+            Map<String, String> urlMap = new HashMap<>();
+            List<RemoteConfig> remoteConfigList = git
+                    .remoteList()   //获取list
+                    .call();
+            for (RemoteConfig x : remoteConfigList) {
+                urlMap.put(x.getName(), x.getURIs().toString());   //获取名字，获取URL
+            }
+            System.out.println(urlMap);
         }
-        System.out.println(urlMap);
     }
 
     /**
@@ -306,17 +297,17 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitAddRemote() throws URISyntaxException, GitAPIException {
-        Git git = openRpo(localPath);
-
-        RemoteAddCommand remoteAddCommand = git.remoteAdd();
-        remoteAddCommand.setName("master");
-        remoteAddCommand.setUri(new URIish("https://github.com/ssghyqr/software.git"));
-        remoteAddCommand.call();
-
-        RemoteAddCommand sshRemoteAddCommand = git.remoteAdd();
-        sshRemoteAddCommand.setName("origin");
-        sshRemoteAddCommand.setUri(new URIish("git@github.com:ssghyqr/software.git"));
-        sshRemoteAddCommand.call();
+        try (Git git = openRpo(localPath)) {
+            RemoteAddCommand remoteAddCommand = git.remoteAdd();
+            remoteAddCommand.setName("master");
+            remoteAddCommand.setUri(new URIish("https://github.com/ssghyqr/software.git"));
+            remoteAddCommand.call();
+
+            RemoteAddCommand sshRemoteAddCommand = git.remoteAdd();
+            sshRemoteAddCommand.setName("origin");
+            sshRemoteAddCommand.setUri(new URIish("git@github.com:ssghyqr/software.git"));
+            sshRemoteAddCommand.call();
+        }
     }
 
     /**
@@ -326,11 +317,11 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitDelRemote() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        RemoteRemoveCommand remoteRemoveCommand = git.remoteRemove();
-        remoteRemoveCommand.setName("master");
-        remoteRemoveCommand.call();
+        try (Git git = openRpo(localPath)) {
+            RemoteRemoveCommand remoteRemoveCommand = git.remoteRemove();
+            remoteRemoveCommand.setName("master");
+            remoteRemoveCommand.call();
+        }
     }
 
     /**
@@ -341,12 +332,16 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitPushOriginMaster() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        git.push().setRemote("origin").setTransportConfigCallback(transport -> {
-            SshTransport sshTransport = (SshTransport) transport;
-            sshTransport.setSshSessionFactory(sshSessionFactory);
-        }).setRefSpecs(new RefSpec("master")).call();
+        try (Git git = openRpo(localPath)) {
+            Iterable<PushResult> results = GitMetrics.getDefault().call(git.push().setRemote("origin").setTransportConfigCallback(transport -> {
+                SshTransport sshTransport = (SshTransport) transport;
+                sshTransport.setSshSessionFactory(sshSessionFactory);
+            }).setRefSpecs(new RefSpec("master")));
+//            被拒绝的引用不会抛异常,要自己检查
+            for (RemoteRefUpdate update : GitMetrics.failedUpdates(results)) {
+                System.out.println(update.getRemoteName() + " " + update.getStatus() + " " + update.getMessage());
+            }
+        }
     }
 
     /**
@@ -356,30 +351,45 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitPullOrigin() throws GitAPIException {
-        Git git = openRpo(localPath);
+        try (Git git = openRpo(localPath)) {
+            GitMetrics.getDefault().call(git.pull().setRemote("origin").setRemoteBranchName("master")
+                    .setTransportConfigCallback(transport -> {
+                        SshTransport sshTransport = (SshTransport) transport;
+                        sshTransport.setSshSessionFactory(sshSessionFactory);
+                    }));
+        }
+    }
 
-        git.pull().setRemote("origin").setRemoteBranchName("master").setTransportConfigCallback(transport -> {
-            SshTransport sshTransport = (SshTransport) transport;
-            sshTransport.setSshSessionFactory(sshSessionFactory);
-        }).call();
+    /**
+     * 多个仓库一起从远端拉取
+     * 在有界线程池里并行执行,同一主机的并发有上限,所有ssh传输共用一个会话工厂
+     */
+    @Test
+    public void gitFetchAll() {
+        try (Git local = openRpo(localPath);
+             Git clone = openRpo(localClonePath);
+             GitSyncScheduler scheduler = new GitSyncScheduler(8)
+                .setMaxPerHost(4)
+                .setSshSessionFactory(sshSessionFactory)) {
+            List<Repository> repositories = Arrays.asList(local.getRepository(), clone.getRepository());
+            for (GitSyncScheduler.SyncResult result : scheduler.fetchAll(repositories, "origin")) {
+                System.out.println(result);   //每个仓库的耗时、对象数和字节数
+            }
+        }
     }
 
     /**
      * 克隆远端仓库
      *
      * @throws GitAPIException
+     * @throws IOException
      */
     @Test
-    public void gitClone() throws GitAPIException {
+    public void gitClone() throws GitAPIException, IOException {
         File path = new File(localClonePath);
-        if (path.exists()) {
-            deleteDir(path.getPath());
-        }
 
-//        开始克隆
-        Git git = Git.cloneRepository()
-                .setURI(sshUri)
-                .setDirectory(path)
+//        已经克隆过时只拉取缺少的对象并hard reset,仓库损坏时才删掉重新克隆
+        GitCloneSync.Result result = new GitCloneSync(sshUri, path)
                 .setTransportConfigCallback(transport -> {
                     SshTransport sshTransport = (SshTransport) transport;
                     sshTransport.setSshSessionFactory(sshSessionFactory);
@@ -387,9 +397,27 @@ public class JGitCommandsLearningTest_2 {
                 .setCloneSubmodules(true)
                 .setBranch("master")
                 .call();
+        System.out.println(result);
+    }
 
-        git.getRepository().close();
-        git.close();
+    /**
+     * 只克隆一个目录: 不下载历史里的文件内容,检出时只补拉这个目录需要的文件
+     *
+     * @throws GitAPIException
+     * @throws IOException
+     */
+    @Test
+    public void gitCloneSparse() throws GitAPIException, IOException {
+        GitCloneSync.Result result = new GitCloneSync(sshUri, new File(localClonePath))
+                .setTransportConfigCallback(transport -> {
+                    SshTransport sshTransport = (SshTransport) transport;
+                    sshTransport.setSshSessionFactory(sshSessionFactory);
+                })
+                .setFilter("blob:none")
+                .setSparseCheckout(Collections.singletonList("src/"))
+                .setBranch("master")
+                .call();
+        System.out.println(result);
     }
 
     /**
@@ -400,12 +428,14 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitLogList() throws IOException, GitAPIException {
-        Git git = openRpo(localPath);
-
-        Iterable<RevCommit> logList = git.log().setMaxCount(5).call();
-        for (RevCommit revCommit : logList) {
-            System.out.println("logID: " + revCommit.getName()
-                    + " logMessage: " + revCommit.getShortMessage());
+        try (Git git = openRpo(localPath)) {
+            try (GitLogStream.LogIterator logList = new GitLogStream(git.getRepository()).setMaxCount(5).call()) {
+                while (logList.hasNext()) {
+                    GitLogStream.CommitInfo commitInfo = logList.next();
+                    System.out.println("logID: " + commitInfo.getName()
+                            + " logMessage: " + commitInfo.getShortMessage());
+                }
+            }
         }
     }
 
@@ -417,53 +447,49 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitCreateTag() throws GitAPIException, IOException {
-        Git git = openRpo(localPath);
-
-        Iterable<RevCommit> logIter = git.log().setMaxCount(5).call();
-        List<RevCommit> logList = new ArrayList<>();
-        logIter.forEach(item -> {
-            logList.add(item);
-        });
-
-//        默认拿取commit最晚的添加标签
-        ObjectId id = git.getRepository().resolve(logList.get(0).getName());  //获取提交的ObjectID
-        RevWalk walk = new RevWalk(git.getRepository());   //获取RevWalk对象
-        RevCommit commit = walk.parseCommit(id);   //获取该commitID的RevCommit对象
-        git.tag().setObjectId(commit)  //设置commit
-                .setName("V1.0")  //设置tag名字
-                .setMessage("test tag")  //设置tag注释
-//                    .setAnnotated()  //是否为annotate
-                .call();
+        try (Git git = openRpo(localPath)) {
+//            默认拿取commit最晚的添加标签,只需要日志里的第一条,不用正文
+            ObjectId id;  //获取提交的ObjectID
+            try (GitLogStream.LogIterator logIter = new GitLogStream(git.getRepository())
+                    .setMaxCount(1).setParseBody(false).call()) {
+                id = logIter.next().getId();
+            }
+            new GitTagStore(git.getRepository())
+                    .create("V1.0", id, "test tag")  //tag名字、commit和注释,注释为null时是轻量标签
+                    .call();
+        }
     }
 
     /**
      * 获取全部tag
      *
-     * @throws GitAPIException
      * @throws IOException
      */
     @Test
-    public void gitTagList() throws GitAPIException, IOException {
-        Git git = openRpo(localPath);
-
-        List<Ref> refList = git.tagList().call();  //获取所有tag
-        RevWalk walk = new RevWalk(git.getRepository());
-        for (Ref ref : refList) {
-            System.out.println("commitID:" + walk.parseCommit(ref.getObjectId()).getName());  // 通过ref获取objectID
-            System.out.println("tagName:" + ref.getName());                                 // 然后通过walk获取commit对象再获																								   // 取commitId
+    public void gitTagList() throws IOException {
+        try (Git git = openRpo(localPath)) {
+//            直接从packed-refs读出标签指向的commit,不用为每个tag解析对象
+            try (GitTagStore.TagIterator tags = new GitTagStore(git.getRepository()).list()) {
+                while (tags.hasNext()) {
+                    GitTagStore.TagInfo tag = tags.next();
+                    System.out.println("commitID:" + tag.getTargetId().getName());
+                    System.out.println("tagName:" + tag.getRefName());
+                }
+            }
         }
     }
 
     /**
      * 删除标签
      *
-     * @throws GitAPIException
+     * @throws IOException
      */
     @Test
-    public void gitDelTag() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        git.tagDelete().setTags("V1.0").call();
+    public void gitDelTag() throws IOException {
+        try (Git git = openRpo(localPath)) {
+//            多个标签可以连续delete,一次原子更新
+            new GitTagStore(git.getRepository()).delete("V1.0").call();
+        }
     }
 
     /**
@@ -473,51 +499,80 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitPushTag() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        git.push().setRemote("origin")
-                .setPushTags()
-                .setTransportConfigCallback(transport -> {
-                    SshTransport sshTransport = (SshTransport) transport;
-                    sshTransport.setSshSessionFactory(sshSessionFactory);
-                })
-                .call();
+        try (Git git = openRpo(localPath)) {
+            Iterable<PushResult> results = GitMetrics.getDefault().call(git.push().setRemote("origin")
+                    .setPushTags()
+                    .setTransportConfigCallback(transport -> {
+                        SshTransport sshTransport = (SshTransport) transport;
+                        sshTransport.setSshSessionFactory(sshSessionFactory);
+                    }));
+            for (RemoteRefUpdate update : GitMetrics.failedUpdates(results)) {
+                System.out.println(update.getRemoteName() + " " + update.getStatus() + " " + update.getMessage());
+            }
+        }
     }
 
     /**
      * 当前修改后与前一次commit版本对比
-     * @throws GitAPIException
+     * @throws IOException
      */
     @Test
-    public void gitDiff() throws GitAPIException {
-        Git git = openRpo(localPath);
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        git.diff()
-                .setOutputStream(outputStream) //输出流  用outputStream，后面转成字符串
-                .call();
-        System.out.println(outputStream.toString());
+    public void gitDiff() throws IOException {
+        try (Git git = openRpo(localPath)) {
+//            每个文件的补丁生成好就按路径顺序直接写到控制台,不在内存里拼整个补丁
+            new GitDiffEngine(git.getRepository())
+                    .diffWorkingTree(GitDiffEngine.DiffSink.toStream(System.out));
+        }
     }
 
     /**
      * 本地仓库两个commit版本对比
-     * @throws GitAPIException
      * @throws IOException
      */
     @Test
-    public void gitDiffCommit() throws GitAPIException, IOException {
-        Git git = openRpo(localPath);
+    public void gitDiffCommit() throws IOException {
+        try (Git git = openRpo(localPath)) {
+            AbstractTreeIterator newTreeIter = prepareTreeParser(git.getRepository(), git.getRepository().resolve("HEAD").getName());
+            AbstractTreeIterator oldTreeIter = prepareTreeParser(git.getRepository(), git.getRepository().resolve("HEAD^").getName());
+            new GitDiffEngine(git.getRepository())
+                    .setTreeCache(GitTreeCache.of(git.getRepository()))  //子树也走缓存
+                    .setBlobCache(GitBlobCache.getDefault())   //每次推送都对比的文件内容走blob缓存
+//                    .setPathFilter(PathFilterGroup.createFromStrings("a.txt"))  //设置过滤
+                    .diff(oldTreeIter, newTreeIter, GitDiffEngine.DiffSink.toStream(System.out));  //按路径顺序流式输出
+        }
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        AbstractTreeIterator newTreeIter = prepareTreeParser(git.getRepository(), git.getRepository().resolve("HEAD").getName());
-        AbstractTreeIterator oldTreeIter = prepareTreeParser(git.getRepository(), git.getRepository().resolve("HEAD^").getName());
-        git.diff()
-                .setNewTree(newTreeIter)  //设置源，不设置则默认工作区和历史最新commit版本比较
-                .setOldTree(oldTreeIter)
-//                    .setPathFilter(PathFilter.create(".txt"))  //设置过滤
-                .setOutputStream(outputStream) //输出流  用outputStream，后面转成字符串
-                .call();
-        System.out.println(outputStream.toString());
+    /**
+     * 读某个版本上的文件,同一个文件的内容只解压一次,多个仓库共用缓存
+     * @throws IOException
+     */
+    @Test
+    public void gitShowFile() throws IOException {
+        try (Git git = openRpo(localPath)) {
+            byte[] content = GitBlobCache.getDefault().readFile(git.getRepository(), "HEAD^", "pom.xml");
+            System.out.println(content == null ? "not found" : new String(content, "UTF-8"));
+            System.out.println(GitBlobCache.getDefault());
+        }
+    }
+
+    /**
+     * 逐行追溯文件,结果边算边输出,索引存下后再追溯只处理新提交
+     * @throws IOException
+     */
+    @Test
+    public void gitBlame() throws IOException {
+        try (Git git = openRpo(localPath)) {
+            ObjectId head = git.getRepository().resolve(Constants.HEAD);
+            GitBlame.Result result = new GitBlame(git.getRepository())
+                    .setCommitGraph(GitCommitGraph.open(git.getRepository()))  //按代数排序祖先
+                    .setBlobCache(GitBlobCache.getDefault())                     //各版本的内容走缓存
+                    .setPersistIndex(true)                                       //写.git/blame-index
+                    .blame(head, "pom.xml", region -> {
+                        System.out.println(region);
+                        return true;                                             //返回false可以提前停
+                    });
+            System.out.println(result);
+        }
     }
 
     /**
@@ -527,21 +582,16 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitReset() throws IOException, GitAPIException {
-        Git git = openRpo(localPath);
-
-        Iterable<RevCommit> logIter = git.log().setMaxCount(5).call();
-        List<RevCommit> logList = new ArrayList<>();
-        logIter.forEach(item -> {
-            logList.add(item);
-        });
-
-        RevWalk walk = new RevWalk(git.getRepository());    //获取walk对象
-//        默认回溯前一个版本
-        ObjectId objectId = git.getRepository()
-                .resolve(logList.get(1).getName());   //ObjectId对象
-        RevCommit revCommit = walk.parseCommit(objectId);   //获取Revcommit对象
-        String perVision = revCommit.getParent(0).getName();   //获取commit的身份名
-        git.reset().setMode(ResetCommand.ResetType.HARD).setRef(perVision).call();  //设置参数
+        try (Git git = openRpo(localPath)) {
+//            默认回溯前一个版本,父提交直接从提交图里查,不用解压提交对象
+            GitCommitGraph graph = GitCommitGraph.open(git.getRepository());
+            ObjectId head = git.getRepository().resolve(Constants.HEAD);
+            List<ObjectId> logIds = graph.log(head, 2);
+            String perVision = graph.getFirstParent(logIds.get(1)).getName();   //获取commit的身份名
+            GitParallelCheckout.Result result = new GitParallelCheckout(git.getRepository())
+                    .reset(ObjectId.fromString(perVision));   //HARD模式,只重写有变化的文件
+            System.out.println(result);
+        }
     }
 
     /**
@@ -551,18 +601,78 @@ public class JGitCommandsLearningTest_2 {
      */
     @Test
     public void gitRevert() throws GitAPIException, IOException {
-        Git git = openRpo(localPath);
-
-        Iterable<RevCommit> logIter = git.log().setMaxCount(5).call();
-        List<RevCommit> logList = new ArrayList<>();
-        logIter.forEach(item -> {
-            logList.add(item);
-        });
-
-        RevWalk walk = new RevWalk(git.getRepository());
-        ObjectId objectId = git.getRepository()
-                .resolve(logList.get(1).getName());   //ObjectId对象
-        RevCommit revCommit = walk.parseCommit(objectId);
-        git.revert().include(revCommit).call();
+        try (Git git = openRpo(localPath)) {
+            ObjectId objectId;   //ObjectId对象
+            try (GitLogStream.LogIterator logIter = new GitLogStream(git.getRepository())
+                    .setMaxCount(2).setParseBody(false).call()) {
+                logIter.next();
+                objectId = logIter.next().getId();
+            }
+            GitHistoryRewriter.Result result = new GitHistoryRewriter(git.getRepository())
+                    .revert(objectId)   //在内存里合并出撤销后的树,可以连续追加多步,最后只移动一次分支
+                    .call();
+            if (result.isSuccessful()) {
+                try {
+                    //分支正被检出,工作区从旧提交切到新提交,要改的文件有本地修改时不动工作区
+                    new GitParallelCheckout(git.getRepository()).checkout(result.getOldHead(), result.getHead());
+                } catch (CheckoutConflictException e) {
+                    //工作区和索引还是旧提交,分支退回去,不然下次提交会把撤销又改回去
+                    RefUpdate update = git.getRepository().updateRef(Constants.HEAD);
+                    update.setNewObjectId(result.getOldHead());
+                    update.setExpectedOldObjectId(result.getHead());
+                    update.setForceUpdate(true);
+                    update.update();
+                    System.out.println(Arrays.toString(e.getConflictingFiles()));
+                }
+            }
+            System.out.println(result);
+        }
+    }
+
+    /**
+     * 维护仓库: 打包松散对象和引用,合并小pack,删除过期的reflog
+     * @throws Exception
+     */
+    @Test
+    public void gitMaintenance() throws Exception {
+        try (Git git = openRpo(localPath)) {
+            System.out.println(GitMaintenance.scan(git.getRepository()));
+            try (GitMaintenance maintenance = new GitMaintenance().setIoLimit(20 * 1024 * 1024)) {
+                System.out.println(maintenance.runNow(git.getRepository()).get());
+            }
+        }
+    }
+
+    /**
+     * 引用迁移到reftable,分支和标签很多时查找、列出和更新都更快
+     * 之后openRpo会按reftable打开
+     * @throws IOException
+     */
+    @Test
+    public void gitMigrateReftable() throws IOException {
+        try (Git git = openRpo(localPath)) {
+            try (GitReftableRepository repository = GitReftableRepository.migrate(git.getRepository())) {
+                System.out.println(repository.getRefDatabase().getRefs().size());
+            }
+        }
+//        缓存里的仓库还是按文件存储打开的,句柄都归还后关掉,让下次重新打开
+        GitRepoCache.getDefault().clear();
+    }
+
+    /**
+     * 打开指标后做几次操作,打印每种操作的耗时分布和读写量
+     * registerJmx后也可以在jconsole的GitMetrics下看
+     * @throws Exception
+     */
+    @Test
+    public void gitMetrics() throws Exception {
+        GitMetrics metrics = GitMetrics.getDefault().setEnabled(true)
+                .addExporter(sample -> System.out.println(sample));   //每次操作结束打印一行
+        metrics.registerJmx();
+        try (Git git = openRpo(localPath)) {
+            new GitStatusScanner().scan(git.getRepository());
+            GitMetrics.getDefault().call(git.log().setMaxCount(10));
+            System.out.println(metrics);
+        }
     }
 }